@@ -0,0 +1,45 @@
+package com.btoddb.cache.benchmarks;
+
+import com.btoddb.cache.HitRateSimulation;
+import com.btoddb.cache.TinyLfuAdmissionPolicy;
+
+
+/**
+ * Hit rates of ehcache's LRU with and without {@link TinyLfuAdmissionPolicy}, replaying Zipfian
+ * traces with and without one-off scans.  Not a JMH benchmark.
+ *
+ * <pre>
+ *   java -cp target/benchmarks.jar com.btoddb.cache.benchmarks.AdmissionHitRate [cacheSize...]
+ * </pre>
+ */
+public class AdmissionHitRate {
+    static final int KEYS = 100000;
+    static final int READS = 1000000;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {1000, 5000, 20000};
+        if (0 < args.length) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println(String.format("%-22s %8s %8s %8s", "workload", "size", "lru", "tinylfu"));
+        for (double exponent : new double[] {0.8, 1.0}) {
+            String[] zipf = HitRateSimulation.zipf(KEYS, exponent, READS, 1);
+            // scans of 5000 keys, read once, every 20000 reads
+            String[] scans = HitRateSimulation.withScans(zipf, 20000, 5000);
+            for (int size : sizes) {
+                print(String.format("zipf %.1f", exponent), size, zipf);
+                print(String.format("zipf %.1f + scans", exponent), size, scans);
+            }
+        }
+    }
+
+    private static void print(String workload, int size, String[] trace) {
+        double lru = HitRateSimulation.replay(HitRateSimulation.ehcache(size, false), trace);
+        double tinyLfu = HitRateSimulation.replay(HitRateSimulation.ehcache(size, true), trace);
+        System.out.println(String.format("%-22s %8d %8.3f %8.3f", workload, size, lru, tinyLfu));
+    }
+}
@@ -0,0 +1,104 @@
+package com.btoddb.cache.benchmarks;
+
+import com.btoddb.cache.CachingService;
+import com.btoddb.cache.CachingServiceUsingEhcache;
+import com.btoddb.cache.CachingServiceUsingOffHeap;
+import com.btoddb.cache.KeyLocks;
+import com.btoddb.cache.PackedRow;
+import net.sf.ehcache.config.CacheConfiguration;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Raw {@link CachingService} operations against a pre-loaded cache, on heap (ehcache, optionally
+ * with TinyLFU admission) or off heap.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CachingServiceBenchmark {
+
+    // stay under the default cache's 10000 entry heap limit so every lookup of a loaded key hits
+    @Param({"5000"})
+    int rowCount;
+
+    @Param({"10"})
+    int rowWidth;
+
+    @Param({"ehcache", "ehcache-tinylfu", "offheap"})
+    String store;
+
+    CachingService cachingService;
+    String[] keys;
+    String[] missingKeys;
+    PackedRow row;
+
+    @Setup
+    public void setup() throws Exception {
+        if ("offheap".equals(store)) {
+            cachingService = new CachingServiceUsingOffHeap(SyntheticRows.KEYSPACE, "caching-service", 256 * 1024 * 1024);
+        }
+        else if ("ehcache-tinylfu".equals(store)) {
+            // every read also counts the key in the admission sketch
+            cachingService = new CachingServiceUsingEhcache(SyntheticRows.KEYSPACE, "caching-service-tinylfu",
+                                                            KeyLocks.DEFAULT_STRIPES,
+                                                            new CacheConfiguration().maxEntriesLocalHeap(10000), true);
+        }
+        else {
+            cachingService = new CachingServiceUsingEhcache(SyntheticRows.KEYSPACE, "caching-service");
+        }
+        cachingService.resetCache();
+
+        SyntheticRows rows = new SyntheticRows(rowWidth);
+        row = rows.cachedRow(System.currentTimeMillis());
+        keys = new String[rowCount];
+        missingKeys = new String[rowCount];
+        for (int i = 0; i < rowCount; i++) {
+            keys[i] = "key-" + i;
+            missingKeys[i] = "missing-" + i;
+            cachingService.put(keys[i], rows.cachedRow(System.currentTimeMillis()));
+        }
+    }
+
+    @TearDown
+    public void teardown() {
+        cachingService.resetCache();
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int next(int bound) {
+            if (++next >= bound) {
+                next = 0;
+            }
+            return next;
+        }
+    }
+
+    @Benchmark
+    public PackedRow getHit(Cursor cursor) {
+        return cachingService.get(keys[cursor.next(rowCount)]);
+    }
+
+    @Benchmark
+    public PackedRow getMiss(Cursor cursor) {
+        return cachingService.get(missingKeys[cursor.next(rowCount)]);
+    }
+
+    @Benchmark
+    public void put(Cursor cursor) {
+        cachingService.put(keys[cursor.next(rowCount)], row);
+    }
+
+    @Benchmark
+    public boolean contains(Cursor cursor) {
+        return cachingService.contains(keys[cursor.next(rowCount)]);
+    }
+}
@@ -0,0 +1,72 @@
+package com.btoddb.cache.benchmarks;
+
+import com.btoddb.cache.PackedRow;
+import com.btoddb.cache.cassandra.CassandraDao;
+import com.btoddb.cache.cassandra.CassandraTestHelper;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * {@link CassandraDao#get} against the embedded Cassandra server.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+// cassandra refuses to create the trigger unless triggers_dir is set
+@Fork(value = 1, jvmArgsAppend = "-Dcassandra.triggers_dir=/")
+@State(Scope.Benchmark)
+public class CassandraDaoBenchmark {
+
+    @Param({"1000"})
+    int rowCount;
+
+    @Param({"10", "100"})
+    int rowWidth;
+
+    CassandraDao dao;
+    String[] keys;
+
+    @Setup
+    public void setup() throws Exception {
+        CassandraTestHelper.startEmbeddedServer("/cassandra.yaml");
+        dao = new CassandraDao();
+        dao.start("localhost", 9052);
+
+        SyntheticRows rows = new SyntheticRows(rowWidth);
+        keys = new String[rowCount];
+        for (int i = 0; i < rowCount; i++) {
+            keys[i] = "key-" + i;
+            dao.put(keys[i], rows.cachedRow(System.currentTimeMillis()));
+        }
+    }
+
+    @TearDown
+    public void teardown() {
+        dao.shutdown();
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int next(int bound) {
+            if (++next >= bound) {
+                next = 0;
+            }
+            return next;
+        }
+    }
+
+    @Benchmark
+    public PackedRow getHit(Cursor cursor) {
+        return dao.get(keys[cursor.next(rowCount)]);
+    }
+
+    @Benchmark
+    public PackedRow getMiss() {
+        return dao.get("does-not-exist");
+    }
+}
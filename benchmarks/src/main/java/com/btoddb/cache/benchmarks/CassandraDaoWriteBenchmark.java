@@ -0,0 +1,72 @@
+package com.btoddb.cache.benchmarks;
+
+import com.btoddb.cache.PackedRow;
+import com.btoddb.cache.cassandra.CassandraDao;
+import com.btoddb.cache.cassandra.CassandraTestHelper;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * {@link CassandraDao#put(String, PackedRow, CassandraDao.WriteMode)} against the embedded
+ * Cassandra server, for each write mode.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+// cassandra refuses to create the trigger unless triggers_dir is set
+@Fork(value = 1, jvmArgsAppend = "-Dcassandra.triggers_dir=/")
+@Threads(8)
+@State(Scope.Benchmark)
+public class CassandraDaoWriteBenchmark {
+
+    @Param({"1000"})
+    int rowCount;
+
+    @Param({"10", "100"})
+    int rowWidth;
+
+    @Param({"LOGGED_BATCH", "UNLOGGED_BATCH"})
+    CassandraDao.WriteMode writeMode;
+
+    CassandraDao dao;
+    String[] keys;
+    PackedRow row;
+
+    @Setup
+    public void setup() throws Exception {
+        CassandraTestHelper.startEmbeddedServer("/cassandra.yaml");
+        dao = new CassandraDao();
+        dao.start("localhost", 9052);
+
+        keys = new String[rowCount];
+        for (int i = 0; i < rowCount; i++) {
+            keys[i] = "key-" + i;
+        }
+        row = new SyntheticRows(rowWidth).cachedRow(System.currentTimeMillis());
+    }
+
+    @TearDown
+    public void teardown() {
+        dao.shutdown();
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int next(int bound) {
+            if (++next >= bound) {
+                next = 0;
+            }
+            return next;
+        }
+    }
+
+    @Benchmark
+    public void put(Cursor cursor) {
+        dao.put(keys[cursor.next(rowCount)], row, writeMode);
+    }
+}
@@ -0,0 +1,44 @@
+package com.btoddb.cache.benchmarks;
+
+import com.btoddb.cache.metrics.LatencyRecorder;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * What timing an operation costs: reading the clock twice and recording the difference, from one
+ * thread and from eight at once.  Compare with the operations being timed, e.g.
+ * {@link RestServiceBenchmark} and {@link TriggerUpdateBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LatencyRecorderBenchmark {
+
+    LatencyRecorder recorder = new LatencyRecorder();
+
+    @Benchmark
+    public long readClock() {
+        return System.nanoTime();
+    }
+
+    @Benchmark
+    public void recordSince() {
+        recorder.recordSince(System.nanoTime());
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void recordSinceContended() {
+        recorder.recordSince(System.nanoTime());
+    }
+
+    @Benchmark
+    public LatencyRecorder.Snapshot snapshot() {
+        return recorder.snapshot();
+    }
+}
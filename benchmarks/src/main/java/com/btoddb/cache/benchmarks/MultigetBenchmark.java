@@ -0,0 +1,103 @@
+package com.btoddb.cache.benchmarks;
+
+import com.btoddb.cache.CassandraExternalCache;
+import com.btoddb.cache.cassandra.CassandraTestHelper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Fetching <code>idCount</code> uncached rows: one <code>GET /v1/get/{id}</code> per row vs a
+ * single <code>POST /v1/multiget</code>.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+// cassandra refuses to create the trigger unless triggers_dir is set
+@Fork(value = 1, jvmArgsAppend = "-Dcassandra.triggers_dir=/")
+@State(Scope.Benchmark)
+public class MultigetBenchmark {
+    @Param({"50", "500"})
+    int idCount;
+
+    @Param({"10"})
+    int rowWidth;
+
+    CassandraExternalCache cache;
+    String[] ids;
+    URL[] getUrls;
+    URL multigetUrl;
+    byte[] multigetBody;
+    byte[] buffer = new byte[8192];
+
+    @Setup
+    public void setup() throws Exception {
+        CassandraTestHelper.startEmbeddedServer("/cassandra.yaml");
+        cache = new CassandraExternalCache();
+        cache.getCachingService().resetCache();
+
+        SyntheticRows rows = new SyntheticRows(rowWidth);
+        ids = new String[idCount];
+        getUrls = new URL[idCount];
+        StringBuilder body = new StringBuilder("[");
+        for (int i = 0; i < idCount; i++) {
+            ids[i] = "multi-" + i;
+            cache.getCassandraDao().put(ids[i], rows.cachedRow(System.currentTimeMillis()));
+            getUrls[i] = new URL("http://localhost:9090/v1/get/" + ids[i]);
+            body.append(0 < i ? ",\"" : "\"").append(ids[i]).append('"');
+        }
+        multigetBody = body.append(']').toString().getBytes("UTF-8");
+        multigetUrl = new URL("http://localhost:9090/v1/multiget");
+    }
+
+    @TearDown
+    public void teardown() {
+        cache.shutdown();
+        cache.getCassandraDao().shutdown();
+    }
+
+    @Setup(Level.Invocation)
+    public void evict() {
+        // every row is a miss, that's the case multiget is for
+        cache.getCachingService().resetCache();
+    }
+
+    @Benchmark
+    public int sequentialGets() throws IOException {
+        int total = 0;
+        for (URL url : getUrls) {
+            total += read((HttpURLConnection) url.openConnection());
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int multiget() throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) multigetUrl.openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(multigetBody);
+        }
+        return read(conn);
+    }
+
+    private int read(HttpURLConnection conn) throws IOException {
+        int total = 0;
+        try (InputStream in = conn.getInputStream()) {
+            int len;
+            while (-1 != (len = in.read(buffer))) {
+                total += len;
+            }
+        }
+        return total;
+    }
+}
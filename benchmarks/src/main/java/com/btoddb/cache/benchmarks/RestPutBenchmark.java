@@ -0,0 +1,91 @@
+package com.btoddb.cache.benchmarks;
+
+import com.btoddb.cache.CassandraExternalCache;
+import com.btoddb.cache.Config;
+import com.btoddb.cache.cassandra.CassandraTestHelper;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * End-to-end <code>PUT /v1/put/{id}</code> over HTTP, written through to Cassandra before
+ * answering or written behind.  Threads cycle through a set of ids, so with write-behind some
+ * PUTs coalesce with one still pending.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+// cassandra refuses to create the trigger unless triggers_dir is set
+@Fork(value = 1, jvmArgsAppend = "-Dcassandra.triggers_dir=/")
+@Threads(8)
+@State(Scope.Benchmark)
+public class RestPutBenchmark {
+
+    @Param({"1000"})
+    int rowCount;
+
+    @Param({"10", "100"})
+    int rowWidth;
+
+    @Param({"false", "true"})
+    boolean writeBehind;
+
+    CassandraExternalCache cache;
+    URL[] urls;
+    byte[] body;
+
+    @Setup
+    public void setup() throws Exception {
+        CassandraTestHelper.startEmbeddedServer("/cassandra.yaml");
+        Config config = new Config();
+        config.setWriteBehind(writeBehind);
+        cache = new CassandraExternalCache(config);
+        cache.getCachingService().resetCache();
+
+        urls = new URL[rowCount];
+        for (int i = 0; i < rowCount; i++) {
+            urls[i] = new URL("http://localhost:9090/v1/put/key-" + i);
+        }
+        body = new ObjectMapper().writeValueAsBytes(
+                new SyntheticRows(rowWidth).columnMap(System.currentTimeMillis()));
+    }
+
+    @TearDown
+    public void teardown() {
+        cache.shutdown();
+        cache.getCassandraDao().shutdown();
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int next(int bound) {
+            if (++next >= bound) {
+                next = 0;
+            }
+            return next;
+        }
+    }
+
+    @Benchmark
+    public int put(Cursor cursor) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) urls[cursor.next(rowCount)].openConnection();
+        conn.setRequestMethod("PUT");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(body);
+        }
+        int status = conn.getResponseCode();
+        conn.getInputStream().close();
+        return status;
+    }
+}
@@ -0,0 +1,104 @@
+package com.btoddb.cache.benchmarks;
+
+import com.btoddb.cache.CassandraExternalCache;
+import com.btoddb.cache.cassandra.CassandraTestHelper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * End-to-end <code>GET /v1/get/{id}</code> over HTTP, served from the cache (hit) or from
+ * Cassandra (miss).  The <code>Columns</code> variants ask for two columns with
+ * <code>?columns=</code>, so a miss is a slice query rather than a whole-row read.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+// cassandra refuses to create the trigger unless triggers_dir is set
+@Fork(value = 1, jvmArgsAppend = "-Dcassandra.triggers_dir=/")
+@State(Scope.Benchmark)
+public class RestServiceBenchmark {
+    static final String HIT_ID = "hit";
+    static final String MISS_ID = "miss";
+
+    @Param({"10", "100"})
+    int rowWidth;
+
+    CassandraExternalCache cache;
+    URL hitUrl;
+    URL missUrl;
+    URL hitColumnsUrl;
+    URL missColumnsUrl;
+    byte[] buffer = new byte[8192];
+
+    @Setup
+    public void setup() throws Exception {
+        CassandraTestHelper.startEmbeddedServer("/cassandra.yaml");
+        cache = new CassandraExternalCache();
+        cache.getCachingService().resetCache();
+
+        SyntheticRows rows = new SyntheticRows(rowWidth);
+        cache.getCassandraDao().put(HIT_ID, rows.cachedRow(System.currentTimeMillis()));
+        cache.getCassandraDao().put(MISS_ID, rows.cachedRow(System.currentTimeMillis()));
+        cache.getCachingService().put(HIT_ID, rows.cachedRow(System.currentTimeMillis()));
+
+        hitUrl = new URL("http://localhost:9090/v1/get/" + HIT_ID);
+        missUrl = new URL("http://localhost:9090/v1/get/" + MISS_ID);
+        String columns = "?columns=" + SyntheticRows.columnName(0) + "," + SyntheticRows.columnName(rowWidth - 1);
+        hitColumnsUrl = new URL(hitUrl + columns);
+        missColumnsUrl = new URL(missUrl + columns);
+    }
+
+    @TearDown
+    public void teardown() {
+        cache.shutdown();
+        cache.getCassandraDao().shutdown();
+    }
+
+    @State(Scope.Benchmark)
+    public static class MissState {
+        @Setup(Level.Invocation)
+        public void evict(RestServiceBenchmark bench) {
+            // keep the miss path a miss, whether or not the service populates the cache
+            bench.cache.getCachingService().remove(MISS_ID);
+        }
+    }
+
+    @Benchmark
+    public int getHit() throws IOException {
+        return fetch(hitUrl);
+    }
+
+    @Benchmark
+    public int getMiss(MissState state) throws IOException {
+        return fetch(missUrl);
+    }
+
+    @Benchmark
+    public int getHitColumns() throws IOException {
+        return fetch(hitColumnsUrl);
+    }
+
+    @Benchmark
+    public int getMissColumns(MissState state) throws IOException {
+        return fetch(missColumnsUrl);
+    }
+
+    private int fetch(URL url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        int total = 0;
+        try (InputStream in = conn.getInputStream()) {
+            int len;
+            while (-1 != (len = in.read(buffer))) {
+                total += len;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,88 @@
+package com.btoddb.cache.benchmarks;
+
+import com.btoddb.cache.CachingService;
+import com.btoddb.cache.CachingServiceUsingEhcache;
+import com.btoddb.cache.CachingServiceUsingOffHeap;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+
+/**
+ * Measures retained heap per cached row: map-of-columns vs packed, and packed rows held in
+ * ehcache vs off heap.  Not a JMH benchmark - JMH measures time and allocation, not what stays
+ * live.
+ *
+ * <pre>
+ *   java -cp target/benchmarks.jar com.btoddb.cache.benchmarks.RowFootprint [rows] [width...]
+ * </pre>
+ */
+public class RowFootprint {
+    private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int rowCount = 0 < args.length ? Integer.parseInt(args[0]) : 100000;
+        int[] widths = {1, 10, 50};
+        if (1 < args.length) {
+            widths = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                widths[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println(String.format("%8s %8s %14s %14s %8s", "width", "rows", "map B/row", "packed B/row", "ratio"));
+        for (int width : widths) {
+            SyntheticRows rows = new SyntheticRows(width);
+            long mapBytes = measure(rows, rowCount, false);
+            long packedBytes = measure(rows, rowCount, true);
+            System.out.println(String.format("%8d %8d %14d %14d %8.2f",
+                                             width, rowCount, mapBytes, packedBytes, (double) mapBytes / packedBytes));
+        }
+
+        System.out.println();
+        System.out.println(String.format("%8s %8s %14s %14s", "width", "rows", "ehcache B/row", "offheap B/row"));
+        for (int width : widths) {
+            SyntheticRows rows = new SyntheticRows(width);
+            long onHeap = measure(rows, rowCount, new CachingServiceUsingEhcache(SyntheticRows.KEYSPACE, "footprint"));
+            long offHeap = measure(rows, rowCount,
+                                   new CachingServiceUsingOffHeap(SyntheticRows.KEYSPACE, "footprint", Long.MAX_VALUE));
+            System.out.println(String.format("%8d %8d %14d %14d", width, rowCount, onHeap, offHeap));
+        }
+    }
+
+    private static long measure(SyntheticRows rows, int rowCount, CachingService cachingService) {
+        cachingService.resetCache();
+        long before = usedHeap();
+        for (int i = 0; i < rowCount; i++) {
+            cachingService.put("key-" + i, rows.cachedRow(System.nanoTime()));
+        }
+        long after = usedHeap();
+        if (!cachingService.contains("key-" + (rowCount - 1))) {
+            throw new IllegalStateException("cache evicted rows, results are meaningless");
+        }
+        cachingService.resetCache();
+        return (after - before) / rowCount;
+    }
+
+    private static long measure(SyntheticRows rows, int rowCount, boolean packed) {
+        Object[] holder = new Object[rowCount];
+        long before = usedHeap();
+        for (int i = 0; i < rowCount; i++) {
+            // fresh values per row, like rows loaded from Cassandra
+            long ts = System.nanoTime();
+            holder[i] = packed ? rows.cachedRow(ts) : rows.columnMap(ts);
+        }
+        long after = usedHeap();
+        if (null == holder[rowCount - 1]) {
+            throw new IllegalStateException();
+        }
+        return (after - before) / rowCount;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
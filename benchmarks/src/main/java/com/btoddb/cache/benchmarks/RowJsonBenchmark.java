@@ -0,0 +1,94 @@
+package com.btoddb.cache.benchmarks;
+
+import com.btoddb.cache.CachedColumn;
+import com.btoddb.cache.PackedRow;
+import com.btoddb.cache.rest.PackedRowJsonWriter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.jaxrs.json.JacksonJaxbJsonProvider;
+import org.openjdk.jmh.annotations.*;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * CPU and garbage per GET response body, without HTTP in the way.  Compares the JSON provider
+ * writing a map of {@link CachedColumn} beans and writing a {@link PackedRow}, with the streaming
+ * {@link PackedRowJsonWriter} the REST service registers, encoding every time or copying out the
+ * bytes it kept with the row.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RowJsonBenchmark {
+    static final Annotation[] NO_ANNOTATIONS = new Annotation[0];
+
+    @Param({"10", "100", "1000"})
+    int rowWidth;
+
+    JacksonJaxbJsonProvider jsonProvider;
+    PackedRowJsonWriter rowWriter;
+    PackedRowJsonWriter keepingRowWriter;
+    MultivaluedMap<String, Object> headers = new MultivaluedHashMap<>();
+    ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+
+    PackedRow row;
+    PackedRow keptRow;
+    Map<String, CachedColumn> columnMap;
+
+    @Setup
+    public void setup() throws Exception {
+        ObjectMapper objMapper = new ObjectMapper();
+        jsonProvider = new JacksonJaxbJsonProvider();
+        jsonProvider.setMapper(objMapper);
+        rowWriter = new PackedRowJsonWriter(objMapper, false);
+        keepingRowWriter = new PackedRowJsonWriter(objMapper, true);
+
+        SyntheticRows rows = new SyntheticRows(rowWidth);
+        long now = System.currentTimeMillis();
+        row = rows.cachedRow(now);
+        keptRow = rows.cachedRow(now);
+        columnMap = rows.columnMap(now);
+    }
+
+    @Benchmark
+    public int providerWritesColumnMap() throws IOException {
+        out.reset();
+        jsonProvider.writeTo(columnMap, Map.class, Map.class, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE,
+                             headers, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int providerWritesPackedRow() throws IOException {
+        out.reset();
+        jsonProvider.writeTo(row, PackedRow.class, PackedRow.class, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE,
+                             headers, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int streamingWriter() throws IOException {
+        out.reset();
+        rowWriter.writeTo(row, PackedRow.class, PackedRow.class, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE,
+                          headers, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int keptEncoding() throws IOException {
+        out.reset();
+        keepingRowWriter.writeTo(keptRow, PackedRow.class, PackedRow.class, NO_ANNOTATIONS,
+                                 MediaType.APPLICATION_JSON_TYPE, headers, out);
+        return out.size();
+    }
+}
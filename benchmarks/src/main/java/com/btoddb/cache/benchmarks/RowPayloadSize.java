@@ -0,0 +1,41 @@
+package com.btoddb.cache.benchmarks;
+
+import com.btoddb.cache.PackedRow;
+import com.btoddb.cache.PackedRowWireFormat;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+
+
+/**
+ * Bytes on the wire per row, JSON against {@link PackedRowWireFormat}.  Not a JMH benchmark, see
+ * {@link RowWireFormatBenchmark} for encode and decode times.
+ *
+ * <pre>
+ *   java -cp target/benchmarks.jar com.btoddb.cache.benchmarks.RowPayloadSize [width...]
+ * </pre>
+ */
+public class RowPayloadSize {
+
+    public static void main(String[] args) throws Exception {
+        int[] widths = {1, 10, 100, 1000};
+        if (0 < args.length) {
+            widths = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                widths[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        ObjectMapper objMapper = new ObjectMapper();
+        System.out.println(String.format("%8s %14s %14s %8s", "width", "json B/row", "binary B/row", "ratio"));
+        for (int width : widths) {
+            PackedRow row = new SyntheticRows(width).cachedRow(System.currentTimeMillis());
+            int json = objMapper.writeValueAsBytes(row).length;
+            ByteArrayOutputStream binary = new ByteArrayOutputStream();
+            PackedRowWireFormat.write(row, new DataOutputStream(binary));
+            System.out.println(String.format("%8d %14d %14d %8.2f",
+                                             width, json, binary.size(), (double) json / binary.size()));
+        }
+    }
+}
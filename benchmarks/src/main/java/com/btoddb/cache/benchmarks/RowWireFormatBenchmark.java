@@ -0,0 +1,91 @@
+package com.btoddb.cache.benchmarks;
+
+import com.btoddb.cache.CachedColumn;
+import com.btoddb.cache.PackedRow;
+import com.btoddb.cache.PackedRowWireFormat;
+import com.btoddb.cache.rest.PackedRowBinaryProvider;
+import com.btoddb.cache.rest.PackedRowJsonWriter;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * JSON against {@link PackedRowWireFormat}: encoding a GET response and decoding a PUT body into
+ * the row that gets cached, through the same providers the REST service registers.  Payload
+ * sizes are printed by {@link RowPayloadSize}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RowWireFormatBenchmark {
+    static final Annotation[] NO_ANNOTATIONS = new Annotation[0];
+    static final TypeReference<Map<String, CachedColumn>> COLUMN_MAP = new TypeReference<Map<String, CachedColumn>>() {};
+
+    @Param({"10", "100", "1000"})
+    int rowWidth;
+
+    ObjectMapper objMapper = new ObjectMapper();
+    PackedRowJsonWriter jsonWriter = new PackedRowJsonWriter(objMapper, false);
+    PackedRowBinaryProvider binaryProvider = new PackedRowBinaryProvider();
+    MultivaluedMap<String, Object> headers = new MultivaluedHashMap<>();
+    MultivaluedMap<String, String> requestHeaders = new MultivaluedHashMap<>();
+    ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+
+    PackedRow row;
+    byte[] json;
+    byte[] binary;
+
+    @Setup
+    public void setup() throws Exception {
+        row = new SyntheticRows(rowWidth).cachedRow(System.currentTimeMillis());
+        json = objMapper.writeValueAsBytes(row);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        binaryProvider.writeTo(row, PackedRow.class, PackedRow.class, NO_ANNOTATIONS,
+                               PackedRowBinaryProvider.MEDIA_TYPE, headers, encoded);
+        binary = encoded.toByteArray();
+    }
+
+    @Benchmark
+    public int encodeJson() throws IOException {
+        out.reset();
+        jsonWriter.writeTo(row, PackedRow.class, PackedRow.class, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE,
+                           headers, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int encodeBinary() throws IOException {
+        out.reset();
+        binaryProvider.writeTo(row, PackedRow.class, PackedRow.class, NO_ANNOTATIONS,
+                               PackedRowBinaryProvider.MEDIA_TYPE, headers, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public PackedRow decodeJson() throws IOException {
+        // what PUT does with a JSON body
+        Map<String, CachedColumn> columns = objMapper.readValue(json, COLUMN_MAP);
+        return PackedRow.fromMap(columns);
+    }
+
+    @Benchmark
+    public PackedRow decodeBinary() throws IOException {
+        return binaryProvider.readFrom(PackedRow.class, PackedRow.class, NO_ANNOTATIONS,
+                                       PackedRowBinaryProvider.MEDIA_TYPE, requestHeaders,
+                                       new ByteArrayInputStream(binary));
+    }
+}
@@ -0,0 +1,92 @@
+package com.btoddb.cache.benchmarks;
+
+import com.btoddb.cache.CachedColumn;
+import com.btoddb.cache.PackedRow;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.ColumnDefinition;
+import org.apache.cassandra.db.ArrayBackedSortedColumns;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.ColumnFamilyType;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Builds rows and trigger mutations without a running Cassandra.  The table is a "static"
+ * (thrift style) column family with UTF8 column names and values, which is the shape the
+ * trigger resolves column definitions for.
+ */
+public class SyntheticRows {
+    public static final String KEYSPACE = "bench";
+    public static final String COLUMN_FAMILY = "rows";
+
+    private final CFMetaData metadata;
+    private final ByteBuffer[] names;
+    private final ByteBuffer[] values;
+
+    public SyntheticRows(int width) throws Exception {
+        metadata = new CFMetaData(KEYSPACE, COLUMN_FAMILY, ColumnFamilyType.Standard, UTF8Type.instance);
+        metadata.keyValidator(UTF8Type.instance);
+        names = new ByteBuffer[width];
+        values = new ByteBuffer[width];
+        for (int i = 0; i < width; i++) {
+            names[i] = ByteBufferUtil.bytes(columnName(i));
+            values[i] = ByteBufferUtil.bytes(columnValue(i));
+            metadata.addColumnDefinition(ColumnDefinition.regularDef(names[i], UTF8Type.instance, null));
+        }
+    }
+
+    public static String columnName(int i) {
+        return "col-" + i;
+    }
+
+    public static String columnValue(int i) {
+        return "value-of-column-" + i;
+    }
+
+    public int width() {
+        return names.length;
+    }
+
+    public CFMetaData metadata() {
+        return metadata;
+    }
+
+    /**
+     * @return mutation touching every column, all with the given timestamp
+     */
+    public ColumnFamily update(long timestamp) {
+        ColumnFamily cf = ArrayBackedSortedColumns.factory.create(metadata);
+        for (int i = 0; i < names.length; i++) {
+            cf.addColumn(names[i], values[i], timestamp);
+        }
+        return cf;
+    }
+
+    /**
+     * @return cached representation of a full row, all with the given timestamp
+     */
+    public PackedRow cachedRow(long timestamp) {
+        PackedRow.Builder builder = PackedRow.builder();
+        for (int i = 0; i < names.length; i++) {
+            builder.set(columnName(i), columnValue(i), timestamp);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return a full row as a map of columns, all with the given timestamp
+     */
+    public Map<String, CachedColumn> columnMap(long timestamp) {
+        Map<String, CachedColumn> row = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            String name = columnName(i);
+            row.put(name, new CachedColumn(name, columnValue(i), timestamp));
+        }
+        return row;
+    }
+}
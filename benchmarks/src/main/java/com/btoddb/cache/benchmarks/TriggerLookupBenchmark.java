@@ -0,0 +1,70 @@
+package com.btoddb.cache.benchmarks;
+
+import com.btoddb.cache.CachingService;
+import com.btoddb.cache.CachingServiceUsingEhcache;
+import com.btoddb.cache.TriggerContext;
+import org.apache.cassandra.config.ColumnDefinition;
+import org.apache.cassandra.db.Column;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.CharacterCodingException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The per-column and per-row lookups the trigger makes before it touches any data: resolving
+ * column definitions and names straight from the schema vs through {@link TriggerContext}, and
+ * probing the cache.  Read the GC profiler's <code>gc.alloc.rate.norm</code> next to the times.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TriggerLookupBenchmark {
+
+    @Param({"10"})
+    int width;
+
+    ColumnFamily update;
+    CachingService cachingService;
+
+    @Setup
+    public void setup() throws Exception {
+        SyntheticRows rows = new SyntheticRows(width);
+        update = rows.update(1);
+        cachingService = new CachingServiceUsingEhcache(SyntheticRows.KEYSPACE, "lookup");
+        cachingService.put("cached", rows.cachedRow(1));
+    }
+
+    @TearDown
+    public void teardown() {
+        cachingService.resetCache();
+    }
+
+    @Benchmark
+    public void resolveColumnsFromSchema(Blackhole bh) throws CharacterCodingException {
+        for (Column col : update) {
+            ColumnDefinition colDef = update.metadata().getColumnDefinitionFromColumnName(col.name());
+            bh.consume(colDef.getValidator());
+            bh.consume(ByteBufferUtil.string(col.name()));
+        }
+    }
+
+    @Benchmark
+    public void resolveColumnsFromContext(Blackhole bh) throws CharacterCodingException {
+        TriggerContext context = TriggerContext.forTable(update.metadata());
+        for (Column col : update) {
+            bh.consume(context.column(col.name()));
+        }
+    }
+
+    @Benchmark
+    public boolean cacheContains() {
+        return cachingService.contains("cached");
+    }
+}
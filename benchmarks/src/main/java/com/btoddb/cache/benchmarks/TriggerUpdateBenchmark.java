@@ -0,0 +1,80 @@
+package com.btoddb.cache.benchmarks;
+
+import com.btoddb.cache.CachingServiceUsingEhcache;
+import com.btoddb.cache.CassandraExternalCache;
+import com.btoddb.cache.EHCacheUpdateTrigger;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * {@link EHCacheUpdateTrigger#updateCache} fed with synthetic mutations of varying width.
+ *
+ * <p/>A mutation is only applied if it is newer than the cached columns, so
+ * {@link #updateCachedRow} has to build a fresh update per call.  {@link #buildUpdate} measures
+ * just that part and should be subtracted when reading the numbers.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TriggerUpdateBenchmark {
+
+    @Param({"1", "10", "100"})
+    int width;
+
+    EHCacheUpdateTrigger trigger;
+    SyntheticRows rows;
+    ByteBuffer cachedKey;
+    ByteBuffer uncachedKey;
+    ColumnFamily staleUpdate;
+    long timestamp;
+
+    @Setup
+    public void setup() throws Exception {
+        trigger = new EHCacheUpdateTrigger();
+        rows = new SyntheticRows(width);
+        timestamp = System.currentTimeMillis() * 1000;
+
+        cachedKey = ByteBufferUtil.bytes("cached");
+        uncachedKey = ByteBufferUtil.bytes("not-cached");
+        staleUpdate = rows.update(0);
+
+        // the trigger only updates the table the shared service caches
+        CassandraExternalCache.cachingService = new CachingServiceUsingEhcache(SyntheticRows.KEYSPACE,
+                                                                               SyntheticRows.COLUMN_FAMILY);
+        CassandraExternalCache.cachingService.resetCache();
+        CassandraExternalCache.cachingService.put("cached", rows.cachedRow(timestamp));
+    }
+
+    @TearDown
+    public void teardown() {
+        CassandraExternalCache.cachingService.resetCache();
+    }
+
+    @Benchmark
+    public ColumnFamily buildUpdate() {
+        return rows.update(++timestamp);
+    }
+
+    @Benchmark
+    public void updateCachedRow() throws Throwable {
+        trigger.updateCache(cachedKey, rows.update(++timestamp));
+    }
+
+    @Benchmark
+    public void updateCachedRowWithStaleColumns() throws Throwable {
+        trigger.updateCache(cachedKey, staleUpdate);
+    }
+
+    @Benchmark
+    public void updateUncachedRow() throws Throwable {
+        trigger.updateCache(uncachedKey, staleUpdate);
+    }
+}
@@ -0,0 +1,305 @@
+package com.btoddb.cache;
+
+import org.apache.cassandra.db.ColumnFamily;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Moves cache maintenance off the Cassandra write path.  The trigger only enqueues the mutated
+ * row key and its {@link ColumnFamily}, and a background applier drains the queue in batches.
+ *
+ * <p/>Mutations for the same row key within a batch are coalesced so the row is probed and
+ * swapped once, no matter how many times it was written.
+ */
+public class AsyncCacheUpdater {
+    private static Logger logger = LoggerFactory.getLogger(AsyncCacheUpdater.class);
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * What to do with a mutation when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /** wait up to the block timeout for room, then apply the update on the mutation thread */
+        BLOCK,
+        /** apply the update on the mutation thread */
+        CALLER_RUNS,
+        /** drop the update and evict the row, so the next read reloads it from Cassandra */
+        INVALIDATE,
+        /** drop the update - the cache may serve stale data until the row is evicted */
+        DISCARD
+    }
+
+    private final ConcurrentLinkedQueue<PendingUpdate> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+
+    private final EHCacheUpdateTrigger trigger;
+    private final int capacity;
+    private final int batchSize;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong overflowed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile long lastLagNanos;
+    private volatile long maxLagNanos;
+
+    private volatile boolean running;
+    private volatile Thread applierThread;
+
+
+    public AsyncCacheUpdater(int capacity, int batchSize, OverflowPolicy overflowPolicy, long blockTimeoutMillis) {
+        this(new EHCacheUpdateTrigger(), capacity, batchSize, overflowPolicy, blockTimeoutMillis);
+    }
+
+    AsyncCacheUpdater(EHCacheUpdateTrigger trigger, int capacity, int batchSize,
+                      OverflowPolicy overflowPolicy, long blockTimeoutMillis) {
+        if (0 >= capacity || 0 >= batchSize) {
+            throw new IllegalArgumentException("capacity and batchSize must be positive");
+        }
+        this.trigger = trigger;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        applierThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                applyLoop();
+            }
+        });
+        applierThread.setName("ehcache-trigger-applier");
+        applierThread.setDaemon(true);
+        applierThread.start();
+    }
+
+    /**
+     * Stop the applier after draining whatever is already queued.
+     */
+    public synchronized void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(applierThread);
+        try {
+            applierThread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        applierThread = null;
+    }
+
+    /**
+     * Called on the Cassandra mutation thread.  The update is not copied - Cassandra does not
+     * modify a mutation's ColumnFamily once it has been handed to the triggers.
+     *
+     * @param key row key
+     * @param update mutated columns
+     */
+    public void enqueue(ByteBuffer key, ColumnFamily update) throws Throwable {
+        PendingUpdate pending = new PendingUpdate(key.duplicate(), update, System.nanoTime());
+        if (reserveSlot()) {
+            offer(pending);
+            return;
+        }
+
+        overflowed.incrementAndGet();
+        switch (overflowPolicy) {
+            case BLOCK:
+                if (waitForSlot()) {
+                    offer(pending);
+                    return;
+                }
+                // still no room, don't lose the update
+                trigger.applyUpdates(pending.key, Collections.singletonList(update));
+                break;
+            case CALLER_RUNS:
+                trigger.applyUpdates(pending.key, Collections.singletonList(update));
+                break;
+            case INVALIDATE:
+                dropped.incrementAndGet();
+                trigger.invalidate(pending.key);
+                break;
+            case DISCARD:
+                dropped.incrementAndGet();
+                break;
+        }
+    }
+
+    private boolean reserveSlot() {
+        for (;;) {
+            int current = depth.get();
+            if (current >= capacity) {
+                return false;
+            }
+            if (depth.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean waitForSlot() {
+        long deadline = System.nanoTime() + blockTimeoutNanos;
+        while (System.nanoTime() < deadline) {
+            if (reserveSlot()) {
+                return true;
+            }
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+        }
+        return reserveSlot();
+    }
+
+    private void offer(PendingUpdate pending) {
+        queue.offer(pending);
+        enqueued.incrementAndGet();
+
+        // applier parks when idle, so only pay for the wake-up when the queue was empty
+        Thread applier = applierThread;
+        if (null != applier && 1 == depth.get()) {
+            LockSupport.unpark(applier);
+        }
+    }
+
+    private void applyLoop() {
+        List<PendingUpdate> batch = new ArrayList<>(batchSize);
+        while (running || 0 < depth.get()) {
+            if (0 == drainBatch(batch)) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Drain and apply one batch.
+     *
+     * @param batch reusable scratch list
+     * @return number of queued updates processed
+     */
+    int drainBatch(List<PendingUpdate> batch) {
+        batch.clear();
+        PendingUpdate pending;
+        while (batch.size() < batchSize && null != (pending = queue.poll())) {
+            batch.add(pending);
+        }
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        depth.addAndGet(-batch.size());
+
+        // coalesce by row key, keeping mutation order within each key
+        Map<ByteBuffer, List<ColumnFamily>> byKey = new LinkedHashMap<>();
+        long oldest = Long.MAX_VALUE;
+        for (PendingUpdate p : batch) {
+            List<ColumnFamily> updates = byKey.get(p.key);
+            if (null == updates) {
+                updates = new ArrayList<>(1);
+                byKey.put(p.key, updates);
+            }
+            else {
+                coalesced.incrementAndGet();
+            }
+            updates.add(p.update);
+            oldest = Math.min(oldest, p.enqueuedNanos);
+        }
+
+        for (Map.Entry<ByteBuffer, List<ColumnFamily>> entry : byKey.entrySet()) {
+            try {
+                trigger.applyUpdates(entry.getKey(), entry.getValue());
+                applied.addAndGet(entry.getValue().size());
+            }
+            catch (Throwable e) {
+                failed.addAndGet(entry.getValue().size());
+                logger.error("exception while applying queued update to Ehcache", e);
+            }
+        }
+
+        long lag = System.nanoTime() - oldest;
+        lastLagNanos = lag;
+        if (lag > maxLagNanos) {
+            maxLagNanos = lag;
+        }
+
+        return batch.size();
+    }
+
+    public int getQueueDepth() {
+        return depth.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getEnqueuedCount() {
+        return enqueued.get();
+    }
+
+    public long getAppliedCount() {
+        return applied.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public long getOverflowCount() {
+        return overflowed.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return time the oldest update in the most recent batch spent waiting in the queue
+     */
+    public long getLastLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastLagNanos);
+    }
+
+    public long getMaxLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxLagNanos);
+    }
+
+    static class PendingUpdate {
+        final ByteBuffer key;
+        final ColumnFamily update;
+        final long enqueuedNanos;
+
+        PendingUpdate(ByteBuffer key, ColumnFamily update, long enqueuedNanos) {
+            this.key = key;
+            this.update = update;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+}
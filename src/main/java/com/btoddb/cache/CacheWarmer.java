@@ -0,0 +1,401 @@
+package com.btoddb.cache;
+
+import com.btoddb.cache.cassandra.CassandraDao;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Fills an empty cache at startup, so the first minutes after a restart aren't all cache misses.
+ *
+ * <p/>While running, the keys of the most recently used rows are written to a snapshot file every
+ * so often and again at shutdown.  At startup the rows of the snapshot's keys are loaded from
+ * Cassandra, a number of them in parallel.  Only keys are saved, not rows: the trigger doesn't see
+ * writes made while this node was down, so saved rows could be stale.  Without a snapshot the
+ * warmer can instead scan ranges of the token ring for row keys, a page at a time.
+ *
+ * <p/>Rows are loaded through the {@link ReadThroughLoader}, so a write racing a warm-up load
+ * isn't lost, and rows cached by traffic in the meantime aren't loaded again.
+ */
+public class CacheWarmer {
+    private static Logger logger = LoggerFactory.getLogger(CacheWarmer.class);
+
+    static final int SNAPSHOT_MAGIC = 0x43574b53;
+    static final int SNAPSHOT_VERSION = 1;
+    static final int SCAN_FETCH_SIZE = 1000;
+
+    private final CachingService cachingService;
+    private final ReadThroughLoader rowLoader;
+    private final CassandraDao cassandraDao;
+    private final int maxKeys;
+    private final int maxConcurrentLoads;
+
+    // null for no snapshots
+    private File snapshotFile;
+    private boolean scan;
+    // (start, end] token ranges to scan, the whole ring if none
+    private List<long[]> scanTokenRanges = Collections.emptyList();
+    private double readyFraction = 1.0;
+
+    private volatile int target;
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger loaded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile boolean finished;
+    private volatile boolean stopped;
+
+    private Thread warmUpThread;
+    private ScheduledExecutorService snapshotter;
+
+
+    /**
+     * @param maxKeys most rows to load, and most keys to save in a snapshot
+     * @param maxConcurrentLoads rows loaded at the same time
+     */
+    public CacheWarmer(CachingService cachingService, ReadThroughLoader rowLoader, CassandraDao cassandraDao,
+                       int maxKeys, int maxConcurrentLoads) {
+        if (0 >= maxKeys || 0 >= maxConcurrentLoads) {
+            throw new IllegalArgumentException("maxKeys and maxConcurrentLoads must be positive");
+        }
+        this.cachingService = cachingService;
+        this.rowLoader = rowLoader;
+        this.cassandraDao = cassandraDao;
+        this.maxKeys = maxKeys;
+        this.maxConcurrentLoads = maxConcurrentLoads;
+    }
+
+    /**
+     * Warm up in the background, and save a snapshot every <code>snapshotIntervalSeconds</code>
+     * once warm.
+     */
+    public synchronized void start(long snapshotIntervalSeconds) {
+        if (null != warmUpThread) {
+            return;
+        }
+        warmUpThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                warmUp();
+            }
+        });
+        warmUpThread.setName("cache-warm-up");
+        warmUpThread.setDaemon(true);
+        warmUpThread.start();
+
+        if (null != snapshotFile && 0 < snapshotIntervalSeconds) {
+            snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "cache-snapshot");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            snapshotter.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    snapshotIfWarm();
+                }
+            }, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stop warming up and save a last snapshot.
+     */
+    public synchronized void shutdown() {
+        stopped = true;
+        if (null != snapshotter) {
+            snapshotter.shutdown();
+            snapshotter = null;
+        }
+        if (null != warmUpThread) {
+            try {
+                warmUpThread.join(TimeUnit.SECONDS.toMillis(30));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            warmUpThread = null;
+        }
+        snapshotIfWarm();
+    }
+
+    /**
+     * Load the snapshot's rows, or scan for rows if there is no snapshot.  Returns when done.
+     */
+    void warmUp() {
+        long start = System.currentTimeMillis();
+        String source = "nothing";
+        try {
+            List<String> keys = null != snapshotFile ? readSnapshot(snapshotFile) : null;
+            if (null != keys) {
+                source = "snapshot " + snapshotFile;
+                List<String> hottest = keys.subList(0, Math.min(keys.size(), maxKeys));
+                target = hottest.size();
+                load(hottest.iterator());
+            }
+            else if (scan) {
+                source = "token range scan";
+                // the number of rows isn't known up front
+                target = maxKeys;
+                load(scanKeys().iterator());
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception e) {
+            logger.error("cache warm-up from {} failed, the rest of the rows load as they are read", source, e);
+        }
+        finally {
+            finished = true;
+        }
+        logger.info("cache warmed up from {} in {} ms, {} rows loaded, {} failed", source,
+                    System.currentTimeMillis() - start, loaded.get(), failed.get());
+    }
+
+    private void load(Iterator<String> keys) throws InterruptedException {
+        final Semaphore permits = new Semaphore(maxConcurrentLoads);
+        while (!stopped && keys.hasNext()) {
+            String key = keys.next();
+            if (cachingService.contains(key)) {
+                processed.incrementAndGet();
+                continue;
+            }
+
+            permits.acquire();
+            Futures.addCallback(rowLoader.loadAsync(key), new FutureCallback<PackedRow>() {
+                @Override
+                public void onSuccess(PackedRow row) {
+                    if (null != row) {
+                        loaded.incrementAndGet();
+                    }
+                    processed.incrementAndGet();
+                    permits.release();
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    failed.incrementAndGet();
+                    processed.incrementAndGet();
+                    permits.release();
+                }
+            });
+        }
+        // wait for the loads still in flight
+        permits.acquire(maxConcurrentLoads);
+    }
+
+    private Iterable<String> scanKeys() {
+        List<long[]> ranges = scanTokenRanges.isEmpty()
+                ? Collections.singletonList(new long[]{Long.MIN_VALUE, Long.MAX_VALUE})
+                : scanTokenRanges;
+        List<Iterable<String>> scans = new ArrayList<>(ranges.size());
+        for (final long[] range : ranges) {
+            // lazily, a range is only queried once the ones before it are read
+            scans.add(new Iterable<String>() {
+                @Override
+                public Iterator<String> iterator() {
+                    return cassandraDao.scanKeys(range[0], range[1], SCAN_FETCH_SIZE).iterator();
+                }
+            });
+        }
+        return Iterables.limit(Iterables.concat(scans), maxKeys);
+    }
+
+    /**
+     * @return true once warm-up is done, or has processed the ready fraction of its rows
+     */
+    public boolean isReady() {
+        int theTarget = target;
+        return finished || (0 < theTarget && processed.get() >= readyFraction * theTarget);
+    }
+
+    private void snapshotIfWarm() {
+        // a snapshot taken while still warming up would lose keys of the previous one
+        if (null == snapshotFile || !finished) {
+            return;
+        }
+        try {
+            writeSnapshot();
+        }
+        catch (IOException e) {
+            logger.error("could not write cache snapshot {}", snapshotFile, e);
+        }
+    }
+
+    /**
+     * Save the keys of the most recently used rows.  The file is replaced atomically, a crash while
+     * writing leaves the previous snapshot.
+     *
+     * @return number of keys saved
+     */
+    public int writeSnapshot() throws IOException {
+        Collection<String> keys = cachingService.hotKeys(maxKeys);
+        File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+        int count = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            for (String key : keys) {
+                try {
+                    out.writeUTF(key);
+                    count++;
+                }
+                catch (UTFDataFormatException e) {
+                    // over 64KB encoded, nothing was written.  the row just isn't warmed
+                }
+            }
+        }
+        Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        logger.debug("saved {} keys to cache snapshot {}", count, snapshotFile);
+        return count;
+    }
+
+    /**
+     * @return the snapshot's keys, most recently used first.  null if there is no usable snapshot
+     */
+    static List<String> readSnapshot(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (SNAPSHOT_MAGIC != in.readInt() || SNAPSHOT_VERSION != in.readInt()) {
+                logger.warn("{} is not a cache snapshot this version can read, ignoring it", file);
+                return null;
+            }
+            List<String> keys = new ArrayList<>();
+            try {
+                while (true) {
+                    keys.add(in.readUTF());
+                }
+            }
+            catch (EOFException e) {
+                // end of the keys
+            }
+            return keys;
+        }
+        catch (IOException e) {
+            logger.warn("could not read cache snapshot {}, ignoring it", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * @param range <code>start,end</code> - the tokens in <code>(start, end]</code>.  a range that
+     *              wraps around the end of the ring is split in two
+     */
+    static List<long[]> parseTokenRange(String range) {
+        String[] tokens = range.split(",");
+        if (2 != tokens.length) {
+            throw new IllegalArgumentException("token range must be 'start,end' : " + range);
+        }
+        long start = Long.parseLong(tokens[0].trim());
+        long end = Long.parseLong(tokens[1].trim());
+        if (start < end) {
+            return Collections.singletonList(new long[]{start, end});
+        }
+        List<long[]> split = new ArrayList<>(2);
+        split.add(new long[]{start, Long.MAX_VALUE});
+        split.add(new long[]{Long.MIN_VALUE, end});
+        return split;
+    }
+
+    public File getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    public void setSnapshotFile(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    public boolean isScan() {
+        return scan;
+    }
+
+    /**
+     * @param scan scan the token ranges for rows to load when there is no snapshot
+     */
+    public void setScan(boolean scan) {
+        this.scan = scan;
+    }
+
+    /**
+     * @param ranges <code>start,end</code> token ranges, see {@link #parseTokenRange(String)}.  the
+     *               whole ring if empty
+     */
+    public void setScanTokenRanges(List<String> ranges) {
+        List<long[]> parsed = new ArrayList<>();
+        for (String range : ranges) {
+            parsed.addAll(parseTokenRange(range));
+        }
+        this.scanTokenRanges = parsed;
+    }
+
+    public double getReadyFraction() {
+        return readyFraction;
+    }
+
+    /**
+     * @param readyFraction fraction of the rows to warm that must be processed before reporting
+     *                      ready, 1.0 to wait for all of them
+     */
+    public void setReadyFraction(double readyFraction) {
+        this.readyFraction = readyFraction;
+    }
+
+    /**
+     * @return rows warm-up means to load, 0 until it knows
+     */
+    public int getTargetCount() {
+        return target;
+    }
+
+    /**
+     * @return keys warm-up is done with, whether loaded, already cached, missing or failed
+     */
+    public int getProcessedCount() {
+        return processed.get();
+    }
+
+    public int getLoadedCount() {
+        return loaded.get();
+    }
+
+    public int getFailedCount() {
+        return failed.get();
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+}
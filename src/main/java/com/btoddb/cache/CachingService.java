@@ -1,28 +1,58 @@
 package com.btoddb.cache;
 
-import java.util.Map;
-
+import java.util.Collection;
 
 /**
  *
  */
 public interface CachingService {
 
-    Map<String, CachedColumn> get(String key);
+    /**
+     * @return keyspace of the table whose rows are cached
+     */
+    String getKeyspaceName();
+
+    String getColumnFamilyName();
+
+    PackedRow get(String key);
+
+    /**
+     * Read a row for the cache's own bookkeeping, e.g. to update or complete it, without counting
+     * it as a hit, a miss or a use of the row.
+     */
+    PackedRow getQuiet(String key);
 
-    void put(String key, Map<String, CachedColumn> data);
+    void put(String key, PackedRow data);
 
     boolean contains(String key);
 
+    void remove(String key);
+
+    /**
+     * Optimistic update - swap in <code>updated</code> only if the cached row is still
+     * <code>expected</code>.  The row's contents act as its version stamp.
+     *
+     * @return false if the row changed or was removed since <code>expected</code> was read
+     */
+    boolean replace(String key, PackedRow expected, PackedRow updated);
+
     void acquireWriteLockOnKey(String key);
 
     void releaseWriteLockOnKey(String key);
 
+    KeyLocks getKeyLocks();
+
     long hits();
 
     long misses();
 
     long puts();
 
+    /**
+     * @param limit most keys to return
+     * @return keys of cached rows, most recently used first.  a copy, the cache may have changed since
+     */
+    Collection<String> hotKeys(int limit);
+
     void resetCache();
 }
@@ -3,10 +3,17 @@ package com.btoddb.cache;
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Element;
+import net.sf.ehcache.Status;
 import net.sf.ehcache.config.CacheConfiguration;
 import net.sf.ehcache.config.PersistenceConfiguration;
+import net.sf.ehcache.statistics.StatisticsGateway;
 
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
 
 
 /**
@@ -20,58 +27,234 @@ public class CachingServiceUsingEhcache implements CachingService {
 
     private final String keyspaceName;
     private final String columnFamilyName;
+    private final String cacheName;
+    // resolved once, and again only after resetCache disposes it
+    private volatile Cache cache;
+    // ehcache's own key locks are a small fixed set of stripes, use our own
+    private final KeyLocks keyLocks;
+    // null to use the cache manager's defaults
+    private final CacheConfiguration configuration;
+    // new rows have to be read more often than the rows they would evict, see TinyLfuAdmissionPolicy
+    private final boolean frequencyAdmission;
+    private volatile TinyLfuAdmissionPolicy admission;
 
     public CachingServiceUsingEhcache(String keyspaceName, String columnFamilyName) {
+        this(keyspaceName, columnFamilyName, KeyLocks.DEFAULT_STRIPES);
+    }
+
+    public CachingServiceUsingEhcache(String keyspaceName, String columnFamilyName, int lockStripes) {
+        this(keyspaceName, columnFamilyName, lockStripes, null);
+    }
+
+    /**
+     * @param configuration sizing, expiry and eviction for this table's cache.  an existing cache
+     *                      for the table is dropped so the configuration takes effect
+     */
+    public CachingServiceUsingEhcache(String keyspaceName, String columnFamilyName, int lockStripes,
+                                      CacheConfiguration configuration) {
+        this(keyspaceName, columnFamilyName, lockStripes, configuration, false);
+    }
+
+    /**
+     * @param frequencyAdmission only let a new row in if it was read more often recently than
+     *                           the row it would evict.  only applies once the cache is full
+     */
+    public CachingServiceUsingEhcache(String keyspaceName, String columnFamilyName, int lockStripes,
+                                      CacheConfiguration configuration, boolean frequencyAdmission) {
+        this.frequencyAdmission = frequencyAdmission;
         this.keyspaceName = keyspaceName;
         this.columnFamilyName = columnFamilyName;
+        this.cacheName = generateCacheName(keyspaceName, columnFamilyName);
+        this.keyLocks = new KeyLocks(lockStripes);
+        this.configuration = configuration;
+        if (null != configuration) {
+            cacheManager.removeCache(cacheName);
+        }
+    }
 
+    @Override
+    public PackedRow get(String key) {
+        Cache theCache = cache();
+        TinyLfuAdmissionPolicy policy = admission;
+        if (null != policy) {
+            policy.recordAccess(key);
+        }
+        Element elem = theCache.get(key);
+        return null != elem ? (PackedRow) elem.getObjectValue() : null;
     }
 
     @Override
-    public Map<String, CachedColumn> get(String key) {
-        Element elem = getCache(keyspaceName, columnFamilyName).get(key);
-        return null != elem ? (Map<String, CachedColumn>) elem.getObjectValue() : null;
+    public PackedRow getQuiet(String key) {
+        Element elem = cache().getQuiet(key);
+        return null != elem ? (PackedRow) elem.getObjectValue() : null;
     }
 
     @Override
-    public void put(String key, Map<String, CachedColumn> data) {
-        Cache theCache = getCache(keyspaceName, columnFamilyName);
+    public void put(String key, PackedRow data) {
+        Cache theCache = cache();
         theCache.put(new Element(key, data));
     }
 
     @Override
     public boolean contains(String key) {
-        return getCache(keyspaceName, columnFamilyName).isKeyInCache(key);
+        return cache().isKeyInCache(key);
+    }
+
+    @Override
+    public void remove(String key) {
+        cache().remove(key);
+    }
+
+    @Override
+    public boolean replace(String key, PackedRow expected, PackedRow updated) {
+        return cache().replace(new Element(key, expected), new Element(key, updated));
     }
 
     @Override
     public void acquireWriteLockOnKey(String key) {
-        getCache(keyspaceName, columnFamilyName).acquireWriteLockOnKey(key);
+        keyLocks.lock(key);
     }
 
     @Override
     public void releaseWriteLockOnKey(String key) {
-        getCache(keyspaceName, columnFamilyName).releaseWriteLockOnKey(key);
+        keyLocks.unlock(key);
+    }
+
+    @Override
+    public KeyLocks getKeyLocks() {
+        return keyLocks;
     }
 
     @Override
     public long hits() {
-        return getCache(generateCacheName(keyspaceName, columnFamilyName)).getStatistics().cacheHitCount();
+        return cache().getStatistics().cacheHitCount();
     }
 
     @Override
     public long misses() {
-        return getCache(generateCacheName(keyspaceName, columnFamilyName)).getStatistics().cacheMissCount();
+        return cache().getStatistics().cacheMissCount();
     }
 
     @Override
     public long puts() {
-        return getCache(generateCacheName(keyspaceName, columnFamilyName)).getStatistics().cachePutCount();
+        return cache().getStatistics().cachePutCount();
+    }
+
+    /**
+     * @return rows evicted to make room or expired, as counted by ehcache
+     */
+    public long evictions() {
+        StatisticsGateway statistics = cache().getStatistics();
+        return statistics.cacheEvictedCount() + statistics.cacheExpiredCount();
+    }
+
+    /**
+     * Ehcache can't be walked in access order, so every row is looked at, but only the
+     * <code>limit</code> most recently used are kept and sorted.
+     */
+    @Override
+    public Collection<String> hotKeys(int limit) {
+        if (limit <= 0) {
+            return Collections.emptyList();
+        }
+        Cache theCache = cache();
+        // least recently used on top, to be pushed out by anything used later
+        PriorityQueue<HotKey> hottest = new PriorityQueue<>(limit, new Comparator<HotKey>() {
+            @Override
+            public int compare(HotKey k1, HotKey k2) {
+                return Long.compare(k1.lastUsed, k2.lastUsed);
+            }
+        });
+        for (Object key : theCache.getKeys()) {
+            // read quietly, looking at the rows mustn't count as using them
+            Element element = theCache.getQuiet(key);
+            if (null == element) {
+                continue;
+            }
+            // the times are taken once, a row read meanwhile mustn't move within the heap
+            long lastUsed = lastUsed(element);
+            if (hottest.size() < limit) {
+                hottest.add(new HotKey((String) key, lastUsed));
+            }
+            else if (lastUsed > hottest.peek().lastUsed) {
+                hottest.poll();
+                hottest.add(new HotKey((String) key, lastUsed));
+            }
+        }
+
+        List<String> keys = new ArrayList<>(hottest.size());
+        while (!hottest.isEmpty()) {
+            keys.add(hottest.poll().key);
+        }
+        Collections.reverse(keys);
+        return keys;
+    }
+
+    private static class HotKey {
+        final String key;
+        final long lastUsed;
+
+        HotKey(String key, long lastUsed) {
+            this.key = key;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    // a row that was put and never read since hasn't got an access time
+    private static long lastUsed(Element element) {
+        return Math.max(element.getLastAccessTime(), element.getLatestOfCreationAndUpdateTime());
     }
 
     @Override
     public void resetCache() {
-        cacheManager.removeCache(generateCacheName(keyspaceName, columnFamilyName));
+        cacheManager.removeCache(cacheName);
+        cache = null;
+    }
+
+    private Cache cache() {
+        Cache theCache = cache;
+        if (null == theCache || Status.STATUS_ALIVE != theCache.getStatus()) {
+            theCache = resolveCache();
+        }
+        return theCache;
+    }
+
+    private synchronized Cache resolveCache() {
+        Cache theCache = getCache(cacheName);
+        if (frequencyAdmission && theCache.getMemoryStoreEvictionPolicy() != admission) {
+            // a new sketch for a new cache, counts for a disposed one mean nothing
+            TinyLfuAdmissionPolicy policy = new TinyLfuAdmissionPolicy(
+                    (int) Math.min(Integer.MAX_VALUE, theCache.getCacheConfiguration().getMaxEntriesLocalHeap()));
+            theCache.setMemoryStoreEvictionPolicy(policy);
+            admission = policy;
+        }
+        cache = theCache;
+        return theCache;
+    }
+
+    /**
+     * @return the admission policy, null unless frequency admission is on
+     */
+    public TinyLfuAdmissionPolicy getAdmissionPolicy() {
+        cache();
+        return admission;
+    }
+
+    @Override
+    public String getKeyspaceName() {
+        return keyspaceName;
+    }
+
+    @Override
+    public String getColumnFamilyName() {
+        return columnFamilyName;
+    }
+
+    /**
+     * @return the underlying ehcache, e.g. for its configuration and statistics
+     */
+    public Cache getCache() {
+        return cache();
     }
 
     String generateCacheName(String keyspaceName, String columnFamilyName) {
@@ -84,7 +267,12 @@ public class CachingServiceUsingEhcache implements CachingService {
 
     private Cache getCache(String cacheName) {
         if (!cacheManager.cacheExists(cacheName)) {
-            cacheManager.addCacheIfAbsent(cacheName);
+            if (null != configuration) {
+                cacheManager.addCacheIfAbsent(new Cache(configuration.clone().name(cacheName)));
+            }
+            else {
+                cacheManager.addCacheIfAbsent(cacheName);
+            }
         }
         return cacheManager.getCache(cacheName);
     }
@@ -0,0 +1,194 @@
+package com.btoddb.cache;
+
+import com.codahale.metrics.Counter;
+import org.apache.cassandra.cache.SerializingCache;
+import org.apache.cassandra.db.TypeSizes;
+import org.apache.cassandra.io.ISerializer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+
+
+/**
+ * Keeps cached rows in native memory instead of the Cassandra heap, using the same
+ * {@link SerializingCache} Cassandra uses for its off-heap row cache.
+ *
+ * <p/>Rows are copied out of the heap as their packed bytes, so the only per-row heap cost is
+ * the key and a map node.  The cache holds at most <code>capacityBytes</code> of row data and
+ * evicts least recently used rows to stay under it.
+ */
+public class CachingServiceUsingOffHeap implements CachingService {
+    private final String keyspaceName;
+    private final String columnFamilyName;
+    private final SerializingCache<String, PackedRow> cache;
+    private final KeyLocks keyLocks;
+
+    // counted on every call, striped so readers on different cores don't share a cache line
+    private final Counter hits = new Counter();
+    private final Counter misses = new Counter();
+    private final Counter puts = new Counter();
+
+
+    public CachingServiceUsingOffHeap(String keyspaceName, String columnFamilyName, long capacityBytes) {
+        this(keyspaceName, columnFamilyName, capacityBytes, KeyLocks.DEFAULT_STRIPES);
+    }
+
+    public CachingServiceUsingOffHeap(String keyspaceName, String columnFamilyName, long capacityBytes,
+                                      int lockStripes) {
+        this.keyspaceName = keyspaceName;
+        this.columnFamilyName = columnFamilyName;
+        this.cache = SerializingCache.create(capacityBytes, new RowSerializer());
+        this.keyLocks = new KeyLocks(lockStripes);
+    }
+
+    @Override
+    public PackedRow get(String key) {
+        PackedRow row = cache.get(key);
+        if (null != row) {
+            hits.inc();
+        }
+        else {
+            misses.inc();
+        }
+        return row;
+    }
+
+    /**
+     * Not counted as a hit or miss.  The map has no quiet read, so the row still moves up its LRU order.
+     */
+    @Override
+    public PackedRow getQuiet(String key) {
+        return cache.get(key);
+    }
+
+    @Override
+    public void put(String key, PackedRow data) {
+        cache.put(key, data);
+        puts.inc();
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return cache.containsKey(key);
+    }
+
+    @Override
+    public void remove(String key) {
+        cache.remove(key);
+    }
+
+    @Override
+    public boolean replace(String key, PackedRow expected, PackedRow updated) {
+        // compares the stored bytes against expected's
+        if (cache.replace(key, expected, updated)) {
+            puts.inc();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void acquireWriteLockOnKey(String key) {
+        keyLocks.lock(key);
+    }
+
+    @Override
+    public void releaseWriteLockOnKey(String key) {
+        keyLocks.unlock(key);
+    }
+
+    @Override
+    public KeyLocks getKeyLocks() {
+        return keyLocks;
+    }
+
+    @Override
+    public long hits() {
+        return hits.getCount();
+    }
+
+    @Override
+    public long misses() {
+        return misses.getCount();
+    }
+
+    @Override
+    public long puts() {
+        return puts.getCount();
+    }
+
+    @Override
+    public Collection<String> hotKeys(int limit) {
+        return new ArrayList<>(cache.hotKeySet(limit));
+    }
+
+    @Override
+    public void resetCache() {
+        cache.clear();
+        hits.dec(hits.getCount());
+        misses.dec(misses.getCount());
+        puts.dec(puts.getCount());
+    }
+
+    @Override
+    public String getKeyspaceName() {
+        return keyspaceName;
+    }
+
+    @Override
+    public String getColumnFamilyName() {
+        return columnFamilyName;
+    }
+
+    public long capacityBytes() {
+        return cache.capacity();
+    }
+
+    /**
+     * @return native memory currently held by cached rows
+     */
+    public long usedBytes() {
+        return cache.weightedSize();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * Rows are stored as [long loadedAt][long expiresAt][long deletedAt][length][packed bytes].  SerializingCache
+     * hands us an encoded stream, so the length is variable size - size it with the TypeSizes we are given.
+     */
+    static class RowSerializer implements ISerializer<PackedRow> {
+        @Override
+        public void serialize(PackedRow row, DataOutput out) throws IOException {
+            byte[] bytes = row.bytes();
+            out.writeLong(row.getLoadedAt());
+            out.writeLong(row.getExpiresAt());
+            out.writeLong(row.getDeletedAt());
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        @Override
+        public PackedRow deserialize(DataInput in) throws IOException {
+            long loadedAt = in.readLong();
+            long expiresAt = in.readLong();
+            long deletedAt = in.readLong();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            PackedRow row = PackedRow.wrap(bytes, expiresAt, deletedAt);
+            row.setLoadedAt(loadedAt);
+            return row;
+        }
+
+        @Override
+        public long serializedSize(PackedRow row, TypeSizes typeSizes) {
+            return typeSizes.sizeof(row.getLoadedAt()) + typeSizes.sizeof(row.getExpiresAt())
+                    + typeSizes.sizeof(row.getDeletedAt()) + typeSizes.sizeof(row.bytes().length) + row.bytes().length;
+        }
+    }
+}
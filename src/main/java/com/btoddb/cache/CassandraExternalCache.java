@@ -1,19 +1,35 @@
 package com.btoddb.cache;
 
 import com.btoddb.cache.cassandra.CassandraDao;
+import com.btoddb.cache.metrics.CacheMetrics;
+import com.btoddb.cache.rest.PackedRowBinaryProvider;
+import com.btoddb.cache.rest.PackedRowJsonWriter;
+import com.btoddb.cache.rest.RequestForwarder;
 import com.btoddb.cache.rest.RestServiceImpl;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.jaxrs.base.JsonMappingExceptionMapper;
 import com.fasterxml.jackson.jaxrs.base.JsonParseExceptionMapper;
 import com.fasterxml.jackson.jaxrs.json.JacksonJaxbJsonProvider;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.PersistenceConfiguration;
 import org.apache.cxf.jaxrs.JAXRSServerFactoryBean;
 import org.apache.cxf.endpoint.Server;
+import org.apache.cassandra.utils.FBUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 
 
 public class CassandraExternalCache {
+    private static Logger logger = LoggerFactory.getLogger(CassandraExternalCache.class);
+
     public static final String KEYSPACE = "cache";
     public static final String COLUMN_FAMILY = "data";
 
@@ -21,10 +37,27 @@ public class CassandraExternalCache {
     public static CachingService cachingService = new CachingServiceUsingEhcache(
             CassandraExternalCache.KEYSPACE, CassandraExternalCache.COLUMN_FAMILY);
 
+    // shared with the trigger so writes can stop in-flight loads from caching old data
+    public static ReadThroughLoader rowLoader;
+
+    // null unless trigger updates are applied asynchronously
+    public static AsyncCacheUpdater cacheUpdater;
+
+    // null unless mutations are sent to the other nodes' caches
+    public static CoherenceChannel coherence;
+
     JAXRSServerFactoryBean serverFactoryBean;
     Server jaxrsServer;
     RestServiceImpl restService;
     CassandraDao cassandraDao;
+    // null unless PUTs are written behind
+    WriteBehindQueue writeBehind;
+    // null unless the cache is warmed at startup
+    CacheWarmer warmer;
+    // null unless only rows this node replicates are cached
+    TokenOwnership ownership;
+    RequestForwarder forwarder;
+    CacheMetrics metrics = new CacheMetrics();
     Config config = new Config();
 
 
@@ -32,34 +65,137 @@ public class CassandraExternalCache {
         init();
     }
 
+    public CassandraExternalCache(Config config) {
+        this.config = config;
+        init();
+    }
+
     protected void init() {
         config.readConfig();
 
+        initializeCachingService();
+        initializeCacheUpdater();
         initializeCassandraDao();
-//        initializeCachingService();
         initializeRestService();
+        initializeCoherence();
+        initializeMetrics();
+    }
+
+    protected void initializeCachingService() {
+        EHCacheUpdateTrigger.setMaxOptimisticAttempts(config.getTriggerOptimisticAttempts());
+
+        if (0 < config.getOffHeapCacheBytes()) {
+            if (0 < config.getCacheTimeToLiveSeconds() || 0 < config.getCacheTimeToIdleSeconds()) {
+                logger.warn("off-heap cache is bounded by size only, time to live/idle are ignored");
+            }
+            if (config.isFrequencyAdmission()) {
+                logger.warn("off-heap cache admits every row, frequency admission is ehcache only");
+            }
+            // the trigger may already be using the shared service, only swap it for a different kind of store
+            if (!(cachingService instanceof CachingServiceUsingOffHeap)) {
+                cachingService = new CachingServiceUsingOffHeap(
+                        CassandraExternalCache.KEYSPACE, CassandraExternalCache.COLUMN_FAMILY,
+                        config.getOffHeapCacheBytes(), config.getKeyLockStripes());
+            }
+        }
+        // sized and expired as configured, which drops the rows already cached
+        else if (0 < config.getCacheMaxEntries() || config.isFrequencyAdmission()) {
+            cachingService = new CachingServiceUsingEhcache(
+                    CassandraExternalCache.KEYSPACE, CassandraExternalCache.COLUMN_FAMILY, config.getKeyLockStripes(),
+                    createCacheConfiguration(), config.isFrequencyAdmission());
+        }
+        // rows live in the shared ehcache manager, so a new service with different locking keeps them
+        else if (cachingService instanceof CachingServiceUsingEhcache
+                && cachingService.getKeyLocks().getStripeCount() != config.getKeyLockStripes()) {
+            cachingService = new CachingServiceUsingEhcache(
+                    CassandraExternalCache.KEYSPACE, CassandraExternalCache.COLUMN_FAMILY, config.getKeyLockStripes());
+        }
+    }
+
+    /**
+     * @return sizing, expiry and eviction of the on-heap cache, null for the cache manager's defaults
+     */
+    protected CacheConfiguration createCacheConfiguration() {
+        if (0 == config.getCacheMaxEntries()) {
+            return null;
+        }
+        return new CacheConfiguration()
+                .maxEntriesLocalHeap(config.getCacheMaxEntries())
+                .timeToLiveSeconds(config.getCacheTimeToLiveSeconds())
+                .timeToIdleSeconds(config.getCacheTimeToIdleSeconds())
+                .memoryStoreEvictionPolicy(config.getCacheEvictionPolicy())
+                .persistence(new PersistenceConfiguration().strategy(PersistenceConfiguration.Strategy.NONE));
+    }
+
+    protected void initializeCacheUpdater() {
+        if (!config.isAsyncTriggerUpdates()) {
+            return;
+        }
+
+        cacheUpdater = new AsyncCacheUpdater(
+                config.getTriggerQueueCapacity(),
+                config.getTriggerBatchSize(),
+                config.getTriggerOverflowPolicy(),
+                config.getTriggerBlockTimeoutMillis());
+        cacheUpdater.start();
     }
 
     protected void initializeCassandraDao() {
         cassandraDao = new CassandraDao();
+        cassandraDao.setWriteMode(config.getWriteMode());
         cassandraDao.start(config.getCassandraCqlHost(), config.getCassandraCqlPort());
     }
 
-//    protected void initializeCachingService() {
-//    }
-
     protected void initializeRestService() {
+        rowLoader = new ReadThroughLoader(cachingService, cassandraDao);
+        rowLoader.setMaxAsyncLoadsPerRequest(config.getMultigetMaxConcurrentLoads());
+        rowLoader.setWriteSettleMillis(config.getLoadWriteSettleMillis());
+        rowLoader.start();
+        if (0 < config.getNegativeCacheTtlMillis()) {
+            rowLoader.setNegativeCache(new NegativeCache(config.getNegativeCacheTtlMillis(),
+                                                         config.getNegativeCacheMaxEntries()));
+        }
+        configureFreshness();
+
         restService = new RestServiceImpl();
         restService.setCachingService(cachingService);
         restService.setCassandraDao(cassandraDao);
+        restService.setRowLoader(rowLoader);
+        restService.setMultigetMaxIds(config.getMultigetMaxIds());
+        restService.setMetrics(metrics);
+
+        if (config.isTokenOwnership()) {
+            ownership = new TokenOwnership(KEYSPACE);
+            forwarder = new RequestForwarder(config.getRestPort(), config.getForwardThreads(),
+                                             config.getForwardQueueCapacity(), config.getForwardTimeoutMillis());
+            rowLoader.setOwnership(ownership);
+            restService.setOwnership(ownership);
+            restService.setForwarder(forwarder);
+        }
+
+        if (config.isWriteBehind()) {
+            writeBehind = new WriteBehindQueue(cachingService, cassandraDao, config.getWriteBehindMaxPendingBytes(),
+                                               config.getWriteBehindBatchSize(),
+                                               config.getWriteBehindFlushIntervalMillis());
+            writeBehind.start();
+            rowLoader.setWriteBehind(writeBehind);
+            restService.setWriteBehind(writeBehind);
+        }
+        // before the server starts, so it never reports ready too early
+        initializeWarmer();
 
         ObjectMapper objMap = new ObjectMapper();
+        restService.setObjectMapper(objMap);
         JacksonJaxbJsonProvider jsonProvider = new JacksonJaxbJsonProvider();
         jsonProvider.setMapper(objMap);
+        // the off-heap store hands out a new copy of the row on every hit
+        boolean keepEncoded = config.isKeepEncodedResponses() && !(cachingService instanceof CachingServiceUsingOffHeap);
 
         serverFactoryBean = new JAXRSServerFactoryBean();
-        serverFactoryBean.setAddress("http://0.0.0.0:9090");
+        serverFactoryBean.setAddress("http://0.0.0.0:" + config.getRestPort());
         serverFactoryBean.setProviders(Arrays.asList(
+                                               new PackedRowJsonWriter(objMap, keepEncoded),
+                                               new PackedRowBinaryProvider(),
                                                jsonProvider,
                                                new JsonMappingExceptionMapper(),
                                                new JsonParseExceptionMapper())
@@ -70,8 +206,123 @@ public class CassandraExternalCache {
         jaxrsServer.start();
     }
 
+    protected void initializeWarmer() {
+        if (null == config.getWarmUpSnapshotFile() && !config.isWarmUpScan()) {
+            return;
+        }
+
+        warmer = new CacheWarmer(cachingService, rowLoader, cassandraDao, config.getWarmUpMaxKeys(),
+                                 config.getMultigetMaxConcurrentLoads());
+        if (null != config.getWarmUpSnapshotFile()) {
+            warmer.setSnapshotFile(new File(config.getWarmUpSnapshotFile()));
+        }
+        warmer.setScan(config.isWarmUpScan());
+        warmer.setScanTokenRanges(config.getWarmUpScanTokenRanges());
+        warmer.setReadyFraction(config.getWarmUpReadyFraction());
+        restService.setWarmer(warmer);
+        warmer.start(config.getWarmUpSnapshotIntervalSeconds());
+    }
+
+    protected void initializeCoherence() {
+        if (0 == config.getCoherencePort()) {
+            return;
+        }
+
+        InetAddress listenAddress;
+        try {
+            listenAddress = null != config.getCoherenceListenAddress()
+                    ? InetAddress.getByName(config.getCoherenceListenAddress())
+                    : FBUtilities.getLocalAddress();
+        }
+        catch (UnknownHostException e) {
+            throw new RuntimeException("cannot resolve coherenceListenAddress " + config.getCoherenceListenAddress(), e);
+        }
+        CoherenceChannel channel = new CoherenceChannel(cachingService, listenAddress, config.getCoherencePort(),
+                                                        config.getCoherencePeers(),
+                                                        config.getCoherenceQueueCapacity(),
+                                                        config.getCoherenceBatchSize(),
+                                                        config.getCoherenceFlushIntervalMillis());
+        channel.setRowLoader(rowLoader);
+        try {
+            channel.start();
+        }
+        catch (IOException e) {
+            throw new RuntimeException("cannot listen for cache coherence on port " + config.getCoherencePort(), e);
+        }
+        coherence = channel;
+    }
+
+    protected void configureFreshness() {
+        rowLoader.setMaxStalenessMillis(TimeUnit.SECONDS.toMillis(config.getMaxStalenessSeconds()));
+        rowLoader.setRefreshAheadMillis(TimeUnit.SECONDS.toMillis(config.getRefreshAheadSeconds()));
+        // the off-heap store doesn't expire rows, so its only limit is the staleness
+        if (null != createCacheConfiguration() && !(cachingService instanceof CachingServiceUsingOffHeap)) {
+            rowLoader.setTimeToLiveMillis(TimeUnit.SECONDS.toMillis(config.getCacheTimeToLiveSeconds()));
+        }
+        if (0 < config.getRefreshAheadSeconds()
+                && 0 == rowLoader.getMaxStalenessMillis() && 0 == rowLoader.getTimeToLiveMillis()) {
+            logger.warn("rows never expire, refresh-ahead has no effect");
+        }
+    }
+
+    protected void initializeMetrics() {
+        metrics.registerRestService(restService);
+        metrics.registerLoader(rowLoader);
+        if (null != rowLoader.getNegativeCache()) {
+            metrics.registerNegativeCache(rowLoader.getNegativeCache());
+        }
+        metrics.registerTrigger();
+        if (null != cacheUpdater) {
+            metrics.registerCacheUpdater(cacheUpdater);
+        }
+        if (null != writeBehind) {
+            metrics.registerWriteBehind(writeBehind);
+        }
+        if (null != warmer) {
+            metrics.registerWarmer(warmer);
+        }
+        if (null != coherence) {
+            metrics.registerCoherence(coherence);
+        }
+        if (null != forwarder) {
+            metrics.registerForwarder(forwarder);
+        }
+        metrics.registerTable(KEYSPACE + "." + COLUMN_FAMILY, cachingService);
+
+        if (config.isJmxMetrics()) {
+            metrics.startJmx();
+        }
+    }
+
     public void shutdown() {
         jaxrsServer.stop();
+        metrics.stopJmx();
+
+        if (null != forwarder) {
+            forwarder.shutdown();
+        }
+
+        // no more PUTs can arrive, write what they left pending
+        if (null != writeBehind) {
+            writeBehind.shutdown();
+        }
+
+        // after the write-behind, its rows are cached and will be in cassandra
+        if (null != warmer) {
+            warmer.shutdown();
+        }
+
+        if (null != cacheUpdater) {
+            cacheUpdater.shutdown();
+            cacheUpdater = null;
+        }
+
+        if (null != coherence) {
+            coherence.shutdown();
+            coherence = null;
+        }
+
+        rowLoader.shutdown();
     }
 
     public CachingService getCachingService() {
@@ -82,6 +333,42 @@ public class CassandraExternalCache {
         CassandraExternalCache.cachingService = cachingService;
     }
 
+    public Config getConfig() {
+        return config;
+    }
+
+    public CacheMetrics getMetrics() {
+        return metrics;
+    }
+
+    public AsyncCacheUpdater getCacheUpdater() {
+        return cacheUpdater;
+    }
+
+    public CoherenceChannel getCoherence() {
+        return coherence;
+    }
+
+    public TokenOwnership getOwnership() {
+        return ownership;
+    }
+
+    public RequestForwarder getForwarder() {
+        return forwarder;
+    }
+
+    public WriteBehindQueue getWriteBehind() {
+        return writeBehind;
+    }
+
+    public CacheWarmer getWarmer() {
+        return warmer;
+    }
+
+    public ReadThroughLoader getRowLoader() {
+        return rowLoader;
+    }
+
     public CassandraDao getCassandraDao() {
         return cassandraDao;
     }
@@ -0,0 +1,652 @@
+package com.btoddb.cache;
+
+import com.btoddb.cache.metrics.LatencyRecorder;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.io.util.DataOutputBuffer;
+import org.apache.cassandra.net.MessagingService;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Carries the mutations the trigger sees on this node to the caches of the other nodes running
+ * the REST service.  The trigger only fires on the node coordinating a write, so without this the
+ * other nodes' caches never hear of it.
+ *
+ * <p/>The trigger queues each mutation and a background flusher sends whatever is waiting, up to
+ * the batch size, as one LZ4 compressed frame: the row keys and the mutations as Cassandra
+ * serializes them between nodes, columns with their timestamps and any deletions.  Each peer gets
+ * the same frame over its own connection.  A receiving node applies the mutations to its caches
+ * the way its trigger would, so a column only replaces an older one and a deletion only removes
+ * older columns, and updates arriving late or out of order do no harm.
+ *
+ * <p/>Nothing is retried.  A full queue or an unreachable peer drops the update and the peer's
+ * cache may serve the old row until it is evicted, so give the cache a max staleness when
+ * relying on this.  Propagation lag is measured from the trigger to the peer applying the
+ * mutation, using both nodes' clocks.
+ *
+ * <p/>Peers are trusted, there is no authentication or encryption: anything a peer sends is
+ * applied to this node's caches.  The channel listens only on the given address, drops
+ * connections from addresses that aren't one of its peers, as resolved at construction, and
+ * holds at most twice as many connections as it has peers, so a reconnect can overlap a
+ * connection not yet found dead.  Addresses can be spoofed on a shared network, so keep the port
+ * on a private one.  Frames over {@link #MAX_FRAME_BYTES}, or that don't decompress to the length
+ * they declare, close the connection; the sender splits batches to stay under it, and drops a
+ * single mutation that is bigger.
+ */
+public class CoherenceChannel {
+    private static Logger logger = LoggerFactory.getLogger(CoherenceChannel.class);
+
+    // frame is [int payload length][int compressed length][lz4 compressed payload]
+    // payload is [int messaging version][int count] then count times
+    //     [long published at][int key length][key][int mutation length][mutation]
+    // well above a full batch of ordinary rows, and bounds what a connection can make us allocate
+    static final int MAX_FRAME_BYTES = 4 * 1024 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final long RECONNECT_BACKOFF_MILLIS = 1000;
+    private static final long IDLE_POLL_MILLIS = 100;
+
+    private final EHCacheUpdateTrigger trigger = new EHCacheUpdateTrigger();
+    private final CachingService cachingService;
+    private volatile ReadThroughLoader rowLoader;
+    private final InetAddress listenAddress;
+    private final int requestedPort;
+    private final List<Peer> peers = new ArrayList<>();
+    private final Set<InetAddress> peerAddresses = new HashSet<>();
+    private final int maxConnections;
+    private final BlockingQueue<Published> queue;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+    // a peer's frame is checked against its lengths, the fast decompressor would trust them
+    private final LZ4SafeDecompressor decompressor = LZ4Factory.fastestInstance().safeDecompressor();
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sentFrames = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong undelivered = new AtomicLong();
+    private final AtomicLong oversized = new AtomicLong();
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final LatencyRecorder propagationLag = new LatencyRecorder();
+    private volatile long lastLagMillis;
+    private volatile long maxLagMillis;
+
+    private volatile boolean running;
+    private ServerSocket serverSocket;
+    private Thread acceptorThread;
+    private Thread flusherThread;
+    private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+
+    /**
+     * @param cachingService this node's cache, mutations from peers are applied to it
+     * @param listenAddress address to listen on for peers
+     * @param port port to listen on for peers, 0 for any free port
+     * @param peers the other nodes, <code>host:port</code>, the only addresses accepted from
+     * @param queueCapacity mutations waiting to be sent, more are dropped
+     * @param batchSize most mutations sent in one frame
+     * @param flushIntervalMillis longest a mutation waits for others to share its frame
+     */
+    public CoherenceChannel(CachingService cachingService, InetAddress listenAddress, int port,
+                            List<String> peers, int queueCapacity, int batchSize, long flushIntervalMillis) {
+        if (0 >= queueCapacity || 0 >= batchSize) {
+            throw new IllegalArgumentException("queueCapacity and batchSize must be positive");
+        }
+        this.cachingService = cachingService;
+        this.listenAddress = listenAddress;
+        this.requestedPort = port;
+        for (String peer : peers) {
+            InetSocketAddress address = parseAddress(peer);
+            if (address.isUnresolved()) {
+                throw new IllegalArgumentException("cannot resolve peer " + peer);
+            }
+            this.peers.add(new Peer(address));
+            this.peerAddresses.add(address.getAddress());
+        }
+        this.maxConnections = 2 * peers.size();
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    /**
+     * @param peer <code>host:port</code>
+     */
+    static InetSocketAddress parseAddress(String peer) {
+        int colon = peer.lastIndexOf(':');
+        if (0 >= colon) {
+            throw new IllegalArgumentException("peer must be host:port, not " + peer);
+        }
+        try {
+            return new InetSocketAddress(peer.substring(0, colon).trim(), Integer.parseInt(peer.substring(colon + 1).trim()));
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("peer must be host:port, not " + peer, e);
+        }
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        serverSocket = new ServerSocket(requestedPort, 50, listenAddress);
+        running = true;
+
+        acceptorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        });
+        acceptorThread.setName("cache-coherence-acceptor");
+        acceptorThread.setDaemon(true);
+        acceptorThread.start();
+
+        flusherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        });
+        flusherThread.setName("cache-coherence-flusher");
+        flusherThread.setDaemon(true);
+        flusherThread.start();
+        logger.info("cache coherence listening on {}:{}, {} peers", listenAddress.getHostAddress(), getPort(), peers.size());
+    }
+
+    /**
+     * Send what is already queued, then stop sending and receiving.
+     */
+    public synchronized void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            flusherThread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Peer peer : peers) {
+            peer.close();
+        }
+
+        closeQuietly(serverSocket);
+        for (Socket connection : connections) {
+            closeQuietly(connection);
+        }
+    }
+
+    /**
+     * Called by the trigger on the Cassandra mutation thread, never blocks.  The update is
+     * serialized later on the flusher thread, while Cassandra may still be applying it, so a
+     * shallow copy is queued: the columns themselves are immutable, the container isn't.
+     *
+     * @param key row key
+     * @param update mutated columns
+     */
+    public void publish(ByteBuffer key, ColumnFamily update) {
+        if (queue.offer(new Published(key.duplicate(), update.cloneMe(), System.currentTimeMillis()))) {
+            published.incrementAndGet();
+        }
+        else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void flushLoop() {
+        List<Published> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                if (0 < nextBatch(batch)) {
+                    send(batch);
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (Throwable e) {
+                logger.error("exception while sending cache updates to peers", e);
+            }
+        }
+    }
+
+    /**
+     * Wait for a mutation, then for others to join it until the batch is full or the flush
+     * interval has passed.
+     */
+    private int nextBatch(List<Published> batch) throws InterruptedException {
+        batch.clear();
+        Published first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (null == first) {
+            return 0;
+        }
+        batch.add(first);
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        while (batch.size() < batchSize) {
+            queue.drainTo(batch, batchSize - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= batchSize || 0 >= remaining || !running) {
+                break;
+            }
+            Published next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (null == next) {
+                break;
+            }
+            batch.add(next);
+        }
+        return batch.size();
+    }
+
+    private void send(List<Published> batch) throws IOException {
+        int version = MessagingService.current_version;
+        DataOutputBuffer payload = new DataOutputBuffer();
+        payload.writeInt(version);
+        payload.writeInt(batch.size());
+        for (Published p : batch) {
+            payload.writeLong(p.publishedAt);
+            ByteBufferUtil.writeWithLength(p.key, payload);
+            payload.writeInt((int) ColumnFamily.serializer.serializedSize(p.update, version));
+            ColumnFamily.serializer.serialize(p.update, payload, version);
+        }
+
+        int length = payload.getLength();
+        if (length > MAX_FRAME_BYTES) {
+            // peers would refuse the frame
+            if (1 == batch.size()) {
+                oversized.incrementAndGet();
+                logger.warn("cache coherence mutation of {} bytes is over the {} byte frame limit, not sent",
+                            length, MAX_FRAME_BYTES);
+                return;
+            }
+            int half = batch.size() / 2;
+            send(batch.subList(0, half));
+            send(batch.subList(half, batch.size()));
+            return;
+        }
+
+        byte[] frame = new byte[8 + compressor.maxCompressedLength(length)];
+        int compressedLength = compressor.compress(payload.getData(), 0, length, frame, 8, frame.length - 8);
+        ByteBuffer.wrap(frame).putInt(length).putInt(compressedLength);
+        uncompressedBytes.addAndGet(length);
+
+        for (Peer peer : peers) {
+            if (peer.send(frame, 8 + compressedLength)) {
+                sentFrames.incrementAndGet();
+                sentBytes.addAndGet(8 + compressedLength);
+            }
+            else {
+                undelivered.incrementAndGet();
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            }
+            catch (IOException e) {
+                if (running) {
+                    logger.error("exception while accepting cache coherence connection", e);
+                }
+                continue;
+            }
+
+            if (!peerAddresses.contains(socket.getInetAddress())) {
+                reject(socket, "not a peer");
+                continue;
+            }
+            if (connections.size() >= maxConnections) {
+                reject(socket, "too many connections");
+                continue;
+            }
+
+            connections.add(socket);
+            Thread receiver = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    receiveLoop(socket);
+                }
+            });
+            receiver.setName("cache-coherence-receiver-" + socket.getRemoteSocketAddress());
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+    }
+
+    private void reject(Socket socket, String reason) {
+        rejectedConnections.incrementAndGet();
+        logger.warn("cache coherence connection from {} refused, {}", socket.getRemoteSocketAddress(), reason);
+        closeQuietly(socket);
+    }
+
+    private void receiveLoop(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            byte[] compressed = new byte[0];
+            int maxCompressedLength = compressor.maxCompressedLength(MAX_FRAME_BYTES);
+            for (;;) {
+                int length;
+                try {
+                    length = in.readInt();
+                }
+                catch (EOFException e) {
+                    return;
+                }
+                int compressedLength = in.readInt();
+                // checked before anything is allocated for them
+                if (0 > length || length > MAX_FRAME_BYTES
+                        || 0 > compressedLength || compressedLength > maxCompressedLength) {
+                    throw new IOException("bad cache coherence frame from " + socket.getRemoteSocketAddress());
+                }
+                if (compressed.length < compressedLength) {
+                    compressed = new byte[compressedLength];
+                }
+                in.readFully(compressed, 0, compressedLength);
+
+                byte[] payload = new byte[length];
+                int decompressedLength;
+                try {
+                    decompressedLength = decompressor.decompress(compressed, 0, compressedLength, payload, 0, length);
+                }
+                catch (LZ4Exception e) {
+                    throw new IOException("corrupt cache coherence frame from " + socket.getRemoteSocketAddress(), e);
+                }
+                if (decompressedLength != length) {
+                    throw new IOException("cache coherence frame from " + socket.getRemoteSocketAddress()
+                                          + " is " + decompressedLength + " bytes, not " + length);
+                }
+                receive(payload);
+            }
+        }
+        catch (IOException e) {
+            if (running) {
+                logger.warn("cache coherence connection from {} closed: {}", socket.getRemoteSocketAddress(), e.toString());
+            }
+        }
+        finally {
+            connections.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * A length from a peer can't be more than what is left of the payload.
+     */
+    private static byte[] readWithLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (0 > length || length > in.available()) {
+            throw new IOException("bad length in cache coherence frame, " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Apply a frame's mutations to this node's caches, in the order they were published.
+     */
+    void receive(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int version = in.readInt();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            long publishedAt = in.readLong();
+            ByteBuffer key = ByteBuffer.wrap(readWithLength(in));
+            byte[] mutation = readWithLength(in);
+            received.incrementAndGet();
+
+            try {
+                // a table this node doesn't know fails on its own, the rest of the frame still applies
+                ColumnFamily update = ColumnFamily.serializer.deserialize(
+                        new DataInputStream(new ByteArrayInputStream(mutation)), version);
+                trigger.applyUpdates(cachingService, rowLoader, key, Collections.singletonList(update));
+                applied.incrementAndGet();
+            }
+            catch (Throwable e) {
+                failed.incrementAndGet();
+                logger.error("exception while applying cache update from peer", e);
+            }
+
+            long lag = Math.max(0, System.currentTimeMillis() - publishedAt);
+            propagationLag.record(TimeUnit.MILLISECONDS.toNanos(lag));
+            lastLagMillis = lag;
+            if (lag > maxLagMillis) {
+                maxLagMillis = lag;
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (null == closeable) {
+            return;
+        }
+        try {
+            closeable.close();
+        }
+        catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    /**
+     * @return port peers connect to, once started
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public ReadThroughLoader getRowLoader() {
+        return rowLoader;
+    }
+
+    /**
+     * @param rowLoader writes from peers keep this node's in-flight loads of the row out of the cache
+     */
+    public void setRowLoader(ReadThroughLoader rowLoader) {
+        this.rowLoader = rowLoader;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return mutations queued to send
+     */
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    /**
+     * @return mutations not sent because the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return frames sent, counted once for each peer
+     */
+    public long getSentFrameCount() {
+        return sentFrames.get();
+    }
+
+    /**
+     * @return compressed bytes sent to all peers
+     */
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    /**
+     * @return bytes of frames before compression, counted once whatever the number of peers
+     */
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    /**
+     * @return frames not sent to a peer because it couldn't be reached
+     */
+    public long getUndeliveredCount() {
+        return undelivered.get();
+    }
+
+    /**
+     * @return mutations too big for a frame on their own, not sent
+     */
+    public long getOversizedCount() {
+        return oversized.get();
+    }
+
+    /**
+     * @return connections closed at once, from addresses that aren't peers or past the connection limit
+     */
+    public long getRejectedConnectionCount() {
+        return rejectedConnections.get();
+    }
+
+    /**
+     * @return mutations received from peers
+     */
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    /**
+     * @return mutations from peers applied to this node's caches, or skipped as their rows aren't cached
+     */
+    public long getAppliedCount() {
+        return applied.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return time from a peer's trigger seeing a mutation to this node applying it
+     */
+    public LatencyRecorder getPropagationLag() {
+        return propagationLag;
+    }
+
+    public long getLastLagMillis() {
+        return lastLagMillis;
+    }
+
+    public long getMaxLagMillis() {
+        return maxLagMillis;
+    }
+
+    private static class Published {
+        final ByteBuffer key;
+        final ColumnFamily update;
+        final long publishedAt;
+
+        Published(ByteBuffer key, ColumnFamily update, long publishedAt) {
+            this.key = key;
+            this.update = update;
+            this.publishedAt = publishedAt;
+        }
+    }
+
+    /**
+     * Connection to one peer, only used by the flusher.
+     */
+    private static class Peer {
+        final InetSocketAddress address;
+        Socket socket;
+        DataOutputStream out;
+        long retryAt;
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        /**
+         * @return false if the peer couldn't be reached, the frame is dropped
+         */
+        boolean send(byte[] frame, int length) {
+            if (null == out && !connect()) {
+                return false;
+            }
+            try {
+                out.write(frame, 0, length);
+                out.flush();
+                return true;
+            }
+            catch (IOException e) {
+                logger.warn("cache coherence peer {} failed: {}", address, e.toString());
+                close();
+                retryAt = System.currentTimeMillis() + RECONNECT_BACKOFF_MILLIS;
+                return false;
+            }
+        }
+
+        private boolean connect() {
+            if (System.currentTimeMillis() < retryAt) {
+                return false;
+            }
+            try {
+                socket = new Socket();
+                socket.setTcpNoDelay(true);
+                socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                return true;
+            }
+            catch (IOException e) {
+                logger.warn("cache coherence peer {} unreachable: {}", address, e.toString());
+                close();
+                retryAt = System.currentTimeMillis() + RECONNECT_BACKOFF_MILLIS;
+                return false;
+            }
+        }
+
+        void close() {
+            closeQuietly(socket);
+            socket = null;
+            out = null;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.btoddb.cache;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Interns column names as small int ids so packed rows don't carry a copy of every name.
+ *
+ * <p/>Ids are only meaningful inside this JVM.  The registry is bounded - compact storage tables
+ * use clustering values as column names, so the set of names can be unbounded.  Once full,
+ * {@link #idFor(String)} returns {@link #NOT_REGISTERED} and callers store the name inline.
+ */
+public class ColumnNameRegistry {
+    public static final int NOT_REGISTERED = -1;
+
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final int maxNames;
+    private volatile String[] names = new String[64];
+    // encoded once for the binary row format
+    private volatile byte[][] utf8Names = new byte[64][];
+    private int count;
+
+
+    public ColumnNameRegistry(int maxNames) {
+        this.maxNames = maxNames;
+    }
+
+    /**
+     * @param name column name
+     * @return id for the name, registering it if there is room, else {@link #NOT_REGISTERED}
+     */
+    public int idFor(String name) {
+        Integer id = ids.get(name);
+        if (null != id) {
+            return id;
+        }
+        return register(name);
+    }
+
+    /**
+     * @param name column name
+     * @return id for the name, or {@link #NOT_REGISTERED} if never registered
+     */
+    public int lookup(String name) {
+        Integer id = ids.get(name);
+        return null != id ? id : NOT_REGISTERED;
+    }
+
+    public String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * @return the name's UTF-8 bytes - do not modify
+     */
+    public byte[] utf8Name(int id) {
+        return utf8Names[id];
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    private synchronized int register(String name) {
+        Integer id = ids.get(name);
+        if (null != id) {
+            return id;
+        }
+        if (count >= maxNames) {
+            return NOT_REGISTERED;
+        }
+
+        String[] current = names;
+        byte[][] currentUtf8 = utf8Names;
+        if (count == current.length) {
+            current = Arrays.copyOf(current, Math.min(maxNames, current.length * 2));
+            currentUtf8 = Arrays.copyOf(currentUtf8, current.length);
+        }
+        // publish the name before the id so readers never see an id without its name
+        currentUtf8[count] = name.getBytes(PackedRow.UTF8);
+        utf8Names = currentUtf8;
+        current[count] = name;
+        names = current;
+        ids.put(name, count);
+        return count++;
+    }
+}
@@ -1,9 +1,91 @@
 package com.btoddb.cache;
 
+import com.btoddb.cache.cassandra.CassandraDao;
+
+import java.util.ArrayList;
+import java.util.List;
+
 
 public class Config {
     private String cassandraCqlHost = "localhost";
     private int cassandraCqlPort = 9052;
+    private CassandraDao.WriteMode writeMode = CassandraDao.WriteMode.LOGGED_BATCH;
+
+    // rows are kept on the heap in ehcache unless an off-heap budget is given
+    private long offHeapCacheBytes = 0;
+
+    // ehcache only, the cache manager's defaults unless cacheMaxEntries is set.  off-heap rows are
+    // bounded by offHeapCacheBytes, evicted LRU and never expire
+    private int cacheMaxEntries = 0;
+    private long cacheTimeToLiveSeconds = 0;
+    private long cacheTimeToIdleSeconds = 0;
+    private String cacheEvictionPolicy = "LRU";
+    // once full, a new row is only cached if read more often recently than the row it would evict
+    private boolean frequencyAdmission = false;
+
+    // rows loaded longer ago than this are reloaded, and rows read this close to expiring are
+    // reloaded in the background.  0 for neither
+    private long maxStalenessSeconds = 0;
+    private long refreshAheadSeconds = 0;
+
+    // per-key write locks, and how often the trigger retries a lock-free update before taking one
+    private int keyLockStripes = KeyLocks.DEFAULT_STRIPES;
+    private int triggerOptimisticAttempts = EHCacheUpdateTrigger.DEFAULT_OPTIMISTIC_ATTEMPTS;
+
+    // trigger updates are applied on the mutation thread unless this is set
+    private boolean asyncTriggerUpdates = false;
+    private int triggerQueueCapacity = 10000;
+    private int triggerBatchSize = 256;
+    private AsyncCacheUpdater.OverflowPolicy triggerOverflowPolicy = AsyncCacheUpdater.OverflowPolicy.BLOCK;
+    private long triggerBlockTimeoutMillis = 100;
+
+    // multiget limits
+    private int multigetMaxIds = 1000;
+    private int multigetMaxConcurrentLoads = ReadThroughLoader.DEFAULT_MAX_ASYNC_LOADS;
+
+    // rows loaded up to twice this soon after a write to them aren't cached, the write may not be applied yet
+    private long loadWriteSettleMillis = ReadThroughLoader.DEFAULT_WRITE_SETTLE_MILLIS;
+
+    // remember ids found missing for this long so repeat GETs are a 404 without reading cassandra, off if 0
+    private long negativeCacheTtlMillis = 0;
+    private int negativeCacheMaxEntries = 100000;
+
+    // keep each row's encoded GET response with the cached row, only used with the on-heap store
+    private boolean keepEncodedResponses = true;
+
+    // PUTs are acknowledged once cached and written to cassandra in the background if this is set
+    private boolean writeBehind = false;
+    private long writeBehindMaxPendingBytes = 64L * 1024 * 1024;
+    private int writeBehindBatchSize = 100;
+    private long writeBehindFlushIntervalMillis = 100;
+
+    // warm the cache at startup from a snapshot of the hot keys, else from a token range scan if set
+    private String warmUpSnapshotFile = null;
+    private long warmUpSnapshotIntervalSeconds = 300;
+    private int warmUpMaxKeys = 100000;
+    private boolean warmUpScan = false;
+    private List<String> warmUpScanTokenRanges = new ArrayList<>();
+    // GET /v1/ready answers 503 until this fraction of the keys is warm
+    private double warmUpReadyFraction = 0.9;
+
+    // send the mutations this node's trigger sees to the other nodes' caches, off if the port is 0
+    private int coherencePort = 0;
+    // address to listen on for peers, cassandra's listen_address if not set
+    private String coherenceListenAddress = null;
+    private List<String> coherencePeers = new ArrayList<>();
+    private int coherenceQueueCapacity = 10000;
+    private int coherenceBatchSize = 256;
+    private long coherenceFlushIntervalMillis = 5;
+
+    // cache only rows this node replicates, and send requests for the others to a replica's REST service
+    private boolean tokenOwnership = false;
+    private int restPort = 9090;
+    private int forwardThreads = 16;
+    private int forwardQueueCapacity = 256;
+    private int forwardTimeoutMillis = 1000;
+
+    // metrics are always available from GET /v1/metrics
+    private boolean jmxMetrics = true;
 
 
     public String getCassandraCqlHost() {
@@ -22,6 +104,364 @@ public class Config {
         this.cassandraCqlPort = cassandraCqlPort;
     }
 
+    public CassandraDao.WriteMode getWriteMode() {
+        return writeMode;
+    }
+
+    public void setWriteMode(CassandraDao.WriteMode writeMode) {
+        this.writeMode = writeMode;
+    }
+
+    public long getOffHeapCacheBytes() {
+        return offHeapCacheBytes;
+    }
+
+    public void setOffHeapCacheBytes(long offHeapCacheBytes) {
+        this.offHeapCacheBytes = offHeapCacheBytes;
+    }
+
+    public int getCacheMaxEntries() {
+        return cacheMaxEntries;
+    }
+
+    public void setCacheMaxEntries(int cacheMaxEntries) {
+        this.cacheMaxEntries = cacheMaxEntries;
+    }
+
+    public long getCacheTimeToLiveSeconds() {
+        return cacheTimeToLiveSeconds;
+    }
+
+    public void setCacheTimeToLiveSeconds(long cacheTimeToLiveSeconds) {
+        this.cacheTimeToLiveSeconds = cacheTimeToLiveSeconds;
+    }
+
+    public long getCacheTimeToIdleSeconds() {
+        return cacheTimeToIdleSeconds;
+    }
+
+    public void setCacheTimeToIdleSeconds(long cacheTimeToIdleSeconds) {
+        this.cacheTimeToIdleSeconds = cacheTimeToIdleSeconds;
+    }
+
+    /**
+     * @return LRU, LFU or FIFO
+     */
+    public String getCacheEvictionPolicy() {
+        return cacheEvictionPolicy;
+    }
+
+    public void setCacheEvictionPolicy(String cacheEvictionPolicy) {
+        this.cacheEvictionPolicy = cacheEvictionPolicy;
+    }
+
+    /**
+     * @return true to put TinyLFU admission in front of LRU eviction, the eviction policy is ignored
+     */
+    public boolean isFrequencyAdmission() {
+        return frequencyAdmission;
+    }
+
+    public void setFrequencyAdmission(boolean frequencyAdmission) {
+        this.frequencyAdmission = frequencyAdmission;
+    }
+
+    public long getMaxStalenessSeconds() {
+        return maxStalenessSeconds;
+    }
+
+    public void setMaxStalenessSeconds(long maxStalenessSeconds) {
+        this.maxStalenessSeconds = maxStalenessSeconds;
+    }
+
+    public long getRefreshAheadSeconds() {
+        return refreshAheadSeconds;
+    }
+
+    public void setRefreshAheadSeconds(long refreshAheadSeconds) {
+        this.refreshAheadSeconds = refreshAheadSeconds;
+    }
+
+    public int getKeyLockStripes() {
+        return keyLockStripes;
+    }
+
+    public void setKeyLockStripes(int keyLockStripes) {
+        this.keyLockStripes = keyLockStripes;
+    }
+
+    public int getTriggerOptimisticAttempts() {
+        return triggerOptimisticAttempts;
+    }
+
+    public void setTriggerOptimisticAttempts(int triggerOptimisticAttempts) {
+        this.triggerOptimisticAttempts = triggerOptimisticAttempts;
+    }
+
+    public boolean isAsyncTriggerUpdates() {
+        return asyncTriggerUpdates;
+    }
+
+    public void setAsyncTriggerUpdates(boolean asyncTriggerUpdates) {
+        this.asyncTriggerUpdates = asyncTriggerUpdates;
+    }
+
+    public int getTriggerQueueCapacity() {
+        return triggerQueueCapacity;
+    }
+
+    public void setTriggerQueueCapacity(int triggerQueueCapacity) {
+        this.triggerQueueCapacity = triggerQueueCapacity;
+    }
+
+    public int getTriggerBatchSize() {
+        return triggerBatchSize;
+    }
+
+    public void setTriggerBatchSize(int triggerBatchSize) {
+        this.triggerBatchSize = triggerBatchSize;
+    }
+
+    public AsyncCacheUpdater.OverflowPolicy getTriggerOverflowPolicy() {
+        return triggerOverflowPolicy;
+    }
+
+    public void setTriggerOverflowPolicy(AsyncCacheUpdater.OverflowPolicy triggerOverflowPolicy) {
+        this.triggerOverflowPolicy = triggerOverflowPolicy;
+    }
+
+    public long getTriggerBlockTimeoutMillis() {
+        return triggerBlockTimeoutMillis;
+    }
+
+    public void setTriggerBlockTimeoutMillis(long triggerBlockTimeoutMillis) {
+        this.triggerBlockTimeoutMillis = triggerBlockTimeoutMillis;
+    }
+
+    public int getMultigetMaxIds() {
+        return multigetMaxIds;
+    }
+
+    public void setMultigetMaxIds(int multigetMaxIds) {
+        this.multigetMaxIds = multigetMaxIds;
+    }
+
+    public int getMultigetMaxConcurrentLoads() {
+        return multigetMaxConcurrentLoads;
+    }
+
+    public void setMultigetMaxConcurrentLoads(int multigetMaxConcurrentLoads) {
+        this.multigetMaxConcurrentLoads = multigetMaxConcurrentLoads;
+    }
+
+    public long getLoadWriteSettleMillis() {
+        return loadWriteSettleMillis;
+    }
+
+    public void setLoadWriteSettleMillis(long loadWriteSettleMillis) {
+        this.loadWriteSettleMillis = loadWriteSettleMillis;
+    }
+
+    public long getNegativeCacheTtlMillis() {
+        return negativeCacheTtlMillis;
+    }
+
+    public void setNegativeCacheTtlMillis(long negativeCacheTtlMillis) {
+        this.negativeCacheTtlMillis = negativeCacheTtlMillis;
+    }
+
+    public int getNegativeCacheMaxEntries() {
+        return negativeCacheMaxEntries;
+    }
+
+    public void setNegativeCacheMaxEntries(int negativeCacheMaxEntries) {
+        this.negativeCacheMaxEntries = negativeCacheMaxEntries;
+    }
+
+    public boolean isKeepEncodedResponses() {
+        return keepEncodedResponses;
+    }
+
+    public void setKeepEncodedResponses(boolean keepEncodedResponses) {
+        this.keepEncodedResponses = keepEncodedResponses;
+    }
+
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    public long getWriteBehindMaxPendingBytes() {
+        return writeBehindMaxPendingBytes;
+    }
+
+    public void setWriteBehindMaxPendingBytes(long writeBehindMaxPendingBytes) {
+        this.writeBehindMaxPendingBytes = writeBehindMaxPendingBytes;
+    }
+
+    public int getWriteBehindBatchSize() {
+        return writeBehindBatchSize;
+    }
+
+    public void setWriteBehindBatchSize(int writeBehindBatchSize) {
+        this.writeBehindBatchSize = writeBehindBatchSize;
+    }
+
+    public long getWriteBehindFlushIntervalMillis() {
+        return writeBehindFlushIntervalMillis;
+    }
+
+    public void setWriteBehindFlushIntervalMillis(long writeBehindFlushIntervalMillis) {
+        this.writeBehindFlushIntervalMillis = writeBehindFlushIntervalMillis;
+    }
+
+    public String getWarmUpSnapshotFile() {
+        return warmUpSnapshotFile;
+    }
+
+    public void setWarmUpSnapshotFile(String warmUpSnapshotFile) {
+        this.warmUpSnapshotFile = warmUpSnapshotFile;
+    }
+
+    public long getWarmUpSnapshotIntervalSeconds() {
+        return warmUpSnapshotIntervalSeconds;
+    }
+
+    public void setWarmUpSnapshotIntervalSeconds(long warmUpSnapshotIntervalSeconds) {
+        this.warmUpSnapshotIntervalSeconds = warmUpSnapshotIntervalSeconds;
+    }
+
+    public int getWarmUpMaxKeys() {
+        return warmUpMaxKeys;
+    }
+
+    public void setWarmUpMaxKeys(int warmUpMaxKeys) {
+        this.warmUpMaxKeys = warmUpMaxKeys;
+    }
+
+    public boolean isWarmUpScan() {
+        return warmUpScan;
+    }
+
+    public void setWarmUpScan(boolean warmUpScan) {
+        this.warmUpScan = warmUpScan;
+    }
+
+    public List<String> getWarmUpScanTokenRanges() {
+        return warmUpScanTokenRanges;
+    }
+
+    public void setWarmUpScanTokenRanges(List<String> warmUpScanTokenRanges) {
+        this.warmUpScanTokenRanges = warmUpScanTokenRanges;
+    }
+
+    public double getWarmUpReadyFraction() {
+        return warmUpReadyFraction;
+    }
+
+    public void setWarmUpReadyFraction(double warmUpReadyFraction) {
+        this.warmUpReadyFraction = warmUpReadyFraction;
+    }
+
+    public int getCoherencePort() {
+        return coherencePort;
+    }
+
+    public void setCoherencePort(int coherencePort) {
+        this.coherencePort = coherencePort;
+    }
+
+    public String getCoherenceListenAddress() {
+        return coherenceListenAddress;
+    }
+
+    public void setCoherenceListenAddress(String coherenceListenAddress) {
+        this.coherenceListenAddress = coherenceListenAddress;
+    }
+
+    public List<String> getCoherencePeers() {
+        return coherencePeers;
+    }
+
+    public void setCoherencePeers(List<String> coherencePeers) {
+        this.coherencePeers = coherencePeers;
+    }
+
+    public int getCoherenceQueueCapacity() {
+        return coherenceQueueCapacity;
+    }
+
+    public void setCoherenceQueueCapacity(int coherenceQueueCapacity) {
+        this.coherenceQueueCapacity = coherenceQueueCapacity;
+    }
+
+    public int getCoherenceBatchSize() {
+        return coherenceBatchSize;
+    }
+
+    public void setCoherenceBatchSize(int coherenceBatchSize) {
+        this.coherenceBatchSize = coherenceBatchSize;
+    }
+
+    public long getCoherenceFlushIntervalMillis() {
+        return coherenceFlushIntervalMillis;
+    }
+
+    public void setCoherenceFlushIntervalMillis(long coherenceFlushIntervalMillis) {
+        this.coherenceFlushIntervalMillis = coherenceFlushIntervalMillis;
+    }
+
+    public boolean isTokenOwnership() {
+        return tokenOwnership;
+    }
+
+    public void setTokenOwnership(boolean tokenOwnership) {
+        this.tokenOwnership = tokenOwnership;
+    }
+
+    public int getRestPort() {
+        return restPort;
+    }
+
+    public void setRestPort(int restPort) {
+        this.restPort = restPort;
+    }
+
+    public int getForwardThreads() {
+        return forwardThreads;
+    }
+
+    public void setForwardThreads(int forwardThreads) {
+        this.forwardThreads = forwardThreads;
+    }
+
+    public int getForwardQueueCapacity() {
+        return forwardQueueCapacity;
+    }
+
+    public void setForwardQueueCapacity(int forwardQueueCapacity) {
+        this.forwardQueueCapacity = forwardQueueCapacity;
+    }
+
+    public int getForwardTimeoutMillis() {
+        return forwardTimeoutMillis;
+    }
+
+    public void setForwardTimeoutMillis(int forwardTimeoutMillis) {
+        this.forwardTimeoutMillis = forwardTimeoutMillis;
+    }
+
+    public boolean isJmxMetrics() {
+        return jmxMetrics;
+    }
+
+    public void setJmxMetrics(boolean jmxMetrics) {
+        this.jmxMetrics = jmxMetrics;
+    }
+
     public void readConfig() {
 
         // TODO:BTB - uh, do it
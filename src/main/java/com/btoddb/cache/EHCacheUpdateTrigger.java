@@ -1,10 +1,17 @@
 package com.btoddb.cache;
 
 import com.btoddb.cache.cassandra.CassandraDao;
-import org.apache.cassandra.config.ColumnDefinition;
+import com.btoddb.cache.cassandra.InFlightWrites;
+import com.btoddb.cache.metrics.LatencyRecorder;
+import com.codahale.metrics.Counter;
+import org.apache.cassandra.config.CFMetaData;
 import org.apache.cassandra.db.Column;
 import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.CounterColumn;
+import org.apache.cassandra.db.CounterUpdateColumn;
 import org.apache.cassandra.db.DeletedColumn;
+import org.apache.cassandra.db.DeletionInfo;
+import org.apache.cassandra.db.ExpiringColumn;
 import org.apache.cassandra.db.RowMutation;
 import org.apache.cassandra.triggers.ITrigger;
 import org.apache.cassandra.utils.ByteBufferUtil;
@@ -12,18 +19,43 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
 import java.util.Collection;
-import java.util.Map;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
  * Use the C* Trigger mechanism to update/invalidate cache entries in EHCache.
  *
+ * <p/>Mutations are applied to cached rows the way Cassandra reconciles them: a column is only
+ * replaced by a newer one, and a deletion - of a column, a range of columns or the whole row -
+ * removes the cached columns it is newer than.  A row left with no columns is removed from the
+ * cache.  Columns written with a TTL set the row's expiry, and the loader reloads it once past.
+ * Counter updates are deltas the cached value can't be brought up to date with, and range
+ * deletions of composite columns can't be matched to cached names, so either evicts the row.
+ *
+ * <p/>Mutations can reach the trigger out of timestamp order.  A cached row remembers its newest
+ * deletion, and a write of a column it doesn't have that is no newer evicts the row, as the
+ * column may have been deleted since.
  */
 public class EHCacheUpdateTrigger implements ITrigger {
     private static Logger logger = LoggerFactory.getLogger(EHCacheUpdateTrigger.class);
 
-    public static final ByteBuffer DONT_INVALIDATE_COLUMN = ByteBuffer.wrap(CassandraDao.DONT_INVALIDATE_CACHE_COLUMN.getBytes());
+    public static final int DEFAULT_OPTIMISTIC_ATTEMPTS = 3;
+
+    // cassandra creates the trigger, so its settings and counters are shared
+    private static volatile int maxOptimisticAttempts = DEFAULT_OPTIMISTIC_ATTEMPTS;
+    private static final AtomicLong optimisticUpdates = new AtomicLong();
+    private static final AtomicLong optimisticRetries = new AtomicLong();
+    private static final AtomicLong lockedUpdates = new AtomicLong();
+    private static final AtomicLong invalidations = new AtomicLong();
+    private static final AtomicLong rowDeletions = new AtomicLong();
+    // most mutations are of rows that aren't cached, keep counting them off a shared cache line
+    private static final Counter skippedUpdates = new Counter();
+    private static final LatencyRecorder updateLatency = new LatencyRecorder();
 
 
     public EHCacheUpdateTrigger(){
@@ -32,7 +64,25 @@ public class EHCacheUpdateTrigger implements ITrigger {
     @Override
     public Collection<RowMutation> augment(ByteBuffer key, ColumnFamily update) {
         try {
-            updateCache(key, update);
+            // only the REST service's table is cached, here or on the other nodes
+            if (!isCachedTable(CassandraExternalCache.cachingService, update)) {
+                return null;
+            }
+
+            // the other nodes' caches only hear of the write from here, including writes the cache made
+            CoherenceChannel channel = CassandraExternalCache.coherence;
+            if (null != channel) {
+                channel.publish(key, update);
+            }
+
+            AsyncCacheUpdater updater = CassandraExternalCache.cacheUpdater;
+            if (null == updater) {
+                updateCache(key, update);
+            }
+            // writes made by the REST service are already in the cache, don't bother queuing them
+            else if (!isCacheOriginated(key, update)) {
+                updater.enqueue(key, update);
+            }
         }
         catch (Throwable e) {
             logger.error("exception while updating Ehcache", e);
@@ -42,67 +92,338 @@ public class EHCacheUpdateTrigger implements ITrigger {
     }
 
     public void updateCache(ByteBuffer key, ColumnFamily update) throws Throwable {
+        // the cache made this write, it already has it
+        if (isCacheOriginated(key, update)) {
+            return;
+        }
+
+        applyUpdates(key, Collections.singletonList(update));
+    }
+
+    /**
+     * Apply one or more mutations of the same row, in order, with a single cache probe and swap.
+     *
+     * @param key row key
+     * @param updates mutations, oldest first
+     * @throws Throwable
+     */
+    public void applyUpdates(ByteBuffer key, List<ColumnFamily> updates) throws Throwable {
+        applyUpdates(CassandraExternalCache.cachingService, CassandraExternalCache.rowLoader, key, updates);
+    }
+
+    /**
+     * {@link #applyUpdates(ByteBuffer, List)} to a node's cache other than this one's.
+     *
+     * @param cachingService the node's cache
+     * @param loader the node's read-through loader, null if none
+     */
+    public void applyUpdates(CachingService cachingService, ReadThroughLoader loader,
+                             ByteBuffer key, List<ColumnFamily> updates) throws Throwable {
+        // every update is for the same row, so the same table
+        if (!isCachedTable(cachingService, updates.get(0))) {
+            return;
+        }
+
         // cache key is the row key
         // we make a dupe of the ByteBuffer so we can manipulate the position
         String cacheKeyAsStr = ByteBufferUtil.string(key);
 
-        // if exists, remove the *don't invalidate the cache* column, then return
-        for (Column col : update) {
-            if (col instanceof DeletedColumn && DONT_INVALIDATE_COLUMN.equals(col.name())) {
-                return;
-            }
+        // a read-through load of this row may have read it before this write, make sure it isn't cached.
+        // must happen before the contains check, or the load could slip its row in between the two
+        if (null != loader) {
+            loader.markStale(cacheKeyAsStr);
         }
 
         // if key is not in cache, then do nothing - we only update the cache, not load
         // external process is expected to do "read-through" type operations
-        if (!CassandraExternalCache.cachingService.contains(cacheKeyAsStr)) {
+        if (!cachingService.contains(cacheKeyAsStr)) {
+            skippedUpdates.inc();
             return;
         }
 
-        // get write lock on cache key so we can update the structure
-        CassandraExternalCache.cachingService.acquireWriteLockOnKey(cacheKeyAsStr);
+        // only cached rows are timed, skipping an uncached one is cheaper than reading the clock
+        long start = System.nanoTime();
         try {
-            Map<String, CachedColumn> cachedRow = CassandraExternalCache.cachingService.get(cacheKeyAsStr);
+            updateCachedRow(cachingService, cacheKeyAsStr, updates);
+        }
+        finally {
+            updateLatency.recordSince(start);
+        }
+    }
 
-            // now that we have the lock, check one more time that the row still exists in cache
-            // if doesn't we don't have anything to update
-            if (null == cachedRow) {
+    private void updateCachedRow(CachingService cachingService, String cacheKeyAsStr, List<ColumnFamily> updates)
+            throws Throwable {
+        // cached rows are immutable, so build a new one and swap it in.  readers never see a
+        // partially applied mutation.  no lock unless another writer keeps beating us to the row
+        for (int attempt = 0; attempt < maxOptimisticAttempts; attempt++) {
+            if (0 < attempt) {
+                optimisticRetries.incrementAndGet();
+            }
+            if (tryApply(cachingService, cacheKeyAsStr, updates)) {
+                optimisticUpdates.incrementAndGet();
                 return;
             }
+        }
 
-            // iterate over mutated columns, updating the cache structure
-            for (Column col : update) {
-                ColumnDefinition colDef = update.metadata().getColumnDefinitionFromColumnName(col.name());
+        // the lock keeps fallback writers from starving each other, but optimistic writers don't take it
+        // so we still have to swap, not put
+        lockedUpdates.incrementAndGet();
+        cachingService.acquireWriteLockOnKey(cacheKeyAsStr);
+        try {
+            while (!tryApply(cachingService, cacheKeyAsStr, updates)) {
+                optimisticRetries.incrementAndGet();
+            }
+        }
+        finally {
+            cachingService.releaseWriteLockOnKey(cacheKeyAsStr);
+        }
+    }
 
-                // the "primary key" column isn't a real cassandra column, it is the row key and no definition
-                if (null == colDef) {
-                    continue;
-                }
+    /**
+     * @return false if the row changed under us, true if it was updated, needed no update or is
+     * no longer cached
+     */
+    private boolean tryApply(CachingService cachingService, String key, List<ColumnFamily> updates) throws Throwable {
+        PackedRow cachedRow = cachingService.getQuiet(key);
+
+        // if the row was evicted or invalidated there is nothing to update
+        if (null == cachedRow) {
+            skippedUpdates.inc();
+            return true;
+        }
+
+        // only copy the row once a column turns out to be newer, stale mutations cost nothing
+        RowChanges changes = new RowChanges(cachedRow);
+        for (ColumnFamily update : updates) {
+            applyDeletions(changes, update);
+            applyColumns(changes, update);
+            if (changes.evict) {
+                // not compare-and-swap, evicting is right whatever was written since
+                cachingService.remove(key);
+                invalidations.incrementAndGet();
+                return true;
+            }
+        }
 
-                // cached column entry is referenced by C* column name
-                // ByteBufferUtil handles calling ByteBuffer.duplicate
-                String name = ByteBufferUtil.string(col.name());
-                CachedColumn entry = cachedRow.get(name);
+        PackedRow.Builder builder = changes.builder;
+        if (null == builder) {
+            skippedUpdates.inc();
+            return true;
+        }
+        if (0 == builder.size()) {
+            // cassandra has no row left either, and writes older than the deletion are skipped
+            // once the row isn't cached
+            cachingService.remove(key);
+            rowDeletions.incrementAndGet();
+            return true;
+        }
+        return cachingService.replace(key, cachedRow, builder.build());
+    }
+
+    /**
+     * @param attempts lock-free update attempts before falling back to the key lock
+     */
+    public static void setMaxOptimisticAttempts(int attempts) {
+        maxOptimisticAttempts = attempts;
+    }
+
+    public static int getMaxOptimisticAttempts() {
+        return maxOptimisticAttempts;
+    }
+
+    /**
+     * @return rows updated without taking the key lock
+     */
+    public static long getOptimisticUpdateCount() {
+        return optimisticUpdates.get();
+    }
+
+    /**
+     * @return update attempts that lost a race with another writer and were retried
+     */
+    public static long getOptimisticRetryCount() {
+        return optimisticRetries.get();
+    }
+
+    /**
+     * @return rows that fell back to updating under the key lock
+     */
+    public static long getLockedUpdateCount() {
+        return lockedUpdates.get();
+    }
 
-                // if cached column not found, then add it
-                if (null == entry) {
-                    cachedRow.put(name, new CachedColumn(ByteBufferUtil.string(col.name()), composeObjectUsingValidator(colDef, col.value()), col.timestamp()));
+    /**
+     * @return mutations that changed nothing in the cache - the row wasn't cached or the cached
+     * columns were already as new
+     */
+    public static long getSkippedUpdateCount() {
+        return skippedUpdates.getCount();
+    }
+
+    /**
+     * @return cached rows removed because a deletion left them without columns
+     */
+    public static long getRowDeletionCount() {
+        return rowDeletions.get();
+    }
+
+    /**
+     * @return rows evicted because their update couldn't be applied
+     */
+    public static long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    /**
+     * @return time to update rows that were cached, including lock waits and retries
+     */
+    public static LatencyRecorder getUpdateLatency() {
+        return updateLatency;
+    }
+
+    /**
+     * Evict the row from the cache so the next read goes to Cassandra.
+     *
+     * @param key row key
+     * @throws Throwable
+     */
+    public void invalidate(ByteBuffer key) throws Throwable {
+        CassandraExternalCache.cachingService.remove(ByteBufferUtil.string(key));
+        invalidations.incrementAndGet();
+    }
+
+    /**
+     * The trigger may be created on any table, but only the one the cache holds rows of is cached.
+     */
+    static boolean isCachedTable(CachingService cachingService, ColumnFamily update) {
+        CFMetaData metadata = update.metadata();
+        return metadata.cfName.equals(cachingService.getColumnFamilyName())
+                && metadata.ksName.equals(cachingService.getKeyspaceName());
+    }
+
+    /**
+     * A write the cache made only sets plain columns, all with the timestamp it was registered
+     * under.  A mutation with anything else - a column with another timestamp, a tombstone, TTL or
+     * counter, a row or range deletion - wasn't only the cache's, e.g. a batch folded into the same
+     * mutation, so it is applied.
+     */
+    boolean isCacheOriginated(ByteBuffer key, ColumnFamily update) throws CharacterCodingException {
+        InFlightWrites writes = CassandraDao.inFlightWrites;
+        if (0 == writes.size() || 0 == update.getColumnCount() || !update.deletionInfo().isLive()) {
+            return false;
+        }
+        long timestamp = update.iterator().next().timestamp();
+        for (Column col : update) {
+            if (Column.class != col.getClass() || timestamp != col.timestamp()) {
+                return false;
+            }
+        }
+        return writes.contains(ByteBufferUtil.string(key), timestamp);
+    }
+
+    /**
+     * Remove the cached columns covered by the mutation's row or range deletion.
+     */
+    private void applyDeletions(RowChanges changes, ColumnFamily update) {
+        DeletionInfo deletion = update.deletionInfo();
+        if (deletion.isLive()) {
+            return;
+        }
+        if (deletion.hasRanges() && TriggerContext.forTable(update.metadata()).isComposite()) {
+            changes.evict = true;
+            return;
+        }
+
+        PackedRow.Builder builder = changes.builder();
+        for (String name : builder.names()) {
+            // cached names of non-composite tables are their cell names decoded
+            if (deletion.isDeleted(ByteBufferUtil.bytes(name), builder.timestamp(name))) {
+                builder.remove(name);
+            }
+        }
+        builder.deletedAt(deletion.maxTimestamp());
+    }
+
+    private void applyColumns(RowChanges changes, ColumnFamily update) throws Throwable {
+        TriggerContext context = TriggerContext.forTable(update.metadata());
+        DeletionInfo deletion = update.deletionInfo();
+
+        // iterate over mutated columns, updating the cache structure
+        for (Column col : update) {
+            if (col instanceof CounterColumn || col instanceof CounterUpdateColumn) {
+                changes.evict = true;
+                return;
+            }
+
+            TriggerContext.ColumnMeta column = context.column(col.name());
+
+            // the "primary key" column isn't a real cassandra column, it is the row key and no definition
+            if (null == column) {
+                continue;
+            }
+
+            // make sure the timestamp units are well understood - typical default in C* is microseconds
+            String name = column.getName();
+            long cachedTimestamp = changes.timestamp(name);
+
+            // a deletion wins over a column with the same timestamp
+            if (col instanceof DeletedColumn) {
+                if (col.timestamp() >= cachedTimestamp
+                        && (Long.MIN_VALUE != cachedTimestamp || col.timestamp() > changes.deletedAt())) {
+                    PackedRow.Builder builder = changes.builder();
+                    builder.remove(name);
+                    builder.deletedAt(col.timestamp());
                 }
-                // only update this cached column if the mutation is "newer" than what is already in the cache.
-                // make sure the timestamp units are well understood - typical default in C* is microseconds
-                else if (col.timestamp() > entry.getTimestamp()) {
-                    entry.setTimestamp(col.timestamp());
-                    entry.setData(colDef.getValidator().compose(col.value()));
+                continue;
+            }
+            // written and deleted in the same mutation
+            if (!deletion.isLive() && deletion.isDeleted(col)) {
+                continue;
+            }
+
+            // add the column if not cached, otherwise only update it if the mutation is "newer" than what is
+            // already in the cache
+            if (col.timestamp() > cachedTimestamp) {
+                if (Long.MIN_VALUE == cachedTimestamp && col.timestamp() <= changes.deletedAt()) {
+                    changes.evict = true;
+                    return;
+                }
+                PackedRow.Builder builder = changes.builder();
+                builder.set(name, column.compose(col.value()), col.timestamp());
+                if (col instanceof ExpiringColumn) {
+                    builder.expireBy(TimeUnit.SECONDS.toMillis(((ExpiringColumn) col).getLocalDeletionTime()));
                 }
             }
         }
-        finally {
-            CassandraExternalCache.cachingService.releaseWriteLockOnKey(cacheKeyAsStr);
-        }
     }
 
-    private Object composeObjectUsingValidator(ColumnDefinition colDef, ByteBuffer data) {
-        // compose handles calling ByteBuffer.duplicate
-        return colDef.getValidator().compose(data);
+    /**
+     * A cached row and the changes made to it so far.
+     */
+    private static class RowChanges {
+        final PackedRow cachedRow;
+        // null until something changes
+        PackedRow.Builder builder;
+        // a mutation that can't be applied, the row has to go
+        boolean evict;
+
+        RowChanges(PackedRow cachedRow) {
+            this.cachedRow = cachedRow;
+        }
+
+        PackedRow.Builder builder() {
+            if (null == builder) {
+                builder = cachedRow.toBuilder();
+            }
+            return builder;
+        }
+
+        long timestamp(String name) {
+            return null != builder ? builder.timestamp(name) : cachedRow.timestamp(name);
+        }
+
+        long deletedAt() {
+            return null != builder ? builder.getDeletedAt() : cachedRow.getDeletedAt();
+        }
     }
 }
@@ -0,0 +1,104 @@
+package com.btoddb.cache;
+
+
+/**
+ * Count-min sketch of how often keys were read recently, four bits per counter.  Each key maps
+ * to one counter in each of four rows, its frequency is the smallest of them, so collisions
+ * only ever overestimate.
+ *
+ * <p/>Every <code>10 * maximumSize</code> increments all counters are halved, so the sketch
+ * follows the working set as it changes instead of remembering keys that were hot once.
+ *
+ * <p/>Counters are packed 16 to a long, and a key's four counters are in four different longs.
+ * Updates are not atomic: under contention an increment can be lost, which only makes a count
+ * slightly low.  The sketch takes about 8 bytes per cached entry whatever the keys.
+ */
+public class FrequencySketch {
+    static final int MAX_FREQUENCY = 15;
+
+    // odd multipliers, one per row
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+
+
+    /**
+     * @param maximumSize number of entries the cache holds
+     */
+    public FrequencySketch(int maximumSize) {
+        int size = Math.max(16, maximumSize);
+        int length = Integer.highestOneBit(size - 1) << 1;
+        this.table = new long[Math.min(length, 1 << 30)];
+        this.tableMask = table.length - 1;
+        this.sampleSize = 10 * size;
+    }
+
+    /**
+     * @return estimated number of recent reads of the key, at most {@link #MAX_FREQUENCY}
+     */
+    public int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = MAX_FREQUENCY;
+        for (int row = 0; row < 4; row++) {
+            int shift = (start + row) << 2;
+            frequency = Math.min(frequency, (int) ((table[indexOf(hash, row)] >>> shift) & 0xf));
+        }
+        return frequency;
+    }
+
+    /**
+     * Count a read of the key.
+     */
+    public void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int row = 0; row < 4; row++) {
+            added |= incrementAt(indexOf(hash, row), (start + row) << 2);
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int shift) {
+        long mask = 0xfL << shift;
+        if ((table[index] & mask) == mask) {
+            return false;
+        }
+        table[index] += 1L << shift;
+        return true;
+    }
+
+    /**
+     * Halve every counter.
+     */
+    void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions >>>= 1;
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+
+    int sampleSize() {
+        return sampleSize;
+    }
+}
@@ -0,0 +1,65 @@
+package com.btoddb.cache;
+
+import com.btoddb.cache.metrics.LatencyRecorder;
+import com.google.common.util.concurrent.Striped;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+
+/**
+ * Striped, reentrant per-key write locks.  Unrelated keys only contend when they hash to the same
+ * stripe, so more stripes means less false contention for a little more memory.
+ */
+public class KeyLocks {
+    public static final int DEFAULT_STRIPES = 1024;
+
+    private final Striped<Lock> stripes;
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong contended = new AtomicLong();
+    // only contended acquisitions are timed, the uncontended path stays a tryLock
+    private final LatencyRecorder waitLatency = new LatencyRecorder();
+
+
+    public KeyLocks(int stripes) {
+        this.stripes = Striped.lock(stripes);
+    }
+
+    public void lock(String key) {
+        Lock lock = stripes.get(key);
+        if (!lock.tryLock()) {
+            contended.incrementAndGet();
+            long start = System.nanoTime();
+            lock.lock();
+            waitLatency.recordSince(start);
+        }
+        acquired.incrementAndGet();
+    }
+
+    public void unlock(String key) {
+        stripes.get(key).unlock();
+    }
+
+    public int getStripeCount() {
+        return stripes.size();
+    }
+
+    public long getAcquiredCount() {
+        return acquired.get();
+    }
+
+    /**
+     * @return acquisitions that had to wait for another thread
+     */
+    public long getContendedCount() {
+        return contended.get();
+    }
+
+    /**
+     * @return time spent waiting by acquisitions that had to wait
+     */
+    public LatencyRecorder getWaitLatency() {
+        return waitLatency;
+    }
+}
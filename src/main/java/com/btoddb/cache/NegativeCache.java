@@ -0,0 +1,120 @@
+package com.btoddb.cache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Row keys recently found not to exist, so repeat lookups of a missing row - scrapers, retries -
+ * are answered without reading Cassandra.  Each key is a small sentinel entry that expires after
+ * a short time to live, and is removed as soon as the row is written.
+ *
+ * <p/>Bounded by entry count.  When full, expired entries are swept out at most every half time
+ * to live, and until there is room new keys simply aren't remembered.
+ */
+public class NegativeCache {
+    private final ConcurrentMap<String, Long> expiries = new ConcurrentHashMap<>();
+    private final long timeToLiveMillis;
+    private final int maxEntries;
+    private volatile long nextSweepAt;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong added = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+
+    /**
+     * @param timeToLiveMillis longest a missing row is remembered, bounds how long a row the
+     *                         trigger didn't see written still looks missing
+     * @param maxEntries most keys remembered
+     */
+    public NegativeCache(long timeToLiveMillis, int maxEntries) {
+        this.timeToLiveMillis = timeToLiveMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return true if the row was found missing less than the time to live ago, and not written since
+     */
+    public boolean isMissing(String key) {
+        Long expiresAt = expiries.get(key);
+        if (null == expiresAt) {
+            return false;
+        }
+        if (System.currentTimeMillis() >= expiresAt) {
+            expiries.remove(key, expiresAt);
+            return false;
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Remember the row doesn't exist.
+     */
+    public void add(String key) {
+        long now = System.currentTimeMillis();
+        if (expiries.size() >= maxEntries && !makeRoom(now)) {
+            rejected.incrementAndGet();
+            return;
+        }
+        expiries.put(key, now + timeToLiveMillis);
+        added.incrementAndGet();
+    }
+
+    /**
+     * The row was written.
+     */
+    public void remove(String key) {
+        expiries.remove(key);
+    }
+
+    public void clear() {
+        expiries.clear();
+    }
+
+    private boolean makeRoom(long now) {
+        if (now < nextSweepAt) {
+            return false;
+        }
+        nextSweepAt = now + Math.max(1, timeToLiveMillis / 2);
+        for (Map.Entry<String, Long> entry : expiries.entrySet()) {
+            if (entry.getValue() <= now) {
+                expiries.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        return expiries.size() < maxEntries;
+    }
+
+    public long getTimeToLiveMillis() {
+        return timeToLiveMillis;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public int size() {
+        return expiries.size();
+    }
+
+    /**
+     * @return lookups answered as missing
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getAddedCount() {
+        return added.get();
+    }
+
+    /**
+     * @return missing rows not remembered because the cache was full
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+}
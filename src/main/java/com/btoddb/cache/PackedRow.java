@@ -0,0 +1,803 @@
+package com.btoddb.cache;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.json.UTF8JsonGenerator;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.UUID;
+
+
+/**
+ * Immutable cached row, packed into a single byte array.  Replaces a
+ * <code>HashMap&lt;String, CachedColumn&gt;</code> per row, whose entry, column and boxed value
+ * objects cost more heap than the data itself.
+ *
+ * <p/>Layout (big endian):
+ * <pre>
+ *   [int columnCount]              high bit set if the row is partial
+ *   columnCount * [int nameRef][long timestamp][int dataOffset]   sorted by column name
+ *   data area, one slot per column in the same order:
+ *     [short length][utf8 name]    only when nameRef == ColumnNameRegistry.NOT_REGISTERED
+ *     [byte type][value]
+ * </pre>
+ *
+ * <p/>Instances are flyweight views - accessors decode straight from the array and nothing is
+ * materialized until asked for.  Use a {@link Builder} to make a modified copy.
+ *
+ * <p/>A partial row holds only some of the row's columns, e.g. those a column projection
+ * loaded.  A column missing from a partial row may still exist in Cassandra.
+ *
+ * <p/>Besides its columns a row knows when its first column with a TTL expires, and the newest
+ * deletion applied to it since it was loaded - see {@link #getDeletedAt()}.
+ */
+@JsonSerialize(using = PackedRowSerializer.class)
+public class PackedRow implements Iterable<CachedColumn> {
+    public static final ColumnNameRegistry columnNames = new ColumnNameRegistry(64 * 1024);
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final int HEADER_SIZE = 4;
+    static final int PARTIAL_FLAG = 0x80000000;
+    static final int INDEX_ENTRY_SIZE = 16;
+
+    static final byte TYPE_NULL = 0;
+    static final byte TYPE_STRING = 1;
+    static final byte TYPE_INT = 2;
+    static final byte TYPE_LONG = 3;
+    static final byte TYPE_DOUBLE = 4;
+    static final byte TYPE_FLOAT = 5;
+    static final byte TYPE_BOOLEAN = 6;
+    static final byte TYPE_BYTES = 7;
+    static final byte TYPE_UUID = 8;
+    static final byte TYPE_DATE = 9;
+
+    public static final long NEVER_DELETED = Long.MIN_VALUE;
+
+    private static final PackedRow EMPTY = new PackedRow(new byte[HEADER_SIZE]);
+
+    private final byte[] data;
+    // when the first expiring column expires, millis.  0 if none expires
+    private final long expiresAt;
+    private final long deletedAt;
+    // response body, kept like String keeps its hash - the row never changes, so neither does it
+    private volatile byte[] json;
+    // when the row last matched Cassandra, millis.  also not part of the row's state
+    private volatile long loadedAt;
+
+
+    private PackedRow(byte[] data) {
+        this(data, 0, NEVER_DELETED);
+    }
+
+    private PackedRow(byte[] data, long expiresAt, long deletedAt) {
+        this.data = data;
+        this.expiresAt = expiresAt;
+        this.deletedAt = deletedAt;
+    }
+
+    /**
+     * Wrap bytes previously obtained from {@link #bytes()} in this JVM.
+     */
+    public static PackedRow wrap(byte[] data) {
+        return new PackedRow(data);
+    }
+
+    /**
+     * Wrap bytes previously obtained from {@link #bytes()} in this JVM, with the row's
+     * {@link #getExpiresAt()} and {@link #getDeletedAt()}.
+     */
+    static PackedRow wrap(byte[] data, long expiresAt, long deletedAt) {
+        return new PackedRow(data, expiresAt, deletedAt);
+    }
+
+    public static PackedRow empty() {
+        return EMPTY;
+    }
+
+    public static PackedRow fromMap(Map<String, CachedColumn> row) {
+        Builder builder = new Builder();
+        for (Map.Entry<String, CachedColumn> entry : row.entrySet()) {
+            CachedColumn col = entry.getValue();
+            builder.set(entry.getKey(), col.getData(), col.getTimestamp());
+        }
+        return builder.build();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return the packed representation - do not modify
+     */
+    public byte[] bytes() {
+        return data;
+    }
+
+    /**
+     * @return encoded response kept with {@link #setEncodedJson(byte[])}, null if none - do not modify
+     */
+    public byte[] getEncodedJson() {
+        return json;
+    }
+
+    /**
+     * Keep the row's encoded response so later responses can copy it out as is.  Not part of the
+     * row's state - copies, builders and equality ignore it.
+     */
+    public void setEncodedJson(byte[] json) {
+        this.json = json;
+    }
+
+    /**
+     * @return when the row was read from or written to Cassandra, in millis.  0 if unknown
+     */
+    public long getLoadedAt() {
+        return loadedAt;
+    }
+
+    /**
+     * Stamp the row with when it last matched Cassandra.  Like the encoded response it isn't part
+     * of the row's state and equality ignores it, but builders of the row carry it over - a row
+     * updated from a newer version of some of its columns is as stale as the rest of them.
+     */
+    public void setLoadedAt(long loadedAt) {
+        this.loadedAt = loadedAt;
+    }
+
+    /**
+     * @return when the first of the row's columns written with a TTL expires, in millis.  0 if
+     * none of them expire.  Cassandra stops returning the column then, so the row must be reloaded
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * @return timestamp of the newest deletion applied to the row while cached, of a column or of
+     * the whole row, {@link #NEVER_DELETED} if none.  Rows read from Cassandra start out deleted
+     * as of when they were read, as they may be missing deleted columns.  A write of a column the row doesn't have
+     * that is no newer may have been deleted in Cassandra, the row can't tell.  Part of the row's
+     * state: a row with a newer deletion is a newer version even if its columns are the same
+     */
+    public long getDeletedAt() {
+        return deletedAt;
+    }
+
+    public int size() {
+        return readInt(data, 0) & ~PARTIAL_FLAG;
+    }
+
+    /**
+     * @return true if the row may be missing columns that exist in Cassandra
+     */
+    public boolean isPartial() {
+        return 0 != (readInt(data, 0) & PARTIAL_FLAG);
+    }
+
+    /**
+     * @return true if the row can answer for all the columns - it is complete or has them all
+     */
+    public boolean covers(Collection<String> names) {
+        if (!isPartial()) {
+            return true;
+        }
+        for (String name : names) {
+            if (!containsColumn(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Project the row onto the given columns.  Only the selected columns are copied, as raw
+     * bytes, and columns not in the row are left out.
+     *
+     * @return a partial row, or this row if all its columns were selected
+     */
+    public PackedRow select(Collection<String> names) {
+        Builder builder = new Builder(columnNames).partial(true);
+        for (String name : names) {
+            int index = indexOf(name);
+            if (0 <= index) {
+                builder.copy(this, index);
+            }
+        }
+        return builder.size() == size() ? this : builder.build();
+    }
+
+    public boolean isEmpty() {
+        return 0 == size();
+    }
+
+    public String name(int index) {
+        int nameRef = readInt(data, indexOffset(index));
+        if (ColumnNameRegistry.NOT_REGISTERED != nameRef) {
+            return columnNames.name(nameRef);
+        }
+        int offset = dataOffset(index);
+        return new String(data, offset + 2, readShort(data, offset), UTF8);
+    }
+
+    public long timestamp(int index) {
+        return readLong(data, indexOffset(index) + 4);
+    }
+
+    /**
+     * @return the column's timestamp, Long.MIN_VALUE if not in the row
+     */
+    public long timestamp(String name) {
+        int index = indexOf(name);
+        return 0 <= index ? timestamp(index) : Long.MIN_VALUE;
+    }
+
+    public Object value(int index) {
+        return decodeValue(data, valueOffset(index));
+    }
+
+    /**
+     * Write the column's name as [short length][utf8].
+     */
+    void writeName(int index, DataOutput out) throws IOException {
+        int nameRef = readInt(data, indexOffset(index));
+        if (ColumnNameRegistry.NOT_REGISTERED != nameRef) {
+            byte[] name = columnNames.utf8Name(nameRef);
+            out.writeShort(name.length);
+            out.write(name);
+        }
+        else {
+            // stored inline the same way
+            int offset = dataOffset(index);
+            out.write(data, offset, 2 + readShort(data, offset));
+        }
+    }
+
+    /**
+     * @return length of the column's name in UTF-8
+     */
+    int nameLength(int index) {
+        int nameRef = readInt(data, indexOffset(index));
+        return ColumnNameRegistry.NOT_REGISTERED != nameRef
+                ? columnNames.utf8Name(nameRef).length
+                : readShort(data, dataOffset(index));
+    }
+
+    /**
+     * Copy the column's encoded [type][value] to the stream, as stored.
+     */
+    void writeEncodedValue(int index, DataOutput out) throws IOException {
+        int offset = valueOffset(index);
+        out.write(data, offset, slotEnd(index) - offset);
+    }
+
+    /**
+     * @return length of the column's encoded [type][value]
+     */
+    int encodedValueLength(int index) {
+        return slotEnd(index) - valueOffset(index);
+    }
+
+    /**
+     * Write the column's value as JSON straight from the packed bytes.  Strings and numbers are
+     * not materialized; types JSON has no literal for go through the generator's codec.
+     */
+    void writeValue(int index, JsonGenerator gen) throws IOException {
+        int offset = valueOffset(index);
+        byte type = data[offset++];
+        switch (type) {
+            case TYPE_NULL:
+                gen.writeNull();
+                break;
+            case TYPE_STRING:
+                // only the byte based generator can copy utf8 through, escaping as it goes
+                if (gen instanceof UTF8JsonGenerator) {
+                    gen.writeUTF8String(data, offset + 4, readInt(data, offset));
+                }
+                else {
+                    gen.writeString(new String(data, offset + 4, readInt(data, offset), UTF8));
+                }
+                break;
+            case TYPE_INT:
+                gen.writeNumber(readInt(data, offset));
+                break;
+            case TYPE_LONG:
+                gen.writeNumber(readLong(data, offset));
+                break;
+            case TYPE_DOUBLE:
+                gen.writeNumber(Double.longBitsToDouble(readLong(data, offset)));
+                break;
+            case TYPE_FLOAT:
+                gen.writeNumber(Float.intBitsToFloat(readInt(data, offset)));
+                break;
+            case TYPE_BOOLEAN:
+                gen.writeBoolean(0 != data[offset]);
+                break;
+            case TYPE_UUID:
+                gen.writeString(new UUID(readLong(data, offset), readLong(data, offset + 8)).toString());
+                break;
+            default:
+                gen.writeObject(decodeValue(data, offset - 1));
+        }
+    }
+
+    /**
+     * @return position of the column, or a negative number if not in the row
+     */
+    public int indexOf(String name) {
+        int low = 0;
+        int high = size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = name(mid).compareTo(name);
+            if (cmp < 0) {
+                low = mid + 1;
+            }
+            else if (cmp > 0) {
+                high = mid - 1;
+            }
+            else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    public boolean containsColumn(String name) {
+        return 0 <= indexOf(name);
+    }
+
+    /**
+     * @return a detached copy of the column, or null if not in the row
+     */
+    public CachedColumn get(String name) {
+        int index = indexOf(name);
+        return 0 <= index ? column(index) : null;
+    }
+
+    public CachedColumn column(int index) {
+        return new CachedColumn(name(index), value(index), timestamp(index));
+    }
+
+    /**
+     * @return detached map view, in column name order
+     */
+    public Map<String, CachedColumn> toMap() {
+        int size = size();
+        Map<String, CachedColumn> map = new LinkedHashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            CachedColumn col = column(i);
+            map.put(col.getName(), col);
+        }
+        return map;
+    }
+
+    /**
+     * @return a builder seeded with this row's columns, which are copied without being decoded
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    /**
+     * @return a copy of the row with every column's timestamp set to the given one, e.g. the
+     *         timestamp the row is written to Cassandra with
+     */
+    public PackedRow withTimestamp(long timestamp) {
+        byte[] copy = data.clone();
+        ByteBuffer buf = ByteBuffer.wrap(copy);
+        for (int i = 0, size = size(); i < size; i++) {
+            buf.putLong(indexOffset(i) + 4, timestamp);
+        }
+        PackedRow row = new PackedRow(copy, expiresAt, deletedAt);
+        row.loadedAt = loadedAt;
+        return row;
+    }
+
+    @Override
+    public Iterator<CachedColumn> iterator() {
+        return new Iterator<CachedColumn>() {
+            int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < size();
+            }
+
+            @Override
+            public CachedColumn next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return column(next++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("PackedRow is immutable");
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        PackedRow other = (PackedRow) o;
+        return deletedAt == other.deletedAt && Arrays.equals(data, other.data);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(data);
+    }
+
+    @Override
+    public String toString() {
+        return "PackedRow" + toMap().values();
+    }
+
+    // ---------------------
+
+    private static int indexOffset(int index) {
+        return HEADER_SIZE + index * INDEX_ENTRY_SIZE;
+    }
+
+    private int dataOffset(int index) {
+        return readInt(data, indexOffset(index) + 12);
+    }
+
+    private int valueOffset(int index) {
+        int offset = dataOffset(index);
+        if (ColumnNameRegistry.NOT_REGISTERED == readInt(data, indexOffset(index))) {
+            offset += 2 + readShort(data, offset);
+        }
+        return offset;
+    }
+
+    /**
+     * @return end (exclusive) of the column's slot in the data area
+     */
+    private int slotEnd(int index) {
+        return index + 1 < size() ? dataOffset(index + 1) : data.length;
+    }
+
+    static Object decodeValue(byte[] data, int offset) {
+        byte type = data[offset++];
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_STRING:
+                return new String(data, offset + 4, readInt(data, offset), UTF8);
+            case TYPE_INT:
+                return readInt(data, offset);
+            case TYPE_LONG:
+                return readLong(data, offset);
+            case TYPE_DOUBLE:
+                return Double.longBitsToDouble(readLong(data, offset));
+            case TYPE_FLOAT:
+                return Float.intBitsToFloat(readInt(data, offset));
+            case TYPE_BOOLEAN:
+                return 0 != data[offset];
+            case TYPE_BYTES:
+                return ByteBuffer.wrap(data, offset + 4, readInt(data, offset)).slice().asReadOnlyBuffer();
+            case TYPE_UUID:
+                return new UUID(readLong(data, offset), readLong(data, offset + 8));
+            case TYPE_DATE:
+                return new Date(readLong(data, offset));
+            default:
+                throw new IllegalStateException("unknown column value type " + type);
+        }
+    }
+
+    /**
+     * Encode a value as [type][value].  Types without a dedicated encoding are stored as their
+     * <code>toString()</code>, the same thing the REST service writes to Cassandra.
+     */
+    static byte[] encodeValue(Object value) {
+        ByteBuffer buf;
+        if (null == value) {
+            return new byte[] {TYPE_NULL};
+        }
+        else if (value instanceof Integer) {
+            buf = ByteBuffer.allocate(5).put(TYPE_INT).putInt((Integer) value);
+        }
+        else if (value instanceof Long) {
+            buf = ByteBuffer.allocate(9).put(TYPE_LONG).putLong((Long) value);
+        }
+        else if (value instanceof Double) {
+            buf = ByteBuffer.allocate(9).put(TYPE_DOUBLE).putLong(Double.doubleToRawLongBits((Double) value));
+        }
+        else if (value instanceof Float) {
+            buf = ByteBuffer.allocate(5).put(TYPE_FLOAT).putInt(Float.floatToRawIntBits((Float) value));
+        }
+        else if (value instanceof Boolean) {
+            buf = ByteBuffer.allocate(2).put(TYPE_BOOLEAN).put((byte) ((Boolean) value ? 1 : 0));
+        }
+        else if (value instanceof ByteBuffer) {
+            ByteBuffer bytes = ((ByteBuffer) value).duplicate();
+            buf = ByteBuffer.allocate(5 + bytes.remaining()).put(TYPE_BYTES).putInt(bytes.remaining()).put(bytes);
+        }
+        else if (value instanceof UUID) {
+            UUID uuid = (UUID) value;
+            buf = ByteBuffer.allocate(17).put(TYPE_UUID)
+                    .putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+        }
+        else if (value instanceof Date) {
+            buf = ByteBuffer.allocate(9).put(TYPE_DATE).putLong(((Date) value).getTime());
+        }
+        else {
+            byte[] str = value.toString().getBytes(UTF8);
+            buf = ByteBuffer.allocate(5 + str.length).put(TYPE_STRING).putInt(str.length).put(str);
+        }
+        return buf.array();
+    }
+
+    static int readShort(byte[] b, int off) {
+        return ((b[off] & 0xff) << 8) | (b[off + 1] & 0xff);
+    }
+
+    static int readInt(byte[] b, int off) {
+        return (b[off] << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    static long readLong(byte[] b, int off) {
+        return ((long) readInt(b, off) << 32) | (readInt(b, off + 4) & 0xffffffffL);
+    }
+
+
+    /**
+     * Accumulates column changes and packs them into a new row.  Columns carried over from an
+     * existing row are copied as raw bytes.
+     */
+    public static class Builder {
+        private final TreeMap<String, Slot> columns = new TreeMap<>();
+        private final ColumnNameRegistry names;
+        private boolean partial;
+        private long loadedAt;
+        private long expiresAt;
+        private long deletedAt = NEVER_DELETED;
+
+        Builder() {
+            this(columnNames);
+        }
+
+        /**
+         * Register names in the given registry instead of the shared one.  Only useful with a
+         * registry that can't take any names, i.e. to force inline names.
+         */
+        Builder(ColumnNameRegistry names) {
+            this.names = names;
+        }
+
+        Builder(PackedRow row) {
+            this(columnNames);
+            this.partial = row.isPartial();
+            this.loadedAt = row.getLoadedAt();
+            this.expiresAt = row.getExpiresAt();
+            this.deletedAt = row.getDeletedAt();
+            int size = row.size();
+            for (int i = 0; i < size; i++) {
+                copy(row, i);
+            }
+        }
+
+        /**
+         * @param partial true if the row being built may be missing columns
+         */
+        public Builder partial(boolean partial) {
+            this.partial = partial;
+            return this;
+        }
+
+        public boolean isPartial() {
+            return partial;
+        }
+
+        /**
+         * @param loadedAt see {@link PackedRow#setLoadedAt(long)}
+         */
+        public Builder loadedAt(long loadedAt) {
+            this.loadedAt = loadedAt;
+            return this;
+        }
+
+        /**
+         * Keep the earliest of the given expiry and any set before.
+         *
+         * @param expiresAt when a column of the row expires, millis.  see {@link PackedRow#getExpiresAt()}
+         */
+        public Builder expireBy(long expiresAt) {
+            if (0 == this.expiresAt || expiresAt < this.expiresAt) {
+                this.expiresAt = expiresAt;
+            }
+            return this;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        /**
+         * Record a deletion applied to the row, the newest one is kept.
+         *
+         * @param timestamp see {@link PackedRow#getDeletedAt()}
+         */
+        public Builder deletedAt(long timestamp) {
+            if (timestamp > deletedAt) {
+                deletedAt = timestamp;
+            }
+            return this;
+        }
+
+        public long getDeletedAt() {
+            return deletedAt;
+        }
+
+        /**
+         * Take each of the row's columns that is newer than this builder's, copied as raw bytes.
+         * The row's expiry and deletions come along with them.
+         *
+         * @return true if anything changed
+         */
+        public boolean mergeNewer(PackedRow row) {
+            boolean changed = false;
+            int size = row.size();
+            for (int i = 0; i < size; i++) {
+                if (row.timestamp(i) > timestamp(row.name(i))) {
+                    copy(row, i);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                // the taken column may be the one that expires
+                if (0 != row.getExpiresAt()) {
+                    expireBy(row.getExpiresAt());
+                }
+                deletedAt(row.getDeletedAt());
+            }
+            return changed;
+        }
+
+        private void copy(PackedRow row, int index) {
+            int start = row.dataOffset(index);
+            columns.put(row.name(index), new Slot(readInt(row.data, indexOffset(index)), row.timestamp(index),
+                                                  row.data, start, row.slotEnd(index) - start));
+        }
+
+        /**
+         * Add or replace a column with a value already encoded as [type][value], see
+         * {@link PackedRow#writeEncodedValue(int, DataOutput)}.  The array is used as is.
+         */
+        Builder setEncoded(String name, byte[] encodedValue, long timestamp) {
+            columns.put(name, Slot.createEncoded(names, name, encodedValue, timestamp));
+            return this;
+        }
+
+        /**
+         * Add or replace a column, whatever its current timestamp.
+         */
+        public Builder set(String name, Object value, long timestamp) {
+            columns.put(name, Slot.create(names, name, value, timestamp));
+            return this;
+        }
+
+        /**
+         * Add the column, or replace it only if the given timestamp is newer.
+         *
+         * @return true if the row changed
+         */
+        public boolean setIfNewer(String name, Object value, long timestamp) {
+            Slot current = columns.get(name);
+            if (null != current && timestamp <= current.timestamp) {
+                return false;
+            }
+            columns.put(name, Slot.create(names, name, value, timestamp));
+            return true;
+        }
+
+        /**
+         * @return true if the column was in the row
+         */
+        public boolean remove(String name) {
+            return null != columns.remove(name);
+        }
+
+        public boolean contains(String name) {
+            return columns.containsKey(name);
+        }
+
+        /**
+         * @return names of the columns so far, a copy
+         */
+        public List<String> names() {
+            return new ArrayList<>(columns.keySet());
+        }
+
+        public long timestamp(String name) {
+            Slot slot = columns.get(name);
+            return null != slot ? slot.timestamp : Long.MIN_VALUE;
+        }
+
+        public int size() {
+            return columns.size();
+        }
+
+        public PackedRow build() {
+            int size = HEADER_SIZE + columns.size() * INDEX_ENTRY_SIZE;
+            for (Slot slot : columns.values()) {
+                size += slot.length;
+            }
+
+            ByteBuffer buf = ByteBuffer.allocate(size);
+            buf.putInt(partial ? columns.size() | PARTIAL_FLAG : columns.size());
+            int dataOffset = HEADER_SIZE + columns.size() * INDEX_ENTRY_SIZE;
+            for (Slot slot : columns.values()) {
+                buf.putInt(slot.nameRef).putLong(slot.timestamp).putInt(dataOffset);
+                dataOffset += slot.length;
+            }
+            for (Slot slot : columns.values()) {
+                buf.put(slot.bytes, slot.offset, slot.length);
+            }
+            PackedRow row = new PackedRow(buf.array(), expiresAt, deletedAt);
+            row.loadedAt = loadedAt;
+            return row;
+        }
+    }
+
+    /**
+     * A column's data area slot, either freshly encoded or still inside another row's array.
+     */
+    private static class Slot {
+        final int nameRef;
+        final long timestamp;
+        final byte[] bytes;
+        final int offset;
+        final int length;
+
+        Slot(int nameRef, long timestamp, byte[] bytes, int offset, int length) {
+            this.nameRef = nameRef;
+            this.timestamp = timestamp;
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        static Slot create(ColumnNameRegistry names, String name, Object value, long timestamp) {
+            return createEncoded(names, name, encodeValue(value), timestamp);
+        }
+
+        static Slot createEncoded(ColumnNameRegistry names, String name, byte[] encoded, long timestamp) {
+            int nameRef = names.idFor(name);
+            if (ColumnNameRegistry.NOT_REGISTERED != nameRef) {
+                return new Slot(nameRef, timestamp, encoded, 0, encoded.length);
+            }
+
+            byte[] nameBytes = name.getBytes(UTF8);
+            if (nameBytes.length > 0xffff) {
+                throw new IllegalArgumentException("column name longer than 65535 bytes");
+            }
+            ByteBuffer buf = ByteBuffer.allocate(2 + nameBytes.length + encoded.length);
+            buf.putShort((short) nameBytes.length).put(nameBytes).put(encoded);
+            return new Slot(nameRef, timestamp, buf.array(), 0, buf.capacity());
+        }
+    }
+}
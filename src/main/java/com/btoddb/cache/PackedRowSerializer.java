@@ -0,0 +1,39 @@
+package com.btoddb.cache;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+
+import java.io.IOException;
+
+
+/**
+ * Renders a {@link PackedRow} in the same JSON shape as a <code>Map&lt;String, CachedColumn&gt;</code>,
+ * so REST clients can't tell the difference.
+ */
+public class PackedRowSerializer extends JsonSerializer<PackedRow> {
+
+    @Override
+    public void serialize(PackedRow row, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        writeRow(row, gen);
+    }
+
+    /**
+     * Stream the row out with the generator, no {@link CachedColumn}s or values are built on the
+     * way.  Dates and byte values are handed to the generator's codec, so it needs one.
+     */
+    public static void writeRow(PackedRow row, JsonGenerator gen) throws IOException {
+        gen.writeStartObject();
+        int size = row.size();
+        for (int i = 0; i < size; i++) {
+            String name = row.name(i);
+            gen.writeObjectFieldStart(name);
+            gen.writeNumberField("timestamp", row.timestamp(i));
+            gen.writeStringField("name", name);
+            gen.writeFieldName("data");
+            row.writeValue(i, gen);
+            gen.writeEndObject();
+        }
+        gen.writeEndObject();
+    }
+}
@@ -0,0 +1,121 @@
+package com.btoddb.cache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+
+/**
+ * Compact binary encoding of a row for service-to-service clients, the alternative to the JSON
+ * map of {@link CachedColumn}s.  Values keep the type they have in the cache, and are copied
+ * to and from the packed row without being decoded.
+ *
+ * <p/>Layout (big endian):
+ * <pre>
+ *   [int columnCount]
+ *   columnCount * [short length][utf8 name][long timestamp][byte type][value]
+ * </pre>
+ * Values by type: null has none, string and bytes are [int length][bytes], int and float are 4
+ * bytes, long, double and date (millis) are 8, boolean is 1 and uuid is 16 (most significant
+ * long first).  Type ids are those of {@link PackedRow}.
+ */
+public class PackedRowWireFormat {
+    public static final String MEDIA_TYPE = "application/x-cached-row";
+
+    // a column's smallest encoding, bounds the column count a malicious header can claim
+    private static final int MIN_COLUMN_SIZE = 2 + 8 + 1;
+
+
+    public static void write(PackedRow row, DataOutput out) throws IOException {
+        int size = row.size();
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            row.writeName(i, out);
+            out.writeLong(row.timestamp(i));
+            row.writeEncodedValue(i, out);
+        }
+    }
+
+    /**
+     * @return exact number of bytes {@link #write(PackedRow, DataOutput)} writes for the row
+     */
+    public static int encodedSize(PackedRow row) {
+        int size = row.size();
+        int bytes = 4;
+        for (int i = 0; i < size; i++) {
+            bytes += 2 + row.nameLength(i) + 8 + row.encodedValueLength(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * @param maxBytes largest body accepted, e.g. the request's content length
+     * @throws IOException if the input is truncated or malformed
+     */
+    public static PackedRow read(DataInput in, long maxBytes) throws IOException {
+        int size = in.readInt();
+        if (0 > size || (long) size * MIN_COLUMN_SIZE > maxBytes) {
+            throw new IOException("bad column count " + size);
+        }
+
+        PackedRow.Builder builder = PackedRow.builder();
+        for (int i = 0; i < size; i++) {
+            byte[] name = new byte[in.readUnsignedShort()];
+            in.readFully(name);
+            long timestamp = in.readLong();
+            builder.setEncoded(new String(name, PackedRow.UTF8), readValue(in, maxBytes), timestamp);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the value encoded as [type][value]
+     */
+    private static byte[] readValue(DataInput in, long maxBytes) throws IOException {
+        byte type = in.readByte();
+        int length;
+        switch (type) {
+            case PackedRow.TYPE_NULL:
+                return new byte[] {type};
+            case PackedRow.TYPE_STRING:
+            case PackedRow.TYPE_BYTES:
+                length = in.readInt();
+                if (0 > length || length > maxBytes) {
+                    throw new IOException("bad value length " + length);
+                }
+                byte[] value = new byte[5 + length];
+                value[0] = type;
+                writeInt(value, 1, length);
+                in.readFully(value, 5, length);
+                return value;
+            case PackedRow.TYPE_INT:
+            case PackedRow.TYPE_FLOAT:
+                length = 4;
+                break;
+            case PackedRow.TYPE_LONG:
+            case PackedRow.TYPE_DOUBLE:
+            case PackedRow.TYPE_DATE:
+                length = 8;
+                break;
+            case PackedRow.TYPE_BOOLEAN:
+                length = 1;
+                break;
+            case PackedRow.TYPE_UUID:
+                length = 16;
+                break;
+            default:
+                throw new IOException("unknown column value type " + type);
+        }
+        byte[] value = new byte[1 + length];
+        value[0] = type;
+        in.readFully(value, 1, length);
+        return value;
+    }
+
+    private static void writeInt(byte[] b, int off, int value) {
+        b[off] = (byte) (value >>> 24);
+        b[off + 1] = (byte) (value >>> 16);
+        b[off + 2] = (byte) (value >>> 8);
+        b[off + 3] = (byte) value;
+    }
+}
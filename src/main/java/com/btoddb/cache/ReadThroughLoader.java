@@ -0,0 +1,829 @@
+package com.btoddb.cache;
+
+import com.btoddb.cache.cassandra.CassandraDao;
+import com.btoddb.cache.metrics.LatencyRecorder;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Read-through access to the {@link CachingService}.  On a miss the row is loaded from Cassandra
+ * and stored in the cache, and concurrent misses on the same key share a single load instead of
+ * each going to Cassandra.
+ *
+ * <p/>A load races with writes to the same row.  The trigger calls {@link #markStale(String)}
+ * before it decides a row isn't cached, so a load that may have read the row before the write
+ * still answers its callers but doesn't put the old data in the cache.  The trigger runs before
+ * Cassandra applies the write, so a load that starts just after it can still read the old row:
+ * loads finishing within one to two write settle times of a write to the row aren't cached
+ * either.  Writes are remembered in {@link RecentWrites}, a fixed-size filter, so the write path
+ * only sets two bits, and a scheduled task drops the settled ones.
+ *
+ * <p/>Column projections read only the columns the cached row lacks and merge them in, newest
+ * timestamp wins.  Rows cached that way are partial and never answer for the whole row.  A whole
+ * row loaded later replaces the partial one.
+ *
+ * <p/>Rows are stamped with when they were loaded.  With a max staleness, a row loaded longer ago
+ * than that is evicted when read, and the read goes to Cassandra.  With refresh-ahead, reading a
+ * row close to its expiry reloads it in the background while the cached row answers, so rows
+ * that keep being read are replaced before they expire.  The reloaded row replaces the cached one
+ * outright, so columns deleted in Cassandra without the trigger seeing it are dropped too.
+ *
+ * <p/>With a {@link TokenOwnership}, rows this node doesn't replicate are read but not cached.
+ *
+ * <p/>With a {@link NegativeCache}, whole-row loads that find no row are remembered for a short
+ * time and answered as missing without reading Cassandra.  {@link #markStale(String)} forgets
+ * them, so a row the trigger sees inserted is found at once.  Races with writes are handled as
+ * for cached rows.
+ */
+public class ReadThroughLoader {
+    public static final int DEFAULT_MAX_ASYNC_LOADS = 64;
+    public static final long DEFAULT_WRITE_SETTLE_MILLIS = 500;
+
+    private final ConcurrentMap<String, Load> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Load> inFlightColumns = new ConcurrentHashMap<>();
+    // rows written within the last one to two write settle times
+    private final RecentWrites recentWrites = new RecentWrites(RecentWrites.DEFAULT_BITS);
+    // drops the settled writes, null until started
+    private ScheduledExecutorService sweeper;
+    private volatile long writeSettleMillis = DEFAULT_WRITE_SETTLE_MILLIS;
+    private final CachingService cachingService;
+    private final CassandraDao cassandraDao;
+    private int maxAsyncLoadsPerRequest = DEFAULT_MAX_ASYNC_LOADS;
+    private WriteBehindQueue writeBehind;
+    // null if every row is cached
+    private TokenOwnership ownership;
+    // null if missing rows aren't remembered
+    private NegativeCache negativeCache;
+    // 0 for none.  refreshAfterMillis is derived from the others
+    private long maxStalenessMillis;
+    private long timeToLiveMillis;
+    private long refreshAheadMillis;
+    private volatile long refreshAfterMillis;
+
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong columnLoads = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong staleLoads = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final LatencyRecorder loadLatency = new LatencyRecorder();
+
+
+    public ReadThroughLoader(CachingService cachingService, CassandraDao cassandraDao) {
+        this.cachingService = cachingService;
+        this.cassandraDao = cassandraDao;
+    }
+
+    /**
+     * @param key row key
+     * @return the row from cache, or loaded from Cassandra.  null if the row doesn't exist
+     * @throws Exception if the load failed
+     */
+    public PackedRow get(String key) throws Exception {
+        PackedRow row = getComplete(key);
+        if (null != row || isKnownMissing(key)) {
+            return row;
+        }
+        return load(key);
+    }
+
+    /**
+     * Non-blocking {@link #get(String)}.  Only the cache lookup runs on the calling thread.
+     */
+    public ListenableFuture<PackedRow> getAsync(String key) {
+        PackedRow row = getComplete(key);
+        if (null != row || isKnownMissing(key)) {
+            return Futures.immediateFuture(row);
+        }
+        return loadAsync(key);
+    }
+
+    /**
+     * Column projection of {@link #getAsync(String)}.  A cached row answers if it is complete or
+     * has all the columns, otherwise only the columns it lacks are read from Cassandra.
+     *
+     * @param key row key
+     * @param columns columns wanted, null for the whole row
+     * @return future partial row with the columns that exist, null if none do
+     */
+    public ListenableFuture<PackedRow> getAsync(final String key, final Collection<String> columns) {
+        if (null == columns) {
+            return getAsync(key);
+        }
+
+        final PackedRow cached = getCachedOrPending(key);
+        if (null != cached && cached.covers(columns)) {
+            PackedRow row = cached.select(columns);
+            return Futures.immediateFuture(0 < row.size() ? row : null);
+        }
+        if (null == cached && isKnownMissing(key)) {
+            return Futures.immediateFuture(null);
+        }
+
+        List<String> missing = new ArrayList<>(columns.size());
+        for (String name : columns) {
+            if (null == cached || !cached.containsColumn(name)) {
+                missing.add(name);
+            }
+        }
+
+        // only the load registered first can tell whether a write raced it, the others
+        // answer their callers without touching the cache
+        final Load load = new Load();
+        final boolean tracked = null == inFlightColumns.putIfAbsent(key, load);
+        columnLoads.incrementAndGet();
+        final long start = System.nanoTime();
+        Futures.addCallback(cassandraDao.getAsync(key, missing), new FutureCallback<PackedRow>() {
+            @Override
+            public void onSuccess(PackedRow loaded) {
+                loadLatency.recordSince(start);
+                try {
+                    if (tracked && null != loaded) {
+                        cacheColumns(key, load, loaded);
+                    }
+                }
+                finally {
+                    if (tracked) {
+                        inFlightColumns.remove(key, load);
+                    }
+                    load.result.set(project(cached, loaded, columns));
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                failures.incrementAndGet();
+                if (tracked) {
+                    inFlightColumns.remove(key, load);
+                }
+                load.result.setException(e);
+            }
+        });
+        return load.result;
+    }
+
+    private PackedRow getComplete(String key) {
+        PackedRow row = getCachedOrPending(key);
+        return null != row && !row.isPartial() ? row : null;
+    }
+
+    private PackedRow getCachedOrPending(String key) {
+        PackedRow row = cachingService.get(key);
+        if (null != row && null != (row = fresh(key, row))) {
+            return row;
+        }
+        // a row evicted before write-behind flushed it isn't in Cassandra yet.  a PUT may have sent
+        // only some of the row's columns, so it only answers for those
+        row = null != writeBehind ? writeBehind.getPending(key) : null;
+        return null != row ? row.toBuilder().partial(true).build() : null;
+    }
+
+    /**
+     * @return the cached row, or null if it was older than the max staleness or has a column past
+     * its TTL, and is now evicted
+     */
+    private PackedRow fresh(String key, PackedRow row) {
+        long expiresAt = row.getExpiresAt();
+        long refreshAfter = refreshAfterMillis;
+        if (0 == expiresAt && 0 == maxStalenessMillis && 0 == refreshAfter) {
+            return row;
+        }
+
+        long now = System.currentTimeMillis();
+        if (0 != expiresAt && now >= expiresAt) {
+            expired.incrementAndGet();
+            cachingService.remove(key);
+            return null;
+        }
+        long age = now - row.getLoadedAt();
+        if (0 < maxStalenessMillis && age > maxStalenessMillis) {
+            expired.incrementAndGet();
+            cachingService.remove(key);
+            return null;
+        }
+        if (0 < refreshAfter && age > refreshAfter) {
+            refresh(key);
+        }
+        return row;
+    }
+
+    private static PackedRow project(PackedRow cached, PackedRow loaded, Collection<String> columns) {
+        if (null == cached) {
+            return loaded;
+        }
+        PackedRow row = cached;
+        if (null != loaded) {
+            PackedRow.Builder builder = cached.toBuilder();
+            builder.mergeNewer(loaded);
+            row = builder.build();
+        }
+        row = row.select(columns);
+        return 0 < row.size() ? row : null;
+    }
+
+    /**
+     * Look up many rows at once.  Hits come straight from the cache and all misses are loaded
+     * from Cassandra concurrently, at most {@link #getMaxAsyncLoadsPerRequest()} at a time.
+     *
+     * @param keys row keys
+     * @return map of key to row, in the order given.  rows that don't exist are left out
+     * @throws Exception if any load failed
+     */
+    public Map<String, PackedRow> getAll(Collection<String> keys) throws Exception {
+        Map<String, PackedRow> hits = new LinkedHashMap<>();
+        Map<String, ListenableFuture<PackedRow>> misses = getAllAsync(keys, hits);
+
+        Map<String, PackedRow> result = new LinkedHashMap<>();
+        for (String key : keys) {
+            PackedRow row = hits.get(key);
+            if (null == row && misses.containsKey(key)) {
+                row = await(misses.get(key));
+            }
+            if (null != row) {
+                result.put(key, row);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Start a multi-key lookup without waiting for the misses.  Never blocks - misses beyond
+     * {@link #getMaxAsyncLoadsPerRequest()} are started as earlier ones complete.
+     *
+     * @param keys row keys
+     * @param hits receives the rows found in cache
+     * @return loads for the keys that missed, in the order given.  keys known to be missing are
+     *         in neither
+     */
+    public Map<String, ListenableFuture<PackedRow>> getAllAsync(Collection<String> keys, Map<String, PackedRow> hits) {
+        Map<String, ListenableFuture<PackedRow>> misses = new LinkedHashMap<>();
+        Queue<PendingLoad> pending = new ConcurrentLinkedQueue<>();
+        for (String key : keys) {
+            if (hits.containsKey(key) || misses.containsKey(key)) {
+                continue;
+            }
+
+            PackedRow row = getComplete(key);
+            if (null != row) {
+                hits.put(key, row);
+                continue;
+            }
+            if (isKnownMissing(key)) {
+                continue;
+            }
+
+            PendingLoad load = new PendingLoad(key);
+            pending.add(load);
+            misses.put(key, load.result);
+        }
+
+        // bound the number of concurrent reads one request can put on cassandra
+        for (int i = 0; i < maxAsyncLoadsPerRequest; i++) {
+            startNext(pending);
+        }
+        return misses;
+    }
+
+    private void startNext(final Queue<PendingLoad> pending) {
+        final PendingLoad load = pending.poll();
+        if (null == load) {
+            return;
+        }
+
+        Futures.addCallback(loadAsync(load.key), new FutureCallback<PackedRow>() {
+            @Override
+            public void onSuccess(PackedRow row) {
+                load.result.set(row);
+                startNext(pending);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                load.result.setException(e);
+                startNext(pending);
+            }
+        });
+    }
+
+    /**
+     * Load the row from Cassandra and cache it, or wait for a load of the same key that is
+     * already in flight.
+     */
+    public PackedRow load(String key) throws Exception {
+        Load load = new Load();
+        Load existing = inFlight.putIfAbsent(key, load);
+        if (null != existing) {
+            coalesced.incrementAndGet();
+            return await(existing.result);
+        }
+
+        loads.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            PackedRow row = cassandraDao.get(key);
+            loadLatency.recordSince(start);
+            complete(key, load, row);
+        }
+        catch (Throwable e) {
+            fail(key, load, e);
+        }
+        return await(load.result);
+    }
+
+    /**
+     * Non-blocking {@link #load(String)}.
+     */
+    public ListenableFuture<PackedRow> loadAsync(final String key) {
+        final Load load = new Load();
+        Load existing = inFlight.putIfAbsent(key, load);
+        if (null != existing) {
+            coalesced.incrementAndGet();
+            return existing.result;
+        }
+
+        loads.incrementAndGet();
+        return read(key, load);
+    }
+
+    /**
+     * Reload a cached row in the background, unless it is already being loaded.  The reloaded
+     * row replaces the cached one.
+     */
+    public void refresh(String key) {
+        // cassandra doesn't have the cached row yet
+        if (null != writeBehind && null != writeBehind.getPending(key)) {
+            return;
+        }
+        Load load = new Load(true);
+        if (null == inFlight.putIfAbsent(key, load)) {
+            refreshes.incrementAndGet();
+            read(key, load);
+        }
+    }
+
+    private ListenableFuture<PackedRow> read(final String key, final Load load) {
+        final long start = System.nanoTime();
+        Futures.addCallback(cassandraDao.getAsync(key), new FutureCallback<PackedRow>() {
+            @Override
+            public void onSuccess(PackedRow row) {
+                loadLatency.recordSince(start);
+                complete(key, load, row);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                fail(key, load, e);
+            }
+        });
+        return load.result;
+    }
+
+    /**
+     * Row was written - if it is being loaded, don't let that load populate the cache, and
+     * forget it was missing.
+     */
+    public void markStale(String key) {
+        if (null != negativeCache) {
+            negativeCache.remove(key);
+        }
+
+        // the next load of the row may well start before the write is applied
+        if (0 < writeSettleMillis) {
+            recentWrites.mark(key);
+        }
+        Load load = inFlight.get(key);
+        Load columnLoad = inFlightColumns.get(key);
+        if (null != load) {
+            load.stale = true;
+        }
+        if (null != columnLoad) {
+            columnLoad.stale = true;
+        }
+    }
+
+    /**
+     * Start dropping writes that have surely been applied, every write settle time.
+     */
+    public synchronized void start() {
+        if (null != sweeper || 0 == writeSettleMillis) {
+            return;
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "load-write-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sweepRecentWrites();
+            }
+        }, writeSettleMillis, writeSettleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void shutdown() {
+        if (null != sweeper) {
+            sweeper.shutdown();
+            sweeper = null;
+        }
+    }
+
+    void sweepRecentWrites() {
+        recentWrites.rotate();
+    }
+
+    /**
+     * @return true if the load was started before, or too soon after, a write to the row to be
+     * sure it read the write
+     */
+    private boolean isStale(String key, Load load) {
+        return load.stale || (0 < writeSettleMillis && recentWrites.mightContain(key));
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    /**
+     * @return column projections that had to read from Cassandra
+     */
+    public long getColumnLoadCount() {
+        return columnLoads.get();
+    }
+
+    /**
+     * @return misses that waited on another caller's load instead of going to Cassandra
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return loads that were not cached because the row was written while, or just before, loading
+     */
+    public long getStaleLoadCount() {
+        return staleLoads.get();
+    }
+
+    /**
+     * @return lookups that failed because their load failed
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * @return cached rows evicted when read because they were older than the max staleness, or
+     * one of their columns had expired
+     */
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    /**
+     * @return background reloads of rows close to expiry
+     */
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
+
+    /**
+     * @return time to read rows from Cassandra, successful loads only
+     */
+    public LatencyRecorder getLoadLatency() {
+        return loadLatency;
+    }
+
+    public int getMaxAsyncLoadsPerRequest() {
+        return maxAsyncLoadsPerRequest;
+    }
+
+    public void setMaxAsyncLoadsPerRequest(int maxAsyncLoadsPerRequest) {
+        this.maxAsyncLoadsPerRequest = maxAsyncLoadsPerRequest;
+    }
+
+    public long getMaxStalenessMillis() {
+        return maxStalenessMillis;
+    }
+
+    /**
+     * @param maxStalenessMillis longest a row may be served after it was loaded, 0 for no limit
+     */
+    public void setMaxStalenessMillis(long maxStalenessMillis) {
+        this.maxStalenessMillis = maxStalenessMillis;
+        updateRefreshAfter();
+    }
+
+    public long getTimeToLiveMillis() {
+        return timeToLiveMillis;
+    }
+
+    /**
+     * @param timeToLiveMillis the cache's own time to live, 0 for none.  only used to time
+     *                         refresh-ahead, the cache expires rows itself
+     */
+    public void setTimeToLiveMillis(long timeToLiveMillis) {
+        this.timeToLiveMillis = timeToLiveMillis;
+        updateRefreshAfter();
+    }
+
+    public long getRefreshAheadMillis() {
+        return refreshAheadMillis;
+    }
+
+    /**
+     * @param refreshAheadMillis how long before a row expires that reading it reloads it in the
+     *                           background, 0 to never refresh ahead
+     */
+    public void setRefreshAheadMillis(long refreshAheadMillis) {
+        this.refreshAheadMillis = refreshAheadMillis;
+        updateRefreshAfter();
+    }
+
+    private void updateRefreshAfter() {
+        long expiry = 0;
+        if (0 < maxStalenessMillis) {
+            expiry = maxStalenessMillis;
+        }
+        if (0 < timeToLiveMillis && (0 == expiry || timeToLiveMillis < expiry)) {
+            expiry = timeToLiveMillis;
+        }
+        refreshAfterMillis = 0 < expiry && 0 < refreshAheadMillis ? Math.max(1, expiry - refreshAheadMillis) : 0;
+    }
+
+    public long getWriteSettleMillis() {
+        return writeSettleMillis;
+    }
+
+    /**
+     * @param writeSettleMillis longest a write may take to be applied after the trigger saw it.
+     *                          rows loaded within this long of a write aren't cached.  0 to only
+     *                          keep out loads still reading when the write is seen
+     */
+    public void setWriteSettleMillis(long writeSettleMillis) {
+        this.writeSettleMillis = writeSettleMillis;
+        if (0 == writeSettleMillis) {
+            recentWrites.clear();
+        }
+    }
+
+    public WriteBehindQueue getWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * @param writeBehind consulted on a miss, so rows not yet written to Cassandra are still found
+     */
+    public void setWriteBehind(WriteBehindQueue writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    public NegativeCache getNegativeCache() {
+        return negativeCache;
+    }
+
+    /**
+     * @param negativeCache null to read Cassandra for every miss
+     */
+    public void setNegativeCache(NegativeCache negativeCache) {
+        this.negativeCache = negativeCache;
+    }
+
+    public TokenOwnership getOwnership() {
+        return ownership;
+    }
+
+    /**
+     * @param ownership null to cache every row loaded
+     */
+    public void setOwnership(TokenOwnership ownership) {
+        this.ownership = ownership;
+    }
+
+    private void complete(String key, Load load, PackedRow row) {
+        // PUTs write-behind hasn't written yet are newer than what we read, and may only be some
+        // of the row's columns.  the row is cached partial meanwhile, so whole-row reads get here
+        PackedRow pending = null != writeBehind ? writeBehind.getPending(key) : null;
+        try {
+            if (null != pending) {
+                staleLoads.incrementAndGet();
+                row = withNewer(row, pending);
+            }
+            else if (null != row) {
+                cache(key, load, row);
+            }
+            else {
+                if (load.refresh) {
+                    evict(key, load);
+                }
+                rememberMissing(key, load);
+            }
+        }
+        finally {
+            inFlight.remove(key, load);
+            load.result.set(row);
+        }
+    }
+
+    private static PackedRow withNewer(PackedRow row, PackedRow newer) {
+        if (null == row) {
+            return newer;
+        }
+        PackedRow.Builder builder = row.toBuilder();
+        builder.mergeNewer(newer);
+        return builder.build();
+    }
+
+    private void fail(String key, Load load, Throwable e) {
+        inFlight.remove(key, load);
+        load.result.setException(e);
+    }
+
+    private void cache(String key, Load load, PackedRow row) {
+        if (!isOwned(key)) {
+            return;
+        }
+        row.setLoadedAt(load.startedAt);
+        cachingService.acquireWriteLockOnKey(key);
+        try {
+            if (isStale(key, load)) {
+                staleLoads.incrementAndGet();
+                return;
+            }
+
+            // a PUT that landed while we were loading is newer than what we read
+            if (!cachingService.contains(key)) {
+                cachingService.put(key, row);
+                evictIfStale(key, load);
+                return;
+            }
+
+            // complete a partial row or replace a refreshed one.  no write raced the load, so
+            // what we read is the whole row - merging the cached one back in would revive columns
+            // deleted since it was cached.  a write the trigger swaps in meanwhile fails the replace
+            PackedRow current = cachingService.getQuiet(key);
+            if (null != current && (current.isPartial() || load.refresh)) {
+                if (cachingService.replace(key, current, row)) {
+                    evictIfStale(key, load);
+                }
+            }
+        }
+        finally {
+            cachingService.releaseWriteLockOnKey(key);
+        }
+    }
+
+    private void evict(String key, Load load) {
+        cachingService.acquireWriteLockOnKey(key);
+        try {
+            // the row was deleted since it was cached
+            if (!isStale(key, load)) {
+                cachingService.remove(key);
+            }
+        }
+        finally {
+            cachingService.releaseWriteLockOnKey(key);
+        }
+    }
+
+    private void cacheColumns(String key, Load load, PackedRow loaded) {
+        if (!isOwned(key)) {
+            return;
+        }
+        loaded.setLoadedAt(load.startedAt);
+        cachingService.acquireWriteLockOnKey(key);
+        try {
+            if (isStale(key, load)) {
+                staleLoads.incrementAndGet();
+                return;
+            }
+
+            // the trigger swaps rows without the lock, so retry if it beats us to the row
+            for (;;) {
+                PackedRow current = cachingService.getQuiet(key);
+                if (null == current) {
+                    cachingService.put(key, loaded);
+                    evictIfStale(key, load);
+                    return;
+                }
+                // complete rows are kept up to date by the trigger
+                if (!current.isPartial()) {
+                    return;
+                }
+                PackedRow.Builder builder = current.toBuilder();
+                if (!builder.mergeNewer(loaded)) {
+                    return;
+                }
+                if (cachingService.replace(key, current, builder.build())) {
+                    evictIfStale(key, load);
+                    return;
+                }
+            }
+        }
+        finally {
+            cachingService.releaseWriteLockOnKey(key);
+        }
+    }
+
+    private boolean isKnownMissing(String key) {
+        return null != negativeCache && negativeCache.isMissing(key);
+    }
+
+    /**
+     * Same race as {@link #evictIfStale(String, Load)}: the trigger forgets the key without the
+     * lock, so check again once it is remembered.
+     */
+    private void rememberMissing(String key, Load load) {
+        if (null == negativeCache || !isOwned(key) || isStale(key, load)) {
+            return;
+        }
+        negativeCache.add(key);
+        if (isStale(key, load)) {
+            negativeCache.remove(key);
+        }
+    }
+
+    private boolean isOwned(String key) {
+        return null == ownership || ownership.isOwned(key);
+    }
+
+    /**
+     * The trigger marks a write without the lock, then skips the row if it isn't cached.  A write
+     * marked after we checked but before we cached found nothing to update, so take the row out.
+     */
+    private void evictIfStale(String key, Load load) {
+        if (isStale(key, load)) {
+            staleLoads.incrementAndGet();
+            cachingService.remove(key);
+        }
+    }
+
+    private PackedRow await(ListenableFuture<PackedRow> future) throws Exception {
+        try {
+            return future.get();
+        }
+        catch (ExecutionException e) {
+            failures.incrementAndGet();
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static class PendingLoad {
+        final String key;
+        final SettableFuture<PackedRow> result = SettableFuture.create();
+
+        PendingLoad(String key) {
+            this.key = key;
+        }
+    }
+
+    private static class Load {
+        final SettableFuture<PackedRow> result = SettableFuture.create();
+        final long startedAt = System.currentTimeMillis();
+        // replaces the cached row instead of only filling a miss
+        final boolean refresh;
+        volatile boolean stale;
+
+        Load() {
+            this(false);
+        }
+
+        Load(boolean refresh) {
+            this.refresh = refresh;
+        }
+    }
+}
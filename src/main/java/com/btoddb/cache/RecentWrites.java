@@ -0,0 +1,101 @@
+package com.btoddb.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Bloom filter of keys written recently, in two generations.  Keys are marked in the current
+ * one, and {@link #rotate()} makes it the previous one and starts an empty one, so a key is found
+ * until the second rotation after it was marked.  Rotated every <code>n</code> millis, a mark
+ * lasts between <code>n</code> and <code>2n</code>.
+ *
+ * <p/>Marking sets two bits in a fixed array, without locks or allocation, so it can be done on
+ * Cassandra's mutation threads for every write.  Collisions only ever find keys that weren't
+ * written: with a million bits, 100,000 marks in a generation find about 3 in 100 other keys.
+ */
+public class RecentWrites {
+    public static final int DEFAULT_BITS = 1 << 20;
+
+    // odd multipliers, one per bit
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L};
+
+    private final int words;
+    private final int bitMask;
+    private volatile AtomicLongArray current;
+    private volatile AtomicLongArray previous;
+
+
+    /**
+     * @param bits per generation, rounded up to a power of two
+     */
+    public RecentWrites(int bits) {
+        int size = Math.max(64, bits);
+        int length = Math.min(Integer.highestOneBit(size - 1) << 1, 1 << 30);
+        this.words = length >>> 6;
+        this.bitMask = length - 1;
+        clear();
+    }
+
+    public void mark(Object key) {
+        int hash = spread(key.hashCode());
+        AtomicLongArray bits = current;
+        for (long seed : SEEDS) {
+            set(bits, indexOf(hash, seed));
+        }
+    }
+
+    /**
+     * @return true if the key was marked since the rotation before last, or collides with one that was
+     */
+    public boolean mightContain(Object key) {
+        int hash = spread(key.hashCode());
+        return contains(current, hash) || contains(previous, hash);
+    }
+
+    /**
+     * Drop the previous generation's marks, and start a new generation.
+     */
+    public void rotate() {
+        // a mark racing this lands in what is now the previous generation, it isn't lost
+        previous = current;
+        current = new AtomicLongArray(words);
+    }
+
+    public void clear() {
+        previous = new AtomicLongArray(words);
+        current = new AtomicLongArray(words);
+    }
+
+    private boolean contains(AtomicLongArray bits, int hash) {
+        for (long seed : SEEDS) {
+            int bit = indexOf(hash, seed);
+            if (0 == (bits.get(bit >>> 6) & (1L << bit))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void set(AtomicLongArray bits, int bit) {
+        int index = bit >>> 6;
+        long mask = 1L << bit;
+        for (;;) {
+            long word = bits.get(index);
+            if (0 != (word & mask) || bits.compareAndSet(index, word, word | mask)) {
+                return;
+            }
+        }
+    }
+
+    private int indexOf(int hash, long seed) {
+        long h = (hash + seed) * seed;
+        h += h >>> 32;
+        return (int) h & bitMask;
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
@@ -0,0 +1,93 @@
+package com.btoddb.cache;
+
+import net.sf.ehcache.Element;
+import net.sf.ehcache.store.Policy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * TinyLFU admission for ehcache's memory store.  Ehcache asks its eviction policy for a victim
+ * whenever a new row takes the store over its size, passing a sample of cached rows and the
+ * row just added.  The least recently used of the sample would normally go; here it only goes
+ * if the new row was read more often recently, otherwise the new row is evicted again and the
+ * cache keeps what it had.
+ *
+ * <p/>Reads are counted in a {@link FrequencySketch}, misses included, so a row earns its slot
+ * by being asked for more than once.  A scan through keys read once each can't push out rows
+ * that are read all the time.
+ */
+public class TinyLfuAdmissionPolicy implements Policy {
+    public static final String NAME = "TinyLFU";
+
+    private final FrequencySketch sketch;
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+
+    /**
+     * @param maximumSize entries the cache holds
+     */
+    public TinyLfuAdmissionPolicy(int maximumSize) {
+        this.sketch = new FrequencySketch(maximumSize);
+    }
+
+    /**
+     * Count a read of the key, whether or not it is cached.
+     */
+    public void recordAccess(Object key) {
+        sketch.increment(key);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Element selectedBasedOnPolicy(Element[] sampledElements, Element justAdded) {
+        Element victim = null;
+        for (Element element : sampledElements) {
+            if (null != element && !element.equals(justAdded) && (null == victim || compare(victim, element))) {
+                victim = element;
+            }
+        }
+        // nothing else to evict, or not deciding on admission - plain LRU
+        if (null == victim || null == justAdded) {
+            return victim;
+        }
+
+        if (sketch.frequency(justAdded.getObjectKey()) > sketch.frequency(victim.getObjectKey())) {
+            admitted.incrementAndGet();
+            return victim;
+        }
+        rejected.incrementAndGet();
+        return justAdded;
+    }
+
+    /**
+     * @return true if element2 was used less recently than element1, as ehcache's LRU does
+     */
+    @Override
+    public boolean compare(Element element1, Element element2) {
+        return element2.getLastAccessTime() < element1.getLastAccessTime();
+    }
+
+    public FrequencySketch getSketch() {
+        return sketch;
+    }
+
+    /**
+     * @return new rows that took the place of a cached row
+     */
+    public long getAdmittedCount() {
+        return admitted.get();
+    }
+
+    /**
+     * @return new rows evicted again because the cached rows were read more often
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+}
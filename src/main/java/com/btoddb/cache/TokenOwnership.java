@@ -0,0 +1,67 @@
+package com.btoddb.cache;
+
+import org.apache.cassandra.gms.FailureDetector;
+import org.apache.cassandra.service.StorageService;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.FBUtilities;
+
+import java.net.InetAddress;
+import java.util.List;
+
+
+/**
+ * Which rows this node caches, going by Cassandra's token metadata.  A node owns a row if it is
+ * one of the row's replicas, primary or not, so each row is cached only on the nodes that store it
+ * and the cluster's cache grows with the number of nodes instead of every node caching every hot
+ * row.  Requests for rows owned elsewhere are sent to a live replica.
+ *
+ * <p/>The ring is looked up on every call, so ownership follows nodes joining and leaving.  Rows
+ * cached before a range moved away stay cached until they expire or are evicted.
+ */
+public class TokenOwnership {
+    private final String keyspace;
+
+
+    /**
+     * @param keyspace keyspace of the cached table, its replication decides the replicas
+     */
+    public TokenOwnership(String keyspace) {
+        this.keyspace = keyspace;
+    }
+
+    /**
+     * @return true if this node is a replica of the row
+     */
+    public boolean isOwned(String key) {
+        return getReplicas(key).contains(getLocalAddress());
+    }
+
+    /**
+     * @return the first live replica of the row in ring order, so requests for a row go to the
+     *         same node while it is up.  null if none are up
+     */
+    public InetAddress getOwner(String key) {
+        for (InetAddress replica : getReplicas(key)) {
+            if (isAlive(replica)) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    protected List<InetAddress> getReplicas(String key) {
+        return StorageService.instance.getNaturalEndpoints(keyspace, ByteBufferUtil.bytes(key));
+    }
+
+    protected InetAddress getLocalAddress() {
+        return FBUtilities.getBroadcastAddress();
+    }
+
+    protected boolean isAlive(InetAddress address) {
+        return address.equals(getLocalAddress()) || FailureDetector.instance.isAlive(address);
+    }
+
+    public String getKeyspace() {
+        return keyspace;
+    }
+}
@@ -0,0 +1,139 @@
+package com.btoddb.cache;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.ColumnDefinition;
+import org.apache.cassandra.db.marshal.AbstractType;
+import org.apache.cassandra.db.marshal.CompositeType;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * What the trigger needs to know about a table, resolved once instead of per mutated column:
+ * column name to cached name and validator, keyed by the raw column name so a lookup neither
+ * decodes the name nor allocates.
+ *
+ * <p/>In a compact table with a clustering column, like cache.data, every cell name is a
+ * clustering value and names a cached column of its own, all holding values of the compact value
+ * column.  Their names are resolved once each, up to {@link #MAX_DYNAMIC_COLUMNS} of them.
+ *
+ * <p/>Contexts are rebuilt when the table's schema changes.  Tables with composite column names
+ * (CQL3) can't be keyed by cell name, those fall back to resolving every column.
+ */
+public class TriggerContext {
+    static final int MAX_DYNAMIC_COLUMNS = 10000;
+
+    private static final ConcurrentMap<UUID, TriggerContext> contexts = new ConcurrentHashMap<>();
+
+    private final CFMetaData metadata;
+    // CFMetaData builds a new set on every schema change, so it doubles as a schema version
+    private final Set<ColumnDefinition> schemaVersion;
+    private final boolean composite;
+    private final Map<ByteBuffer, ColumnMeta> columns = new HashMap<>();
+    // validator of every cell's value if cell names are clustering values, null otherwise
+    private final AbstractType<?> dynamicValidator;
+    private final ConcurrentMap<ByteBuffer, ColumnMeta> dynamicColumns = new ConcurrentHashMap<>();
+
+
+    private TriggerContext(CFMetaData metadata) {
+        this.metadata = metadata;
+        this.schemaVersion = metadata.regularColumns();
+        this.composite = metadata.comparator instanceof CompositeType;
+        ColumnDefinition compactValue = metadata.compactValueColumn();
+        this.dynamicValidator = !composite && null != compactValue && !metadata.clusteringKeyColumns().isEmpty()
+                ? compactValue.getValidator() : null;
+        if (composite || null != dynamicValidator) {
+            return;
+        }
+
+        for (ColumnDefinition colDef : metadata.allColumns()) {
+            try {
+                columns.put(colDef.name, new ColumnMeta(ByteBufferUtil.string(colDef.name), colDef.getValidator()));
+            }
+            catch (CharacterCodingException e) {
+                // not a name we can cache under, mutations of it are skipped like undefined columns
+            }
+        }
+    }
+
+    /**
+     * @return the context for the mutated table, built on first use or after a schema change
+     */
+    public static TriggerContext forTable(CFMetaData metadata) {
+        TriggerContext context = contexts.get(metadata.cfId);
+        if (null == context || context.isStale(metadata)) {
+            context = new TriggerContext(metadata);
+            contexts.put(metadata.cfId, context);
+        }
+        return context;
+    }
+
+    private boolean isStale(CFMetaData current) {
+        return current != metadata || current.regularColumns() != schemaVersion;
+    }
+
+    /**
+     * @param name raw column name from a mutation
+     * @return the column's cached name and validator, null if the column has no definition
+     */
+    public ColumnMeta column(ByteBuffer name) throws CharacterCodingException {
+        if (null != dynamicValidator) {
+            return dynamicColumn(name);
+        }
+        if (!composite) {
+            return columns.get(name);
+        }
+
+        ColumnDefinition colDef = metadata.getColumnDefinitionFromColumnName(name);
+        return null != colDef ? new ColumnMeta(ByteBufferUtil.string(name), colDef.getValidator()) : null;
+    }
+
+    private ColumnMeta dynamicColumn(ByteBuffer name) throws CharacterCodingException {
+        ColumnMeta column = dynamicColumns.get(name);
+        if (null == column) {
+            column = new ColumnMeta(ByteBufferUtil.string(name), dynamicValidator);
+            if (dynamicColumns.size() < MAX_DYNAMIC_COLUMNS) {
+                // the name may be a slice of the whole mutation, don't keep that alive
+                dynamicColumns.putIfAbsent(ByteBufferUtil.clone(name), column);
+            }
+        }
+        return column;
+    }
+
+    /**
+     * @return true if cell names are composites, which can't be compared to cached column names
+     */
+    public boolean isComposite() {
+        return composite;
+    }
+
+    public static class ColumnMeta {
+        private final String name;
+        private final AbstractType<?> validator;
+
+        ColumnMeta(String name, AbstractType<?> validator) {
+            this.name = name;
+            this.validator = validator;
+        }
+
+        /**
+         * @return name the column is cached under
+         */
+        public String getName() {
+            return name;
+        }
+
+        public Object compose(ByteBuffer value) {
+            // compose handles calling ByteBuffer.duplicate
+            return validator.compose(value);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.btoddb.cache;
+
+import com.btoddb.cache.cassandra.CassandraDao;
+import com.btoddb.cache.metrics.LatencyRecorder;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Write-behind for PUTs.  The REST service caches the row and acknowledges at once, and a
+ * background flusher writes it to Cassandra later.
+ *
+ * <p/>Writes are coalesced per key - a PUT replaces the whole row, so only the latest pending
+ * row of a key is written.  The flusher writes every flush interval, or as soon as a batch worth
+ * of keys is pending, at most one batch of rows in flight at a time.
+ *
+ * <p/>Durability is eventual: pending rows are lost if the JVM dies, and a write that fails is
+ * dropped after evicting the row from the cache, so reads go back to what Cassandra has.  Rows
+ * are written with the timestamp taken at the PUT, the one the cached row carries, so a write
+ * made directly to Cassandra after the PUT still wins over the pending row.
+ */
+public class WriteBehindQueue {
+    private static Logger logger = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+    private final ConcurrentMap<String, PackedRow> pending = new ConcurrentHashMap<>();
+    // rows taken by the flusher whose write isn't acknowledged yet
+    private final ConcurrentMap<String, PackedRow> writing = new ConcurrentHashMap<>();
+    // keys in the order they became pending, each at most once
+    private final ConcurrentLinkedQueue<String> keys = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicLong pendingBytes = new AtomicLong();
+
+    private final CachingService cachingService;
+    private final CassandraDao cassandraDao;
+    private final long maxPendingBytes;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final LatencyRecorder flushLatency = new LatencyRecorder();
+
+    private volatile boolean running;
+    private volatile Thread flusherThread;
+
+
+    /**
+     * @param maxPendingBytes packed size of pending rows above which PUTs are refused
+     * @param batchSize rows written per flush, and the pending count that triggers one early
+     * @param flushIntervalMillis longest a row waits for a flush
+     */
+    public WriteBehindQueue(CachingService cachingService, CassandraDao cassandraDao, long maxPendingBytes,
+                            int batchSize, long flushIntervalMillis) {
+        if (0 >= maxPendingBytes || 0 >= batchSize || 0 >= flushIntervalMillis) {
+            throw new IllegalArgumentException("maxPendingBytes, batchSize and flushIntervalMillis must be positive");
+        }
+        this.cachingService = cachingService;
+        this.cassandraDao = cassandraDao;
+        this.maxPendingBytes = maxPendingBytes;
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        flusherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        });
+        flusherThread.setName("cassandra-write-behind");
+        flusherThread.setDaemon(true);
+        flusherThread.start();
+    }
+
+    /**
+     * Stop the flusher after writing everything already pending.  Stop accepting PUTs first.
+     */
+    public synchronized void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(flusherThread);
+        try {
+            flusherThread.join(TimeUnit.SECONDS.toMillis(30));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flusherThread = null;
+    }
+
+    /**
+     * Queue the row to be written.  The caller has already cached it.
+     *
+     * @param row every column stamped with the PUT's timestamp, see {@link PackedRow#withTimestamp(long)}
+     * @return false if the queue is full, the caller must write through
+     */
+    public boolean offer(String key, PackedRow row) {
+        int size = row.bytes().length;
+        if (pendingBytes.addAndGet(size) > maxPendingBytes) {
+            pendingBytes.addAndGet(-size);
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        accepted.incrementAndGet();
+        PackedRow previous = pending.put(key, row);
+        if (null != previous) {
+            // the flusher hasn't taken the key yet, it will write this row instead
+            pendingBytes.addAndGet(-previous.bytes().length);
+            coalesced.incrementAndGet();
+            return true;
+        }
+
+        keys.offer(key);
+        Thread flusher = flusherThread;
+        if (batchSize == pendingCount.incrementAndGet() && null != flusher) {
+            LockSupport.unpark(flusher);
+        }
+        return true;
+    }
+
+    /**
+     * @return the row waiting to be written for the key, or being written, null if none
+     */
+    public PackedRow getPending(String key) {
+        PackedRow row = pending.get(key);
+        return null != row ? row : writing.get(key);
+    }
+
+    private void flushLoop() {
+        List<String> batchKeys = new ArrayList<>(batchSize);
+        List<PackedRow> batchRows = new ArrayList<>(batchSize);
+        while (running || 0 < pendingCount.get()) {
+            if (pendingCount.get() < batchSize && running) {
+                LockSupport.parkNanos(this, flushIntervalNanos);
+            }
+            while (0 < flush(batchKeys, batchRows) && (pendingCount.get() >= batchSize || !running)) {
+                // a full batch is waiting, or we're draining - don't wait for the interval
+            }
+        }
+    }
+
+    /**
+     * Write one batch and wait for it.
+     *
+     * @return number of rows written or failed
+     */
+    int flush(List<String> batchKeys, List<PackedRow> batchRows) {
+        batchKeys.clear();
+        batchRows.clear();
+        String key;
+        while (batchKeys.size() < batchSize && null != (key = keys.poll())) {
+            PackedRow row = pending.remove(key);
+            pendingCount.decrementAndGet();
+            if (null != row) {
+                pendingBytes.addAndGet(-row.bytes().length);
+                batchKeys.add(key);
+                batchRows.add(row);
+            }
+        }
+        if (batchKeys.isEmpty()) {
+            return 0;
+        }
+
+        long start = System.nanoTime();
+        // each row is its own batch statement, so the rows go to their own replicas in parallel
+        List<ListenableFuture<Void>> writes = new ArrayList<>(batchKeys.size());
+        for (int i = 0; i < batchKeys.size(); i++) {
+            final String rowKey = batchKeys.get(i);
+            final PackedRow row = batchRows.get(i);
+            writing.put(rowKey, row);
+            // all columns carry the PUT's timestamp.  an empty row isn't written at all
+            long timestamp = 0 < row.size() ? row.timestamp(0) : 0;
+            ListenableFuture<Void> write = cassandraDao.putAsync(rowKey, row, timestamp);
+            Futures.addCallback(write, new FutureCallback<Void>() {
+                @Override
+                public void onSuccess(Void result) {
+                    writing.remove(rowKey, row);
+                    written.incrementAndGet();
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    writing.remove(rowKey, row);
+                    writeFailed(rowKey, e);
+                }
+            });
+            writes.add(write);
+        }
+
+        try {
+            Futures.successfulAsList(writes).get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            // successfulAsList doesn't fail, failures were counted by their callbacks
+        }
+        flushLatency.recordSince(start);
+        return batchKeys.size();
+    }
+
+    private void writeFailed(String key, Throwable e) {
+        failed.incrementAndGet();
+        logger.error("write-behind of row {} failed, evicting it from the cache", key, e);
+        // unless it was written again since, the cached row is data cassandra doesn't have
+        if (!pending.containsKey(key)) {
+            cachingService.remove(key);
+        }
+    }
+
+    /**
+     * @return rows waiting to be written
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    public long getAcceptedCount() {
+        return accepted.get();
+    }
+
+    /**
+     * @return PUTs that replaced a row still waiting to be written
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return PUTs refused because the queue was full
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return time to write a batch to Cassandra
+     */
+    public LatencyRecorder getFlushLatency() {
+        return flushLatency;
+    }
+}
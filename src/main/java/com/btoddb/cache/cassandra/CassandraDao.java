@@ -2,26 +2,57 @@ package com.btoddb.cache.cassandra;
 
 import com.btoddb.cache.CachedColumn;
 import com.btoddb.cache.EHCacheUpdateTrigger;
+import com.btoddb.cache.PackedRow;
 import com.datastax.driver.core.*;
+import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
+import com.datastax.driver.core.policies.TokenAwarePolicy;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 
 public class CassandraDao {
     private static Logger logger = LoggerFactory.getLogger(CassandraDao.class);
 
     public static final int CQL_DEFAULT_PORT = 9042;
-    public static final String DONT_INVALIDATE_CACHE_COLUMN = "###DONT_INVALIDATE_CACHE###";
 
     public static PreparedStatement getStatement;
+    public static PreparedStatement getColumnsStatement;
     public static PreparedStatement putStatement;
-    public static PreparedStatement deleteStatement;
+    public static PreparedStatement scanKeysStatement;
+
+    // shared with the trigger, so it can skip the writes the cache made
+    public static final InFlightWrites inFlightWrites = new InFlightWrites();
+
+    /**
+     * How a row's columns are written.  All columns of a row live in one partition, so an
+     * unlogged batch is applied as a single atomic mutation just like a logged one, without
+     * first writing the batch to the batchlog.  Logged is the default, unlogged has to be asked for.
+     */
+    public enum WriteMode {
+        LOGGED_BATCH(BatchStatement.Type.LOGGED),
+        UNLOGGED_BATCH(BatchStatement.Type.UNLOGGED);
+
+        private final BatchStatement.Type batchType;
+
+        WriteMode(BatchStatement.Type batchType) {
+            this.batchType = batchType;
+        }
+    }
 
     private String ksName = "cache";
     private int replicationFactor = 1;
+    private WriteMode writeMode = WriteMode.LOGGED_BATCH;
 
     private Cluster cluster;
     private Session session;
@@ -35,9 +66,11 @@ public class CassandraDao {
 // driver 2.0 only
 //        QueryOptions qo = new QueryOptions().setFetchSize(1).setConsistencyLevel(ConsistencyLevel.ONE);
 //        .withQueryOptions(qo)
+        // send each statement straight to a replica of its partition
         cluster = Cluster.builder()
                 .addContactPoint(node)
                 .withPort(port)
+                .withLoadBalancingPolicy(new TokenAwarePolicy(new DCAwareRoundRobinPolicy()))
                 .build();
         Metadata metadata = cluster.getMetadata();
         if (logger.isInfoEnabled()) {
@@ -64,19 +97,23 @@ public class CassandraDao {
                 String.format(
                         "INSERT INTO %s.data" +
                                 "(id, name, value) " +
-                                "VALUES (?, ?, ?);",
+                                "VALUES (?, ?, ?) USING TIMESTAMP ?;",
                         ksName));
 
         getStatement = session.prepare(
                 String.format(
-                        "SELECT name, value, writetime(value) AS ts FROM %s.data WHERE id = ?",
+                        "SELECT name, value, writetime(value) AS ts, ttl(value) AS ttl FROM %s.data WHERE id = ?",
                         ksName));
 
-        deleteStatement = session.prepare(
+        getColumnsStatement = session.prepare(
                 String.format(
-                        "DELETE value FROM %s.data WHERE id = ? and name = '%s'",
-                        ksName, DONT_INVALIDATE_CACHE_COLUMN));
+                        "SELECT name, value, writetime(value) AS ts, ttl(value) AS ttl FROM %s.data WHERE id = ? AND name IN ?",
+                        ksName));
 
+        scanKeysStatement = session.prepare(
+                String.format(
+                        "SELECT DISTINCT id FROM %s.data WHERE token(id) > ? AND token(id) <= ?",
+                        ksName));
     }
 
     private void createSchema() {
@@ -105,20 +142,123 @@ public class CassandraDao {
      * @param id
      * @return
      */
-    public Map<String, CachedColumn> get(String id) {
-        ResultSet res = session.execute(getStatement.bind(id));
-        Map<String, CachedColumn> data = new HashMap<>();
+    public PackedRow get(String id) {
+        return read(getStatement.bind(id), newRow());
+    }
+
+    /**
+     * Slice of a row - only the given columns are read.
+     *
+     * @param id row key
+     * @param columns names of the columns to read
+     * @return partial row with the columns that exist, null if none do
+     */
+    public PackedRow get(String id, Collection<String> columns) {
+        return read(getColumnsStatement.bind(id, new ArrayList<>(columns)), newRow().partial(true));
+    }
+
+    /**
+     * Tombstones aren't read back, so the row counts as deleted as of the read's start: a later
+     * write of a column it doesn't have must be newer to be applied to the cached row, an older
+     * one evicts it.  The time comes from {@link #inFlightWrites}, so this node's own writes after
+     * the read are always newer.
+     *
+     * <p/>There's no margin for clock skew, it would evict rows for every write within it.  A
+     * tombstone from a writer whose clock runs ahead of ours can be newer than the read, and a
+     * column it shadows, written from such a clock too, is then applied to the cached row until
+     * the row is reloaded or evicted.
+     */
+    private static PackedRow.Builder newRow() {
+        return PackedRow.builder().deletedAt(inFlightWrites.nextTimestamp());
+    }
+
+    private PackedRow read(BoundStatement statement, PackedRow.Builder data) {
+        ResultSet res = session.execute(statement);
         for (Row row : res) {
-            String name = row.getString("name");
-            if (DONT_INVALIDATE_CACHE_COLUMN.equals(name)) {
-                continue;
+            addColumn(data, row);
+        }
+        return toRow(data);
+    }
+
+    /**
+     * Non-blocking version of {@link #get(String)}.  Pages of wide rows are fetched asynchronously
+     * too, so the returned future never blocks a driver I/O thread.
+     *
+     * @param id row key
+     * @return future row, null if the row doesn't exist
+     */
+    public ListenableFuture<PackedRow> getAsync(String id) {
+        return readAsync(getStatement.bind(id), newRow());
+    }
+
+    /**
+     * Non-blocking version of {@link #get(String, Collection)}.
+     */
+    public ListenableFuture<PackedRow> getAsync(String id, Collection<String> columns) {
+        return readAsync(getColumnsStatement.bind(id, new ArrayList<>(columns)), newRow().partial(true));
+    }
+
+    private ListenableFuture<PackedRow> readAsync(BoundStatement statement, final PackedRow.Builder data) {
+        return Futures.transform(session.executeAsync(statement), new AsyncFunction<ResultSet, PackedRow>() {
+            @Override
+            public ListenableFuture<PackedRow> apply(ResultSet res) {
+                return readAvailable(res, data);
             }
-            String value = row.getString("value");
-            long ts = row.getLong("ts");
+        });
+    }
 
-            data.put(name, new CachedColumn(name, value, ts));
+    private ListenableFuture<PackedRow> readAvailable(final ResultSet res, final PackedRow.Builder data) {
+        for (int i = res.getAvailableWithoutFetching(); 0 < i; i--) {
+            addColumn(data, res.one());
+        }
+        if (res.isFullyFetched()) {
+            return Futures.immediateFuture(toRow(data));
         }
-        return !data.isEmpty() ? data : null;
+
+        return Futures.transform(res.fetchMoreResults(), new AsyncFunction<Void, PackedRow>() {
+            @Override
+            public ListenableFuture<PackedRow> apply(Void input) {
+                return readAvailable(res, data);
+            }
+        });
+    }
+
+    private void addColumn(PackedRow.Builder data, Row row) {
+        String name = row.getString("name");
+        String value = row.getString("value");
+        long ts = row.getLong("ts");
+
+        data.set(name, value, ts);
+        // whole seconds left to live as of cassandra's clock second, which may have been the one
+        // before ours.  better to reload a second early than to serve the column a second late
+        if (!row.isNull("ttl")) {
+            long nowSeconds = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+            data.expireBy(TimeUnit.SECONDS.toMillis(nowSeconds - 1 + row.getInt("ttl")));
+        }
+    }
+
+    private PackedRow toRow(PackedRow.Builder data) {
+        return 0 < data.size() ? data.build() : null;
+    }
+
+    /**
+     * Row keys in a range of the Murmur3 token ring, <code>(startToken, endToken]</code>.  Only the
+     * partition keys are read, a page of <code>fetchSize</code> at a time as the keys are iterated.
+     *
+     * @param startToken exclusive, <code>Long.MIN_VALUE</code> for the start of the ring
+     * @param endToken inclusive
+     * @param fetchSize keys per page
+     * @return keys in token order
+     */
+    public Iterable<String> scanKeys(long startToken, long endToken, int fetchSize) {
+        BoundStatement statement = scanKeysStatement.bind(startToken, endToken);
+        statement.setFetchSize(fetchSize);
+        return Iterables.transform(session.execute(statement), new Function<Row, String>() {
+            @Override
+            public String apply(Row row) {
+                return row.getString("id");
+            }
+        });
     }
 
     /**
@@ -128,11 +268,115 @@ public class CassandraDao {
      * @param data columns
      */
     public void put(String id, Map<String, CachedColumn> data) {
-        BatchStatement batch = new BatchStatement();
-        batch.add(deleteStatement.bind(id));
-        for (CachedColumn col : data.values()) {
-            batch.add(putStatement.bind(id, col.getName(), col.getData().toString()));
+        put(id, PackedRow.fromMap(data));
+    }
+
+    /**
+     * insert data into row with key = id, using the default {@link WriteMode}.
+     *
+     * @param id row key
+     * @param data columns
+     */
+    public void put(String id, PackedRow data) {
+        put(id, data, writeMode);
+    }
+
+    /**
+     * insert data into row with key = id.
+     *
+     * @param id row key
+     * @param data columns
+     * @param mode how the columns are written
+     */
+    public void put(String id, PackedRow data, WriteMode mode) {
+        if (0 == data.size()) {
+            return;
         }
-        session.execute(batch);
+        long timestamp = inFlightWrites.nextTimestamp();
+        inFlightWrites.add(id, timestamp);
+        try {
+            session.execute(putBatch(id, data, mode, timestamp));
+        }
+        finally {
+            inFlightWrites.remove(id, timestamp);
+        }
+    }
+
+    /**
+     * Non-blocking version of {@link #put(String, PackedRow)}.
+     *
+     * @param id row key
+     * @param data columns
+     * @return completes when the write is acknowledged
+     */
+    public ListenableFuture<Void> putAsync(String id, PackedRow data) {
+        return putAsync(id, data, writeMode);
+    }
+
+    /**
+     * Non-blocking version of {@link #put(String, PackedRow, WriteMode)}.
+     */
+    public ListenableFuture<Void> putAsync(String id, PackedRow data, WriteMode mode) {
+        return putAsync(id, data, mode, inFlightWrites.nextTimestamp());
+    }
+
+    /**
+     * Non-blocking write with a timestamp the caller took from {@link InFlightWrites#nextTimestamp()},
+     * e.g. the one it stamped its cached copy of the row with, so the cache and Cassandra agree
+     * on which of two writes is newer.
+     *
+     * @param timestamp microseconds, the same for every column
+     */
+    public ListenableFuture<Void> putAsync(String id, PackedRow data, long timestamp) {
+        return putAsync(id, data, writeMode, timestamp);
+    }
+
+    private ListenableFuture<Void> putAsync(final String id, PackedRow data, WriteMode mode, final long timestamp) {
+        if (0 == data.size()) {
+            return Futures.immediateFuture(null);
+        }
+        inFlightWrites.add(id, timestamp);
+        ResultSetFuture future;
+        try {
+            future = session.executeAsync(putBatch(id, data, mode, timestamp));
+        }
+        catch (RuntimeException | Error e) {
+            // never sent, so never acknowledged either
+            inFlightWrites.remove(id, timestamp);
+            throw e;
+        }
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                inFlightWrites.remove(id, timestamp);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return Futures.transform(future, new Function<ResultSet, Void>() {
+            @Override
+            public Void apply(ResultSet input) {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Every column is written with the same timestamp, the one the write is registered under in
+     * {@link #inFlightWrites}.
+     */
+    private BatchStatement putBatch(String id, PackedRow data, WriteMode mode, long timestamp) {
+        // every statement is bound to the same row key, so the batch routes to its replicas
+        BatchStatement batch = new BatchStatement(mode.batchType);
+        for (int i = 0; i < data.size(); i++) {
+            batch.add(putStatement.bind(id, data.name(i), data.value(i).toString(), timestamp));
+        }
+        return batch;
+    }
+
+    public WriteMode getWriteMode() {
+        return writeMode;
+    }
+
+    public void setWriteMode(WriteMode writeMode) {
+        this.writeMode = writeMode;
     }
 }
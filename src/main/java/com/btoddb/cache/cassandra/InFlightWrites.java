@@ -0,0 +1,89 @@
+package com.btoddb.cache.cassandra;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Writes this node's cache has sent to Cassandra and not yet seen acknowledged, by row key and
+ * write timestamp.  The trigger runs before the write is acknowledged, so it can tell a mutation
+ * the cache made - and already has - from one made by another client with a single lookup,
+ * without the mutation carrying a marker of its own.
+ *
+ * <p/>Only writes coordinated by this node are recognised.  A write another node coordinates is
+ * applied to that node's cache like any other, which is right as the cache there doesn't have it.
+ */
+public class InFlightWrites {
+    private final Set<Write> writes = Collections.newSetFromMap(new ConcurrentHashMap<Write, Boolean>());
+    private final AtomicLong lastTimestamp = new AtomicLong();
+
+
+    /**
+     * @return a write timestamp in microseconds, later than any handed out before
+     */
+    public long nextTimestamp() {
+        long now = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+        for (;;) {
+            long last = lastTimestamp.get();
+            long next = Math.max(now, last + 1);
+            if (lastTimestamp.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Register a write before sending it.
+     */
+    public void add(String key, long timestamp) {
+        writes.add(new Write(key, timestamp));
+    }
+
+    /**
+     * The write was acknowledged or failed, the trigger has seen it if it ever will.
+     */
+    public void remove(String key, long timestamp) {
+        writes.remove(new Write(key, timestamp));
+    }
+
+    /**
+     * @return true if the cache made this write
+     */
+    public boolean contains(String key, long timestamp) {
+        return writes.contains(new Write(key, timestamp));
+    }
+
+    public int size() {
+        return writes.size();
+    }
+
+    private static class Write {
+        final String key;
+        final long timestamp;
+
+        Write(String key, long timestamp) {
+            this.key = key;
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Write)) {
+                return false;
+            }
+            Write write = (Write) o;
+            return timestamp == write.timestamp && key.equals(write.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * key.hashCode() + (int) (timestamp ^ (timestamp >>> 32));
+        }
+    }
+}
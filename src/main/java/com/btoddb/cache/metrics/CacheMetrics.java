@@ -0,0 +1,491 @@
+package com.btoddb.cache.metrics;
+
+import com.btoddb.cache.AsyncCacheUpdater;
+import com.btoddb.cache.CacheWarmer;
+import com.btoddb.cache.CachingService;
+import com.btoddb.cache.CachingServiceUsingEhcache;
+import com.btoddb.cache.CoherenceChannel;
+import com.btoddb.cache.EHCacheUpdateTrigger;
+import com.btoddb.cache.KeyLocks;
+import com.btoddb.cache.NegativeCache;
+import com.btoddb.cache.ReadThroughLoader;
+import com.btoddb.cache.TinyLfuAdmissionPolicy;
+import com.btoddb.cache.WriteBehindQueue;
+import com.btoddb.cache.rest.RequestForwarder;
+import com.btoddb.cache.rest.RestServiceImpl;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+
+/**
+ * Publishes the counters and latency recorders the cache's components keep for themselves, over
+ * JMX and <code>GET /v1/metrics</code>.  Nothing here is on the request path - values are only
+ * read when asked for.
+ *
+ * <p/>Latencies are published as <code>name.count</code>, <code>name.meanMicros</code>,
+ * <code>name.p50Micros</code>, <code>name.p99Micros</code>, <code>name.p999Micros</code> and
+ * <code>name.maxMicros</code>.
+ */
+public class CacheMetrics {
+    public static final String JMX_DOMAIN = "com.btoddb.cache";
+
+    private final MetricRegistry registry = new MetricRegistry();
+    private JmxReporter jmxReporter;
+
+
+    public void registerRestService(RestServiceImpl restService) {
+        registerLatency("rest.get", restService.getGetLatency());
+        registerLatency("rest.put", restService.getPutLatency());
+        registerLatency("rest.multiget", restService.getMultigetLatency());
+    }
+
+    public void registerLoader(final ReadThroughLoader loader) {
+        registerLatency("loader.cassandraLoad", loader.getLoadLatency());
+        register("loader.loads", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return loader.getLoadCount();
+            }
+        });
+        register("loader.columnLoads", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return loader.getColumnLoadCount();
+            }
+        });
+        register("loader.coalesced", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return loader.getCoalescedCount();
+            }
+        });
+        register("loader.staleLoads", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return loader.getStaleLoadCount();
+            }
+        });
+        register("loader.failures", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return loader.getFailureCount();
+            }
+        });
+        register("loader.expired", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return loader.getExpiredCount();
+            }
+        });
+        register("loader.refreshes", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return loader.getRefreshCount();
+            }
+        });
+    }
+
+    public void registerNegativeCache(final NegativeCache negativeCache) {
+        register("negativeCache.size", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return negativeCache.size();
+            }
+        });
+        register("negativeCache.hits", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return negativeCache.getHitCount();
+            }
+        });
+        register("negativeCache.added", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return negativeCache.getAddedCount();
+            }
+        });
+        register("negativeCache.rejected", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return negativeCache.getRejectedCount();
+            }
+        });
+    }
+
+    public void registerTrigger() {
+        registerLatency("trigger.update", EHCacheUpdateTrigger.getUpdateLatency());
+        register("trigger.optimisticUpdates", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return EHCacheUpdateTrigger.getOptimisticUpdateCount();
+            }
+        });
+        register("trigger.lockedUpdates", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return EHCacheUpdateTrigger.getLockedUpdateCount();
+            }
+        });
+        register("trigger.skippedUpdates", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return EHCacheUpdateTrigger.getSkippedUpdateCount();
+            }
+        });
+        register("trigger.invalidations", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return EHCacheUpdateTrigger.getInvalidationCount();
+            }
+        });
+        register("trigger.rowDeletions", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return EHCacheUpdateTrigger.getRowDeletionCount();
+            }
+        });
+    }
+
+    public void registerCacheUpdater(final AsyncCacheUpdater updater) {
+        register("trigger.queue.depth", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return updater.getQueueDepth();
+            }
+        });
+        register("trigger.queue.dropped", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return updater.getDroppedCount();
+            }
+        });
+        register("trigger.queue.lastLagMillis", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return updater.getLastLagMillis();
+            }
+        });
+    }
+
+    public void registerWarmer(final CacheWarmer warmer) {
+        register("warmUp.target", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return warmer.getTargetCount();
+            }
+        });
+        register("warmUp.processed", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return warmer.getProcessedCount();
+            }
+        });
+        register("warmUp.loaded", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return warmer.getLoadedCount();
+            }
+        });
+        register("warmUp.failed", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return warmer.getFailedCount();
+            }
+        });
+        register("warmUp.ready", new Gauge<Boolean>() {
+            @Override
+            public Boolean getValue() {
+                return warmer.isReady();
+            }
+        });
+    }
+
+    public void registerCoherence(final CoherenceChannel coherence) {
+        registerLatency("coherence.propagationLag", coherence.getPropagationLag());
+        register("coherence.published", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return coherence.getPublishedCount();
+            }
+        });
+        register("coherence.dropped", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return coherence.getDroppedCount();
+            }
+        });
+        register("coherence.queueDepth", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return coherence.getQueueDepth();
+            }
+        });
+        register("coherence.sentFrames", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return coherence.getSentFrameCount();
+            }
+        });
+        register("coherence.sentBytes", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return coherence.getSentBytes();
+            }
+        });
+        register("coherence.uncompressedBytes", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return coherence.getUncompressedBytes();
+            }
+        });
+        register("coherence.undelivered", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return coherence.getUndeliveredCount();
+            }
+        });
+        register("coherence.oversized", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return coherence.getOversizedCount();
+            }
+        });
+        register("coherence.rejectedConnections", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return coherence.getRejectedConnectionCount();
+            }
+        });
+        register("coherence.received", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return coherence.getReceivedCount();
+            }
+        });
+        register("coherence.applied", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return coherence.getAppliedCount();
+            }
+        });
+        register("coherence.failed", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return coherence.getFailedCount();
+            }
+        });
+        register("coherence.lastLagMillis", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return coherence.getLastLagMillis();
+            }
+        });
+        register("coherence.maxLagMillis", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return coherence.getMaxLagMillis();
+            }
+        });
+    }
+
+    public void registerForwarder(final RequestForwarder forwarder) {
+        register("ownership.forwarded", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return forwarder.getForwardedCount();
+            }
+        });
+        register("ownership.forwardFailures", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return forwarder.getFailureCount();
+            }
+        });
+        register("ownership.forwardRejected", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return forwarder.getRejectedCount();
+            }
+        });
+    }
+
+    public void registerWriteBehind(final WriteBehindQueue writeBehind) {
+        registerLatency("writeBehind.flush", writeBehind.getFlushLatency());
+        register("writeBehind.pending", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return writeBehind.getPendingCount();
+            }
+        });
+        register("writeBehind.pendingBytes", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return writeBehind.getPendingBytes();
+            }
+        });
+        register("writeBehind.accepted", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return writeBehind.getAcceptedCount();
+            }
+        });
+        register("writeBehind.coalesced", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return writeBehind.getCoalescedCount();
+            }
+        });
+        register("writeBehind.rejected", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return writeBehind.getRejectedCount();
+            }
+        });
+        register("writeBehind.written", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return writeBehind.getWrittenCount();
+            }
+        });
+        register("writeBehind.failed", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return writeBehind.getFailedCount();
+            }
+        });
+    }
+
+    /**
+     * @param tableName keyspace.columnFamily
+     */
+    public void registerTable(String tableName, final CachingService cachingService) {
+        String prefix = "tables." + tableName + ".";
+        register(prefix + "hits", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return cachingService.hits();
+            }
+        });
+        register(prefix + "misses", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return cachingService.misses();
+            }
+        });
+        register(prefix + "puts", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return cachingService.puts();
+            }
+        });
+        // the off-heap store evicts internally without telling anyone
+        if (cachingService instanceof CachingServiceUsingEhcache) {
+            register(prefix + "evictions", new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return ((CachingServiceUsingEhcache) cachingService).evictions();
+                }
+            });
+        }
+        final TinyLfuAdmissionPolicy admission = cachingService instanceof CachingServiceUsingEhcache
+                ? ((CachingServiceUsingEhcache) cachingService).getAdmissionPolicy() : null;
+        if (null != admission) {
+            register(prefix + "admission.admitted", new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return admission.getAdmittedCount();
+                }
+            });
+            register(prefix + "admission.rejected", new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return admission.getRejectedCount();
+                }
+            });
+        }
+
+        final KeyLocks keyLocks = cachingService.getKeyLocks();
+        register(prefix + "lock.contended", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return keyLocks.getContendedCount();
+            }
+        });
+        registerLatency(prefix + "lock.wait", keyLocks.getWaitLatency());
+    }
+
+    public void registerLatency(String name, final LatencyRecorder recorder) {
+        register(name + ".count", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return recorder.snapshot().getCount();
+            }
+        });
+        register(name + ".meanMicros", new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return recorder.snapshot().getMeanMicros();
+            }
+        });
+        registerPercentile(name + ".p50Micros", recorder, 0.5);
+        registerPercentile(name + ".p99Micros", recorder, 0.99);
+        registerPercentile(name + ".p999Micros", recorder, 0.999);
+        register(name + ".maxMicros", new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return recorder.snapshot().getMaxMicros();
+            }
+        });
+    }
+
+    private void registerPercentile(String name, final LatencyRecorder recorder, final double quantile) {
+        register(name, new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return recorder.snapshot().getValueMicros(quantile);
+            }
+        });
+    }
+
+    /**
+     * Register the gauge, replacing one already registered under the name.
+     */
+    public void register(String name, Gauge<?> gauge) {
+        registry.remove(name);
+        registry.register(name, gauge);
+    }
+
+    /**
+     * @return every metric's current value, by name
+     */
+    public SortedMap<String, Object> getValues() {
+        SortedMap<String, Object> values = new TreeMap<>();
+        for (Map.Entry<String, Gauge> entry : registry.getGauges().entrySet()) {
+            values.put(entry.getKey(), entry.getValue().getValue());
+        }
+        return values;
+    }
+
+    public synchronized void startJmx() {
+        if (null == jmxReporter) {
+            jmxReporter = JmxReporter.forRegistry(registry).inDomain(JMX_DOMAIN).build();
+            jmxReporter.start();
+        }
+    }
+
+    public synchronized void stopJmx() {
+        if (null != jmxReporter) {
+            jmxReporter.stop();
+            jmxReporter = null;
+        }
+    }
+
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+}
@@ -0,0 +1,136 @@
+package com.btoddb.cache.metrics;
+
+import com.codahale.metrics.Counter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Latency histogram in the style of HdrHistogram.  Values below 64ns are counted exactly, larger
+ * ones in buckets 1/32 of their power of two wide, so any percentile is within about 3% of the
+ * true value across the whole range of a long.
+ *
+ * <p/>Recording is a bucket increment and a sum, no locks and no allocation, so recorders can sit
+ * on the request path.  Counts are cumulative since the recorder was created.
+ */
+public class LatencyRecorder {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values below this get a bucket each
+    private static final int EXACT = SUB_BUCKETS * 2;
+    // one set of sub buckets per power of two from EXACT up to Long.MAX_VALUE
+    static final int BUCKETS = EXACT + (62 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    // striped, so threads recording at once don't fight over one cache line
+    private final Counter totalNanos = new Counter();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+
+    /**
+     * @param startNanos {@link System#nanoTime()} at the start of the operation
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public void record(long nanos) {
+        if (0 > nanos) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucketOf(nanos));
+        totalNanos.inc(nanos);
+
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, totalNanos.getCount(), maxNanos.get());
+    }
+
+    static int bucketOf(long value) {
+        if (value < EXACT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return EXACT + (shift - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return largest value counted in the bucket
+     */
+    static long highestValueIn(int bucket) {
+        if (bucket < EXACT) {
+            return bucket;
+        }
+        int shift = (bucket - EXACT) / SUB_BUCKETS + 1;
+        long subBucket = (bucket - EXACT) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Point in time copy of a recorder.  Values are reported in microseconds.
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+
+        Snapshot(long[] counts, long count, long totalNanos, long maxNanos) {
+            this.counts = counts;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMicros() {
+            return 0 < count ? toMicros(totalNanos) / count : 0;
+        }
+
+        public double getMaxMicros() {
+            return toMicros(maxNanos);
+        }
+
+        /**
+         * @param quantile between 0 and 1, e.g. 0.99
+         * @return the value <code>quantile</code> of the recorded values are at or below, 0 if
+         * nothing was recorded
+         */
+        public double getValueMicros(double quantile) {
+            if (0 == count) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    // a bucket's upper bound can be past anything actually recorded
+                    return toMicros(Math.min(highestValueIn(i), maxNanos));
+                }
+            }
+            return toMicros(maxNanos);
+        }
+
+        private static double toMicros(long nanos) {
+            return (double) nanos / TimeUnit.MICROSECONDS.toNanos(1);
+        }
+    }
+}
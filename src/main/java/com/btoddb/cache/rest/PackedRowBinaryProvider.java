@@ -0,0 +1,98 @@
+package com.btoddb.cache.rest;
+
+import com.btoddb.cache.PackedRow;
+import com.btoddb.cache.PackedRowWireFormat;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+
+/**
+ * Reads and writes rows as {@link PackedRowWireFormat#MEDIA_TYPE}, for clients that ask for it
+ * with <code>Accept</code> or send it as <code>Content-Type</code>.
+ */
+@Provider
+@Produces(PackedRowWireFormat.MEDIA_TYPE)
+@Consumes(PackedRowWireFormat.MEDIA_TYPE)
+public class PackedRowBinaryProvider implements MessageBodyReader<PackedRow>, MessageBodyWriter<PackedRow> {
+    public static final MediaType MEDIA_TYPE = MediaType.valueOf(PackedRowWireFormat.MEDIA_TYPE);
+
+    private long maxBodyBytes = 64 * 1024 * 1024;
+
+
+    @Override
+    public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return PackedRow.class == type;
+    }
+
+    @Override
+    public PackedRow readFrom(Class<PackedRow> type, Type genericType, Annotation[] annotations,
+                              MediaType mediaType, MultivaluedMap<String, String> httpHeaders,
+                              InputStream entityStream) throws IOException {
+        long maxBytes = maxBodyBytes;
+        String contentLength = null != httpHeaders ? httpHeaders.getFirst(HttpHeaders.CONTENT_LENGTH) : null;
+        if (null != contentLength) {
+            maxBytes = Math.min(maxBytes, Long.parseLong(contentLength));
+        }
+
+        // small bodies don't need the default 8k buffer
+        int bufferSize = (int) Math.max(1, Math.min(maxBytes, 8192));
+        try {
+            return PackedRowWireFormat.read(new DataInputStream(new BufferedInputStream(entityStream, bufferSize)),
+                                            maxBytes);
+        }
+        catch (IOException e) {
+            throw new WebApplicationException(e, Response.status(Response.Status.BAD_REQUEST)
+                                                         .type(MediaType.TEXT_PLAIN)
+                                                         .entity("Malformed row: " + e.getMessage())
+                                                         .build());
+        }
+    }
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return PackedRow.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public long getSize(PackedRow row, Class<?> type, Type genericType, Annotation[] annotations,
+                        MediaType mediaType) {
+        return PackedRowWireFormat.encodedSize(row);
+    }
+
+    @Override
+    public void writeTo(PackedRow row, Class<?> type, Type genericType, Annotation[] annotations,
+                        MediaType mediaType, MultivaluedMap<String, Object> httpHeaders,
+                        OutputStream entityStream) throws IOException {
+        // encoded in one exactly sized buffer and handed over in one write, the container's
+        // stream is several wrappers deep.  it owns the stream, so don't close it
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(PackedRowWireFormat.encodedSize(row));
+        PackedRowWireFormat.write(row, new DataOutputStream(buffer));
+        buffer.writeTo(entityStream);
+    }
+
+    public long getMaxBodyBytes() {
+        return maxBodyBytes;
+    }
+
+    public void setMaxBodyBytes(long maxBodyBytes) {
+        this.maxBodyBytes = maxBodyBytes;
+    }
+}
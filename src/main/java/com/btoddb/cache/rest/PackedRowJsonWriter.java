@@ -0,0 +1,95 @@
+package com.btoddb.cache.rest;
+
+import com.btoddb.cache.PackedRow;
+import com.btoddb.cache.PackedRowSerializer;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+
+/**
+ * Writes a {@link PackedRow} response with Jackson's streaming generator, straight from the
+ * packed bytes to the entity stream.  Saves the JSON provider's per-request writer lookup and
+ * the map of {@link com.btoddb.cache.CachedColumn} beans it would otherwise walk.
+ *
+ * <p/>With <code>keepEncoded</code> the bytes are also kept on the row, and later responses for
+ * the same row version are a single copy to the stream.  A write to the row replaces it with a
+ * new {@link PackedRow}, so the kept bytes can't outlive the data they encode.  Only worth it
+ * when the cache hands out the same instance on every hit, i.e. not with the off-heap store.
+ */
+@Provider
+@Produces(MediaType.APPLICATION_JSON)
+public class PackedRowJsonWriter implements MessageBodyWriter<PackedRow> {
+    private final ObjectMapper objectMapper;
+    private final boolean keepEncoded;
+
+    public PackedRowJsonWriter() {
+        this(new ObjectMapper(), false);
+    }
+
+    /**
+     * @param objectMapper codec for the few value types JSON has no literal for, e.g. dates
+     * @param keepEncoded true to keep each row's encoded bytes for the next response
+     */
+    public PackedRowJsonWriter(ObjectMapper objectMapper, boolean keepEncoded) {
+        // the container owns the entity stream
+        this.objectMapper = objectMapper.copy().configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+        this.keepEncoded = keepEncoded;
+    }
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return PackedRow.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public long getSize(PackedRow row, Class<?> type, Type genericType, Annotation[] annotations,
+                        MediaType mediaType) {
+        byte[] json = row.getEncodedJson();
+        return null != json ? json.length : -1;
+    }
+
+    @Override
+    public void writeTo(PackedRow row, Class<?> type, Type genericType, Annotation[] annotations,
+                        MediaType mediaType, MultivaluedMap<String, Object> httpHeaders,
+                        OutputStream entityStream) throws IOException {
+        byte[] json = row.getEncodedJson();
+        if (null != json) {
+            entityStream.write(json);
+        }
+        // partial rows are mostly one-off projections, not what the cache holds
+        else if (keepEncoded && !row.isPartial()) {
+            json = encode(row);
+            row.setEncodedJson(json);
+            entityStream.write(json);
+        }
+        else {
+            write(row, entityStream);
+        }
+    }
+
+    private byte[] encode(PackedRow row) throws IOException {
+        // column count is a fair guess at the size, no need to be exact
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + 64 * row.size());
+        write(row, out);
+        return out.toByteArray();
+    }
+
+    private void write(PackedRow row, OutputStream out) throws IOException {
+        JsonGenerator gen = objectMapper.getFactory().createGenerator(out, JsonEncoding.UTF8);
+        PackedRowSerializer.writeRow(row, gen);
+        // returns the generator's buffers for reuse, but leaves the stream open
+        gen.close();
+    }
+}
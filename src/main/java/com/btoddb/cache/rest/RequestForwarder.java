@@ -0,0 +1,218 @@
+package com.btoddb.cache.rest;
+
+import com.btoddb.cache.PackedRow;
+import com.btoddb.cache.PackedRowWireFormat;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.apache.cxf.helpers.IOUtils;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Sends GETs and PUTs for rows this node doesn't own to the REST service of a node that does,
+ * and hands back the owner's response as is.  Requests are marked with {@link #FORWARDED_HEADER}
+ * so the owner answers them itself even if its view of the ring differs.
+ *
+ * <p/>HTTP calls block, so they run on a small pool of their own and the caller gets a future.
+ * A future fails if the owner couldn't be reached, or if the pool's queue is full, and the caller
+ * answers the request itself; error responses are passed on.
+ */
+public class RequestForwarder {
+    public static final String FORWARDED_HEADER = "X-Cache-Forwarded";
+
+    private final int port;
+    private final int timeoutMillis;
+    private final ListeningExecutorService executor;
+
+    private final AtomicLong forwarded = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+
+    /**
+     * @param port the owners' REST port, the same on every node
+     * @param threads most requests forwarded at the same time
+     * @param queueCapacity most requests waiting for a thread, more are answered here
+     * @param timeoutMillis connect and read timeout
+     */
+    public RequestForwarder(int port, int threads, int queueCapacity, int timeoutMillis) {
+        this.port = port;
+        this.timeoutMillis = timeoutMillis;
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = MoreExecutors.listeningDecorator(new ThreadPoolExecutor(
+                threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "rest-forwarder-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }));
+    }
+
+    /**
+     * @param columns the request's columns parameter, null if it had none
+     * @param accept the request's Accept header, null for JSON
+     */
+    public ListenableFuture<Response> get(final InetAddress owner, final String id, final String columns,
+                                          final String accept) {
+        return submit(new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                try {
+                    HttpURLConnection conn = open(owner, "/v1/get/" + encode(id),
+                                                  null != columns ? "columns=" + encode(columns) : null);
+                    if (null != accept) {
+                        conn.setRequestProperty(HttpHeaders.ACCEPT, accept);
+                    }
+                    return execute(conn);
+                }
+                catch (IOException e) {
+                    failures.incrementAndGet();
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * The row is sent in the binary row format whichever way it came in.
+     */
+    public ListenableFuture<Response> put(final InetAddress owner, final String id, final PackedRow row) {
+        return submit(new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                try {
+                    HttpURLConnection conn = open(owner, "/v1/put/" + encode(id), null);
+                    conn.setRequestMethod("PUT");
+                    conn.setRequestProperty(HttpHeaders.CONTENT_TYPE, PackedRowWireFormat.MEDIA_TYPE);
+                    conn.setDoOutput(true);
+                    conn.setFixedLengthStreamingMode(PackedRowWireFormat.encodedSize(row));
+                    try (DataOutputStream out = new DataOutputStream(conn.getOutputStream())) {
+                        PackedRowWireFormat.write(row, out);
+                    }
+                    return execute(conn);
+                }
+                catch (IOException e) {
+                    failures.incrementAndGet();
+                    throw e;
+                }
+            }
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ListenableFuture<Response> submit(Callable<Response> call) {
+        try {
+            return executor.submit(call);
+        }
+        catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    /**
+     * Percent-encode all but the characters a path segment and a query value both take as they
+     * are, so an id with a '/' stays one segment and a column name with a '&amp;' one value.
+     */
+    static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20").replace("*", "%2A").replace("%7E", "~");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param path encoded path
+     * @param query encoded query, null for none
+     */
+    private HttpURLConnection open(InetAddress owner, String path, String query) throws IOException {
+        // URL brackets an IPv6 address
+        URL url = new URL("http", owner.getHostAddress(), port, null != query ? path + "?" + query : path);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(timeoutMillis);
+        conn.setReadTimeout(timeoutMillis);
+        conn.setRequestProperty(FORWARDED_HEADER, "true");
+        return conn;
+    }
+
+    private Response execute(HttpURLConnection conn) throws IOException {
+        int status = conn.getResponseCode();
+        Response.ResponseBuilder response = Response.status(status);
+        InputStream in = 400 > status ? conn.getInputStream() : conn.getErrorStream();
+        if (null != in) {
+            try {
+                byte[] body = IOUtils.readBytesFromStream(in);
+                if (0 < body.length) {
+                    response.entity(body);
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        if (null != conn.getContentType()) {
+            response.type(conn.getContentType());
+        }
+        forwarded.incrementAndGet();
+        return response.build();
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return requests the owner answered, whatever the status
+     */
+    public long getForwardedCount() {
+        return forwarded.get();
+    }
+
+    /**
+     * @return requests the owner couldn't be reached for, and were answered here instead
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * @return requests that found the queue full, and were answered here instead
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+}
@@ -1,60 +1,399 @@
 package com.btoddb.cache.rest;
 
+import com.btoddb.cache.CacheWarmer;
 import com.btoddb.cache.CachingService;
 import com.btoddb.cache.CachedColumn;
+import com.btoddb.cache.PackedRow;
+import com.btoddb.cache.PackedRowSerializer;
+import com.btoddb.cache.PackedRowWireFormat;
+import com.btoddb.cache.ReadThroughLoader;
+import com.btoddb.cache.TokenOwnership;
+import com.btoddb.cache.WriteBehindQueue;
 import com.btoddb.cache.cassandra.CassandraDao;
+import com.btoddb.cache.metrics.CacheMetrics;
+import com.btoddb.cache.metrics.LatencyRecorder;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
-import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 
+/**
+ * All calls are asynchronous - the request is suspended while Cassandra is read or written and
+ * resumed from the driver's callback, so no server thread waits on Cassandra.
+ *
+ * <p/>With a {@link TokenOwnership}, GETs and PUTs of rows this node doesn't replicate are sent to
+ * a replica that does, and answered from here without caching the row only if none can be
+ * reached.  Multigets read rows owned elsewhere from Cassandra, uncached, rather than adding a hop
+ * to each of their owners.
+ */
 @Path("/v1")
 public class RestServiceImpl {
     private CachingService cachingService;
     private CassandraDao cassandraDao;
+    private ReadThroughLoader rowLoader;
+    private WriteBehindQueue writeBehind;
+    private CacheWarmer warmer;
+    private TokenOwnership ownership;
+    private RequestForwarder forwarder;
+    private ObjectMapper objectMapper = new ObjectMapper();
+    private int multigetMaxIds = 1000;
+    private CacheMetrics metrics;
+
+    // time until the response is ready, writing it out isn't included
+    private final LatencyRecorder getLatency = new LatencyRecorder();
+    private final LatencyRecorder putLatency = new LatencyRecorder();
+    private final LatencyRecorder multigetLatency = new LatencyRecorder();
 
     /**
      *
      * @param id
-     * @param response
-     * @return
-     * @throws Exception
+     * @param columns comma separated column names to return, all of them if not given or empty
+     * @param headers tell whether another node forwarded the request.  null if called directly
+     * @param asyncResponse resumed with the row, or 404 if it has none of the columns.  JSON unless
+     *                      the binary row format is asked for with Accept
      */
     @GET
     @Path("/get/{id}")
-    @Produces(MediaType.APPLICATION_JSON)
-    public Map<String, CachedColumn> get(
+    @Produces({MediaType.APPLICATION_JSON, PackedRowWireFormat.MEDIA_TYPE})
+    public void get(
             @PathParam("id") final String id,
-            @Context final HttpServletResponse response) throws Exception {
-        Map<String, CachedColumn> row = cachingService.get(id);
-        if (null == row) {
-            row = cassandraDao.get(id);
-            if (null != row) {
-                cassandraDao.put(id, row);
+            @QueryParam("columns") final String columns,
+            @Context HttpHeaders headers,
+            @Suspended final AsyncResponse asyncResponse) {
+        final long start = System.nanoTime();
+        InetAddress owner = getOwnerElsewhere(id, headers);
+        if (null == owner) {
+            getLocal(id, columns, asyncResponse, start);
+            return;
+        }
+
+        String accept = null != headers ? headers.getHeaderString(HttpHeaders.ACCEPT) : null;
+        Futures.addCallback(forwarder.get(owner, id, columns, accept),
+                            new Forwarded(asyncResponse, getLatency, start) {
+            @Override
+            void answerHere() {
+                getLocal(id, columns, asyncResponse, start);
             }
-            else {
-                response.sendError(HttpServletResponse.SC_NOT_FOUND, "Could not find object with ID = " + id);
+        });
+    }
+
+    private void getLocal(final String id, String columns, AsyncResponse asyncResponse, long start) {
+        Futures.addCallback(rowLoader.getAsync(id, parseColumns(columns)),
+                            new Resumer<PackedRow>(asyncResponse, getLatency, start) {
+            @Override
+            public void onSuccess(PackedRow row) {
+                if (null != row) {
+                    resume(row);
+                }
+                else {
+                    resume(notFound("Could not find object with ID = " + id));
+                }
             }
-        }
+        });
+    }
 
-        return row;
+    private static SortedSet<String> parseColumns(String columns) {
+        if (null == columns) {
+            return null;
+        }
+        SortedSet<String> names = new TreeSet<>();
+        for (String name : columns.split(",")) {
+            name = name.trim();
+            if (!name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        return !names.isEmpty() ? names : null;
     }
 
     /**
      *
      * @param row
+     * @param headers tell whether another node forwarded the request.  null if called directly
+     * @param asyncResponse resumed once Cassandra acknowledges the write, or as soon as the row
+     *                      is cached when writing behind
      */
     @PUT
     @Path("/put/{id}")
     @Consumes(MediaType.APPLICATION_JSON)
     public void put(
             @PathParam("id") String id,
-            Map<String, CachedColumn> row) {
-        cachingService.put(id, row);
-        cassandraDao.put(id, row);
+            Map<String, CachedColumn> row,
+            @Context HttpHeaders headers,
+            @Suspended final AsyncResponse asyncResponse) {
+        long start = System.nanoTime();
+        put(id, PackedRow.fromMap(row), headers, asyncResponse, start);
+    }
+
+    /**
+     * {@link #put(String, Map, HttpHeaders, AsyncResponse)} for a row sent in the binary row format.
+     */
+    @PUT
+    @Path("/put/{id}")
+    @Consumes(PackedRowWireFormat.MEDIA_TYPE)
+    public void putRow(
+            @PathParam("id") String id,
+            PackedRow row,
+            @Context HttpHeaders headers,
+            @Suspended final AsyncResponse asyncResponse) {
+        put(id, row, headers, asyncResponse, System.nanoTime());
+    }
+
+    private void put(final String id, final PackedRow packed, HttpHeaders headers, final AsyncResponse asyncResponse,
+                     final long start) {
+        if (null == ownership || ownership.isOwned(id)) {
+            putLocal(id, packed, true, asyncResponse, start);
+            return;
+        }
+
+        InetAddress owner = isForwarded(headers) ? null : ownership.getOwner(id);
+        if (null == owner) {
+            putLocal(id, packed, false, asyncResponse, start);
+            return;
+        }
+        Futures.addCallback(forwarder.put(owner, id, packed), new Forwarded(asyncResponse, putLatency, start) {
+            @Override
+            void answerHere() {
+                putLocal(id, packed, false, asyncResponse, start);
+            }
+        });
+    }
+
+    /**
+     * @param cache false to only write the row, this node doesn't own it
+     */
+    private void putLocal(String id, PackedRow row, boolean cache, AsyncResponse asyncResponse, long start) {
+        // cached and written with the same timestamp, so later writes compare against what Cassandra has
+        long timestamp = CassandraDao.inFlightWrites.nextTimestamp();
+        PackedRow packed = row.withTimestamp(timestamp);
+        // the row replaces whatever a load or refresh in flight read
+        rowLoader.markStale(id);
+        if (cache) {
+            cachePut(id, packed);
+        }
+        // a full write-behind queue pushes back by writing through
+        if (cache && null != writeBehind && writeBehind.offer(id, packed)) {
+            putLatency.recordSince(start);
+            asyncResponse.resume(Response.noContent().build());
+            return;
+        }
+        Futures.addCallback(cassandraDao.putAsync(id, packed, timestamp), new Resumer<Void>(asyncResponse, putLatency, start) {
+            @Override
+            public void onSuccess(Void result) {
+                resume(Response.noContent().build());
+            }
+        });
+    }
+
+    /**
+     * A PUT needn't send every column of the row, so it is merged into the cached row.  With no
+     * row cached it is cached partial, Cassandra may have columns it didn't send.  The PUT's
+     * columns are newer than any cached, its timestamp was only just taken.
+     */
+    private void cachePut(String id, PackedRow packed) {
+        // the lock keeps PUTs of the row from starving each other, other writers swap so we do too
+        cachingService.acquireWriteLockOnKey(id);
+        try {
+            for (;;) {
+                PackedRow current = cachingService.getQuiet(id);
+                if (null == current) {
+                    PackedRow partial = packed.toBuilder().partial(true).loadedAt(System.currentTimeMillis()).build();
+                    cachingService.put(id, partial);
+                    return;
+                }
+                PackedRow.Builder merged = current.toBuilder();
+                merged.mergeNewer(packed);
+                if (cachingService.replace(id, current, merged.build())) {
+                    return;
+                }
+            }
+        }
+        finally {
+            cachingService.releaseWriteLockOnKey(id);
+        }
+    }
+
+    /**
+     * Fetch many rows in one round trip.  Misses are loaded from Cassandra in parallel and the
+     * request is resumed when the last one completes.  The response is a JSON map of id to row,
+     * streamed out hits first; ids that don't exist are left out.
+     *
+     * @param ids JSON array of row ids
+     * @param asyncResponse resumed with the rows, or 400 if too many ids were asked for
+     */
+    @POST
+    @Path("/multiget")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public void multiget(
+            final List<String> ids,
+            @Suspended final AsyncResponse asyncResponse) {
+        long start = System.nanoTime();
+        if (null == ids || ids.size() > multigetMaxIds) {
+            asyncResponse.resume(Response.status(Response.Status.BAD_REQUEST)
+                                         .type(MediaType.TEXT_PLAIN)
+                                         .entity("Must request between 0 and " + multigetMaxIds + " IDs")
+                                         .build());
+            return;
+        }
+
+        final Map<String, PackedRow> hits = new LinkedHashMap<>();
+        final Map<String, ListenableFuture<PackedRow>> misses = rowLoader.getAllAsync(ids, hits);
+
+        Futures.addCallback(Futures.allAsList(misses.values()),
+                            new Resumer<List<PackedRow>>(asyncResponse, multigetLatency, start) {
+            @Override
+            public void onSuccess(List<PackedRow> loaded) {
+                resume(rowWriter(hits, new ArrayList<>(misses.keySet()), loaded));
+            }
+        });
+    }
+
+    /**
+     * Latency percentiles, cache and trigger counters as a flat JSON map of name to value.  The
+     * same values are published over JMX.
+     */
+    @GET
+    @Path("/metrics")
+    @Produces(MediaType.APPLICATION_JSON)
+    public SortedMap<String, Object> metrics() {
+        return null != metrics ? metrics.getValues() : new TreeMap<String, Object>();
+    }
+
+    /**
+     * For load balancers - 200 once the cache is warm enough to take traffic, 503 while warming up.
+     * Always ready if the cache isn't warmed at startup.
+     */
+    @GET
+    @Path("/ready")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response ready() {
+        if (null == warmer || warmer.isReady()) {
+            return Response.ok("ready").build();
+        }
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .entity("warming up, " + warmer.getProcessedCount() + " of " + warmer.getTargetCount() + " rows")
+                .build();
+    }
+
+    private StreamingOutput rowWriter(final Map<String, PackedRow> hits, final List<String> missIds,
+                                      final List<PackedRow> missRows) {
+        return new StreamingOutput() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                JsonGenerator generator = objectMapper.getFactory().createGenerator(out);
+                generator.writeStartObject();
+                for (Map.Entry<String, PackedRow> hit : hits.entrySet()) {
+                    generator.writeFieldName(hit.getKey());
+                    PackedRowSerializer.writeRow(hit.getValue(), generator);
+                }
+                Iterator<PackedRow> rows = missRows.iterator();
+                for (String id : missIds) {
+                    PackedRow row = rows.next();
+                    if (null != row) {
+                        generator.writeFieldName(id);
+                        PackedRowSerializer.writeRow(row, generator);
+                    }
+                }
+                generator.writeEndObject();
+                generator.close();
+            }
+        };
+    }
+
+    /**
+     * @return a live replica to send the request to, or null to answer it here
+     */
+    private InetAddress getOwnerElsewhere(String id, HttpHeaders headers) {
+        if (null == ownership || isForwarded(headers) || ownership.isOwned(id)) {
+            return null;
+        }
+        return ownership.getOwner(id);
+    }
+
+    private static boolean isForwarded(HttpHeaders headers) {
+        return null != headers && null != headers.getHeaderString(RequestForwarder.FORWARDED_HEADER);
+    }
+
+    private static Response notFound(String message) {
+        return Response.status(Response.Status.NOT_FOUND).type(MediaType.TEXT_PLAIN).entity(message).build();
+    }
+
+    /**
+     * Fails the suspended request if the Cassandra call does, and times the request either way.
+     */
+    private static abstract class Resumer<T> implements FutureCallback<T> {
+        final AsyncResponse asyncResponse;
+        final LatencyRecorder latency;
+        final long start;
+
+        Resumer(AsyncResponse asyncResponse, LatencyRecorder latency, long start) {
+            this.asyncResponse = asyncResponse;
+            this.latency = latency;
+            this.start = start;
+        }
+
+        void resume(Object response) {
+            latency.recordSince(start);
+            asyncResponse.resume(response);
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+            latency.recordSince(start);
+            asyncResponse.resume(e);
+        }
+    }
+
+    /**
+     * Resumes with the owner's response, or answers here if the owner couldn't be reached.
+     */
+    private static abstract class Forwarded implements FutureCallback<Response> {
+        final AsyncResponse asyncResponse;
+        final LatencyRecorder latency;
+        final long start;
+
+        Forwarded(AsyncResponse asyncResponse, LatencyRecorder latency, long start) {
+            this.asyncResponse = asyncResponse;
+            this.latency = latency;
+            this.start = start;
+        }
+
+        abstract void answerHere();
+
+        @Override
+        public void onSuccess(Response response) {
+            latency.recordSince(start);
+            asyncResponse.resume(response);
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+            answerHere();
+        }
     }
 
     // ---------------------
@@ -67,6 +406,91 @@ public class RestServiceImpl {
         this.cachingService = cachingService;
     }
 
+    public ReadThroughLoader getRowLoader() {
+        return rowLoader;
+    }
+
+    public void setRowLoader(ReadThroughLoader rowLoader) {
+        this.rowLoader = rowLoader;
+    }
+
+    public WriteBehindQueue getWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * @param writeBehind null to write PUTs through to Cassandra before acknowledging them
+     */
+    public void setWriteBehind(WriteBehindQueue writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    public CacheWarmer getWarmer() {
+        return warmer;
+    }
+
+    /**
+     * @param warmer null if the cache isn't warmed at startup
+     */
+    public void setWarmer(CacheWarmer warmer) {
+        this.warmer = warmer;
+    }
+
+    public TokenOwnership getOwnership() {
+        return ownership;
+    }
+
+    /**
+     * @param ownership null to answer every request here.  needs a forwarder
+     */
+    public void setOwnership(TokenOwnership ownership) {
+        this.ownership = ownership;
+    }
+
+    public RequestForwarder getForwarder() {
+        return forwarder;
+    }
+
+    public void setForwarder(RequestForwarder forwarder) {
+        this.forwarder = forwarder;
+    }
+
+    public ObjectMapper getObjectMapper() {
+        return objectMapper;
+    }
+
+    public void setObjectMapper(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    public int getMultigetMaxIds() {
+        return multigetMaxIds;
+    }
+
+    public void setMultigetMaxIds(int multigetMaxIds) {
+        this.multigetMaxIds = multigetMaxIds;
+    }
+
+    public CacheMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(CacheMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public LatencyRecorder getGetLatency() {
+        return getLatency;
+    }
+
+    public LatencyRecorder getPutLatency() {
+        return putLatency;
+    }
+
+    public LatencyRecorder getMultigetLatency() {
+        return multigetLatency;
+    }
+
     public CassandraDao getCassandraDao() {
         return cassandraDao;
     }
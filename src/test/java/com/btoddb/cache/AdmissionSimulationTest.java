@@ -0,0 +1,39 @@
+package com.btoddb.cache;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+
+
+/**
+ * Hit rates of plain LRU and LRU behind TinyLFU admission on the same traces.
+ */
+public class AdmissionSimulationTest {
+    static final int CACHE_SIZE = 1000;
+    static final int KEYS = 20000;
+    static final int READS = 200000;
+
+    @Test
+    public void testZipf() {
+        String[] trace = HitRateSimulation.zipf(KEYS, 0.9, READS, 1);
+
+        double lru = HitRateSimulation.replay(HitRateSimulation.ehcache(CACHE_SIZE, false), trace);
+        double tinyLfu = HitRateSimulation.replay(HitRateSimulation.ehcache(CACHE_SIZE, true), trace);
+
+        System.out.println(String.format("zipf: lru %.3f, tinylfu %.3f", lru, tinyLfu));
+        assertThat(tinyLfu, greaterThan(lru));
+    }
+
+    @Test
+    public void testZipfWithScans() {
+        // a one-off scan twice the size of the cache every 10000 reads
+        String[] trace = HitRateSimulation.withScans(HitRateSimulation.zipf(KEYS, 0.9, READS, 2), 10000, 2 * CACHE_SIZE);
+
+        double lru = HitRateSimulation.replay(HitRateSimulation.ehcache(CACHE_SIZE, false), trace);
+        double tinyLfu = HitRateSimulation.replay(HitRateSimulation.ehcache(CACHE_SIZE, true), trace);
+
+        System.out.println(String.format("zipf with scans: lru %.3f, tinylfu %.3f", lru, tinyLfu));
+        assertThat(tinyLfu, greaterThan(lru + 0.05));
+    }
+}
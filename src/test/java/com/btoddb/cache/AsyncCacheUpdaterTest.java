@@ -0,0 +1,137 @@
+package com.btoddb.cache;
+
+import org.apache.cassandra.db.ColumnFamily;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.*;
+
+
+public class AsyncCacheUpdaterTest {
+    EHCacheUpdateTrigger trigger;
+    ByteBuffer key1 = ByteBuffer.wrap("1".getBytes());
+    ByteBuffer key2 = ByteBuffer.wrap("2".getBytes());
+    ColumnFamily cfA = mock(ColumnFamily.class);
+    ColumnFamily cfB = mock(ColumnFamily.class);
+    ColumnFamily cfC = mock(ColumnFamily.class);
+
+    @Before
+    public void setup() {
+        trigger = mock(EHCacheUpdateTrigger.class);
+    }
+
+    @Test
+    public void testBatchCoalescesByKey() throws Throwable {
+        AsyncCacheUpdater updater = new AsyncCacheUpdater(trigger, 10, 10, AsyncCacheUpdater.OverflowPolicy.DISCARD, 0);
+        updater.enqueue(key1, cfA);
+        updater.enqueue(key2, cfB);
+        updater.enqueue(key1, cfC);
+        assertThat(updater.getQueueDepth(), is(3));
+
+        int processed = updater.drainBatch(new ArrayList<AsyncCacheUpdater.PendingUpdate>());
+
+        assertThat(processed, is(3));
+        assertThat(updater.getQueueDepth(), is(0));
+        assertThat(updater.getAppliedCount(), is(3L));
+        assertThat(updater.getCoalescedCount(), is(1L));
+        verify(trigger).applyUpdates(key1, Arrays.asList(cfA, cfC));
+        verify(trigger).applyUpdates(key2, Collections.singletonList(cfB));
+        verifyNoMoreInteractions(trigger);
+    }
+
+    @Test
+    public void testBatchSizeLimitsDrain() throws Throwable {
+        AsyncCacheUpdater updater = new AsyncCacheUpdater(trigger, 10, 2, AsyncCacheUpdater.OverflowPolicy.DISCARD, 0);
+        updater.enqueue(key1, cfA);
+        updater.enqueue(key2, cfB);
+        updater.enqueue(key1, cfC);
+
+        List<AsyncCacheUpdater.PendingUpdate> batch = new ArrayList<>();
+        assertThat(updater.drainBatch(batch), is(2));
+        assertThat(updater.drainBatch(batch), is(1));
+        assertThat(updater.drainBatch(batch), is(0));
+        assertThat(updater.getCoalescedCount(), is(0L));
+        verify(trigger, times(3)).applyUpdates(any(ByteBuffer.class), anyListOf(ColumnFamily.class));
+    }
+
+    @Test
+    public void testFailedApplyIsCounted() throws Throwable {
+        AsyncCacheUpdater updater = new AsyncCacheUpdater(trigger, 10, 10, AsyncCacheUpdater.OverflowPolicy.DISCARD, 0);
+        doThrow(new RuntimeException("boom")).when(trigger).applyUpdates(eq(key1), anyListOf(ColumnFamily.class));
+        updater.enqueue(key1, cfA);
+        updater.enqueue(key2, cfB);
+
+        updater.drainBatch(new ArrayList<AsyncCacheUpdater.PendingUpdate>());
+
+        assertThat(updater.getFailedCount(), is(1L));
+        assertThat(updater.getAppliedCount(), is(1L));
+    }
+
+    @Test
+    public void testOverflowDiscard() throws Throwable {
+        AsyncCacheUpdater updater = new AsyncCacheUpdater(trigger, 1, 10, AsyncCacheUpdater.OverflowPolicy.DISCARD, 0);
+        updater.enqueue(key1, cfA);
+        updater.enqueue(key2, cfB);
+
+        assertThat(updater.getQueueDepth(), is(1));
+        assertThat(updater.getOverflowCount(), is(1L));
+        assertThat(updater.getDroppedCount(), is(1L));
+        verifyZeroInteractions(trigger);
+    }
+
+    @Test
+    public void testOverflowInvalidate() throws Throwable {
+        AsyncCacheUpdater updater = new AsyncCacheUpdater(trigger, 1, 10, AsyncCacheUpdater.OverflowPolicy.INVALIDATE, 0);
+        updater.enqueue(key1, cfA);
+        updater.enqueue(key2, cfB);
+
+        assertThat(updater.getDroppedCount(), is(1L));
+        verify(trigger).invalidate(key2);
+        verifyNoMoreInteractions(trigger);
+    }
+
+    @Test
+    public void testOverflowCallerRuns() throws Throwable {
+        AsyncCacheUpdater updater = new AsyncCacheUpdater(trigger, 1, 10, AsyncCacheUpdater.OverflowPolicy.CALLER_RUNS, 0);
+        updater.enqueue(key1, cfA);
+        updater.enqueue(key2, cfB);
+
+        assertThat(updater.getDroppedCount(), is(0L));
+        verify(trigger).applyUpdates(key2, Collections.singletonList(cfB));
+        verifyNoMoreInteractions(trigger);
+    }
+
+    @Test
+    public void testOverflowBlockFallsBackToCallerAfterTimeout() throws Throwable {
+        AsyncCacheUpdater updater = new AsyncCacheUpdater(trigger, 1, 10, AsyncCacheUpdater.OverflowPolicy.BLOCK, 5);
+        updater.enqueue(key1, cfA);
+        updater.enqueue(key2, cfB);
+
+        assertThat(updater.getQueueDepth(), is(1));
+        verify(trigger).applyUpdates(key2, Collections.singletonList(cfB));
+    }
+
+    @Test
+    public void testShutdownDrainsQueue() throws Throwable {
+        AsyncCacheUpdater updater = new AsyncCacheUpdater(trigger, 100, 10, AsyncCacheUpdater.OverflowPolicy.BLOCK, 1000);
+        updater.start();
+        for (int i = 0; i < 50; i++) {
+            updater.enqueue(0 == i % 2 ? key1 : key2, cfA);
+        }
+        updater.shutdown();
+
+        assertThat(updater.getQueueDepth(), is(0));
+        assertThat(updater.getEnqueuedCount(), is(50L));
+        assertThat(updater.getAppliedCount(), is(50L));
+    }
+}
@@ -0,0 +1,213 @@
+package com.btoddb.cache;
+
+import com.btoddb.cache.cassandra.CassandraDao;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+
+public class CacheWarmerTest {
+    CachingService cachingService;
+    ReadThroughLoader rowLoader;
+    CassandraDao cassandraDao;
+    File snapshotFile;
+    PackedRow row = PackedRow.fromMap(Collections.singletonMap("a", new CachedColumn("a", "1", 1L)));
+
+    @Before
+    public void setup() throws IOException {
+        cachingService = mock(CachingService.class);
+        rowLoader = mock(ReadThroughLoader.class);
+        cassandraDao = mock(CassandraDao.class);
+        when(rowLoader.loadAsync(anyString())).thenReturn(Futures.immediateFuture(row));
+        snapshotFile = File.createTempFile("cache-snapshot", ".bin");
+        snapshotFile.delete();
+    }
+
+    @After
+    public void teardown() {
+        snapshotFile.delete();
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws Exception {
+        when(cachingService.hotKeys(3)).thenReturn(Arrays.asList("c", "a", "b"));
+        CacheWarmer warmer = createWarmer(3);
+
+        assertThat(warmer.writeSnapshot(), is(3));
+
+        assertThat(CacheWarmer.readSnapshot(snapshotFile), is(Arrays.asList("c", "a", "b")));
+        assertThat(new File(snapshotFile.getPath() + ".tmp").exists(), is(false));
+    }
+
+    @Test
+    public void testUnreadableSnapshotIsIgnored() throws Exception {
+        assertThat(CacheWarmer.readSnapshot(snapshotFile), is(nullValue()));
+
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(snapshotFile))) {
+            out.writeInt(CacheWarmer.SNAPSHOT_MAGIC);
+            out.writeInt(CacheWarmer.SNAPSHOT_VERSION + 1);
+        }
+        assertThat(CacheWarmer.readSnapshot(snapshotFile), is(nullValue()));
+    }
+
+    @Test
+    public void testWarmUpLoadsSnapshotKeys() throws Exception {
+        writeSnapshot("1", "2", "3", "4", "5");
+        when(cachingService.contains("2")).thenReturn(true);
+        when(rowLoader.loadAsync("3")).thenReturn(Futures.<PackedRow>immediateFuture(null));
+        when(rowLoader.loadAsync("4")).thenReturn(Futures.<PackedRow>immediateFailedFuture(new RuntimeException("boom")));
+        CacheWarmer warmer = createWarmer(4);
+        warmer.setScan(true);
+
+        warmer.warmUp();
+
+        assertThat(warmer.isFinished(), is(true));
+        assertThat(warmer.isReady(), is(true));
+        assertThat(warmer.getTargetCount(), is(4));
+        assertThat(warmer.getProcessedCount(), is(4));
+        assertThat(warmer.getLoadedCount(), is(1));
+        assertThat(warmer.getFailedCount(), is(1));
+        verify(rowLoader).loadAsync("1");
+        verify(rowLoader, never()).loadAsync("2");
+        verify(rowLoader, never()).loadAsync("5");
+        verifyZeroInteractions(cassandraDao);
+    }
+
+    @Test
+    public void testWarmUpScansWithoutSnapshot() throws Exception {
+        when(cassandraDao.scanKeys(100, Long.MAX_VALUE, CacheWarmer.SCAN_FETCH_SIZE)).thenReturn(Arrays.asList("1", "2"));
+        when(cassandraDao.scanKeys(Long.MIN_VALUE, -100, CacheWarmer.SCAN_FETCH_SIZE)).thenReturn(Arrays.asList("3", "4"));
+        CacheWarmer warmer = createWarmer(3);
+        warmer.setScan(true);
+        // wraps around the end of the ring
+        warmer.setScanTokenRanges(Collections.singletonList("100, -100"));
+
+        warmer.warmUp();
+
+        assertThat(warmer.getProcessedCount(), is(3));
+        assertThat(warmer.getLoadedCount(), is(3));
+        verify(rowLoader).loadAsync("3");
+        verify(rowLoader, never()).loadAsync("4");
+    }
+
+    @Test
+    public void testNothingToWarmIsReady() throws Exception {
+        CacheWarmer warmer = createWarmer(3);
+        assertThat(warmer.isReady(), is(false));
+
+        warmer.warmUp();
+
+        assertThat(warmer.isReady(), is(true));
+        assertThat(warmer.getProcessedCount(), is(0));
+        verifyZeroInteractions(rowLoader, cassandraDao);
+    }
+
+    @Test
+    public void testReadyAtFraction() throws Exception {
+        writeSnapshot("1", "2", "3", "4");
+        final BlockingQueue<SettableFuture<PackedRow>> loads = stubLoads();
+        CacheWarmer warmer = createWarmer(10);
+        warmer.setReadyFraction(0.5);
+        warmer.start(0);
+        try {
+            // two loads at a time
+            SettableFuture<PackedRow> load1 = loads.poll(1, TimeUnit.SECONDS);
+            SettableFuture<PackedRow> load2 = loads.poll(1, TimeUnit.SECONDS);
+            assertThat(loads.poll(100, TimeUnit.MILLISECONDS), is(nullValue()));
+            load1.set(row);
+            assertThat(warmer.isReady(), is(false));
+            load2.set(row);
+            assertThat(warmer.isReady(), is(true));
+            assertThat(warmer.isFinished(), is(false));
+
+            loads.poll(1, TimeUnit.SECONDS).set(row);
+            loads.poll(1, TimeUnit.SECONDS).set(row);
+        }
+        finally {
+            warmer.shutdown();
+        }
+        assertThat(warmer.isFinished(), is(true));
+        assertThat(warmer.getLoadedCount(), is(4));
+    }
+
+    @Test
+    public void testShutdownWritesSnapshotOnlyOnceWarm() throws Exception {
+        writeSnapshot("1");
+        final BlockingQueue<SettableFuture<PackedRow>> loads = stubLoads();
+        when(cachingService.hotKeys(10)).thenReturn(Arrays.asList("1", "2"));
+        final CacheWarmer warmer = createWarmer(10);
+
+        Thread warmUp = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                warmer.warmUp();
+            }
+        });
+        warmUp.start();
+        SettableFuture<PackedRow> load = loads.poll(1, TimeUnit.SECONDS);
+        // shutting down before warm, the old snapshot stays
+        warmer.shutdown();
+        assertThat(CacheWarmer.readSnapshot(snapshotFile), is(Collections.singletonList("1")));
+
+        load.set(row);
+        warmUp.join();
+        warmer.shutdown();
+        assertThat(CacheWarmer.readSnapshot(snapshotFile), is(Arrays.asList("1", "2")));
+    }
+
+    // loads complete when the test says, the mock isn't verified while the warmer calls it
+    private BlockingQueue<SettableFuture<PackedRow>> stubLoads() {
+        final BlockingQueue<SettableFuture<PackedRow>> loads = new LinkedBlockingQueue<>();
+        when(rowLoader.loadAsync(anyString())).thenAnswer(new Answer<ListenableFuture<PackedRow>>() {
+            @Override
+            public ListenableFuture<PackedRow> answer(InvocationOnMock invocation) {
+                SettableFuture<PackedRow> load = SettableFuture.create();
+                loads.add(load);
+                return load;
+            }
+        });
+        return loads;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadTokenRange() {
+        CacheWarmer.parseTokenRange("100");
+    }
+
+    private CacheWarmer createWarmer(int maxKeys) {
+        CacheWarmer warmer = new CacheWarmer(cachingService, rowLoader, cassandraDao, maxKeys, 2);
+        warmer.setSnapshotFile(snapshotFile);
+        return warmer;
+    }
+
+    private void writeSnapshot(String... keys) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(snapshotFile))) {
+            out.writeInt(CacheWarmer.SNAPSHOT_MAGIC);
+            out.writeInt(CacheWarmer.SNAPSHOT_VERSION);
+            for (String key : keys) {
+                out.writeUTF(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.btoddb.cache;
+
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+
+public class CachingServiceUsingEhcacheTest {
+
+    @Test
+    public void testTableConfiguration() {
+        CachingServiceUsingEhcache cachingService = new CachingServiceUsingEhcache(
+                "ks", "configured", KeyLocks.DEFAULT_STRIPES,
+                new CacheConfiguration().maxEntriesLocalHeap(2).timeToLiveSeconds(60).memoryStoreEvictionPolicy("FIFO"));
+        PackedRow row = PackedRow.builder().set("col", "value", 1).build();
+
+        cachingService.put("1", row);
+        cachingService.put("2", row);
+        cachingService.put("3", row);
+
+        CacheConfiguration applied = cachingService.getCache().getCacheConfiguration();
+        assertThat(applied.getTimeToLiveSeconds(), is(60L));
+        assertThat(applied.getMemoryStoreEvictionPolicy(), is(MemoryStoreEvictionPolicy.FIFO));
+        assertThat(cachingService.getCache().getSize(), is(2));
+        assertThat(cachingService.contains("3"), is(true));
+    }
+
+    @Test
+    public void testHotKeys() throws Exception {
+        CachingServiceUsingEhcache cachingService = new CachingServiceUsingEhcache(
+                "ks", "hot", KeyLocks.DEFAULT_STRIPES, new CacheConfiguration().maxEntriesLocalHeap(10));
+        PackedRow row = PackedRow.builder().set("col", "value", 1).build();
+        for (String key : new String[] {"1", "2", "3"}) {
+            cachingService.put(key, row);
+            Thread.sleep(5);
+        }
+        cachingService.get("1");
+
+        assertThat(cachingService.hotKeys(2), is((Object) Arrays.asList("1", "3")));
+        assertThat(cachingService.hotKeys(10), is((Object) Arrays.asList("1", "3", "2")));
+        // looking doesn't count as a read
+        assertThat(cachingService.hits(), is(1L));
+    }
+
+    @Test
+    public void testHotKeysKeepsOnlyTheMostRecent() throws Exception {
+        CachingServiceUsingEhcache cachingService = new CachingServiceUsingEhcache(
+                "ks", "hotter", KeyLocks.DEFAULT_STRIPES, new CacheConfiguration().maxEntriesLocalHeap(100));
+        PackedRow row = PackedRow.builder().set("col", "value", 1).build();
+        for (int i = 0; i < 20; i++) {
+            cachingService.put(String.valueOf(i), row);
+            Thread.sleep(2);
+        }
+
+        assertThat(cachingService.hotKeys(3), is((Object) Arrays.asList("19", "18", "17")));
+        assertThat(cachingService.hotKeys(0).isEmpty(), is(true));
+    }
+
+    @Test
+    public void testQuietGetIsNotCounted() {
+        CachingServiceUsingEhcache cachingService = new CachingServiceUsingEhcache(
+                "ks", "quiet", KeyLocks.DEFAULT_STRIPES, new CacheConfiguration().maxEntriesLocalHeap(10), true);
+        PackedRow row = PackedRow.builder().set("col", "value", 1).build();
+        cachingService.put("1", row);
+
+        assertThat(cachingService.getQuiet("1"), is(row));
+        assertThat(cachingService.getQuiet("2"), is(nullValue()));
+        assertThat(cachingService.hits(), is(0L));
+        assertThat(cachingService.misses(), is(0L));
+        assertThat(cachingService.getAdmissionPolicy().getSketch().frequency("1"), is(0));
+    }
+
+    @Test
+    public void testFrequencyAdmission() {
+        CachingServiceUsingEhcache cachingService = new CachingServiceUsingEhcache(
+                "ks", "admission", KeyLocks.DEFAULT_STRIPES, new CacheConfiguration().maxEntriesLocalHeap(2), true);
+        PackedRow row = PackedRow.builder().set("col", "value", 1).build();
+        for (String key : new String[] {"1", "2"}) {
+            for (int i = 0; i < 3; i++) {
+                cachingService.get(key);
+            }
+            cachingService.put(key, row);
+        }
+
+        // read once, not as often as what's cached
+        cachingService.get("once");
+        cachingService.put("once", row);
+        assertThat(cachingService.contains("once"), is(false));
+        assertThat(cachingService.contains("1"), is(true));
+        assertThat(cachingService.contains("2"), is(true));
+
+        for (int i = 0; i < 5; i++) {
+            cachingService.get("hot");
+        }
+        cachingService.put("hot", row);
+        assertThat(cachingService.contains("hot"), is(true));
+        assertThat(cachingService.getCache().getSize(), is(2));
+
+        TinyLfuAdmissionPolicy admission = cachingService.getAdmissionPolicy();
+        assertThat(admission.getRejectedCount(), is(1L));
+        assertThat(admission.getAdmittedCount(), is(1L));
+    }
+}
@@ -0,0 +1,130 @@
+package com.btoddb.cache;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+
+public class CachingServiceUsingOffHeapTest {
+    CachingServiceUsingOffHeap cachingService;
+    PackedRow row = PackedRow.builder().set("a", "a-data", 1).set("b", 42, 2).build();
+
+    @Before
+    public void setup() {
+        cachingService = new CachingServiceUsingOffHeap("ks", "cf", 64 * 1024);
+    }
+
+    @Test
+    public void testLoadStampIsKept() {
+        PackedRow stamped = row.toBuilder().loadedAt(1234567L).build();
+        cachingService.put("1", stamped);
+
+        assertThat(cachingService.get("1").getLoadedAt(), is(1234567L));
+    }
+
+    @Test
+    public void testExpiryAndDeletionAreKept() {
+        PackedRow.Builder builder = row.toBuilder().expireBy(2000L);
+        builder.deletedAt(7);
+        cachingService.put("1", builder.build());
+
+        PackedRow cached = cachingService.get("1");
+        assertThat(cached.getExpiresAt(), is(2000L));
+        assertThat(cached.getDeletedAt(), is(7L));
+    }
+
+    @Test
+    public void testPutThenGet() {
+        cachingService.put("1", row);
+
+        PackedRow cached = cachingService.get("1");
+        assertThat(cached, is(row));
+        assertThat(cached.get("b").getData(), is((Object) 42));
+        assertThat(cachingService.contains("1"), is(true));
+        // packed bytes plus a length prefix and the load stamp
+        assertThat(cachingService.usedBytes(), greaterThan((long) row.bytes().length));
+        assertThat(cachingService.usedBytes(), lessThanOrEqualTo((long) row.bytes().length + 4 + 9));
+
+        assertThat(cachingService.get("2"), is(nullValue()));
+        assertThat(cachingService.hits(), is(1L));
+        assertThat(cachingService.misses(), is(1L));
+        assertThat(cachingService.puts(), is(1L));
+    }
+
+    @Test
+    public void testHotKeys() {
+        cachingService.put("1", row);
+        cachingService.put("2", row);
+        cachingService.put("3", row);
+        cachingService.get("1");
+
+        assertThat(cachingService.hotKeys(2), is((Object) Arrays.asList("1", "3")));
+        assertThat(cachingService.hotKeys(10).size(), is(3));
+    }
+
+    @Test
+    public void testRemove() {
+        cachingService.put("1", row);
+        cachingService.remove("1");
+
+        assertThat(cachingService.contains("1"), is(false));
+        assertThat(cachingService.usedBytes(), is(0L));
+    }
+
+    @Test
+    public void testReplace() {
+        PackedRow updated = row.toBuilder().set("a", "a-updated", 3).build();
+
+        assertThat(cachingService.replace("1", row, updated), is(false));
+        cachingService.put("1", row);
+
+        // the stored row is compared by content, not identity
+        assertThat(cachingService.replace("1", PackedRow.wrap(row.bytes().clone()), updated), is(true));
+        assertThat(cachingService.get("1"), is(updated));
+        assertThat(cachingService.replace("1", row, row), is(false));
+        assertThat(cachingService.get("1"), is(updated));
+    }
+
+    @Test
+    public void testEvictsToStayWithinBudget() {
+        int rowBytes = row.bytes().length + 4;
+        int rowCount = 2 * (int) (cachingService.capacityBytes() / rowBytes);
+        for (int i = 0; i < rowCount; i++) {
+            cachingService.put(String.valueOf(i), row);
+        }
+
+        assertThat(cachingService.usedBytes(), lessThanOrEqualTo(cachingService.capacityBytes()));
+        assertThat(cachingService.size(), lessThan(rowCount));
+        // most recently written rows survive
+        assertThat(cachingService.get(String.valueOf(rowCount - 1)), is(notNullValue()));
+        assertThat(cachingService.get("0"), is(nullValue()));
+    }
+
+    @Test
+    public void testResetCache() {
+        cachingService.put("1", row);
+        cachingService.get("1");
+        cachingService.resetCache();
+
+        assertThat(cachingService.size(), is(0));
+        assertThat(cachingService.hits(), is(0L));
+        assertThat(cachingService.puts(), is(0L));
+    }
+
+    @Test
+    public void testKeyLockIsReentrant() {
+        cachingService.acquireWriteLockOnKey("1");
+        cachingService.acquireWriteLockOnKey("1");
+        cachingService.releaseWriteLockOnKey("1");
+        cachingService.releaseWriteLockOnKey("1");
+    }
+}
@@ -9,6 +9,10 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.Collections;
@@ -20,6 +24,7 @@ import static org.hamcrest.Matchers.hasKey;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 
 
 public class CassandraExternalCacheIT {
@@ -44,7 +49,7 @@ public class CassandraExternalCacheIT {
         now = System.currentTimeMillis();
 
         cache.getCachingService().resetCache();
-        cache.getCachingService().put(idInCache, Collections.singletonMap(colInCache.getName(), colInCache));
+        cache.getCachingService().put(idInCache, PackedRow.fromMap(Collections.singletonMap(colInCache.getName(), colInCache)));
         cache.getCassandraDao().put(idInCache, Collections.singletonMap(colInCache.getName(), colInCache));
 
         cache.getCassandraDao().put(idNotInCache, Collections.singletonMap(colNotInCache.getName(), colNotInCache));
@@ -97,7 +102,9 @@ public class CassandraExternalCacheIT {
 
             assertThat(cache.getCachingService().hits(), is(0L));
             assertThat(cache.getCachingService().misses(), is(1L));
-            assertThat(cache.getCachingService().puts(), is(1L));
+            // setup put, plus the row loaded from cassandra
+            assertThat(cache.getCachingService().puts(), is(2L));
+            assertThat(cache.getCachingService().contains(idNotInCache), is(true));
             assertThat(cache.getCassandraDao().get(idInCache), is(notNullValue()));
         }
         finally {
@@ -105,6 +112,27 @@ public class CassandraExternalCacheIT {
         }
     }
 
+    @Test
+    public void testReturnColumnsFromCassandra() throws Exception {
+        URL url = new URL("http://localhost:9090/v1/get/"+idNotInCache+"?columns=cached,not-a-column");
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        try {
+            assertThat(conn.getResponseMessage(), conn.getResponseCode(), is(200));
+
+            String json = IOUtils.toString(conn.getInputStream());
+            Map<String, CachedColumn> map = objMapper.readValue(json, new TypeReference<Map<String, CachedColumn>>() {});
+            assertThat(map.entrySet(), hasSize(1));
+            assertThat(map, hasKey(colNotInCache.getName()));
+
+            // only the columns read are cached, so the row doesn't answer for a whole-row read
+            assertThat(cache.getCachingService().get(idNotInCache).isPartial(), is(true));
+            assertThat(cache.getRowLoader().getColumnLoadCount(), is(1L));
+        }
+        finally {
+            conn.getInputStream().close();
+        }
+    }
+
     @Test
     public void testUpdateViaTrigger() throws Exception {
         CachedColumn updatedColumn = new CachedColumn("cached", "yes", now-1000);
@@ -116,10 +144,233 @@ public class CassandraExternalCacheIT {
         assertThat(cache.getCachingService().puts(), is(1L));
     }
 
+    @Test
+    public void testKeptResponseFollowsPut() throws Exception {
+        URL url = new URL("http://localhost:9090/v1/get/"+idInCache);
+        assertThat(fetch(url), hasEntry(colInCache.getName(), colInCache));
+        assertThat(cache.getCachingService().get(idInCache).getEncodedJson(), is(notNullValue()));
+
+        CachedColumn updatedColumn = new CachedColumn("cached", "updated", now);
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:9090/v1/put/"+idInCache).openConnection();
+        conn.setRequestMethod("PUT");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/json");
+        OutputStream out = conn.getOutputStream();
+        objMapper.writeValue(out, Collections.singletonMap(updatedColumn.getName(), updatedColumn));
+        out.close();
+        assertThat(conn.getResponseCode(), is(204));
+
+        // the cached row carries the timestamp the PUT was written with, not the client's
+        CachedColumn cached = fetch(url).get(updatedColumn.getName());
+        assertThat(cached.getData(), is((Object) "updated"));
+        assertThat(cached.getTimestamp(), is(cache.getCassandraDao().get(idInCache).get("cached").getTimestamp()));
+    }
+
+    @Test
+    public void testPutOfSomeColumnsKeepsTheOthers() throws Exception {
+        PackedRow row = PackedRow.builder().set("a", "1", now).set("b", "2", now).build();
+        cache.getCassandraDao().put("subset", row);
+        URL url = new URL("http://localhost:9090/v1/get/subset");
+
+        // not cached yet, the PUT's row is partial
+        put("subset", Collections.singletonMap("a", new CachedColumn("a", "put", now)));
+        Map<String, CachedColumn> fetched = fetch(url);
+        assertThat(fetched.get("a").getData(), is((Object) "put"));
+        assertThat(fetched.get("b").getData(), is((Object) "2"));
+
+        // cached whole, the PUT is merged into it
+        cache.getCachingService().put("subset", cache.getCassandraDao().get("subset"));
+        put("subset", Collections.singletonMap("a", new CachedColumn("a", "again", now)));
+        fetched = fetch(url);
+        assertThat(fetched.get("a").getData(), is((Object) "again"));
+        assertThat(fetched.get("b").getData(), is((Object) "2"));
+    }
+
+    @Test
+    public void testBinaryRowFormat() throws Exception {
+        PackedRow row = PackedRow.builder().set("str", "binary", now).set("count", 7L, now).build();
+        // cached whole, so the PUT is merged in and GETs answer from the cache, with the values' types
+        cache.getCachingService().put("789", PackedRow.builder().set("str", "old", 1).build());
+        HttpURLConnection put = (HttpURLConnection) new URL("http://localhost:9090/v1/put/789").openConnection();
+        put.setRequestMethod("PUT");
+        put.setDoOutput(true);
+        put.setRequestProperty("Content-Type", PackedRowWireFormat.MEDIA_TYPE);
+        DataOutputStream out = new DataOutputStream(put.getOutputStream());
+        PackedRowWireFormat.write(row, out);
+        out.close();
+        assertThat(put.getResponseCode(), is(204));
+
+        HttpURLConnection get = (HttpURLConnection) new URL("http://localhost:9090/v1/get/789").openConnection();
+        get.setRequestProperty("Accept", PackedRowWireFormat.MEDIA_TYPE);
+        try (DataInputStream in = new DataInputStream(get.getInputStream())) {
+            assertThat(get.getContentType(), is(PackedRowWireFormat.MEDIA_TYPE));
+            PackedRow read = PackedRowWireFormat.read(in, Long.MAX_VALUE);
+            assertThat(read, is(row.withTimestamp(read.timestamp(0))));
+        }
+
+        // still JSON unless asked for
+        Map<String, CachedColumn> json = fetch(new URL("http://localhost:9090/v1/get/789"));
+        assertThat(json.get("count").getData(), is((Object) 7));
+    }
+
+    private void put(String id, Map<String, CachedColumn> row) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:9090/v1/put/" + id).openConnection();
+        conn.setRequestMethod("PUT");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream out = conn.getOutputStream()) {
+            objMapper.writeValue(out, row);
+        }
+        assertThat(conn.getResponseMessage(), conn.getResponseCode(), is(204));
+    }
+
+    private Map<String, CachedColumn> fetch(URL url) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        try {
+            assertThat(conn.getResponseMessage(), conn.getResponseCode(), is(200));
+            String json = IOUtils.toString(conn.getInputStream());
+            return objMapper.readValue(json, new TypeReference<Map<String, CachedColumn>>() {});
+        }
+        finally {
+            conn.getInputStream().close();
+        }
+    }
+
     @Test
     public void testInvalidId() throws Exception {
         URL url = new URL("http://localhost:9090/v1/get/does-not-exist");
         HttpURLConnection conn = (HttpURLConnection) url.openConnection();
         assertThat(conn.getResponseCode(), is(404));
     }
+
+    @Test
+    public void testMultiget() throws Exception {
+        URL url = new URL("http://localhost:9090/v1/multiget");
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/json");
+        OutputStream out = conn.getOutputStream();
+        objMapper.writeValue(out, new String[] {idInCache, idNotInCache, "does-not-exist"});
+        out.close();
+        try {
+            assertThat(conn.getResponseMessage(), conn.getResponseCode(), is(200));
+
+            String json = IOUtils.toString(conn.getInputStream());
+            Map<String, Map<String, CachedColumn>> rows = objMapper.readValue(
+                    json, new TypeReference<Map<String, Map<String, CachedColumn>>>() {});
+            assertThat(rows.entrySet(), hasSize(2));
+            assertThat(rows.get(idInCache), hasEntry(colInCache.getName(), colInCache));
+            assertThat(rows.get(idNotInCache), hasKey(colNotInCache.getName()));
+
+            assertThat(cache.getCachingService().contains(idNotInCache), is(true));
+        }
+        finally {
+            conn.getInputStream().close();
+        }
+    }
+
+    @Test
+    public void testPut() throws Exception {
+        CachedColumn col = new CachedColumn("put", "via-rest", now);
+        URL url = new URL("http://localhost:9090/v1/put/put-id");
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod("PUT");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/json");
+        OutputStream out = conn.getOutputStream();
+        objMapper.writeValue(out, Collections.singletonMap(col.getName(), col));
+        out.close();
+
+        assertThat(conn.getResponseMessage(), conn.getResponseCode(), is(204));
+        assertThat(cache.getCachingService().contains("put-id"), is(true));
+        assertThat(cache.getCassandraDao().get("put-id").get("put").getData(), is((Object) "via-rest"));
+    }
+
+    @Test
+    public void testWriteBehindPut() throws Exception {
+        cache.shutdown();
+        Config config = new Config();
+        config.setWriteBehind(true);
+        config.setWriteBehindFlushIntervalMillis(60000);
+        cache = new CassandraExternalCache(config);
+
+        CachedColumn col = new CachedColumn("put", "behind", now);
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:9090/v1/put/behind-id").openConnection();
+        conn.setRequestMethod("PUT");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/json");
+        OutputStream out = conn.getOutputStream();
+        objMapper.writeValue(out, Collections.singletonMap(col.getName(), col));
+        out.close();
+        assertThat(conn.getResponseMessage(), conn.getResponseCode(), is(204));
+
+        // acknowledged and readable before cassandra has it
+        assertThat(cache.getWriteBehind().getPendingCount(), is(1));
+        assertThat(cache.getCassandraDao().get("behind-id"), is(nullValue()));
+        CachedColumn cached = fetch(new URL("http://localhost:9090/v1/get/behind-id")).get(col.getName());
+        assertThat(cached.getData(), is((Object) "behind"));
+
+        cache.getWriteBehind().shutdown();
+        assertThat(cache.getWriteBehind().getWrittenCount(), is(1L));
+        // written with the timestamp taken at the PUT, the cached row's
+        CachedColumn written = cache.getCassandraDao().get("behind-id").get("put");
+        assertThat(written.getData(), is((Object) "behind"));
+        assertThat(written.getTimestamp(), is(cached.getTimestamp()));
+    }
+
+    @Test
+    public void testWarmUpFromSnapshot() throws Exception {
+        File snapshot = File.createTempFile("cache-snapshot", ".bin");
+        snapshot.delete();
+        try {
+            cache.shutdown();
+            Config config = new Config();
+            config.setWarmUpSnapshotFile(snapshot.getPath());
+            cache = new CassandraExternalCache(config);
+            cache.getCachingService().resetCache();
+            cache.getCassandraDao().put(idNotInCache, Collections.singletonMap(colNotInCache.getName(), colNotInCache));
+            fetch(new URL("http://localhost:9090/v1/get/" + idNotInCache));
+
+            // saved at shutdown
+            cache.shutdown();
+            assertThat(CacheWarmer.readSnapshot(snapshot), is(Collections.singletonList(idNotInCache)));
+
+            // the new dao recreates the keyspace, so the saved key has no row any more
+            cache.getCachingService().resetCache();
+            cache = new CassandraExternalCache(config);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!cache.getWarmer().isFinished() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(cache.getWarmer().getTargetCount(), is(1));
+            assertThat(cache.getWarmer().getProcessedCount(), is(1));
+
+            HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:9090/v1/ready").openConnection();
+            assertThat(conn.getResponseMessage(), conn.getResponseCode(), is(200));
+        }
+        finally {
+            snapshot.delete();
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        new URL("http://localhost:9090/v1/get/" + idInCache).openStream().close();
+
+        URL url = new URL("http://localhost:9090/v1/metrics");
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        try {
+            assertThat(conn.getResponseMessage(), conn.getResponseCode(), is(200));
+
+            Map<String, Object> metrics = objMapper.readValue(conn.getInputStream(), new TypeReference<Map<String, Object>>() {});
+            assertThat(metrics, hasEntry("rest.get.count", (Object) 1));
+            assertThat(metrics, hasEntry("tables.cache.data.hits", (Object) 1));
+            assertThat(metrics, hasKey("rest.get.p99Micros"));
+            assertThat(metrics, hasKey("trigger.skippedUpdates"));
+        }
+        finally {
+            conn.getInputStream().close();
+        }
+    }
 }
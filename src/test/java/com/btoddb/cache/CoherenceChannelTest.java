@@ -0,0 +1,319 @@
+package com.btoddb.cache;
+
+import com.btoddb.cache.cassandra.CassandraDao;
+import com.btoddb.cache.cassandra.CassandraTestHelper;
+import net.jpountz.lz4.LZ4Factory;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.Schema;
+import org.apache.cassandra.db.ArrayBackedSortedColumns;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.DeletionInfo;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.mockito.Mockito.mock;
+
+
+/**
+ * Several nodes' caches in one JVM, talking over loopback.  Mutations are of the embedded
+ * server's cache.data table, every node needs the table's schema to read them.
+ */
+public class CoherenceChannelTest {
+    static final long TIMEOUT_MILLIS = 5000;
+    static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    CassandraDao dao;
+    CFMetaData metadata;
+    ByteBuffer key = ByteBufferUtil.bytes("1");
+    PackedRow row = PackedRow.builder().set("a", "old", 1).set("b", "old", 1).build();
+    List<Node> nodes = new ArrayList<>();
+
+    @BeforeClass
+    public static void setupCass() throws Exception {
+        CassandraTestHelper.startEmbeddedServer("/cassandra.yaml");
+    }
+
+    @Before
+    public void setup() {
+        dao = new CassandraDao();
+        dao.start("localhost", 9052);
+        metadata = Schema.instance.getCFMetaData(CassandraExternalCache.KEYSPACE, CassandraExternalCache.COLUMN_FAMILY);
+    }
+
+    @After
+    public void teardown() {
+        for (Node node : nodes) {
+            node.channel.shutdown();
+        }
+        dao.shutdown();
+    }
+
+    @Test
+    public void testUpdateReachesEveryPeer() throws Exception {
+        createNodes(3, 1);
+        Node a = nodes.get(0);
+        nodes.get(1).cache.put("1", row);
+        nodes.get(2).cache.put("1", row);
+
+        a.channel.publish(key, update("a", "new", 2));
+
+        for (final Node peer : nodes.subList(1, 3)) {
+            awaitApplied(peer, 1);
+            assertThat(peer.cache.get("1").get("a").getData(), is((Object) "new"));
+            assertThat(peer.cache.get("1").get("b").getData(), is((Object) "old"));
+            assertThat(peer.channel.getPropagationLag().snapshot().getCount(), is(1L));
+            assertThat(peer.channel.getLastLagMillis(), is(lessThan(TIMEOUT_MILLIS)));
+        }
+        assertThat(a.channel.getPublishedCount(), is(1L));
+        assertThat(a.channel.getSentFrameCount(), is(2L));
+        // nothing comes back to the publisher
+        assertThat(a.channel.getReceivedCount(), is(0L));
+    }
+
+    @Test
+    public void testUpdateIsSentAsPublished() throws Exception {
+        createNodes(2, 500);
+        Node b = nodes.get(1);
+        b.cache.put("1", row);
+        ColumnFamily update = update("a", "new", 2);
+
+        nodes.get(0).channel.publish(key, update);
+        // cassandra is still applying it while the update waits to be sent
+        update.addColumn(ByteBufferUtil.bytes("b"), ByteBufferUtil.bytes("later"), 2);
+
+        awaitApplied(b, 1);
+        assertThat(b.cache.get("1").get("a").getData(), is((Object) "new"));
+        assertThat(b.cache.get("1").get("b").getData(), is((Object) "old"));
+    }
+
+    @Test
+    public void testOnlyNewerChangesAreApplied() throws Exception {
+        createNodes(2, 1);
+        Node a = nodes.get(0);
+        Node b = nodes.get(1);
+        b.cache.put("1", PackedRow.builder().set("a", "cached", 5).set("b", "cached", 5).build());
+
+        a.channel.publish(key, update("a", "older", 3));
+        ColumnFamily olderRowDelete = ArrayBackedSortedColumns.factory.create(metadata);
+        olderRowDelete.delete(new DeletionInfo(4, 0));
+        a.channel.publish(key, olderRowDelete);
+        ColumnFamily newerDelete = ArrayBackedSortedColumns.factory.create(metadata);
+        newerDelete.addTombstone(ByteBufferUtil.bytes("b"), 0, 6);
+        a.channel.publish(key, newerDelete);
+
+        awaitApplied(b, 3);
+        PackedRow cached = b.cache.get("1");
+        assertThat(cached.toMap().keySet(), is(Collections.singleton("a")));
+        assertThat(cached.get("a").getData(), is((Object) "cached"));
+    }
+
+    @Test
+    public void testQueuedUpdatesShareACompressedFrame() throws Exception {
+        // long enough for every update to be queued before the first frame goes
+        createNodes(2, 500);
+        Node a = nodes.get(0);
+        Node b = nodes.get(1);
+        for (int i = 0; i < 100; i++) {
+            a.channel.publish(ByteBufferUtil.bytes("row-" + i), update("a", "the same value every time", 2));
+        }
+
+        awaitApplied(b, 100);
+        assertThat(a.channel.getSentFrameCount(), is(1L));
+        assertThat(a.channel.getSentBytes(), is(lessThan(a.channel.getUncompressedBytes())));
+        assertThat(b.channel.getFailedCount(), is(0L));
+    }
+
+    @Test
+    public void testTriggerPublishesWritesTheCacheMade() throws Exception {
+        createNodes(2, 1);
+        Node b = nodes.get(1);
+        b.cache.put("1", row);
+        CoherenceChannel saved = CassandraExternalCache.coherence;
+        CassandraExternalCache.coherence = nodes.get(0).channel;
+        try {
+            // a REST PUT on the first node, its own trigger skips it
+            dao.put("1", PackedRow.builder().set("a", "put", 2).build());
+        }
+        finally {
+            CassandraExternalCache.coherence = saved;
+        }
+
+        awaitApplied(b, 1);
+        assertThat(b.cache.get("1").get("a").getData(), is((Object) "put"));
+        assertThat(b.cache.get("1").get("a").getTimestamp(), is(greaterThan(1L)));
+    }
+
+    @Test
+    public void testUnreachablePeerDropsFrames() throws Exception {
+        Node a = createNode(Collections.singletonList(LOOPBACK.getHostAddress() + ":" + freePort()), 1);
+
+        a.channel.publish(key, update("a", "new", 2));
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (0 == a.channel.getUndeliveredCount() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(a.channel.getUndeliveredCount(), is(1L));
+        assertThat(a.channel.getSentFrameCount(), is(0L));
+    }
+
+    @Test
+    public void testOversizedMutationIsDroppedAndRestOfBatchSent() throws Exception {
+        createNodes(2, 500);
+        Node a = nodes.get(0);
+        Node b = nodes.get(1);
+        char[] huge = new char[CoherenceChannel.MAX_FRAME_BYTES];
+        Arrays.fill(huge, 'x');
+
+        a.channel.publish(ByteBufferUtil.bytes("1"), update("a", "small", 2));
+        a.channel.publish(ByteBufferUtil.bytes("2"), update("a", new String(huge), 2));
+        a.channel.publish(ByteBufferUtil.bytes("3"), update("a", "small", 2));
+
+        awaitApplied(b, 2);
+        assertThat(a.channel.getOversizedCount(), is(1L));
+        assertThat(b.channel.getFailedCount(), is(0L));
+    }
+
+    @Test
+    public void testConnectionFromNonPeerIsRefused() throws Exception {
+        // only documentation addresses are peers, loopback isn't one
+        Node a = createNode(Collections.singletonList("192.0.2.1:" + freePort()), 1);
+
+        try (Socket socket = new Socket(LOOPBACK, a.channel.getPort())) {
+            assertClosedByPeer(socket);
+        }
+        assertThat(a.channel.getRejectedConnectionCount(), is(1L));
+    }
+
+    @Test
+    public void testConnectionsAreCapped() throws Exception {
+        // one peer, two connections
+        Node a = createNode(Collections.singletonList(LOOPBACK.getHostAddress() + ":" + freePort()), 1);
+
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < 3; i++) {
+                sockets.add(new Socket(LOOPBACK, a.channel.getPort()));
+            }
+            assertClosedByPeer(sockets.get(2));
+            assertThat(a.channel.getRejectedConnectionCount(), is(1L));
+        }
+        finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void testOversizedFrameClosesConnection() throws Exception {
+        createNodes(2, 1);
+        Node b = nodes.get(1);
+
+        try (Socket socket = new Socket(LOOPBACK, b.channel.getPort())) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(CoherenceChannel.MAX_FRAME_BYTES + 1);
+            out.writeInt(16);
+            out.flush();
+            assertClosedByPeer(socket);
+        }
+        assertThat(b.channel.getReceivedCount(), is(0L));
+    }
+
+    @Test
+    public void testFrameShorterThanDeclaredClosesConnection() throws Exception {
+        createNodes(2, 1);
+        Node b = nodes.get(1);
+        byte[] payload = new byte[64];
+        byte[] compressed = LZ4Factory.fastestInstance().fastCompressor().compress(payload);
+
+        try (Socket socket = new Socket(LOOPBACK, b.channel.getPort())) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(payload.length + 16);
+            out.writeInt(compressed.length);
+            out.write(compressed);
+            out.flush();
+            assertClosedByPeer(socket);
+        }
+        assertThat(b.channel.getReceivedCount(), is(0L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadPeer() {
+        new CoherenceChannel(mock(CachingService.class), LOOPBACK, 0, Arrays.asList("no-port"), 10, 10, 1);
+    }
+
+    private ColumnFamily update(String name, String value, long timestamp) {
+        ColumnFamily cf = ArrayBackedSortedColumns.factory.create(metadata);
+        cf.addColumn(ByteBufferUtil.bytes(name), ByteBufferUtil.bytes(value), timestamp);
+        return cf;
+    }
+
+    private void createNodes(int count, long flushIntervalMillis) throws IOException {
+        List<String> addresses = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            addresses.add(LOOPBACK.getHostAddress() + ":" + freePort());
+        }
+        for (int i = 0; i < count; i++) {
+            List<String> peers = new ArrayList<>(addresses);
+            String self = peers.remove(i);
+            createNode(peers, flushIntervalMillis, Integer.parseInt(self.substring(self.indexOf(':') + 1)));
+        }
+    }
+
+    private Node createNode(List<String> peers, long flushIntervalMillis) throws IOException {
+        return createNode(peers, flushIntervalMillis, 0);
+    }
+
+    private Node createNode(List<String> peers, long flushIntervalMillis, int port) throws IOException {
+        Node node = new Node();
+        node.cache = new CachingServiceUsingOffHeap(CassandraExternalCache.KEYSPACE, CassandraExternalCache.COLUMN_FAMILY,
+                                                    1024 * 1024);
+        node.channel = new CoherenceChannel(node.cache, LOOPBACK, port, peers, 1000, 1000, flushIntervalMillis);
+        node.channel.start();
+        nodes.add(node);
+        return node;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void assertClosedByPeer(Socket socket) throws IOException {
+        socket.setSoTimeout((int) TIMEOUT_MILLIS);
+        assertThat(socket.getInputStream().read(), is(-1));
+    }
+
+    private static void awaitApplied(Node node, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (node.channel.getAppliedCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(node.channel.getAppliedCount(), is(count));
+    }
+
+    static class Node {
+        CachingService cache;
+        CoherenceChannel channel;
+    }
+}
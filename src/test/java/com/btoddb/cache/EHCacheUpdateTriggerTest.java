@@ -0,0 +1,387 @@
+package com.btoddb.cache;
+
+import com.btoddb.cache.cassandra.CassandraDao;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.ColumnDefinition;
+import org.apache.cassandra.db.ArrayBackedSortedColumns;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.ColumnFamilyType;
+import org.apache.cassandra.db.CounterUpdateColumn;
+import org.apache.cassandra.db.DeletionInfo;
+import org.apache.cassandra.db.ExpiringColumn;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+
+public class EHCacheUpdateTriggerTest {
+    CachingService original;
+    CachingService cachingService;
+    EHCacheUpdateTrigger trigger = new EHCacheUpdateTrigger();
+    CFMetaData metadata;
+    ByteBuffer key = ByteBufferUtil.bytes("1");
+    PackedRow row = PackedRow.builder().set("col", "old", 1).build();
+
+    @Before
+    public void setup() throws Exception {
+        original = CassandraExternalCache.cachingService;
+        cachingService = new CachingServiceUsingOffHeap("ks", "cf", 1024 * 1024);
+        CassandraExternalCache.cachingService = cachingService;
+
+        // static style table, the trigger needs column definitions
+        metadata = new CFMetaData("ks", "cf", ColumnFamilyType.Standard, UTF8Type.instance);
+        metadata.keyValidator(UTF8Type.instance);
+        metadata.addColumnDefinition(ColumnDefinition.regularDef(ByteBufferUtil.bytes("col"), UTF8Type.instance, null));
+        metadata.addColumnDefinition(ColumnDefinition.regularDef(ByteBufferUtil.bytes("col2"), UTF8Type.instance, null));
+    }
+
+    @After
+    public void teardown() {
+        CassandraExternalCache.cachingService = original;
+        EHCacheUpdateTrigger.setMaxOptimisticAttempts(EHCacheUpdateTrigger.DEFAULT_OPTIMISTIC_ATTEMPTS);
+    }
+
+    @Test
+    public void testUpdateWithoutLock() throws Throwable {
+        cachingService.put("1", row);
+        long optimistic = EHCacheUpdateTrigger.getOptimisticUpdateCount();
+        long locked = EHCacheUpdateTrigger.getLockedUpdateCount();
+
+        trigger.updateCache(key, update("new", 2));
+
+        assertThat(cachingService.get("1").get("col").getData(), is((Object) "new"));
+        assertThat(EHCacheUpdateTrigger.getOptimisticUpdateCount(), is(optimistic + 1));
+        assertThat(EHCacheUpdateTrigger.getLockedUpdateCount(), is(locked));
+        assertThat(cachingService.getKeyLocks().getAcquiredCount(), is(0L));
+    }
+
+    @Test
+    public void testUpdateWithEhcache() throws Throwable {
+        cachingService = new CachingServiceUsingEhcache("ks", "trigger-test");
+        cachingService.resetCache();
+        CassandraExternalCache.cachingService = cachingService;
+        cachingService.put("1", row);
+
+        trigger.updateCache(key, update(table("trigger-test"), "new", 2));
+
+        assertThat(cachingService.get("1").get("col").getData(), is((Object) "new"));
+        assertThat(cachingService.replace("1", row, row), is(false));
+    }
+
+    @Test
+    public void testOlderUpdateIsIgnored() throws Throwable {
+        cachingService.put("1", row);
+
+        long skipped = EHCacheUpdateTrigger.getSkippedUpdateCount();
+        long timed = EHCacheUpdateTrigger.getUpdateLatency().snapshot().getCount();
+
+        trigger.updateCache(key, update("older", 0));
+
+        assertThat(cachingService.get("1"), is(row));
+        assertThat(EHCacheUpdateTrigger.getSkippedUpdateCount(), is(skipped + 1));
+        assertThat(EHCacheUpdateTrigger.getUpdateLatency().snapshot().getCount(), is(timed + 1));
+    }
+
+    @Test
+    public void testUncachedRowIsNotUpdated() throws Throwable {
+        long skipped = EHCacheUpdateTrigger.getSkippedUpdateCount();
+        long timed = EHCacheUpdateTrigger.getUpdateLatency().snapshot().getCount();
+
+        trigger.updateCache(key, update("new", 2));
+
+        assertThat(cachingService.contains("1"), is(false));
+        assertThat(EHCacheUpdateTrigger.getSkippedUpdateCount(), is(skipped + 1));
+        assertThat(EHCacheUpdateTrigger.getUpdateLatency().snapshot().getCount(), is(timed));
+    }
+
+    @Test
+    public void testInsertForgetsRowWasMissing() throws Throwable {
+        ReadThroughLoader loader = new ReadThroughLoader(cachingService, mock(CassandraDao.class));
+        loader.setNegativeCache(new NegativeCache(60000, 10));
+        loader.getNegativeCache().add("1");
+        ReadThroughLoader saved = CassandraExternalCache.rowLoader;
+        CassandraExternalCache.rowLoader = loader;
+        try {
+            trigger.updateCache(key, update("new", 2));
+        }
+        finally {
+            CassandraExternalCache.rowLoader = saved;
+        }
+
+        assertThat(loader.getNegativeCache().isMissing("1"), is(false));
+    }
+
+    @Test
+    public void testWriteMadeByCacheIsSkipped() throws Throwable {
+        cachingService.put("1", row);
+        CassandraDao.inFlightWrites.add("1", 2);
+        try {
+            trigger.updateCache(key, update("new", 2));
+            assertThat(cachingService.get("1"), is(row));
+
+            // same row, another write
+            trigger.updateCache(key, update("new", 3));
+            assertThat(cachingService.get("1").get("col").getData(), is((Object) "new"));
+        }
+        finally {
+            CassandraDao.inFlightWrites.remove("1", 2);
+        }
+    }
+
+    @Test
+    public void testMutationMixingCacheWriteWithOthersIsApplied() throws Throwable {
+        CassandraDao.inFlightWrites.add("1", 2);
+        try {
+            assertThat(trigger.isCacheOriginated(key, update("new", 2)), is(true));
+
+            ColumnFamily otherTimestamp = update("new", 2);
+            otherTimestamp.addColumn(ByteBufferUtil.bytes("col2"), ByteBufferUtil.bytes("x"), 3);
+            assertThat(trigger.isCacheOriginated(key, otherTimestamp), is(false));
+
+            ColumnFamily rowDeletion = update("new", 2);
+            rowDeletion.delete(new DeletionInfo(2, 0));
+            assertThat(trigger.isCacheOriginated(key, rowDeletion), is(false));
+
+            ColumnFamily tombstone = update("new", 2);
+            tombstone.addTombstone(ByteBufferUtil.bytes("col2"), 0, 2);
+            assertThat(trigger.isCacheOriginated(key, tombstone), is(false));
+
+            // applied, not skipped
+            cachingService.put("1", row);
+            trigger.updateCache(key, otherTimestamp);
+            assertThat(cachingService.get("1").get("col").getData(), is((Object) "new"));
+            assertThat(cachingService.get("1").get("col2").getData(), is((Object) "x"));
+        }
+        finally {
+            CassandraDao.inFlightWrites.remove("1", 2);
+        }
+    }
+
+    @Test
+    public void testConflictingWriteIsRetried() throws Throwable {
+        cachingService.put("1", row);
+        final PackedRow concurrent = PackedRow.builder().set("col", "old", 1).set("other", "x", 1).build();
+        CachingService racing = spy(cachingService);
+        CassandraExternalCache.cachingService = racing;
+        // another writer gets in between our read and our swap, once
+        doAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                cachingService.put("1", concurrent);
+                return false;
+            }
+        }).doCallRealMethod().when(racing).replace(anyString(), any(PackedRow.class), any(PackedRow.class));
+        long retries = EHCacheUpdateTrigger.getOptimisticRetryCount();
+
+        trigger.updateCache(key, update("new", 2));
+
+        // applied on top of the other writer's row, not ours
+        PackedRow updated = cachingService.get("1");
+        assertThat(updated.get("col").getData(), is((Object) "new"));
+        assertThat(updated.containsColumn("other"), is(true));
+        assertThat(EHCacheUpdateTrigger.getOptimisticRetryCount(), is(retries + 1));
+        verify(racing, never()).acquireWriteLockOnKey(anyString());
+    }
+
+    @Test
+    public void testFallsBackToLockAfterRepeatedConflicts() throws Throwable {
+        EHCacheUpdateTrigger.setMaxOptimisticAttempts(2);
+        cachingService.put("1", row);
+        CachingService racing = spy(cachingService);
+        CassandraExternalCache.cachingService = racing;
+        doReturn(false).doReturn(false).doCallRealMethod()
+                .when(racing).replace(anyString(), any(PackedRow.class), any(PackedRow.class));
+        long locked = EHCacheUpdateTrigger.getLockedUpdateCount();
+
+        trigger.updateCache(key, update("new", 2));
+
+        assertThat(cachingService.get("1").get("col").getData(), is((Object) "new"));
+        assertThat(EHCacheUpdateTrigger.getLockedUpdateCount(), is(locked + 1));
+        verify(racing).acquireWriteLockOnKey("1");
+        verify(racing).releaseWriteLockOnKey("1");
+        verify(racing, times(3)).replace(eq("1"), any(PackedRow.class), any(PackedRow.class));
+    }
+
+    @Test
+    public void testUncachedTableIsIgnored() throws Throwable {
+        cachingService.put("1", row);
+
+        trigger.updateCache(key, update(table("not-cached"), "new", 2));
+        trigger.augment(key, update(table("not-cached"), "new", 2));
+
+        assertThat(cachingService.get("1"), is(row));
+    }
+
+    @Test
+    public void testColumnDeleteRemovesColumn() throws Throwable {
+        cachingService.put("1", twoColumns(1));
+
+        trigger.updateCache(key, deleteColumn("col", 2));
+
+        PackedRow updated = cachingService.get("1");
+        assertThat(updated.containsColumn("col"), is(false));
+        assertThat(updated.get("col2").getData(), is((Object) "other"));
+        assertThat(updated.getDeletedAt(), is(2L));
+    }
+
+    @Test
+    public void testOlderDeleteIsIgnored() throws Throwable {
+        cachingService.put("1", twoColumns(3));
+
+        trigger.updateCache(key, deleteColumn("col", 2));
+        assertThat(cachingService.get("1"), is(twoColumns(3)));
+
+        // still remembered, the row may have had columns that aren't cached
+        trigger.updateCache(key, deleteRow(2));
+        assertThat(cachingService.get("1").toMap(), is(twoColumns(3).toMap()));
+        assertThat(cachingService.get("1").getDeletedAt(), is(2L));
+    }
+
+    @Test
+    public void testDeletingLastColumnRemovesRow() throws Throwable {
+        cachingService.put("1", row);
+        long rowDeletions = EHCacheUpdateTrigger.getRowDeletionCount();
+
+        trigger.updateCache(key, deleteColumn("col", 1));
+
+        assertThat(cachingService.contains("1"), is(false));
+        assertThat(EHCacheUpdateTrigger.getRowDeletionCount(), is(rowDeletions + 1));
+    }
+
+    @Test
+    public void testRowDeleteKeepsNewerColumns() throws Throwable {
+        cachingService.put("1", PackedRow.builder().set("col", "old", 1).set("col2", "newer", 5).build());
+
+        trigger.updateCache(key, deleteRow(3));
+
+        PackedRow updated = cachingService.get("1");
+        assertThat(updated.size(), is(1));
+        assertThat(updated.get("col2").getData(), is((Object) "newer"));
+
+        trigger.updateCache(key, deleteRow(5));
+        assertThat(cachingService.contains("1"), is(false));
+    }
+
+    @Test
+    public void testWriteInSameMutationAsRowDelete() throws Throwable {
+        cachingService.put("1", twoColumns(1));
+
+        // DELETE then INSERT in one batch - the insert survives only if newer
+        ColumnFamily cf = deleteRow(2);
+        cf.addColumn(ByteBufferUtil.bytes("col"), ByteBufferUtil.bytes("new"), 3);
+        cf.addColumn(ByteBufferUtil.bytes("col2"), ByteBufferUtil.bytes("same"), 2);
+        trigger.updateCache(key, cf);
+
+        PackedRow updated = cachingService.get("1");
+        assertThat(updated.size(), is(1));
+        assertThat(updated.get("col").getData(), is((Object) "new"));
+    }
+
+    @Test
+    public void testRangeDeleteRemovesColumnsInRange() throws Throwable {
+        cachingService.put("1", twoColumns(1));
+
+        ColumnFamily cf = ArrayBackedSortedColumns.factory.create(metadata);
+        cf.delete(new DeletionInfo(ByteBufferUtil.bytes("a"), ByteBufferUtil.bytes("col"), metadata.comparator, 2, 0));
+        trigger.updateCache(key, cf);
+
+        PackedRow updated = cachingService.get("1");
+        assertThat(updated.containsColumn("col"), is(false));
+        assertThat(updated.containsColumn("col2"), is(true));
+    }
+
+    @Test
+    public void testLateWriteOfDeletedColumnEvictsRow() throws Throwable {
+        cachingService.put("1", twoColumns(1));
+        trigger.updateCache(key, deleteColumn("col", 5));
+        long invalidations = EHCacheUpdateTrigger.getInvalidationCount();
+
+        // newer than the cached column was, older than the delete - cassandra keeps it deleted
+        trigger.updateCache(key, update("late", 3));
+
+        assertThat(cachingService.contains("1"), is(false));
+        assertThat(EHCacheUpdateTrigger.getInvalidationCount(), is(invalidations + 1));
+    }
+
+    @Test
+    public void testWriteAfterDeleteIsApplied() throws Throwable {
+        cachingService.put("1", twoColumns(1));
+        trigger.updateCache(key, deleteColumn("col", 5));
+
+        trigger.updateCache(key, update("again", 6));
+
+        assertThat(cachingService.get("1").get("col").getData(), is((Object) "again"));
+    }
+
+    @Test
+    public void testExpiringColumnSetsExpiry() throws Throwable {
+        cachingService.put("1", twoColumns(1));
+        int expiresInSeconds = (int) TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 60;
+
+        ColumnFamily cf = ArrayBackedSortedColumns.factory.create(metadata);
+        cf.addColumn(new ExpiringColumn(ByteBufferUtil.bytes("col"), ByteBufferUtil.bytes("ttl"), 2, 60, expiresInSeconds));
+        trigger.updateCache(key, cf);
+
+        PackedRow updated = cachingService.get("1");
+        assertThat(updated.get("col").getData(), is((Object) "ttl"));
+        assertThat(updated.getExpiresAt(), is(TimeUnit.SECONDS.toMillis(expiresInSeconds)));
+    }
+
+    @Test
+    public void testCounterUpdateEvictsRow() throws Throwable {
+        cachingService.put("1", twoColumns(1));
+
+        ColumnFamily cf = ArrayBackedSortedColumns.factory.create(metadata);
+        cf.addColumn(new CounterUpdateColumn(ByteBufferUtil.bytes("col"), 1L, 2));
+        trigger.updateCache(key, cf);
+
+        assertThat(cachingService.contains("1"), is(false));
+    }
+
+    private PackedRow twoColumns(long timestamp) {
+        return PackedRow.builder().set("col", "old", timestamp).set("col2", "other", timestamp).build();
+    }
+
+    private ColumnFamily deleteColumn(String name, long timestamp) {
+        ColumnFamily cf = ArrayBackedSortedColumns.factory.create(metadata);
+        cf.addTombstone(ByteBufferUtil.bytes(name), 0, timestamp);
+        return cf;
+    }
+
+    private ColumnFamily deleteRow(long timestamp) {
+        ColumnFamily cf = ArrayBackedSortedColumns.factory.create(metadata);
+        cf.delete(new DeletionInfo(timestamp, 0));
+        return cf;
+    }
+
+    private CFMetaData table(String cfName) throws Exception {
+        CFMetaData table = new CFMetaData("ks", cfName, ColumnFamilyType.Standard, UTF8Type.instance);
+        table.keyValidator(UTF8Type.instance);
+        table.addColumnDefinition(ColumnDefinition.regularDef(ByteBufferUtil.bytes("col"), UTF8Type.instance, null));
+        return table;
+    }
+
+    private ColumnFamily update(String value, long timestamp) {
+        return update(metadata, value, timestamp);
+    }
+
+    private ColumnFamily update(CFMetaData table, String value, long timestamp) {
+        ColumnFamily cf = ArrayBackedSortedColumns.factory.create(table);
+        cf.addColumn(ByteBufferUtil.bytes("col"), ByteBufferUtil.bytes(value), timestamp);
+        return cf;
+    }
+}
@@ -0,0 +1,71 @@
+package com.btoddb.cache;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+
+public class FrequencySketchTest {
+
+    @Test
+    public void testCountsReads() {
+        FrequencySketch sketch = new FrequencySketch(1000);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("a");
+        }
+        sketch.increment("b");
+
+        assertThat(sketch.frequency("a"), is(5));
+        assertThat(sketch.frequency("b"), is(1));
+        assertThat(sketch.frequency("c"), is(0));
+    }
+
+    @Test
+    public void testSaturates() {
+        FrequencySketch sketch = new FrequencySketch(1000);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment("a");
+        }
+        assertThat(sketch.frequency("a"), is(FrequencySketch.MAX_FREQUENCY));
+    }
+
+    @Test
+    public void testResetHalves() {
+        FrequencySketch sketch = new FrequencySketch(1000);
+        for (int i = 0; i < 10; i++) {
+            sketch.increment("a");
+        }
+        sketch.reset();
+        assertThat(sketch.frequency("a"), is(5));
+    }
+
+    @Test
+    public void testAgesOutOldReads() {
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 15; i++) {
+            sketch.increment("old");
+        }
+        // enough other reads to halve the counters a few times
+        for (int i = 0; i < sketch.sampleSize() * 4; i++) {
+            sketch.increment(i);
+        }
+        assertThat(sketch.frequency("old"), lessThanOrEqualTo(3));
+    }
+
+    @Test
+    public void testFewCollisions() {
+        FrequencySketch sketch = new FrequencySketch(10000);
+        for (int i = 0; i < 10000; i++) {
+            sketch.increment("key-" + i);
+        }
+        int overestimated = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (1 < sketch.frequency("key-" + i)) {
+                overestimated++;
+            }
+        }
+        assertThat(overestimated, lessThanOrEqualTo(100));
+    }
+}
@@ -0,0 +1,96 @@
+package com.btoddb.cache;
+
+import net.sf.ehcache.config.CacheConfiguration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * Replays key traces against a {@link CachingService} the way the REST service uses it - read,
+ * and on a miss load and cache the row - and reports the hit rate.
+ */
+public class HitRateSimulation {
+    private static final PackedRow ROW = PackedRow.builder().set("col", "value", 1).build();
+
+    private static int caches;
+
+
+    /**
+     * @return ehcache holding <code>maxEntries</code> rows, LRU or with frequency admission
+     */
+    public static CachingServiceUsingEhcache ehcache(int maxEntries, boolean frequencyAdmission) {
+        return new CachingServiceUsingEhcache("simulation", "cache" + caches++, KeyLocks.DEFAULT_STRIPES,
+                                              new CacheConfiguration().maxEntriesLocalHeap(maxEntries),
+                                              frequencyAdmission);
+    }
+
+    /**
+     * @return fraction of reads that hit
+     */
+    public static double replay(CachingService cachingService, String[] trace) {
+        long hits = 0;
+        for (String key : trace) {
+            if (null != cachingService.get(key)) {
+                hits++;
+            }
+            else {
+                cachingService.put(key, ROW);
+            }
+        }
+        return (double) hits / trace.length;
+    }
+
+    /**
+     * Reads of <code>keyCount</code> keys, key i read with probability proportional to
+     * <code>1 / (i + 1)^exponent</code>.  The keys are shuffled so popularity doesn't follow
+     * key order.
+     */
+    public static String[] zipf(int keyCount, double exponent, int length, long seed) {
+        Random random = new Random(seed);
+        double[] cumulative = new double[keyCount];
+        double total = 0;
+        for (int i = 0; i < keyCount; i++) {
+            total += 1 / Math.pow(i + 1, exponent);
+            cumulative[i] = total;
+        }
+        int[] keys = new int[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = i;
+        }
+        for (int i = keyCount - 1; 0 < i; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = keys[i];
+            keys[i] = keys[j];
+            keys[j] = swap;
+        }
+
+        String[] trace = new String[length];
+        for (int i = 0; i < length; i++) {
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+            rank = 0 <= rank ? rank : Math.min(keyCount - 1, -rank - 1);
+            trace[i] = "key-" + keys[rank];
+        }
+        return trace;
+    }
+
+    /**
+     * The trace with a scan of <code>scanLength</code> keys read once each, never seen before or
+     * after, inserted every <code>interval</code> reads.
+     */
+    public static String[] withScans(String[] trace, int interval, int scanLength) {
+        List<String> scanned = new ArrayList<>(trace.length + trace.length / interval * scanLength);
+        int scanKey = 0;
+        for (int i = 0; i < trace.length; i++) {
+            if (0 < i && 0 == i % interval) {
+                for (int j = 0; j < scanLength; j++) {
+                    scanned.add("scan-" + scanKey++);
+                }
+            }
+            scanned.add(trace[i]);
+        }
+        return scanned.toArray(new String[scanned.size()]);
+    }
+}
@@ -0,0 +1,60 @@
+package com.btoddb.cache;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+
+
+public class KeyLocksTest {
+
+    @Test
+    public void testStripeCount() {
+        assertThat(new KeyLocks(16).getStripeCount(), is(16));
+    }
+
+    @Test
+    public void testUncontendedLock() {
+        KeyLocks locks = new KeyLocks(16);
+        locks.lock("1");
+        locks.lock("1");
+        locks.unlock("1");
+        locks.unlock("1");
+
+        assertThat(locks.getAcquiredCount(), is(2L));
+        assertThat(locks.getContendedCount(), is(0L));
+        assertThat(locks.getWaitLatency().snapshot().getCount(), is(0L));
+    }
+
+    @Test
+    public void testContendedLockIsCounted() throws Exception {
+        // one stripe, so any two keys contend
+        final KeyLocks locks = new KeyLocks(1);
+        final CountDownLatch locked = new CountDownLatch(1);
+        locks.lock("1");
+
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                locks.lock("2");
+                locked.countDown();
+                locks.unlock("2");
+            }
+        });
+        other.start();
+
+        assertThat(locked.await(200, TimeUnit.MILLISECONDS), is(false));
+        locks.unlock("1");
+        assertThat(locked.await(5, TimeUnit.SECONDS), is(true));
+        other.join();
+
+        assertThat(locks.getContendedCount(), is(1L));
+        // waited out most of the 200ms the lock was held for
+        assertThat(locks.getWaitLatency().snapshot().getCount(), is(1L));
+        assertThat(locks.getWaitLatency().snapshot().getMaxMicros(), is(greaterThanOrEqualTo(100000.0)));
+    }
+}
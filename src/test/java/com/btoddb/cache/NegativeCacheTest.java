@@ -0,0 +1,52 @@
+package com.btoddb.cache;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+
+public class NegativeCacheTest {
+
+    @Test
+    public void testMissingUntilRemoved() {
+        NegativeCache cache = new NegativeCache(60000, 10);
+
+        assertThat(cache.isMissing("1"), is(false));
+        cache.add("1");
+        assertThat(cache.isMissing("1"), is(true));
+        assertThat(cache.isMissing("2"), is(false));
+        cache.remove("1");
+        assertThat(cache.isMissing("1"), is(false));
+        assertThat(cache.getHitCount(), is(1L));
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        NegativeCache cache = new NegativeCache(20, 10);
+        cache.add("1");
+
+        Thread.sleep(40);
+
+        assertThat(cache.isMissing("1"), is(false));
+        assertThat(cache.size(), is(0));
+    }
+
+    @Test
+    public void testFullCacheSweepsExpiredEntriesOrRejects() throws Exception {
+        NegativeCache cache = new NegativeCache(20, 2);
+        cache.add("1");
+        cache.add("2");
+
+        cache.add("3");
+        assertThat(cache.isMissing("3"), is(false));
+        assertThat(cache.getRejectedCount(), is(1L));
+
+        // once the others expire there is room again
+        Thread.sleep(40);
+        cache.add("4");
+        assertThat(cache.isMissing("4"), is(true));
+        assertThat(cache.size(), is(1));
+        assertThat(cache.getAddedCount(), is(3L));
+    }
+}
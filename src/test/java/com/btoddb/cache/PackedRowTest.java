@@ -0,0 +1,229 @@
+package com.btoddb.cache;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+
+
+public class PackedRowTest {
+    long now = System.currentTimeMillis();
+
+    @Test
+    public void testRoundTripThroughMap() {
+        Map<String, CachedColumn> map = new HashMap<>();
+        map.put("b", new CachedColumn("b", "b-data", now));
+        map.put("a", new CachedColumn("a", "a-data", now + 1));
+        map.put("c", new CachedColumn("c", null, now + 2));
+
+        PackedRow row = PackedRow.fromMap(map);
+
+        assertThat(row.size(), is(3));
+        assertThat(row.toMap(), is(map));
+        assertThat(row.toMap().keySet(), contains("a", "b", "c"));
+        assertThat(row.get("a"), is(map.get("a")));
+        assertThat(row.get("missing"), is(nullValue()));
+        assertThat(row.indexOf("missing") < 0, is(true));
+    }
+
+    @Test
+    public void testValueTypes() {
+        UUID uuid = UUID.randomUUID();
+        Date date = new Date(now);
+        PackedRow row = PackedRow.builder()
+                .set("int", 42, 1)
+                .set("long", 42L, 1)
+                .set("double", 4.2d, 1)
+                .set("float", 4.2f, 1)
+                .set("bool", true, 1)
+                .set("bytes", ByteBuffer.wrap(new byte[] {1, 2, 3}), 1)
+                .set("uuid", uuid, 1)
+                .set("date", date, 1)
+                .set("str", "fünf", 1)
+                .build();
+
+        assertThat(row.get("int").getData(), is((Object) 42));
+        assertThat(row.get("long").getData(), is((Object) 42L));
+        assertThat(row.get("double").getData(), is((Object) 4.2d));
+        assertThat(row.get("float").getData(), is((Object) 4.2f));
+        assertThat(row.get("bool").getData(), is((Object) true));
+        assertThat(row.get("bytes").getData(), is((Object) ByteBuffer.wrap(new byte[] {1, 2, 3})));
+        assertThat(row.get("uuid").getData(), is((Object) uuid));
+        assertThat(row.get("date").getData(), is((Object) date));
+        assertThat(row.get("str").getData(), is((Object) "fünf"));
+    }
+
+    @Test
+    public void testBuilderFromRowOnlyTakesNewerColumns() {
+        PackedRow row = PackedRow.builder().set("a", "old", 10).set("b", "old", 10).build();
+
+        PackedRow.Builder builder = row.toBuilder();
+        assertThat(builder.setIfNewer("a", "new", 11), is(true));
+        assertThat(builder.setIfNewer("b", "stale", 9), is(false));
+        assertThat(builder.setIfNewer("c", "added", 1), is(true));
+        PackedRow updated = builder.build();
+
+        assertThat(updated.get("a"), is(new CachedColumn("a", "new", 11)));
+        assertThat(updated.get("b"), is(new CachedColumn("b", "old", 10)));
+        assertThat(updated.get("c"), is(new CachedColumn("c", "added", 1)));
+
+        // original is untouched
+        assertThat(row.get("a"), is(new CachedColumn("a", "old", 10)));
+        assertThat(row.containsColumn("c"), is(false));
+    }
+
+    @Test
+    public void testSelectIsPartial() {
+        PackedRow row = PackedRow.builder().set("a", "1", 10).set("b", 2, 11).set("c", "3", 12).build();
+        assertThat(row.isPartial(), is(false));
+        assertThat(row.covers(Arrays.asList("a", "missing")), is(true));
+
+        PackedRow selected = row.select(Arrays.asList("b", "missing"));
+        assertThat(selected.isPartial(), is(true));
+        assertThat(selected.size(), is(1));
+        assertThat(selected.get("b"), is(new CachedColumn("b", 2, 11)));
+        assertThat(selected.covers(Arrays.asList("b")), is(true));
+        assertThat(selected.covers(Arrays.asList("a", "b")), is(false));
+
+        // the flag isn't a column, and survives a rebuild
+        assertThat(selected.toBuilder().build(), is(selected));
+        assertThat(selected, is(not(PackedRow.builder().set("b", 2, 11).build())));
+    }
+
+    @Test
+    public void testMergeNewerKeepsNewestOfEach() {
+        PackedRow older = PackedRow.builder().set("a", "old", 10).set("b", "old", 10).build();
+        PackedRow newer = PackedRow.builder().partial(true).set("a", "new", 11).set("b", "stale", 9)
+                                   .set("c", "added", 1).build();
+
+        PackedRow.Builder builder = older.toBuilder();
+        assertThat(builder.mergeNewer(newer), is(true));
+        assertThat(builder.mergeNewer(newer), is(false));
+        PackedRow merged = builder.build();
+
+        assertThat(merged.isPartial(), is(false));
+        assertThat(merged.get("a"), is(new CachedColumn("a", "new", 11)));
+        assertThat(merged.get("b"), is(new CachedColumn("b", "old", 10)));
+        assertThat(merged.get("c"), is(new CachedColumn("c", "added", 1)));
+    }
+
+    @Test
+    public void testRemoveColumn() {
+        PackedRow row = PackedRow.builder().set("a", "1", 10).set("b", "2", 10).build();
+        PackedRow.Builder builder = row.toBuilder();
+        assertThat(builder.remove("a"), is(true));
+        assertThat(builder.remove("a"), is(false));
+
+        PackedRow updated = builder.build();
+        assertThat(updated.size(), is(1));
+        assertThat(updated.containsColumn("a"), is(false));
+    }
+
+    @Test
+    public void testEqualityIsIndependentOfInsertOrder() {
+        PackedRow one = PackedRow.builder().set("x", "1", 1).set("y", "2", 2).build();
+        PackedRow two = PackedRow.builder().set("y", "2", 2).set("x", "1", 1).build();
+        PackedRow three = PackedRow.builder().set("y", "2", 3).set("x", "1", 1).build();
+
+        assertThat(one, is(two));
+        assertThat(one.hashCode(), is(two.hashCode()));
+        assertThat(one, is(not(three)));
+    }
+
+    @Test
+    public void testUnregisteredNamesAreStoredInline() {
+        ColumnNameRegistry registry = new ColumnNameRegistry(1);
+        assertThat(registry.idFor("first"), is(0));
+        assertThat(registry.idFor("second"), is(ColumnNameRegistry.NOT_REGISTERED));
+        assertThat(registry.idFor("first"), is(0));
+
+        PackedRow row = new PackedRow.Builder(new ColumnNameRegistry(0)).set("inline", "v", 1).set("a", "1", 1).build();
+        assertThat(row.get("inline"), is(new CachedColumn("inline", "v", 1)));
+
+        // inline slots are carried over as-is, mixed with registered names
+        PackedRow rebuilt = row.toBuilder().set("b", "2", 1).build();
+        assertThat(rebuilt.get("inline"), is(new CachedColumn("inline", "v", 1)));
+        assertThat(rebuilt.get("a"), is(new CachedColumn("a", "1", 1)));
+        assertThat(rebuilt.toMap().keySet(), contains("a", "b", "inline"));
+    }
+
+    @Test
+    public void testBuilderKeepsLoadedAt() {
+        PackedRow row = PackedRow.builder().set("a", "1", 1).loadedAt(1000).build();
+        assertThat(row.getLoadedAt(), is(1000L));
+
+        PackedRow.Builder builder = row.toBuilder();
+        builder.set("b", "2", 2);
+        PackedRow updated = builder.build();
+        assertThat(updated.getLoadedAt(), is(1000L));
+        // not part of the row's state
+        assertThat(updated.toBuilder().loadedAt(2000).build(), is(updated));
+    }
+
+    @Test
+    public void testBuilderKeepsExpiryAndDeletion() {
+        PackedRow.Builder builder = PackedRow.builder().set("a", "1", 1).expireBy(5000).expireBy(3000).expireBy(4000);
+        builder.deletedAt(7);
+        builder.deletedAt(6);
+        PackedRow row = builder.build();
+        assertThat(row.getExpiresAt(), is(3000L));
+        assertThat(row.getDeletedAt(), is(7L));
+
+        PackedRow updated = row.toBuilder().set("b", "2", 2).build();
+        assertThat(updated.getExpiresAt(), is(3000L));
+        assertThat(updated.getDeletedAt(), is(7L));
+
+        // the same columns with a newer deletion are a newer version of the row
+        PackedRow.Builder deleted = row.toBuilder();
+        deleted.deletedAt(8);
+        assertThat(deleted.build(), is(not(row)));
+        assertThat(PackedRow.builder().set("a", "1", 1).build(), is(not(row)));
+    }
+
+    @Test
+    public void testWithTimestamp() {
+        PackedRow row = PackedRow.builder().set("a", "1", 1).set("b", 2L, 5).loadedAt(1000).build();
+
+        PackedRow stamped = row.withTimestamp(9);
+        assertThat(stamped, is(PackedRow.builder().set("a", "1", 9).set("b", 2L, 9).build()));
+        assertThat(stamped.getLoadedAt(), is(1000L));
+        // a copy, the original is untouched
+        assertThat(row.timestamp("a"), is(1L));
+    }
+
+    @Test
+    public void testSmallerThanHashMap() {
+        Map<String, CachedColumn> map = new HashMap<>();
+        for (int i = 0; i < 10; i++) {
+            map.put("col-" + i, new CachedColumn("col-" + i, "value-" + i, now));
+        }
+        // 10 columns as a HashMap is well over 1KB of objects, packed it's the index plus the strings
+        assertThat(PackedRow.fromMap(map).bytes().length, lessThan(300));
+    }
+
+    @Test
+    public void testJsonMatchesMapOfCachedColumns() throws Exception {
+        Map<String, CachedColumn> map = new HashMap<>();
+        map.put("a", new CachedColumn("a", "a-data", now));
+        map.put("b", new CachedColumn("b", "b-data", now));
+
+        ObjectMapper objMapper = new ObjectMapper();
+        String json = objMapper.writeValueAsString(PackedRow.fromMap(map));
+        Map<String, CachedColumn> parsed = objMapper.readValue(json, new TypeReference<Map<String, CachedColumn>>() {});
+
+        assertThat(parsed, is(map));
+    }
+}
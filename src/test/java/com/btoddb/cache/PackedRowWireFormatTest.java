@@ -0,0 +1,95 @@
+package com.btoddb.cache;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+
+public class PackedRowWireFormatTest {
+
+    PackedRow row = PackedRow.builder()
+            .set("str", "fünf ☃", 1)
+            .set("int", 42, 2)
+            .set("long", Long.MIN_VALUE, 3)
+            .set("double", 4.25, 4)
+            .set("float", 0.1f, 5)
+            .set("bool", true, 6)
+            .set("bytes", ByteBuffer.wrap(new byte[] {1, 2, 3}), 7)
+            .set("uuid", UUID.randomUUID(), 8)
+            .set("date", new Date(), 9)
+            .set("null", null, 10)
+            .set("empty", "", 11)
+            .build();
+
+    @Test
+    public void testRoundTripKeepsTypes() throws Exception {
+        assertThat(read(write(row)), is(row));
+    }
+
+    @Test
+    public void testInlineNamesRoundTrip() throws Exception {
+        PackedRow inline = new PackedRow.Builder(new ColumnNameRegistry(0)).set("inline", "v", 1).build();
+        assertThat(read(write(inline)).toMap(), is(inline.toMap()));
+        assertThat(PackedRowWireFormat.encodedSize(inline), is(write(inline).length));
+    }
+
+    @Test
+    public void testEncodedSizeIsExact() throws Exception {
+        assertThat(PackedRowWireFormat.encodedSize(row), is(write(row).length));
+        assertThat(PackedRowWireFormat.encodedSize(PackedRow.empty()), is(4));
+    }
+
+    @Test
+    public void testSmallerThanJson() throws Exception {
+        byte[] json = new ObjectMapper().writeValueAsBytes(row);
+        assertThat(write(row).length < json.length / 2, is(true));
+    }
+
+    @Test
+    public void testMalformedInputIsRejected() throws Exception {
+        byte[] bytes = write(row);
+        assertRejected(Arrays.copyOf(bytes, bytes.length - 1));
+
+        // more columns than the body could hold
+        byte[] huge = bytes.clone();
+        huge[0] = 0x7f;
+        assertRejected(huge);
+
+        byte[] badType = write(PackedRow.builder().set("a", 1, 1).build());
+        badType[4 + 2 + 1 + 8] = 99;
+        assertRejected(badType);
+    }
+
+    private void assertRejected(byte[] bytes) {
+        try {
+            read(bytes);
+            fail("read malformed row");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static byte[] write(PackedRow row) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PackedRowWireFormat.write(row, new DataOutputStream(out));
+        return out.toByteArray();
+    }
+
+    private static PackedRow read(byte[] bytes) throws IOException {
+        return PackedRowWireFormat.read(new DataInputStream(new ByteArrayInputStream(bytes)), bytes.length);
+    }
+}
@@ -0,0 +1,623 @@
+package com.btoddb.cache;
+
+import com.btoddb.cache.cassandra.CassandraDao;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+
+public class ReadThroughLoaderTest {
+    CachingService cachingService;
+    CassandraDao cassandraDao;
+    ReadThroughLoader loader;
+    PackedRow row = PackedRow.builder().set("col", "data", 1).build();
+
+    @Before
+    public void setup() {
+        cachingService = new CachingServiceUsingOffHeap("ks", "cf", 1024 * 1024);
+        cassandraDao = mock(CassandraDao.class);
+        loader = new ReadThroughLoader(cachingService, cassandraDao);
+    }
+
+    @Test
+    public void testMissIsLoadedAndCached() throws Exception {
+        when(cassandraDao.get("1")).thenReturn(row);
+
+        assertThat(loader.get("1"), is(row));
+        assertThat(loader.get("1"), is(row));
+
+        verify(cassandraDao, times(1)).get("1");
+        assertThat(cachingService.get("1"), is(row));
+        assertThat(loader.getLoadCount(), is(1L));
+    }
+
+    @Test
+    public void testMissingRowIsNotCached() throws Exception {
+        assertThat(loader.get("1"), is(nullValue()));
+        assertThat(cachingService.contains("1"), is(false));
+    }
+
+    @Test
+    public void testMissingRowIsRemembered() throws Exception {
+        loader.setNegativeCache(new NegativeCache(60000, 100));
+        when(cassandraDao.getAsync("1")).thenReturn(Futures.<PackedRow>immediateFuture(null));
+
+        assertThat(loader.get("1"), is(nullValue()));
+        assertThat(loader.get("1"), is(nullValue()));
+        assertThat(loader.getAsync("1").get(), is(nullValue()));
+        assertThat(loader.getAsync("1", Arrays.asList("col")).get(), is(nullValue()));
+        Map<String, PackedRow> hits = new LinkedHashMap<>();
+        assertThat(loader.getAllAsync(Arrays.asList("1"), hits).isEmpty(), is(true));
+        assertThat(hits.isEmpty(), is(true));
+
+        verify(cassandraDao, times(1)).get("1");
+        verifyNoMoreInteractions(cassandraDao);
+        assertThat(loader.getNegativeCache().getHitCount(), is(4L));
+    }
+
+    @Test
+    public void testWrittenRowIsNoLongerMissing() throws Exception {
+        loader.setNegativeCache(new NegativeCache(60000, 100));
+        loader.setWriteSettleMillis(0);
+        when(cassandraDao.get("1")).thenReturn(null, row);
+
+        assertThat(loader.get("1"), is(nullValue()));
+        loader.markStale("1");
+
+        assertThat(loader.get("1"), is(row));
+        verify(cassandraDao, times(2)).get("1");
+    }
+
+    @Test
+    public void testMissWrittenDuringLoadIsNotRemembered() throws Exception {
+        loader.setNegativeCache(new NegativeCache(60000, 100));
+        SettableFuture<PackedRow> read = SettableFuture.create();
+        when(cassandraDao.getAsync("1")).thenReturn(read);
+
+        ListenableFuture<PackedRow> result = loader.getAsync("1");
+        loader.markStale("1");
+        read.set(null);
+
+        assertThat(result.get(), is(nullValue()));
+        assertThat(loader.getNegativeCache().size(), is(0));
+    }
+
+    @Test
+    public void testEmptyColumnProjectionIsNotRemembered() throws Exception {
+        loader.setNegativeCache(new NegativeCache(60000, 100));
+        when(cassandraDao.getAsync("1", Arrays.asList("col"))).thenReturn(Futures.<PackedRow>immediateFuture(null));
+
+        assertThat(loader.getAsync("1", Arrays.asList("col")).get(), is(nullValue()));
+        assertThat(loader.getNegativeCache().size(), is(0));
+    }
+
+    @Test
+    public void testRowOwnedElsewhereIsReadButNotCached() throws Exception {
+        TokenOwnership ownership = mock(TokenOwnership.class);
+        when(ownership.isOwned("1")).thenReturn(false);
+        when(ownership.isOwned("2")).thenReturn(true);
+        loader.setOwnership(ownership);
+        when(cassandraDao.get("1")).thenReturn(row);
+        when(cassandraDao.get("2")).thenReturn(row);
+        when(cassandraDao.getAsync("1", Arrays.asList("col"))).thenReturn(Futures.immediateFuture(row));
+
+        assertThat(loader.get("1"), is(row));
+        assertThat(loader.getAsync("1", Arrays.asList("col")).get(), is(row));
+        assertThat(loader.get("2"), is(row));
+
+        assertThat(cachingService.contains("1"), is(false));
+        assertThat(cachingService.get("2"), is(row));
+    }
+
+    @Test
+    public void testEvictedRowPendingWriteBehindIsFound() throws Exception {
+        WriteBehindQueue writeBehind = new WriteBehindQueue(cachingService, cassandraDao, 1000000, 10, 1000);
+        loader.setWriteBehind(writeBehind);
+        writeBehind.offer("1", row);
+        when(cassandraDao.getAsync("1")).thenReturn(Futures.<PackedRow>immediateFuture(null));
+
+        // the PUT may not have sent every column, so the whole row is still read
+        assertThat(loader.get("1"), is(row));
+        assertThat(loader.getAsync("1").get(), is(row));
+        verify(cassandraDao).get("1");
+        verify(cassandraDao).getAsync("1");
+        // but it answers for its own columns
+        assertThat(loader.getAsync("1", Arrays.asList("col")).get().get("col"), is(row.get("col")));
+        verifyNoMoreInteractions(cassandraDao);
+        assertThat(cachingService.contains("1"), is(false));
+    }
+
+    @Test
+    public void testPendingWriteBehindIsMergedIntoLoadedRow() throws Exception {
+        WriteBehindQueue writeBehind = new WriteBehindQueue(cachingService, cassandraDao, 1000000, 10, 1000);
+        loader.setWriteBehind(writeBehind);
+        writeBehind.offer("1", PackedRow.builder().set("a", "put", 5).build());
+        when(cassandraDao.get("1")).thenReturn(PackedRow.builder().set("a", "old", 1).set("b", "2", 1).build());
+
+        PackedRow loaded = loader.get("1");
+
+        assertThat(loaded.get("a").getData(), is((Object) "put"));
+        assertThat(loaded.get("b").getData(), is((Object) "2"));
+        // cassandra doesn't have the PUT yet
+        assertThat(cachingService.contains("1"), is(false));
+        assertThat(loader.getStaleLoadCount(), is(1L));
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneLoad() throws Exception {
+        final CountDownLatch loadStarted = new CountDownLatch(1);
+        final CountDownLatch releaseLoad = new CountDownLatch(1);
+        when(cassandraDao.get("1")).thenAnswer(new Answer<PackedRow>() {
+            @Override
+            public PackedRow answer(InvocationOnMock invocation) throws Throwable {
+                loadStarted.countDown();
+                releaseLoad.await(5, TimeUnit.SECONDS);
+                return row;
+            }
+        });
+
+        int callers = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<PackedRow>> results = new ArrayList<>();
+            for (int i = 0; i < callers; i++) {
+                results.add(executor.submit(new Callable<PackedRow>() {
+                    @Override
+                    public PackedRow call() throws Exception {
+                        return loader.load("1");
+                    }
+                }));
+            }
+
+            loadStarted.await(5, TimeUnit.SECONDS);
+            // wait for everyone to pile up behind the first load
+            long deadline = System.currentTimeMillis() + 5000;
+            while (loader.getCoalescedCount() < callers - 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            releaseLoad.countDown();
+
+            for (Future<PackedRow> result : results) {
+                assertThat(result.get(5, TimeUnit.SECONDS), is(row));
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        verify(cassandraDao, times(1)).get("1");
+        assertThat(loader.getLoadCount(), is(1L));
+        assertThat(loader.getCoalescedCount(), is((long) callers - 1));
+        assertThat(loader.getInFlightCount(), is(0));
+    }
+
+    @Test
+    public void testWriteDuringLoadKeepsLoadOutOfCache() throws Exception {
+        when(cassandraDao.get("1")).thenAnswer(new Answer<PackedRow>() {
+            @Override
+            public PackedRow answer(InvocationOnMock invocation) throws Throwable {
+                // trigger fires for the row while we're reading it
+                loader.markStale("1");
+                return row;
+            }
+        });
+
+        assertThat(loader.get("1"), is(row));
+        assertThat(cachingService.contains("1"), is(false));
+        assertThat(loader.getStaleLoadCount(), is(1L));
+    }
+
+    @Test
+    public void testPutDuringLoadWins() throws Exception {
+        final PackedRow newer = PackedRow.builder().set("col", "newer", 2).build();
+        when(cassandraDao.get("1")).thenAnswer(new Answer<PackedRow>() {
+            @Override
+            public PackedRow answer(InvocationOnMock invocation) throws Throwable {
+                cachingService.put("1", newer);
+                return row;
+            }
+        });
+
+        loader.get("1");
+        assertThat(cachingService.get("1"), is(newer));
+    }
+
+    @Test
+    public void testRowOlderThanMaxStalenessIsReloaded() throws Exception {
+        loader.setMaxStalenessMillis(1000);
+        cachingService.put("1", row.toBuilder().loadedAt(System.currentTimeMillis() - 5000).build());
+        PackedRow newer = PackedRow.builder().set("col", "newer", 2).build();
+        when(cassandraDao.getAsync("1")).thenReturn(Futures.immediateFuture(newer));
+
+        long start = System.currentTimeMillis();
+        assertThat(loader.getAsync("1").get(), is(newer));
+
+        assertThat(loader.getExpiredCount(), is(1L));
+        assertThat(cachingService.get("1"), is(newer));
+        assertThat(cachingService.get("1").getLoadedAt() >= start, is(true));
+    }
+
+    @Test
+    public void testRowPastColumnExpiryIsReloaded() throws Exception {
+        cachingService.put("1", row.toBuilder().expireBy(System.currentTimeMillis() - 1).build());
+        PackedRow left = PackedRow.builder().set("other", "data", 1).build();
+        when(cassandraDao.getAsync("1")).thenReturn(Futures.immediateFuture(left));
+
+        assertThat(loader.getAsync("1").get(), is(left));
+        assertThat(loader.getExpiredCount(), is(1L));
+        assertThat(cachingService.get("1"), is(left));
+    }
+
+    @Test
+    public void testRowBeforeColumnExpiryIsServed() throws Exception {
+        cachingService.put("1", row.toBuilder().expireBy(System.currentTimeMillis() + 60000).build());
+
+        assertThat(loader.getAsync("1").get(), is(row));
+        verifyZeroInteractions(cassandraDao);
+    }
+
+    @Test
+    public void testRowWithinMaxStalenessIsServed() throws Exception {
+        loader.setMaxStalenessMillis(60000);
+        cachingService.put("1", row.toBuilder().loadedAt(System.currentTimeMillis() - 5000).build());
+
+        assertThat(loader.getAsync("1").get(), is(row));
+        assertThat(loader.getExpiredCount(), is(0L));
+        verifyZeroInteractions(cassandraDao);
+    }
+
+    @Test
+    public void testRefreshAheadReloadsInBackground() throws Exception {
+        loader.setMaxStalenessMillis(10000);
+        loader.setRefreshAheadMillis(2000);
+        cachingService.put("1", row.toBuilder().loadedAt(System.currentTimeMillis() - 9000).build());
+        SettableFuture<PackedRow> reload = SettableFuture.create();
+        when(cassandraDao.getAsync("1")).thenReturn(reload);
+
+        // answered from cache while the reload is in flight, and only one reload is started
+        assertThat(loader.getAsync("1").get(), is(row));
+        assertThat(loader.getAsync("1").get(), is(row));
+        verify(cassandraDao, times(1)).getAsync("1");
+
+        PackedRow newer = PackedRow.builder().set("col", "newer", 2).build();
+        reload.set(newer);
+        assertThat(cachingService.get("1"), is(newer));
+        assertThat(loader.getRefreshCount(), is(1L));
+        assertThat(loader.getInFlightCount(), is(0));
+
+        // freshly loaded, no more refreshes
+        loader.getAsync("1").get();
+        assertThat(loader.getRefreshCount(), is(1L));
+    }
+
+    @Test
+    public void testRefreshReplacesRow() throws Exception {
+        loader.setTimeToLiveMillis(10000);
+        loader.setRefreshAheadMillis(2000);
+        PackedRow cached = PackedRow.builder().set("col", "data", 1).set("other", "cached", 5)
+                                    .loadedAt(System.currentTimeMillis() - 9000).build();
+        cachingService.put("1", cached);
+        // cassandra is the truth, whatever the cached timestamps say
+        PackedRow loaded = PackedRow.builder().set("col", "reloaded", 2).set("other", "old", 1).build();
+        when(cassandraDao.getAsync("1")).thenReturn(Futures.immediateFuture(loaded));
+
+        loader.getAsync("1").get();
+
+        PackedRow refreshed = cachingService.get("1");
+        assertThat(refreshed.get("col").getData(), is((Object) "reloaded"));
+        assertThat(refreshed.get("other").getData(), is((Object) "old"));
+    }
+
+    @Test
+    public void testRefreshDropsColumnDeletedInCassandra() throws Exception {
+        loader.setMaxStalenessMillis(10000);
+        loader.setRefreshAheadMillis(2000);
+        cachingService.put("1", PackedRow.builder().set("col", "data", 1).set("deleted", "gone", 1)
+                                         .loadedAt(System.currentTimeMillis() - 9000).build());
+        when(cassandraDao.getAsync("1")).thenReturn(Futures.immediateFuture(row));
+
+        loader.getAsync("1").get();
+
+        PackedRow refreshed = cachingService.get("1");
+        assertThat(refreshed.toMap().keySet(), contains("col"));
+        assertThat(System.currentTimeMillis() - refreshed.getLoadedAt(), is(lessThan(5000L)));
+    }
+
+    @Test
+    public void testRefreshOfDeletedRowEvicts() throws Exception {
+        loader.setMaxStalenessMillis(10000);
+        loader.setRefreshAheadMillis(2000);
+        cachingService.put("1", row.toBuilder().loadedAt(System.currentTimeMillis() - 9000).build());
+        when(cassandraDao.getAsync("1")).thenReturn(Futures.<PackedRow>immediateFuture(null));
+
+        assertThat(loader.getAsync("1").get(), is(row));
+        assertThat(cachingService.contains("1"), is(false));
+    }
+
+    @Test
+    public void testWriteDuringRefreshKeepsRefreshOutOfCache() throws Exception {
+        loader.setMaxStalenessMillis(10000);
+        loader.setRefreshAheadMillis(2000);
+        cachingService.put("1", row.toBuilder().loadedAt(System.currentTimeMillis() - 9000).build());
+        SettableFuture<PackedRow> reload = SettableFuture.create();
+        when(cassandraDao.getAsync("1")).thenReturn(reload);
+
+        loader.getAsync("1").get();
+        PackedRow written = PackedRow.builder().set("col", "written", 3).loadedAt(System.currentTimeMillis()).build();
+        loader.markStale("1");
+        cachingService.put("1", written);
+        reload.set(PackedRow.builder().set("col", "reloaded", 2).build());
+
+        assertThat(cachingService.get("1"), is(written));
+        assertThat(loader.getStaleLoadCount(), is(1L));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testLoadFailureIsRethrown() throws Exception {
+        when(cassandraDao.get(anyString())).thenThrow(new IllegalStateException("cassandra down"));
+        try {
+            loader.get("1");
+        }
+        finally {
+            assertThat(loader.getFailureCount(), is(1L));
+            assertThat(loader.getInFlightCount(), is(0));
+            verify(cassandraDao, never()).put(anyString(), any(PackedRow.class));
+        }
+    }
+
+    @Test
+    public void testGetAllLoadsMissesInParallel() throws Exception {
+        cachingService.put("1", row);
+        final PackedRow row2 = PackedRow.builder().set("col", "two", 1).build();
+        final SettableFuture<PackedRow> load2 = SettableFuture.create();
+        final SettableFuture<PackedRow> load3 = SettableFuture.create();
+        // counts the reads started, the mock isn't verified while getAll calls it
+        final CountDownLatch started = new CountDownLatch(2);
+        when(cassandraDao.getAsync("2")).thenAnswer(startedLoad(started, load2));
+        when(cassandraDao.getAsync("3")).thenAnswer(startedLoad(started, load3));
+        when(cassandraDao.getAsync("4")).thenReturn(Futures.<PackedRow>immediateFuture(null));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Map<String, PackedRow>> result = executor.submit(new Callable<Map<String, PackedRow>>() {
+                @Override
+                public Map<String, PackedRow> call() throws Exception {
+                    return loader.getAll(Arrays.asList("4", "3", "2", "1", "2"));
+                }
+            });
+
+            // both reads are started before either one finishes
+            assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+            load2.set(row2);
+            load3.set(row);
+
+            Map<String, PackedRow> rows = result.get(5, TimeUnit.SECONDS);
+            assertThat(rows.keySet(), contains("3", "2", "1"));
+            assertThat(rows.get("2"), is(row2));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        verify(cassandraDao, never()).get(anyString());
+        assertThat(cachingService.get("2"), is(row2));
+        assertThat(loader.getLoadCount(), is(3L));
+        assertThat(loader.getInFlightCount(), is(0));
+    }
+
+    @Test
+    public void testGetAllLimitsConcurrentLoads() throws Exception {
+        loader.setMaxAsyncLoadsPerRequest(1);
+        final SettableFuture<PackedRow> load1 = SettableFuture.create();
+        when(cassandraDao.getAsync("1")).thenReturn(load1);
+        when(cassandraDao.getAsync("2")).thenReturn(Futures.immediateFuture(row));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Map<String, PackedRow>> result = executor.submit(new Callable<Map<String, PackedRow>>() {
+                @Override
+                public Map<String, PackedRow> call() throws Exception {
+                    return loader.getAll(Arrays.asList("1", "2"));
+                }
+            });
+
+            verify(cassandraDao, timeout(5000)).getAsync("1");
+            Thread.sleep(100);
+            verify(cassandraDao, never()).getAsync("2");
+
+            load1.set(row);
+            assertThat(result.get(5, TimeUnit.SECONDS).size(), is(2));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testGetAsync() throws Exception {
+        cachingService.put("1", row);
+        when(cassandraDao.getAsync("2")).thenReturn(Futures.immediateFuture(row));
+
+        assertThat(loader.getAsync("1").get(), is(row));
+        assertThat(loader.getAsync("2").get(), is(row));
+
+        verify(cassandraDao, never()).getAsync("1");
+        verify(cassandraDao, never()).get(anyString());
+        assertThat(cachingService.contains("2"), is(true));
+    }
+
+    @Test
+    public void testColumnsFromCachedRow() throws Exception {
+        PackedRow full = PackedRow.builder().set("a", "1", 1).set("b", "2", 1).build();
+        cachingService.put("1", full);
+
+        PackedRow projected = loader.getAsync("1", Arrays.asList("b")).get();
+        assertThat(projected.size(), is(1));
+        assertThat(projected.get("b"), is(new CachedColumn("b", "2", 1)));
+        // a complete row knows a column it doesn't have doesn't exist
+        assertThat(loader.getAsync("1", Arrays.asList("c")).get(), is(nullValue()));
+
+        verifyZeroInteractions(cassandraDao);
+    }
+
+    @Test
+    public void testOnlyMissingColumnsAreLoaded() throws Exception {
+        PackedRow a = PackedRow.builder().partial(true).set("a", "1", 1).build();
+        PackedRow b = PackedRow.builder().partial(true).set("b", "2", 1).build();
+        when(cassandraDao.getAsync("1", Arrays.asList("a"))).thenReturn(Futures.immediateFuture(a));
+        when(cassandraDao.getAsync("1", Arrays.asList("b"))).thenReturn(Futures.immediateFuture(b));
+
+        assertThat(loader.getAsync("1", Arrays.asList("a")).get(), is(a));
+        assertThat(cachingService.get("1"), is(a));
+
+        PackedRow ab = loader.getAsync("1", Arrays.asList("a", "b")).get();
+        assertThat(ab.size(), is(2));
+        assertThat(ab.isPartial(), is(true));
+        assertThat(cachingService.get("1"), is(ab));
+
+        // both are cached now
+        assertThat(loader.getAsync("1", Arrays.asList("b", "a")).get(), is(ab));
+        verify(cassandraDao, times(1)).getAsync("1", Arrays.asList("a"));
+        verify(cassandraDao, times(1)).getAsync("1", Arrays.asList("b"));
+        assertThat(loader.getColumnLoadCount(), is(2L));
+        verifyNoMoreInteractions(cassandraDao);
+    }
+
+    @Test
+    public void testPartialRowIsMissForWholeRow() throws Exception {
+        PackedRow newerA = PackedRow.builder().partial(true).set("a", "newer", 5).build();
+        PackedRow full = PackedRow.builder().set("a", "1", 1).set("b", "2", 1).build();
+        cachingService.put("1", newerA);
+        when(cassandraDao.getAsync("1")).thenReturn(Futures.immediateFuture(full));
+
+        assertThat(loader.getAsync("1").get(), is(full));
+
+        // cached row is the complete one read, no write raced the load
+        PackedRow cached = cachingService.get("1");
+        assertThat(cached.isPartial(), is(false));
+        assertThat(cached.get("a"), is(new CachedColumn("a", "1", 1)));
+        assertThat(cached.get("b"), is(new CachedColumn("b", "2", 1)));
+        assertThat(loader.getAsync("1").get(), is(cached));
+        verify(cassandraDao, times(1)).getAsync("1");
+    }
+
+    @Test
+    public void testLoadJustAfterWriteDuringLoadIsNotCached() throws Exception {
+        SettableFuture<PackedRow> read = SettableFuture.create();
+        when(cassandraDao.getAsync("1")).thenReturn(read).thenReturn(Futures.immediateFuture(row));
+        ListenableFuture<PackedRow> first = loader.getAsync("1");
+        // the trigger saw the write, cassandra may not have applied it yet
+        loader.markStale("1");
+        read.set(row);
+        first.get();
+
+        // the next load may read the row before the write too
+        assertThat(loader.getAsync("1").get(), is(row));
+        assertThat(cachingService.contains("1"), is(false));
+        assertThat(loader.getStaleLoadCount(), is(2L));
+
+        loader.setWriteSettleMillis(0);
+        assertThat(loader.getAsync("1").get(), is(row));
+        assertThat(cachingService.contains("1"), is(true));
+    }
+
+    @Test
+    public void testLoadJustAfterWriteIsNotCached() throws Exception {
+        when(cassandraDao.get("1")).thenReturn(row);
+        // nothing loading the row, but the next load may start before the write is applied
+        loader.markStale("1");
+
+        assertThat(loader.get("1"), is(row));
+        assertThat(cachingService.contains("1"), is(false));
+        assertThat(loader.getStaleLoadCount(), is(1L));
+    }
+
+    @Test
+    public void testSettledWritesAreSwept() throws Exception {
+        SettableFuture<PackedRow> read = SettableFuture.create();
+        when(cassandraDao.getAsync("1")).thenReturn(read).thenReturn(Futures.immediateFuture(row));
+        ListenableFuture<PackedRow> first = loader.getAsync("1");
+        loader.markStale("1");
+        read.set(row);
+        first.get();
+
+        // a write is kept for a second sweep, it may have been marked just before the first
+        loader.sweepRecentWrites();
+        assertThat(loader.getAsync("1").get(), is(row));
+        assertThat(cachingService.contains("1"), is(false));
+
+        loader.sweepRecentWrites();
+        assertThat(loader.getAsync("1").get(), is(row));
+        assertThat(cachingService.contains("1"), is(true));
+    }
+
+    @Test
+    public void testFailureThatIsNeitherExceptionNorErrorIsWrapped() throws Exception {
+        final Throwable neither = new Throwable("neither");
+        when(cassandraDao.get("1")).thenAnswer(new Answer<PackedRow>() {
+            @Override
+            public PackedRow answer(InvocationOnMock invocation) throws Throwable {
+                throw neither;
+            }
+        });
+
+        try {
+            loader.get("1");
+            fail();
+        }
+        catch (RuntimeException e) {
+            assertThat(e.getCause(), is(neither));
+        }
+    }
+
+    @Test
+    public void testWriteDuringColumnLoadKeepsLoadOutOfCache() throws Exception {
+        final SettableFuture<PackedRow> load = SettableFuture.create();
+        when(cassandraDao.getAsync("1", Arrays.asList("a"))).thenReturn(load);
+
+        Future<PackedRow> result = loader.getAsync("1", Arrays.asList("a"));
+        loader.markStale("1");
+        load.set(PackedRow.builder().partial(true).set("a", "1", 1).build());
+
+        assertThat(result.get().get("a"), is(new CachedColumn("a", "1", 1)));
+        assertThat(cachingService.contains("1"), is(false));
+        assertThat(loader.getStaleLoadCount(), is(1L));
+    }
+
+    private static Answer<SettableFuture<PackedRow>> startedLoad(final CountDownLatch started,
+                                                                 final SettableFuture<PackedRow> load) {
+        return new Answer<SettableFuture<PackedRow>>() {
+            @Override
+            public SettableFuture<PackedRow> answer(InvocationOnMock invocation) {
+                started.countDown();
+                return load;
+            }
+        };
+    }
+}
@@ -0,0 +1,52 @@
+package com.btoddb.cache;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+
+public class RecentWritesTest {
+
+    @Test
+    public void testMarkLastsTwoRotations() {
+        RecentWrites writes = new RecentWrites(1024);
+        writes.mark("a");
+        assertThat(writes.mightContain("a"), is(true));
+        assertThat(writes.mightContain("b"), is(false));
+
+        writes.rotate();
+        assertThat(writes.mightContain("a"), is(true));
+        writes.rotate();
+        assertThat(writes.mightContain("a"), is(false));
+    }
+
+    @Test
+    public void testClear() {
+        RecentWrites writes = new RecentWrites(1024);
+        writes.mark("a");
+        writes.rotate();
+        writes.mark("b");
+        writes.clear();
+
+        assertThat(writes.mightContain("a"), is(false));
+        assertThat(writes.mightContain("b"), is(false));
+    }
+
+    @Test
+    public void testFewFalsePositives() {
+        RecentWrites writes = new RecentWrites(RecentWrites.DEFAULT_BITS);
+        for (int i = 0; i < 100000; i++) {
+            writes.mark("written-" + i);
+        }
+        int found = 0;
+        for (int i = 0; i < 100000; i++) {
+            assertThat(writes.mightContain("written-" + i), is(true));
+            if (writes.mightContain("other-" + i)) {
+                found++;
+            }
+        }
+        assertThat(found, is(lessThan(5000)));
+    }
+}
@@ -0,0 +1,59 @@
+package com.btoddb.cache;
+
+import com.btoddb.cache.cassandra.CassandraDao;
+import com.btoddb.cache.cassandra.CassandraTestHelper;
+import org.apache.cassandra.utils.FBUtilities;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+
+public class TokenOwnershipTest {
+
+    @BeforeClass
+    public static void setupCass() throws Exception {
+        CassandraTestHelper.startEmbeddedServer("/cassandra.yaml");
+        // creates the keyspace
+        CassandraDao dao = new CassandraDao();
+        dao.start("localhost", 9052);
+        dao.shutdown();
+    }
+
+    @Test
+    public void testSingleNodeOwnsEveryRow() {
+        TokenOwnership ownership = new TokenOwnership(CassandraExternalCache.KEYSPACE);
+
+        for (String key : Arrays.asList("1", "abc", "does-not-exist")) {
+            assertThat(ownership.isOwned(key), is(true));
+            assertThat(ownership.getOwner(key), is(FBUtilities.getBroadcastAddress()));
+        }
+    }
+
+    @Test
+    public void testRowOfOtherReplicasGoesToFirstLiveOne() throws Exception {
+        final InetAddress down = InetAddress.getByName("10.0.0.1");
+        final InetAddress up = InetAddress.getByName("10.0.0.2");
+        TokenOwnership ownership = new TokenOwnership(CassandraExternalCache.KEYSPACE) {
+            @Override
+            protected List<InetAddress> getReplicas(String key) {
+                return "all-down".equals(key) ? Arrays.asList(down) : Arrays.asList(down, up);
+            }
+
+            @Override
+            protected boolean isAlive(InetAddress address) {
+                return up.equals(address);
+            }
+        };
+
+        assertThat(ownership.isOwned("1"), is(false));
+        assertThat(ownership.getOwner("1"), is(up));
+        assertThat(ownership.getOwner("all-down"), is(nullValue()));
+    }
+}
@@ -0,0 +1,74 @@
+package com.btoddb.cache;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.ColumnDefinition;
+import org.apache.cassandra.db.ColumnFamilyType;
+import org.apache.cassandra.db.marshal.Int32Type;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+
+public class TriggerContextTest {
+    CFMetaData metadata;
+
+    @Before
+    public void setup() throws Exception {
+        metadata = new CFMetaData("ks", "context-" + System.nanoTime(), ColumnFamilyType.Standard, UTF8Type.instance);
+        metadata.keyValidator(UTF8Type.instance);
+        metadata.addColumnDefinition(ColumnDefinition.regularDef(ByteBufferUtil.bytes("name"), UTF8Type.instance, null));
+        metadata.addColumnDefinition(ColumnDefinition.regularDef(ByteBufferUtil.bytes("count"), Int32Type.instance, null));
+    }
+
+    @Test
+    public void testColumnLookup() throws Exception {
+        TriggerContext context = TriggerContext.forTable(metadata);
+
+        TriggerContext.ColumnMeta count = context.column(ByteBufferUtil.bytes("count"));
+        assertThat(count.getName(), is("count"));
+        assertThat(count.compose(ByteBufferUtil.bytes(42)), is((Object) 42));
+        assertThat(context.column(ByteBufferUtil.bytes("not-defined")), is(nullValue()));
+
+        // resolved once, not per lookup
+        assertThat(context.column(ByteBufferUtil.bytes("count")), is(sameInstance(count)));
+    }
+
+    @Test
+    public void testContextIsSharedPerTable() {
+        assertThat(TriggerContext.forTable(metadata), is(sameInstance(TriggerContext.forTable(metadata))));
+    }
+
+    @Test
+    public void testSchemaChangeRebuildsContext() throws Exception {
+        TriggerContext before = TriggerContext.forTable(metadata);
+        metadata.addColumnDefinition(ColumnDefinition.regularDef(ByteBufferUtil.bytes("added"), UTF8Type.instance, null));
+        metadata.rebuild();
+
+        TriggerContext after = TriggerContext.forTable(metadata);
+        assertThat(after, is(not(sameInstance(before))));
+        assertThat(after.column(ByteBufferUtil.bytes("added")).getName(), is("added"));
+    }
+
+    @Test
+    public void testClusteringValuesAreColumns() throws Exception {
+        CFMetaData dynamic = CFMetaData.compile(
+                "CREATE TABLE dynamic (id varchar, name varchar, value varchar, PRIMARY KEY ((id), name)) "
+                        + "WITH COMPACT STORAGE", "ks");
+        TriggerContext context = TriggerContext.forTable(dynamic);
+
+        TriggerContext.ColumnMeta column = context.column(ByteBufferUtil.bytes("anything"));
+        assertThat(column.getName(), is("anything"));
+        assertThat(column.compose(ByteBufferUtil.bytes("data")), is((Object) "data"));
+        assertThat(context.column(ByteBufferUtil.bytes("anything")), is(sameInstance(column)));
+        // the schema's own column names are just clustering values too
+        assertThat(context.column(ByteBufferUtil.bytes("value")).getName(), is("value"));
+        assertThat(context.isComposite(), is(false));
+    }
+}
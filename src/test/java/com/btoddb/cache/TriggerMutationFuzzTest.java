@@ -0,0 +1,197 @@
+package com.btoddb.cache;
+
+import com.btoddb.cache.cassandra.CassandraDao;
+import com.btoddb.cache.cassandra.CassandraTestHelper;
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+
+
+/**
+ * Writes, column and row deletes and TTLs from several threads straight to the embedded server,
+ * with timestamps out of order, while other reads load the rows into the cache.  Once it settles,
+ * every row still cached must be what Cassandra has.
+ */
+public class TriggerMutationFuzzTest {
+    static final int ROWS = 64;
+    static final int COLUMNS = 6;
+    static final int WRITERS = 4;
+    static final int ROUNDS = 3;
+    static final long ROUND_MILLIS = 1500;
+
+    CassandraDao dao;
+    Cluster cluster;
+    Session session;
+    PreparedStatement insert;
+    PreparedStatement deleteColumn;
+    PreparedStatement deleteRow;
+    ReadThroughLoader loader;
+    ReadThroughLoader savedLoader;
+    AsyncCacheUpdater savedUpdater;
+
+    final AtomicLong sequence = new AtomicLong();
+
+    @BeforeClass
+    public static void setupCass() throws Exception {
+        CassandraTestHelper.startEmbeddedServer("/cassandra.yaml");
+    }
+
+    @Before
+    public void setup() {
+        dao = new CassandraDao();
+        dao.start("localhost", 9052);
+
+        cluster = Cluster.builder().addContactPoint("localhost").withPort(9052).build();
+        session = cluster.connect(CassandraExternalCache.KEYSPACE);
+        insert = session.prepare("INSERT INTO data (id, name, value) VALUES (?, ?, ?) USING TIMESTAMP ? AND TTL ?");
+        deleteColumn = session.prepare("DELETE FROM data USING TIMESTAMP ? WHERE id = ? AND name = ?");
+        deleteRow = session.prepare("DELETE FROM data USING TIMESTAMP ? WHERE id = ?");
+
+        // mutations are applied by the trigger on the writing thread
+        savedUpdater = CassandraExternalCache.cacheUpdater;
+        savedLoader = CassandraExternalCache.rowLoader;
+        CassandraExternalCache.cacheUpdater = null;
+        CassandraExternalCache.cachingService.resetCache();
+        loader = new ReadThroughLoader(CassandraExternalCache.cachingService, dao);
+        // the embedded server applies a write well within this of the trigger seeing it, and
+        // rows are written too often to ever be cached with the default
+        loader.setWriteSettleMillis(20);
+        loader.start();
+        CassandraExternalCache.rowLoader = loader;
+    }
+
+    @After
+    public void teardown() {
+        loader.shutdown();
+        CassandraExternalCache.rowLoader = savedLoader;
+        CassandraExternalCache.cacheUpdater = savedUpdater;
+        CassandraExternalCache.cachingService.resetCache();
+        cluster.close();
+        dao.shutdown();
+    }
+
+    @Test
+    public void testCachedRowsMatchCassandra() throws Exception {
+        int compared = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            fuzz(round);
+            // past every TTL, and every write applied
+            Thread.sleep(2500);
+            compared += compareCachedRows();
+        }
+
+        // the fuzzing did reach cached rows
+        assertThat(compared, is(greaterThan(0)));
+        assertThat(EHCacheUpdateTrigger.getOptimisticUpdateCount() + EHCacheUpdateTrigger.getRowDeletionCount(),
+                   is(greaterThan(0L)));
+    }
+
+    private void fuzz(final int round) throws Exception {
+        final long end = System.currentTimeMillis() + ROUND_MILLIS;
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + 1);
+        try {
+            List<Future<Void>> workers = new ArrayList<>();
+            for (int i = 0; i < WRITERS; i++) {
+                final Random random = new Random(31L * round + i);
+                workers.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        while (System.currentTimeMillis() < end) {
+                            mutate(random);
+                            Thread.sleep(random.nextInt(3));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            workers.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Random random = new Random(round);
+                    while (System.currentTimeMillis() < end) {
+                        loader.get(rowKey(random));
+                    }
+                    return null;
+                }
+            }));
+
+            for (Future<Void> worker : workers) {
+                worker.get(ROUND_MILLIS + 10000, TimeUnit.MILLISECONDS);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void mutate(Random random) {
+        String key = rowKey(random);
+        String name = "col-" + random.nextInt(COLUMNS);
+        // microseconds like cassandra's own, up to 20ms late
+        long timestamp = System.currentTimeMillis() * 1000 + sequence.incrementAndGet() % 1000 - random.nextInt(20000);
+
+        int op = random.nextInt(20);
+        if (op < 10) {
+            session.execute(insert.bind(key, name, "v" + timestamp, timestamp, 0));
+        }
+        else if (op < 12) {
+            session.execute(insert.bind(key, name, "v" + timestamp, timestamp, 1 + random.nextInt(2)));
+        }
+        else if (op < 16) {
+            session.execute(deleteColumn.bind(timestamp, key, name));
+        }
+        else if (op < 18) {
+            session.execute(deleteRow.bind(timestamp, key));
+        }
+        else {
+            // one mutation deleting the row and writing a column over it
+            BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+            batch.add(deleteRow.bind(timestamp, key));
+            batch.add(insert.bind(key, name, "v" + (timestamp + 1), timestamp + 1, 0));
+            session.execute(batch);
+        }
+    }
+
+    private int compareCachedRows() {
+        int compared = 0;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < ROWS; i++) {
+            String key = "fuzz-" + i;
+            PackedRow cached = CassandraExternalCache.cachingService.get(key);
+            // the loader reloads rows past their expiry instead of serving them
+            if (null == cached || (0 != cached.getExpiresAt() && now >= cached.getExpiresAt())) {
+                continue;
+            }
+
+            PackedRow stored = dao.get(key);
+            assertThat(key + " is cached but not in cassandra: " + cached.toMap(), stored, is(notNullValue()));
+            assertThat(key, cached.toMap(), is(stored.toMap()));
+            compared++;
+        }
+        return compared;
+    }
+
+    private static String rowKey(Random random) {
+        return "fuzz-" + random.nextInt(ROWS);
+    }
+}
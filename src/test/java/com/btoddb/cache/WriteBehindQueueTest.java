@@ -0,0 +1,161 @@
+package com.btoddb.cache;
+
+import com.btoddb.cache.cassandra.CassandraDao;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+
+public class WriteBehindQueueTest {
+    CachingService cachingService;
+    CassandraDao cassandraDao;
+    PackedRow rowA = PackedRow.fromMap(Collections.singletonMap("a", new CachedColumn("a", "1", 1L)));
+    PackedRow rowB = PackedRow.fromMap(Collections.singletonMap("b", new CachedColumn("b", "2", 2L)));
+
+    @Before
+    public void setup() {
+        cachingService = mock(CachingService.class);
+        cassandraDao = mock(CassandraDao.class);
+        when(cassandraDao.putAsync(anyString(), any(PackedRow.class), anyLong()))
+                .thenReturn(Futures.<Void>immediateFuture(null));
+    }
+
+    @Test
+    public void testCoalescesByKey() throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(cachingService, cassandraDao, 1000000, 10, 1000);
+        assertThat(queue.offer("1", rowA), is(true));
+        assertThat(queue.offer("2", rowA), is(true));
+        assertThat(queue.offer("1", rowB), is(true));
+        assertThat(queue.getPendingCount(), is(2));
+        assertThat(queue.getPending("1"), is(sameInstance(rowB)));
+
+        assertThat(flush(queue), is(2));
+
+        assertThat(queue.getPendingCount(), is(0));
+        assertThat(queue.getPendingBytes(), is(0L));
+        assertThat(queue.getPending("1"), is(nullValue()));
+        assertThat(queue.getAcceptedCount(), is(3L));
+        assertThat(queue.getCoalescedCount(), is(1L));
+        assertThat(queue.getWrittenCount(), is(2L));
+        // with the timestamps the rows were stamped with at PUT time, not the flush's
+        verify(cassandraDao).putAsync("1", rowB, 2L);
+        verify(cassandraDao).putAsync("2", rowA, 1L);
+        verifyNoMoreInteractions(cassandraDao);
+    }
+
+    @Test
+    public void testBatchSizeLimitsFlush() throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(cachingService, cassandraDao, 1000000, 2, 1000);
+        queue.offer("1", rowA);
+        queue.offer("2", rowA);
+        queue.offer("3", rowA);
+
+        assertThat(flush(queue), is(2));
+        assertThat(flush(queue), is(1));
+        assertThat(flush(queue), is(0));
+        assertThat(queue.getWrittenCount(), is(3L));
+    }
+
+    @Test
+    public void testRejectsOverByteLimit() throws Exception {
+        int size = rowA.bytes().length;
+        WriteBehindQueue queue = new WriteBehindQueue(cachingService, cassandraDao, size * 2, 10, 1000);
+        assertThat(queue.offer("1", rowA), is(true));
+        assertThat(queue.offer("2", rowA), is(true));
+        assertThat(queue.offer("3", rowA), is(false));
+        assertThat(queue.getRejectedCount(), is(1L));
+        assertThat(queue.getPendingBytes(), is((long) size * 2));
+
+        flush(queue);
+
+        assertThat(queue.offer("3", rowA), is(true));
+    }
+
+    @Test
+    public void testFailedWriteEvictsRow() throws Exception {
+        SettableFuture<Void> failed = SettableFuture.create();
+        failed.setException(new RuntimeException("boom"));
+        when(cassandraDao.putAsync("1", rowA, 1L)).thenReturn(failed);
+        WriteBehindQueue queue = new WriteBehindQueue(cachingService, cassandraDao, 1000000, 10, 1000);
+        queue.offer("1", rowA);
+        queue.offer("2", rowA);
+
+        flush(queue);
+
+        assertThat(queue.getFailedCount(), is(1L));
+        assertThat(queue.getWrittenCount(), is(1L));
+        verify(cachingService).remove("1");
+        verifyNoMoreInteractions(cachingService);
+    }
+
+    @Test
+    public void testFailedWriteKeepsRowWrittenSince() throws Exception {
+        final SettableFuture<Void> write = SettableFuture.create();
+        when(cassandraDao.putAsync("1", rowA, 1L)).thenReturn(write);
+        final WriteBehindQueue queue = new WriteBehindQueue(cachingService, cassandraDao, 1000000, 10, 1000);
+        queue.offer("1", rowA);
+
+        Thread flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flush(queue);
+            }
+        });
+        flusher.start();
+        verify(cassandraDao, timeout(1000)).putAsync("1", rowA, 1L);
+        queue.offer("1", rowB);
+        write.setException(new RuntimeException("boom"));
+        flusher.join();
+
+        assertThat(queue.getFailedCount(), is(1L));
+        assertThat(queue.getPending("1"), is(sameInstance(rowB)));
+        verifyZeroInteractions(cachingService);
+    }
+
+    @Test
+    public void testFlushesWhenBatchIsFull() throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(cachingService, cassandraDao, 1000000, 2, 60000);
+        queue.start();
+        try {
+            queue.offer("1", rowA);
+            queue.offer("2", rowA);
+
+            verify(cassandraDao, timeout(1000)).putAsync("1", rowA, 1L);
+            verify(cassandraDao, timeout(1000)).putAsync("2", rowA, 1L);
+        }
+        finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void testShutdownDrainsQueue() throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(cachingService, cassandraDao, 1000000, 10, 60000);
+        queue.start();
+        for (int i = 0; i < 55; i++) {
+            queue.offer(String.valueOf(i % 25), rowA);
+        }
+        queue.shutdown();
+
+        assertThat(queue.getPendingCount(), is(0));
+        assertThat(queue.getAcceptedCount(), is(55L));
+        assertThat(queue.getWrittenCount() + queue.getCoalescedCount(), is(55L));
+    }
+
+    private int flush(WriteBehindQueue queue) {
+        return queue.flush(new ArrayList<String>(), new ArrayList<PackedRow>());
+    }
+}
@@ -1,18 +1,25 @@
 package com.btoddb.cache.cassandra;
 
 import com.btoddb.cache.CachedColumn;
+import com.btoddb.cache.Config;
+import com.btoddb.cache.PackedRow;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.MatcherAssert.assertThat;
-import static org.hamcrest.Matchers.hasKey;
-import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.nullValue;
 
 
@@ -44,17 +51,144 @@ public class CassandraDaoTest {
 
         dao.put("1", row);
 
-        Map<String, CachedColumn> resp = dao.get("1");
+        PackedRow resp = dao.get("1");
 
-        assertThat(resp.entrySet(), hasSize(row.size()));
+        assertThat(resp.size(), is(row.size()));
         for (CachedColumn col : row.values()) {
-            assertThat(resp, hasKey(col.getName()));
+            assertThat(resp.get(col.getName()).getData(), is(col.getData()));
         }
     }
 
+    @Test
+    public void testGetColumns() throws Exception {
+        dao.put("slice", PackedRow.builder().set("a", "a-data", now).set("b", "b-data", now).set("c", "c-data", now).build());
+
+        PackedRow resp = dao.get("slice", Arrays.asList("a", "c", "not-a-column"));
+        PackedRow async = dao.getAsync("slice", Arrays.asList("a", "c", "not-a-column")).get(5, TimeUnit.SECONDS);
+
+        for (PackedRow row : Arrays.asList(resp, async)) {
+            assertThat(row.isPartial(), is(true));
+            assertThat(row.size(), is(2));
+            assertThat(row.get("a").getData(), is((Object) "a-data"));
+            assertThat(row.get("c").getData(), is((Object) "c-data"));
+        }
+        assertThat(dao.get("slice").isPartial(), is(false));
+        assertThat(dao.get("slice", Arrays.asList("not-a-column")), is(nullValue()));
+    }
+
     @Test
     public void testRowNotFound() {
-        Map<String, CachedColumn> resp = dao.get("not-found-key");
+        PackedRow resp = dao.get("not-found-key");
         assertThat(resp, is(nullValue()));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testPutThenGetAsync() throws Exception {
+        dao.put("async", PackedRow.builder().set("first", "first-data", now).set("second", "second-data", now).build());
+
+        PackedRow resp = dao.getAsync("async").get(5, TimeUnit.SECONDS);
+
+        assertThat(resp.size(), is(2));
+        assertThat(resp.get("second").getData(), is((Object) "second-data"));
+        assertThat(dao.getAsync("not-found-key").get(5, TimeUnit.SECONDS), is(nullValue()));
+    }
+
+    @Test
+    public void testPutIsRegisteredUntilAcknowledged() throws Exception {
+        dao.put("registered", PackedRow.builder().set("a", "a-data", now).set("b", "b-data", now).build());
+        dao.putAsync("registered", PackedRow.builder().set("c", "c-data", now).build()).get(5, TimeUnit.SECONDS);
+
+        // one write timestamp a put, each later than the last
+        PackedRow resp = dao.get("registered");
+        assertThat(resp.get("a").getTimestamp(), is(resp.get("b").getTimestamp()));
+        assertThat(resp.get("c").getTimestamp(), is(greaterThan(resp.get("a").getTimestamp())));
+        assertThat(CassandraDao.inFlightWrites.size(), is(0));
+    }
+
+    @Test
+    public void testPutWithTimestampTakenEarlier() throws Exception {
+        long putAt = CassandraDao.inFlightWrites.nextTimestamp();
+        dao.put("earlier", PackedRow.builder().set("a", "direct", now).build());
+
+        // written after the direct write, but with a timestamp taken before it, so the direct write stays
+        PackedRow pending = PackedRow.builder().set("a", "pending", now).set("b", "b-data", now).build();
+        dao.putAsync("earlier", pending, putAt).get(5, TimeUnit.SECONDS);
+
+        PackedRow resp = dao.get("earlier");
+        assertThat(resp.get("a").getData(), is((Object) "direct"));
+        assertThat(resp.get("b").getTimestamp(), is(putAt));
+        assertThat(CassandraDao.inFlightWrites.size(), is(0));
+    }
+
+    @Test
+    public void testPutThatCantBeSentIsNotLeftInFlight() throws Exception {
+        // a value that can't be bound fails before anything is sent
+        PackedRow unbindable = PackedRow.fromMap(Collections.singletonMap("a", new CachedColumn("a", null, now)));
+        try {
+            dao.putAsync("unbindable", unbindable);
+            throw new AssertionError("expected the put to fail");
+        }
+        catch (NullPointerException e) {
+            assertThat(CassandraDao.inFlightWrites.size(), is(0));
+        }
+    }
+
+    @Test
+    public void testRowIsDeletedAsOfTheRead() throws Exception {
+        dao.put("read-time", PackedRow.builder().set("a", "a-data", now).build());
+
+        long before = CassandraDao.inFlightWrites.nextTimestamp();
+        PackedRow resp = dao.get("read-time");
+        PackedRow async = dao.getAsync("read-time").get(5, TimeUnit.SECONDS);
+        long after = CassandraDao.inFlightWrites.nextTimestamp();
+
+        // a write just after the read is newer than the deletion
+        for (PackedRow row : Arrays.asList(resp, async)) {
+            assertThat(row.getDeletedAt(), is(greaterThan(before)));
+            assertThat(row.getDeletedAt(), is(lessThan(after)));
+        }
+    }
+
+    @Test
+    public void testWriteModes() throws Exception {
+        // unlogged batches are opt-in
+        assertThat(dao.getWriteMode(), is(CassandraDao.WriteMode.LOGGED_BATCH));
+        assertThat(new Config().getWriteMode(), is(CassandraDao.WriteMode.LOGGED_BATCH));
+
+        for (CassandraDao.WriteMode mode : CassandraDao.WriteMode.values()) {
+            String id = "mode-" + mode;
+            dao.put(id, PackedRow.builder().set("first", "first-data", now).build(), mode);
+            dao.putAsync(id, PackedRow.builder().set("second", "second-data", now).build(), mode)
+               .get(5, TimeUnit.SECONDS);
+
+            PackedRow resp = dao.get(id);
+            assertThat(mode.toString(), resp.size(), is(2));
+            assertThat(mode.toString(), resp.get("first").getData(), is((Object) "first-data"));
+        }
+    }
+
+    @Test
+    public void testScanKeys() throws Exception {
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < 25; i++) {
+            ids.add("scan-" + i);
+            dao.put("scan-" + i, PackedRow.builder().set("a", "a-data", now).set("b", "b-data", now).build());
+        }
+
+        Set<String> all = new HashSet<>();
+        for (String id : dao.scanKeys(Long.MIN_VALUE, Long.MAX_VALUE, 10)) {
+            assertThat(id, all.add(id), is(true));
+        }
+        assertThat(all, is(ids));
+
+        // two halves of the ring, nothing in both
+        Set<String> halves = new HashSet<>();
+        for (String id : dao.scanKeys(Long.MIN_VALUE, 0, 10)) {
+            halves.add(id);
+        }
+        for (String id : dao.scanKeys(0, Long.MAX_VALUE, 10)) {
+            assertThat(id, halves.add(id), is(true));
+        }
+        assertThat(halves, is(ids));
+    }
+}
@@ -0,0 +1,43 @@
+package com.btoddb.cache.cassandra;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+
+
+public class InFlightWritesTest {
+    InFlightWrites writes = new InFlightWrites();
+
+    @Test
+    public void testWritesAreKeyedByRowAndTimestamp() {
+        writes.add("1", 10);
+        writes.add("1", 11);
+
+        assertThat(writes.contains("1", 10), is(true));
+        assertThat(writes.contains("1", 12), is(false));
+        assertThat(writes.contains("2", 10), is(false));
+
+        writes.remove("1", 10);
+        assertThat(writes.contains("1", 10), is(false));
+        assertThat(writes.contains("1", 11), is(true));
+        assertThat(writes.size(), is(1));
+    }
+
+    @Test
+    public void testTimestampsAreUniqueMicros() {
+        long before = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+        long last = writes.nextTimestamp();
+        assertThat(last, is(greaterThanOrEqualTo(before)));
+        // many more than one a microsecond
+        for (int i = 0; i < 10000; i++) {
+            long next = writes.nextTimestamp();
+            assertThat(next, is(greaterThan(last)));
+            last = next;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.btoddb.cache.metrics;
+
+import com.btoddb.cache.CachingService;
+import com.btoddb.cache.CachingServiceUsingEhcache;
+import com.btoddb.cache.CachingServiceUsingOffHeap;
+import com.btoddb.cache.PackedRow;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+
+
+public class CacheMetricsTest {
+    CacheMetrics metrics = new CacheMetrics();
+
+    @Test
+    public void testLatency() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        recorder.record(2000);
+        metrics.registerLatency("op", recorder);
+
+        assertThat(metrics.getValues(), hasEntry("op.count", (Object) 1L));
+        assertThat(metrics.getValues(), hasEntry("op.maxMicros", (Object) 2.0));
+        assertThat(metrics.getValues(), hasKey("op.meanMicros"));
+        assertThat(metrics.getValues(), hasKey("op.p50Micros"));
+        assertThat(metrics.getValues(), hasKey("op.p99Micros"));
+        assertThat(metrics.getValues(), hasKey("op.p999Micros"));
+
+        // registering again replaces
+        metrics.registerLatency("op", new LatencyRecorder());
+        assertThat(metrics.getValues(), hasEntry("op.count", (Object) 0L));
+    }
+
+    @Test
+    public void testTables() {
+        CachingService offHeap = new CachingServiceUsingOffHeap("ks", "offheap", 1024 * 1024);
+        CachingService onHeap = new CachingServiceUsingEhcache("ks", "metrics-test");
+        onHeap.resetCache();
+        metrics.registerTable("ks.offheap", offHeap);
+        metrics.registerTable("ks.onheap", onHeap);
+
+        offHeap.put("1", PackedRow.builder().set("col", "value", 1).build());
+        offHeap.get("1");
+        offHeap.get("2");
+
+        assertThat(metrics.getValues(), hasEntry("tables.ks.offheap.hits", (Object) 1L));
+        assertThat(metrics.getValues(), hasEntry("tables.ks.offheap.misses", (Object) 1L));
+        assertThat(metrics.getValues(), hasEntry("tables.ks.offheap.puts", (Object) 1L));
+        assertThat(metrics.getValues(), hasKey("tables.ks.offheap.lock.wait.p99Micros"));
+        assertThat(metrics.getValues(), not(hasKey("tables.ks.offheap.evictions")));
+        assertThat(metrics.getValues(), hasEntry("tables.ks.onheap.evictions", (Object) 0L));
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        metrics.registerLatency("jmx-op", new LatencyRecorder());
+        ObjectName name = new ObjectName(CacheMetrics.JMX_DOMAIN, "name", "jmx-op.count");
+
+        metrics.startJmx();
+        try {
+            assertThat(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Value"), is((Object) 0L));
+        }
+        finally {
+            metrics.stopJmx();
+        }
+        assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(name), is(false));
+    }
+}
@@ -0,0 +1,61 @@
+package com.btoddb.cache.metrics;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+
+
+public class LatencyRecorderTest {
+
+    @Test
+    public void testBucketsCoverEveryValue() {
+        for (int bucket = 0; bucket < LatencyRecorder.BUCKETS - 1; bucket++) {
+            long highest = LatencyRecorder.highestValueIn(bucket);
+            assertThat(LatencyRecorder.bucketOf(highest), is(bucket));
+            assertThat(LatencyRecorder.bucketOf(highest + 1), is(bucket + 1));
+        }
+        assertThat(LatencyRecorder.bucketOf(Long.MAX_VALUE), is(LatencyRecorder.BUCKETS - 1));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        // 1 to 10000 microseconds
+        for (long micros = 1; micros <= 10000; micros++) {
+            recorder.record(micros * 1000);
+        }
+
+        LatencyRecorder.Snapshot snapshot = recorder.snapshot();
+        assertThat(snapshot.getCount(), is(10000L));
+        assertThat(snapshot.getMeanMicros(), is(closeTo(5000.5, 0.01)));
+        assertThat(snapshot.getMaxMicros(), is(10000.0));
+        // within the 1/32 bucket width
+        assertThat(snapshot.getValueMicros(0.5), is(closeTo(5000, 5000 / 32.0)));
+        assertThat(snapshot.getValueMicros(0.99), is(closeTo(9900, 9900 / 32.0)));
+        assertThat(snapshot.getValueMicros(0.999), is(closeTo(9990, 9990 / 32.0)));
+        assertThat(snapshot.getValueMicros(1.0), is(10000.0));
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        recorder.record(10);
+        recorder.record(20);
+        recorder.record(-5);
+
+        LatencyRecorder.Snapshot snapshot = recorder.snapshot();
+        assertThat(snapshot.getValueMicros(0.3), is(0.0));
+        assertThat(snapshot.getValueMicros(0.5), is(0.010));
+        assertThat(snapshot.getValueMicros(1.0), is(0.020));
+    }
+
+    @Test
+    public void testEmpty() {
+        LatencyRecorder.Snapshot snapshot = new LatencyRecorder().snapshot();
+        assertThat(snapshot.getCount(), is(0L));
+        assertThat(snapshot.getMeanMicros(), is(0.0));
+        assertThat(snapshot.getValueMicros(0.99), is(0.0));
+    }
+}
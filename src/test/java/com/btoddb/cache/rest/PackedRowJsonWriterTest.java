@@ -0,0 +1,103 @@
+package com.btoddb.cache.rest;
+
+import com.btoddb.cache.PackedRow;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import javax.ws.rs.core.MediaType;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+
+public class PackedRowJsonWriterTest {
+    ObjectMapper objMapper = new ObjectMapper();
+    PackedRowJsonWriter writer = new PackedRowJsonWriter(objMapper, false);
+
+    PackedRow row = PackedRow.builder()
+            .set("str", "quote \" backslash \\ newline \n fünf ☃", 1)
+            .set("int", 42, 2)
+            .set("long", Long.MAX_VALUE, 3)
+            .set("double", 4.25, 4)
+            .set("float", 0.1f, 5)
+            .set("bool", true, 6)
+            .set("bytes", ByteBuffer.wrap(new byte[] {1, 2, 3}), 7)
+            .set("uuid", UUID.randomUUID(), 8)
+            .set("date", new Date(), 9)
+            .set("null", null, 10)
+            .build();
+
+    @Test
+    public void testSameJsonAsMapOfCachedColumns() throws Exception {
+        JsonNode expected = objMapper.readTree(objMapper.writeValueAsBytes(row.toMap()));
+
+        assertThat(objMapper.readTree(write(row)), is(expected));
+        // serializer on a char based generator takes the other string path
+        assertThat(objMapper.readTree(objMapper.writeValueAsString(row)), is(expected));
+    }
+
+    @Test
+    public void testLeavesStreamOpen() throws Exception {
+        final boolean[] closed = {false};
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+
+        writer.writeTo(row, PackedRow.class, PackedRow.class, null, MediaType.APPLICATION_JSON_TYPE, null, out);
+
+        assertThat(closed[0], is(false));
+        assertThat(row.getEncodedJson(), is(nullValue()));
+        assertThat(objMapper.readTree(out.toByteArray()).size(), is(row.size()));
+    }
+
+    @Test
+    public void testKeepsEncodedBytesWithRow() throws Exception {
+        writer = new PackedRowJsonWriter(objMapper, true);
+        assertThat(writer.getSize(row, PackedRow.class, PackedRow.class, null, MediaType.APPLICATION_JSON_TYPE), is(-1L));
+
+        byte[] first = write(row);
+        assertThat(row.getEncodedJson(), is(first));
+        assertThat(writer.getSize(row, PackedRow.class, PackedRow.class, null, MediaType.APPLICATION_JSON_TYPE),
+                   is((long) first.length));
+
+        // the kept bytes are written as they are
+        row.setEncodedJson("{}".getBytes("UTF-8"));
+        assertThat(new String(write(row), "UTF-8"), is("{}"));
+
+        // a new version of the row starts without any
+        PackedRow updated = row.toBuilder().set("int", 43, 11).build();
+        assertThat(updated.getEncodedJson(), is(nullValue()));
+        assertThat(objMapper.readTree(write(updated)).get("int").get("data").asInt(), is(43));
+    }
+
+    @Test
+    public void testDoesNotKeepPartialRows() throws Exception {
+        writer = new PackedRowJsonWriter(objMapper, true);
+        PackedRow projected = row.select(Arrays.asList("int"));
+
+        assertThat(objMapper.readTree(write(projected)).size(), is(1));
+        assertThat(projected.getEncodedJson(), is(nullValue()));
+    }
+
+    @Test
+    public void testOnlyWritesRows() {
+        assertThat(writer.isWriteable(PackedRow.class, PackedRow.class, null, MediaType.APPLICATION_JSON_TYPE), is(true));
+        assertThat(writer.isWriteable(String.class, String.class, null, MediaType.APPLICATION_JSON_TYPE), is(false));
+    }
+
+    private byte[] write(PackedRow row) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeTo(row, PackedRow.class, PackedRow.class, null, MediaType.APPLICATION_JSON_TYPE, null, out);
+        return out.toByteArray();
+    }
+}
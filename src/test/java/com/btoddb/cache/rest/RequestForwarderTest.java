@@ -0,0 +1,197 @@
+package com.btoddb.cache.rest;
+
+import com.btoddb.cache.PackedRow;
+import com.btoddb.cache.PackedRowWireFormat;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+
+
+public class RequestForwarderTest {
+    HttpServer owner;
+    InetAddress localhost = InetAddress.getLoopbackAddress();
+    RequestForwarder forwarder;
+
+    // what the owner last received
+    volatile String uri;
+    volatile String forwardedHeader;
+    volatile String accept;
+    volatile String path;
+    volatile String query;
+    volatile PackedRow putRow;
+    final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setup() throws Exception {
+        owner = HttpServer.create(new InetSocketAddress(localhost, 0), 0);
+        owner.createContext("/v1/get/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                record(exchange);
+                if (exchange.getRequestURI().getPath().endsWith("slow")) {
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (exchange.getRequestURI().getPath().endsWith("missing")) {
+                    respond(exchange, 404, "text/plain", "not found");
+                }
+                else {
+                    respond(exchange, 200, "application/json", "{\"col\":{}}");
+                }
+            }
+        });
+        owner.createContext("/v1/put/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                record(exchange);
+                putRow = PackedRowWireFormat.read(new DataInputStream(exchange.getRequestBody()), 1024 * 1024);
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+            }
+        });
+        owner.start();
+        forwarder = new RequestForwarder(owner.getAddress().getPort(), 2, 10, 1000);
+    }
+
+    @After
+    public void teardown() {
+        release.countDown();
+        forwarder.shutdown();
+        owner.stop(0);
+    }
+
+    @Test
+    public void testGetIsPassedOn() throws Exception {
+        Response response = forwarder.get(localhost, "a b", "x,y", "application/json").get(5, TimeUnit.SECONDS);
+
+        assertThat(response.getStatus(), is(200));
+        assertThat(response.getMediaType().toString(), is("application/json"));
+        assertThat(new String((byte[]) response.getEntity(), "UTF-8"), is("{\"col\":{}}"));
+        assertThat(uri, is("/v1/get/a%20b?columns=x%2Cy"));
+        assertThat(forwardedHeader, is("true"));
+        assertThat(accept, is("application/json"));
+        assertThat(forwarder.getForwardedCount(), is(1L));
+    }
+
+    @Test
+    public void testIdAndColumnsAreEncoded() throws Exception {
+        Response response = forwarder.get(localhost, "a/b%c+d", "x&y=z,é", null).get(5, TimeUnit.SECONDS);
+
+        assertThat(response.getStatus(), is(200));
+        assertThat(uri, is("/v1/get/a%2Fb%25c%2Bd?columns=x%26y%3Dz%2C%C3%A9"));
+        assertThat(path, is("/v1/get/a/b%c+d"));
+        assertThat(query, is("columns=x&y=z,é"));
+
+        forwarder.put(localhost, "a/b", PackedRow.builder().set("a", "1", 5L).build()).get(5, TimeUnit.SECONDS);
+        assertThat(uri, is("/v1/put/a%2Fb"));
+    }
+
+    @Test
+    public void testFullQueueIsRejected() throws Exception {
+        RequestForwarder small = new RequestForwarder(owner.getAddress().getPort(), 1, 1, 1000);
+        try {
+            Future<Response> running = small.get(localhost, "slow", null, null);
+            Future<Response> queued = small.get(localhost, "queued", null, null);
+            try {
+                small.get(localhost, "rejected", null, null).get(5, TimeUnit.SECONDS);
+                throw new AssertionError("expected the forward to be rejected");
+            }
+            catch (ExecutionException e) {
+                assertThat(e.getCause(), is(instanceOf(RejectedExecutionException.class)));
+            }
+            assertThat(small.getRejectedCount(), is(1L));
+
+            release.countDown();
+            assertThat(running.get(5, TimeUnit.SECONDS).getStatus(), is(200));
+            assertThat(queued.get(5, TimeUnit.SECONDS).getStatus(), is(200));
+        }
+        finally {
+            small.shutdown();
+        }
+    }
+
+    @Test
+    public void testErrorResponseIsPassedOn() throws Exception {
+        Response response = forwarder.get(localhost, "missing", null, null).get(5, TimeUnit.SECONDS);
+
+        assertThat(response.getStatus(), is(404));
+        assertThat(new String((byte[]) response.getEntity(), "UTF-8"), is("not found"));
+        assertThat(forwarder.getFailureCount(), is(0L));
+    }
+
+    @Test
+    public void testPutIsSentAsBinaryRow() throws Exception {
+        PackedRow row = PackedRow.builder().set("a", "1", 5L).set("b", 2L, 6L).build();
+
+        Response response = forwarder.put(localhost, "1", row).get(5, TimeUnit.SECONDS);
+
+        assertThat(response.getStatus(), is(204));
+        assertThat(uri, is("/v1/put/1"));
+        assertThat(forwardedHeader, is("true"));
+        assertThat(putRow, is(row));
+    }
+
+    @Test
+    public void testUnreachableOwnerFails() throws Exception {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        RequestForwarder toNowhere = new RequestForwarder(closedPort, 1, 1, 1000);
+        try {
+            toNowhere.get(localhost, "1", null, null).get(5, TimeUnit.SECONDS);
+        }
+        catch (ExecutionException e) {
+            assertThat(e.getCause(), is(instanceOf(IOException.class)));
+            assertThat(toNowhere.getFailureCount(), is(1L));
+            return;
+        }
+        finally {
+            toNowhere.shutdown();
+        }
+        throw new AssertionError("expected the forward to fail");
+    }
+
+    private void record(HttpExchange exchange) {
+        uri = exchange.getRequestURI().getRawPath()
+                + (null != exchange.getRequestURI().getRawQuery() ? "?" + exchange.getRequestURI().getRawQuery() : "");
+        path = exchange.getRequestURI().getPath();
+        query = exchange.getRequestURI().getQuery();
+        forwardedHeader = exchange.getRequestHeaders().getFirst(RequestForwarder.FORWARDED_HEADER);
+        accept = exchange.getRequestHeaders().getFirst(HttpHeaders.ACCEPT);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String type, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set(HttpHeaders.CONTENT_TYPE, type);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
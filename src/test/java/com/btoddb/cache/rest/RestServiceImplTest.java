@@ -1,18 +1,42 @@
 package com.btoddb.cache.rest;
 
+import com.btoddb.cache.CacheWarmer;
 import com.btoddb.cache.CachedColumn;
 import com.btoddb.cache.CachingService;
+import com.btoddb.cache.NegativeCache;
+import com.btoddb.cache.PackedRow;
+import com.btoddb.cache.ReadThroughLoader;
+import com.btoddb.cache.TokenOwnership;
+import com.btoddb.cache.WriteBehindQueue;
 import com.btoddb.cache.cassandra.CassandraDao;
+import com.btoddb.cache.metrics.CacheMetrics;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
 import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Map;
 
 import static org.hamcrest.CoreMatchers.is;
-import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.MatcherAssert.assertThat;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
@@ -23,75 +47,392 @@ public class RestServiceImplTest {
     CassandraDao cassandraDao;
     RestServiceImpl restService;
 
-    Map<String, CachedColumn> mock123 = mock(Map.class);
-    Map<String, CachedColumn> mock456 = mock(Map.class);
+    Map<String, CachedColumn> map123 = Collections.singletonMap("col", new CachedColumn("col", "123-data", 1L));
+    PackedRow row123 = PackedRow.fromMap(map123);
+    PackedRow row456 = PackedRow.fromMap(Collections.singletonMap("col", new CachedColumn("col", "456-data", 1L)));
 
     @Before
     public void setup() {
         cachingService = mock(CachingService.class);
-        when(cachingService.get("123")).thenReturn(mock123);
+        when(cachingService.get("123")).thenReturn(row123);
+        when(cachingService.getQuiet("123")).thenReturn(row123);
         when(cachingService.get("456")).thenReturn(null);
         when(cachingService.get("789")).thenReturn(null);
 
         cassandraDao = mock(CassandraDao.class);
-        when(cassandraDao.get("456")).thenReturn(mock456);
+        when(cassandraDao.get("456")).thenReturn(row456);
         when(cassandraDao.get("789")).thenReturn(null);
+        when(cassandraDao.getAsync("456")).thenReturn(Futures.immediateFuture(row456));
+        when(cassandraDao.getAsync("789")).thenReturn(Futures.<PackedRow>immediateFuture(null));
 
         restService = new RestServiceImpl();
         restService.setCachingService(cachingService);
         restService.setCassandraDao(cassandraDao);
+        restService.setRowLoader(new ReadThroughLoader(cachingService, cassandraDao));
     }
 
     @Test
     public void testGetFromCache() throws Exception {
-        Map<String, CachedColumn> resp = restService.get("123", null);
+        AsyncResponse asyncResp = mock(AsyncResponse.class);
 
-        assertThat(resp, is(mock123));
+        restService.get("123", null, null, asyncResp);
+
+        verify(asyncResp).resume(row123);
         verify(cachingService, times(1)).get("123");
-        verify(cachingService, times(0)).put(anyString(), anyMap());
-        verify(cassandraDao, times(0)).get(anyString());
-        verify(cassandraDao, times(0)).put(anyString(), anyMap());
+        verify(cachingService, times(0)).put(anyString(), any(PackedRow.class));
+        verify(cassandraDao, times(0)).getAsync(anyString());
+        verify(cassandraDao, times(0)).put(anyString(), any(PackedRow.class));
         verifyNoMoreInteractions(cachingService, cassandraDao);
+        assertThat(restService.getGetLatency().snapshot().getCount(), is(1L));
     }
 
     @Test
     public void testGetFromCassandra() throws Exception {
-        HttpServletResponse httpResp = mock(HttpServletResponse.class);
+        AsyncResponse asyncResp = mock(AsyncResponse.class);
 
-        Map<String, CachedColumn> resp = restService.get("456", httpResp);
+        restService.get("456", null, null, asyncResp);
 
-        assertThat(resp, is(mock456));
+        verify(asyncResp).resume(row456);
         verify(cachingService, times(1)).get("456");
-        verify(cachingService, times(0)).put(anyString(), anyMap());
-        verify(cassandraDao, times(1)).get("456");
-        verify(cassandraDao, times(1)).put(eq("456"), eq(mock456));
+        verify(cassandraDao, times(1)).getAsync("456");
+        // loaded row goes into the cache, not back to cassandra
+        verify(cachingService).acquireWriteLockOnKey("456");
+        verify(cachingService).contains("456");
+        verify(cachingService, times(1)).put(eq("456"), eq(row456));
+        verify(cachingService).releaseWriteLockOnKey("456");
+        verify(cassandraDao, times(0)).put(anyString(), any(PackedRow.class));
         verifyNoMoreInteractions(cachingService, cassandraDao);
     }
 
+    @Test
+    public void testGetColumns() throws Exception {
+        PackedRow row = PackedRow.builder().set("a", "1", 1L).set("b", "2", 1L).set("c", "3", 1L).build();
+        when(cachingService.get("abc")).thenReturn(row);
+        AsyncResponse asyncResp = mock(AsyncResponse.class);
+
+        restService.get("abc", " c, a,,", null, asyncResp);
+
+        ArgumentCaptor<PackedRow> resumed = ArgumentCaptor.forClass(PackedRow.class);
+        verify(asyncResp).resume(resumed.capture());
+        assertThat(resumed.getValue().toMap().keySet(), contains("a", "c"));
+        verify(cassandraDao, never()).getAsync(anyString(), anyCollectionOf(String.class));
+    }
+
     @Test
     public void testGetCompleteMiss() throws Exception {
-        HttpServletResponse httpResp = mock(HttpServletResponse.class);
+        AsyncResponse asyncResp = mock(AsyncResponse.class);
 
-        Map resp = restService.get("789", httpResp);
+        restService.get("789", null, null, asyncResp);
 
-        assertThat(resp, is(nullValue()));
-        verify(httpResp).sendError(eq(HttpServletResponse.SC_NOT_FOUND), anyString());
+        assertThat(resumedWith(asyncResp).getStatus(), is(HttpServletResponse.SC_NOT_FOUND));
         verify(cachingService, times(1)).get("789");
-        verify(cachingService, times(0)).put(anyString(), anyMap());
-        verify(cassandraDao, times(1)).get("789");
-        verify(cassandraDao, times(0)).put(anyString(), anyMap());
+        verify(cachingService, times(0)).put(anyString(), any(PackedRow.class));
+        verify(cassandraDao, times(1)).getAsync("789");
+        verify(cassandraDao, times(0)).put(anyString(), any(PackedRow.class));
         verifyNoMoreInteractions(cachingService, cassandraDao);
     }
 
+    @Test
+    public void testMissingIdIsAnsweredWithoutCassandra() throws Exception {
+        restService.getRowLoader().setNegativeCache(new NegativeCache(60000, 100));
+
+        restService.get("789", null, null, mock(AsyncResponse.class));
+        AsyncResponse asyncResp = mock(AsyncResponse.class);
+        restService.get("789", null, null, asyncResp);
+
+        assertThat(resumedWith(asyncResp).getStatus(), is(HttpServletResponse.SC_NOT_FOUND));
+        verify(cassandraDao, times(1)).getAsync("789");
+        assertThat(restService.getRowLoader().getNegativeCache().getHitCount(), is(1L));
+    }
+
+    @Test
+    public void testGetFailure() throws Exception {
+        AsyncResponse asyncResp = mock(AsyncResponse.class);
+        IllegalStateException failure = new IllegalStateException("cassandra down");
+        when(cassandraDao.getAsync("456")).thenReturn(Futures.<PackedRow>immediateFailedFuture(failure));
+
+        restService.get("456", null, null, asyncResp);
+
+        verify(asyncResp).resume(failure);
+    }
+
     @Test
     public void testPutData() throws Exception {
-        restService.put("123", mock123);
+        AsyncResponse asyncResp = mock(AsyncResponse.class);
+        SettableFuture<Void> write = SettableFuture.create();
+        when(cassandraDao.putAsync(eq("123"), any(PackedRow.class), anyLong())).thenReturn(write);
+        when(cachingService.replace(eq("123"), eq(row123), any(PackedRow.class))).thenReturn(true);
 
-        verify(cachingService, times(0)).get(anyString());
-        verify(cachingService, times(1)).put("123", mock123);
+        restService.put("123", map123, null, asyncResp);
+
+        // not answered until cassandra acknowledges the write
+        verifyZeroInteractions(asyncResp);
+        write.set(null);
+        assertThat(resumedWith(asyncResp).getStatus(), is(HttpServletResponse.SC_NO_CONTENT));
+
+        PackedRow written = verifyWritten("123", row123);
+        verifyMergedIntoCached("123", row123, written);
         verify(cassandraDao, times(0)).get(anyString());
-        verify(cassandraDao, times(1)).put("123", mock123);
         verifyNoMoreInteractions(cachingService, cassandraDao);
+    }
+
+    @Test
+    public void testPutRow() throws Exception {
+        AsyncResponse asyncResp = mock(AsyncResponse.class);
+        when(cassandraDao.putAsync(eq("123"), any(PackedRow.class), anyLong()))
+                .thenReturn(Futures.<Void>immediateFuture(null));
+        when(cachingService.replace(eq("123"), eq(row123), any(PackedRow.class))).thenReturn(true);
+
+        restService.putRow("123", row123, null, asyncResp);
+
+        assertThat(resumedWith(asyncResp).getStatus(), is(HttpServletResponse.SC_NO_CONTENT));
+        PackedRow written = verifyWritten("123", row123);
+        verifyMergedIntoCached("123", row123, written);
+        verifyNoMoreInteractions(cachingService, cassandraDao);
+        assertThat(restService.getPutLatency().snapshot().getCount(), is(1L));
+    }
+
+    @Test
+    public void testPutWriteBehind() throws Exception {
+        AsyncResponse asyncResp = mock(AsyncResponse.class);
+        WriteBehindQueue writeBehind = new WriteBehindQueue(cachingService, cassandraDao, 1000000, 10, 1000);
+        restService.setWriteBehind(writeBehind);
+        when(cachingService.replace(eq("123"), eq(row123), any(PackedRow.class))).thenReturn(true);
+
+        restService.put("123", map123, null, asyncResp);
+
+        // answered once cached, the write waits for the flusher
+        assertThat(resumedWith(asyncResp).getStatus(), is(HttpServletResponse.SC_NO_CONTENT));
+        PackedRow pending = writeBehind.getPending("123");
+        assertThat(pending, is(row123.withTimestamp(pending.timestamp(0))));
+        verifyMergedIntoCached("123", row123, pending);
+        verifyNoMoreInteractions(cachingService, cassandraDao);
+    }
+
+    @Test
+    public void testPutWriteBehindFullWritesThrough() throws Exception {
+        AsyncResponse asyncResp = mock(AsyncResponse.class);
+        when(cassandraDao.putAsync(eq("123"), any(PackedRow.class), anyLong()))
+                .thenReturn(Futures.<Void>immediateFuture(null));
+        restService.setWriteBehind(new WriteBehindQueue(cachingService, cassandraDao, 1, 10, 1000));
+        when(cachingService.replace(eq("123"), eq(row123), any(PackedRow.class))).thenReturn(true);
+
+        restService.put("123", map123, null, asyncResp);
+
+        assertThat(resumedWith(asyncResp).getStatus(), is(HttpServletResponse.SC_NO_CONTENT));
+        PackedRow written = verifyWritten("123", row123);
+        verifyMergedIntoCached("123", row123, written);
+        verifyNoMoreInteractions(cachingService, cassandraDao);
+    }
+
+    @Test
+    public void testPutOfSomeColumnsIsMergedIntoCachedRow() throws Exception {
+        PackedRow cached = PackedRow.builder().set("a", "1", 1).set("b", "2", 1).build();
+        when(cachingService.getQuiet("777")).thenReturn(cached);
+        when(cachingService.replace(eq("777"), eq(cached), any(PackedRow.class))).thenReturn(true);
+        when(cassandraDao.putAsync(eq("777"), any(PackedRow.class), anyLong()))
+                .thenReturn(Futures.<Void>immediateFuture(null));
+        PackedRow put = PackedRow.builder().set("a", "new", 1).build();
+
+        restService.putRow("777", put, null, mock(AsyncResponse.class));
+
+        // cassandra still has b, so the cached row has to as well
+        PackedRow written = verifyWritten("777", put);
+        ArgumentCaptor<PackedRow> merged = ArgumentCaptor.forClass(PackedRow.class);
+        verify(cachingService).replace(eq("777"), eq(cached), merged.capture());
+        assertThat(merged.getValue().get("a"), is(written.get("a")));
+        assertThat(merged.getValue().get("b"), is(cached.get("b")));
+        assertThat(merged.getValue().isPartial(), is(false));
+    }
+
+    @Test
+    public void testPutOfUncachedRowIsCachedPartial() throws Exception {
+        when(cassandraDao.putAsync(eq("456"), any(PackedRow.class), anyLong()))
+                .thenReturn(Futures.<Void>immediateFuture(null));
+
+        restService.putRow("456", row456, null, mock(AsyncResponse.class));
+
+        // cassandra may have columns the PUT didn't send, so it can't answer a whole-row GET
+        PackedRow written = verifyWritten("456", row456);
+        ArgumentCaptor<PackedRow> cached = ArgumentCaptor.forClass(PackedRow.class);
+        verify(cachingService).put(eq("456"), cached.capture());
+        assertThat(cached.getValue().isPartial(), is(true));
+        assertThat(cached.getValue().get("col"), is(written.get("col")));
+    }
+
+    @Test
+    public void testGetOwnedElsewhereIsForwarded() throws Exception {
+        InetAddress owner = ownedElsewhere("456");
+        Response ownerResponse = Response.ok("from the owner").build();
+        when(restService.getForwarder().get(owner, "456", "col", MediaType.APPLICATION_JSON))
+                .thenReturn(Futures.immediateFuture(ownerResponse));
+        HttpHeaders headers = mock(HttpHeaders.class);
+        when(headers.getHeaderString(HttpHeaders.ACCEPT)).thenReturn(MediaType.APPLICATION_JSON);
+        AsyncResponse asyncResp = mock(AsyncResponse.class);
+
+        restService.get("456", "col", headers, asyncResp);
+
+        verify(asyncResp).resume(ownerResponse);
+        verifyZeroInteractions(cachingService, cassandraDao);
+        assertThat(restService.getGetLatency().snapshot().getCount(), is(1L));
+    }
+
+    @Test
+    public void testForwardedGetIsAnsweredHere() throws Exception {
+        ownedElsewhere("456");
+        HttpHeaders headers = mock(HttpHeaders.class);
+        when(headers.getHeaderString(RequestForwarder.FORWARDED_HEADER)).thenReturn("true");
+        AsyncResponse asyncResp = mock(AsyncResponse.class);
+
+        restService.get("456", null, headers, asyncResp);
+
+        verify(asyncResp).resume(row456);
+        verify(cassandraDao).getAsync("456");
+        verify(cachingService, never()).put(anyString(), any(PackedRow.class));
+        verifyZeroInteractions(restService.getForwarder());
+    }
+
+    @Test
+    public void testGetOwnerUnreachableIsAnsweredHere() throws Exception {
+        InetAddress owner = ownedElsewhere("456");
+        when(restService.getForwarder().get(owner, "456", null, null))
+                .thenReturn(Futures.<Response>immediateFailedFuture(new ConnectException("refused")));
+        AsyncResponse asyncResp = mock(AsyncResponse.class);
+
+        restService.get("456", null, null, asyncResp);
+
+        verify(asyncResp).resume(row456);
+        verify(cachingService, never()).put(anyString(), any(PackedRow.class));
+    }
+
+    @Test
+    public void testPutOwnedElsewhereIsForwarded() throws Exception {
+        InetAddress owner = ownedElsewhere("123");
+        Response ownerResponse = Response.noContent().build();
+        when(restService.getForwarder().put(owner, "123", row123)).thenReturn(Futures.immediateFuture(ownerResponse));
+        AsyncResponse asyncResp = mock(AsyncResponse.class);
+
+        restService.put("123", map123, null, asyncResp);
+
+        verify(asyncResp).resume(ownerResponse);
+        verifyZeroInteractions(cachingService, cassandraDao);
+    }
+
+    @Test
+    public void testPutOwnerUnreachableIsWrittenNotCached() throws Exception {
+        InetAddress owner = ownedElsewhere("123");
+        when(restService.getForwarder().put(owner, "123", row123))
+                .thenReturn(Futures.<Response>immediateFailedFuture(new ConnectException("refused")));
+        when(cassandraDao.putAsync(eq("123"), any(PackedRow.class), anyLong()))
+                .thenReturn(Futures.<Void>immediateFuture(null));
+        AsyncResponse asyncResp = mock(AsyncResponse.class);
+
+        restService.put("123", map123, null, asyncResp);
+
+        assertThat(resumedWith(asyncResp).getStatus(), is(HttpServletResponse.SC_NO_CONTENT));
+        verifyWritten("123", row123);
+        verifyNoMoreInteractions(cachingService, cassandraDao);
+    }
+
+    private void verifyMergedIntoCached(String id, PackedRow cached, PackedRow written) {
+        verify(cachingService).acquireWriteLockOnKey(id);
+        verify(cachingService).getQuiet(id);
+        verify(cachingService).replace(id, cached, written);
+        verify(cachingService).releaseWriteLockOnKey(id);
+    }
+
+    /**
+     * Checks the row was written with one timestamp for all its columns, taken at the PUT.
+     *
+     * @return the row as written, which is also what should be cached
+     */
+    private PackedRow verifyWritten(String id, PackedRow row) {
+        ArgumentCaptor<PackedRow> written = ArgumentCaptor.forClass(PackedRow.class);
+        ArgumentCaptor<Long> timestamp = ArgumentCaptor.forClass(Long.class);
+        verify(cassandraDao).putAsync(eq(id), written.capture(), timestamp.capture());
+        assertThat(written.getValue(), is(row.withTimestamp(timestamp.getValue())));
+        assertThat(timestamp.getValue() > row.timestamp(0), is(true));
+        return written.getValue();
+    }
+
+    /**
+     * Sets up ownership and forwarding, with the row owned by another node.
+     *
+     * @return the owner
+     */
+    private InetAddress ownedElsewhere(String id) throws Exception {
+        InetAddress owner = InetAddress.getByName("10.0.0.2");
+        TokenOwnership ownership = mock(TokenOwnership.class);
+        when(ownership.isOwned(anyString())).thenReturn(true);
+        when(ownership.isOwned(id)).thenReturn(false);
+        when(ownership.getOwner(id)).thenReturn(owner);
+        restService.getRowLoader().setOwnership(ownership);
+        restService.setOwnership(ownership);
+        restService.setForwarder(mock(RequestForwarder.class));
+        return owner;
+    }
+
+    @Test
+    public void testMultiget() throws Exception {
+        AsyncResponse asyncResp = mock(AsyncResponse.class);
+        restService.multiget(Arrays.asList("123", "456", "789"), asyncResp);
+
+        ArgumentCaptor<StreamingOutput> output = ArgumentCaptor.forClass(StreamingOutput.class);
+        verify(asyncResp).resume(output.capture());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        output.getValue().write(out);
+
+        JsonNode json = new ObjectMapper().readTree(out.toByteArray());
+        assertThat(json.size(), is(2));
+        assertThat(json.get("123").get("col").get("data").asText(), is("123-data"));
+        assertThat(json.get("456").get("col").get("data").asText(), is("456-data"));
+        assertThat(json.has("789"), is(false));
+
+        // misses are read asynchronously and the found one is cached
+        verify(cassandraDao).getAsync("456");
+        verify(cassandraDao).getAsync("789");
+        verify(cassandraDao, never()).get(anyString());
+        verify(cachingService).put("456", row456);
+    }
+
+    @Test
+    public void testMultigetTooManyIds() throws Exception {
+        AsyncResponse asyncResp = mock(AsyncResponse.class);
+        restService.setMultigetMaxIds(2);
+
+        restService.multiget(Arrays.asList("123", "456", "789"), asyncResp);
+
+        assertThat(resumedWith(asyncResp).getStatus(), is(HttpServletResponse.SC_BAD_REQUEST));
+        verifyNoMoreInteractions(cassandraDao);
+    }
+
+    private Response resumedWith(AsyncResponse asyncResp) {
+        ArgumentCaptor<Response> response = ArgumentCaptor.forClass(Response.class);
+        verify(asyncResp).resume(response.capture());
+        return response.getValue();
+    }
+
+    @Test
+    public void testMetrics() {
+        CacheMetrics metrics = new CacheMetrics();
+        metrics.registerRestService(restService);
+        restService.setMetrics(metrics);
+
+        restService.get("123", null, null, mock(AsyncResponse.class));
+
+        assertThat(restService.metrics().get("rest.get.count"), is((Object) 1L));
+        assertThat(restService.metrics().get("rest.put.count"), is((Object) 0L));
+    }
+
+    @Test
+    public void testReady() {
+        assertThat(restService.ready().getStatus(), is(HttpServletResponse.SC_OK));
+
+        CacheWarmer warmer = mock(CacheWarmer.class);
+        restService.setWarmer(warmer);
+        assertThat(restService.ready().getStatus(), is(HttpServletResponse.SC_SERVICE_UNAVAILABLE));
 
+        when(warmer.isReady()).thenReturn(true);
+        assertThat(restService.ready().getStatus(), is(HttpServletResponse.SC_OK));
     }
-}
\ No newline at end of file
+}
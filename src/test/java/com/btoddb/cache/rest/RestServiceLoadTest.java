@@ -0,0 +1,134 @@
+package com.btoddb.cache.rest;
+
+import com.btoddb.cache.CachingService;
+import com.btoddb.cache.CachingServiceUsingOffHeap;
+import com.btoddb.cache.PackedRow;
+import com.btoddb.cache.ReadThroughLoader;
+import com.btoddb.cache.cassandra.CassandraDao;
+import com.fasterxml.jackson.jaxrs.json.JacksonJaxbJsonProvider;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.cxf.BusFactory;
+import org.apache.cxf.endpoint.Server;
+import org.apache.cxf.jaxrs.JAXRSServerFactoryBean;
+import org.apache.cxf.transport.http_jetty.JettyHTTPServerEngineFactory;
+import org.apache.cxf.transport.http_jetty.ThreadingParameters;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+/**
+ * Many more concurrent GETs than the server has threads, all waiting on slow Cassandra reads.
+ * Every read must be in flight at the same time - a blocking service would only get as many
+ * reads going as it has threads.
+ */
+public class RestServiceLoadTest {
+    static final int PORT = 9091;
+    static final int SERVER_THREADS = 8;
+    static final int CLIENTS = 10 * SERVER_THREADS;
+
+    CachingService cachingService;
+    CassandraDao cassandraDao;
+    Server server;
+    Queue<SettableFuture<PackedRow>> pendingReads = new ConcurrentLinkedQueue<>();
+    CountDownLatch allReadsStarted = new CountDownLatch(CLIENTS);
+
+    @Before
+    public void setup() throws Exception {
+        cachingService = new CachingServiceUsingOffHeap("ks", "cf", 1024 * 1024);
+        cassandraDao = mock(CassandraDao.class);
+        when(cassandraDao.getAsync(anyString())).thenAnswer(new Answer<ListenableFuture<PackedRow>>() {
+            @Override
+            public ListenableFuture<PackedRow> answer(InvocationOnMock invocation) throws Throwable {
+                // cassandra doesn't answer until every client is waiting on it
+                SettableFuture<PackedRow> read = SettableFuture.create();
+                pendingReads.add(read);
+                allReadsStarted.countDown();
+                return read;
+            }
+        });
+
+        RestServiceImpl restService = new RestServiceImpl();
+        restService.setCachingService(cachingService);
+        restService.setCassandraDao(cassandraDao);
+        restService.setRowLoader(new ReadThroughLoader(cachingService, cassandraDao));
+
+        ThreadingParameters threading = new ThreadingParameters();
+        threading.setMinThreads(SERVER_THREADS);
+        threading.setMaxThreads(SERVER_THREADS);
+        BusFactory.getDefaultBus().getExtension(JettyHTTPServerEngineFactory.class)
+                  .createJettyHTTPServerEngine(PORT, "http").setThreadingParameters(threading);
+
+        JAXRSServerFactoryBean serverFactoryBean = new JAXRSServerFactoryBean();
+        serverFactoryBean.setAddress("http://localhost:" + PORT);
+        serverFactoryBean.setProviders(Collections.singletonList(new JacksonJaxbJsonProvider()));
+        serverFactoryBean.setServiceBean(restService);
+        server = serverFactoryBean.create();
+        server.start();
+    }
+
+    @After
+    public void teardown() {
+        server.stop();
+        server.destroy();
+    }
+
+    @Test
+    public void testConcurrencyIsNotCappedByServerThreads() throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        try {
+            List<Future<Integer>> responses = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                final URL url = new URL("http://localhost:" + PORT + "/v1/get/" + i);
+                responses.add(clients.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+                        try (InputStream in = conn.getInputStream()) {
+                            while (-1 != in.read()) {
+                            }
+                        }
+                        return conn.getResponseCode();
+                    }
+                }));
+            }
+
+            assertThat("reads in flight at once", allReadsStarted.await(10, TimeUnit.SECONDS), is(true));
+
+            PackedRow row = PackedRow.builder().set("col", "data", 1).build();
+            for (SettableFuture<PackedRow> read : pendingReads) {
+                read.set(row);
+            }
+            for (Future<Integer> response : responses) {
+                assertThat(response.get(10, TimeUnit.SECONDS), is(200));
+            }
+        }
+        finally {
+            clients.shutdownNow();
+        }
+    }
+}